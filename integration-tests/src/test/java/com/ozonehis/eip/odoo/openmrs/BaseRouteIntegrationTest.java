@@ -20,9 +20,19 @@ import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.ozonehis.camel.test.infra.odoo.services.OdooService;
 import com.ozonehis.camel.test.infra.odoo.services.OdooServiceFactory;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
+import com.ozonehis.eip.odoo.openmrs.client.OdooLatencyMonitor;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.component.OdooComponent;
+import com.ozonehis.eip.odoo.openmrs.debounce.PatientUpdateDebouncer;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
+import com.ozonehis.eip.odoo.openmrs.fetch.FhirFetchBatcher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.CountryHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.CountryStateHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
@@ -33,18 +43,26 @@ import com.ozonehis.eip.odoo.openmrs.handlers.odoo.UomHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.EncounterHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.ObservationHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.PatientHandler;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.PartnerMapper;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderLineMapper;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderMapper;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import com.ozonehis.eip.odoo.openmrs.prefilter.OrderEventPreFilter;
+import com.ozonehis.eip.odoo.openmrs.processors.FhirFetchProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.MedicationRequestProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.PatientProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.ServiceRequestProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.SupplyRequestProcessor;
+import com.ozonehis.eip.odoo.openmrs.retry.FastRetry;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
 import com.ozonehis.eip.odoo.openmrs.routes.MedicationRequestRouting;
 import com.ozonehis.eip.odoo.openmrs.routes.PatientRouting;
 import com.ozonehis.eip.odoo.openmrs.routes.ProcedureRouting;
 import com.ozonehis.eip.odoo.openmrs.routes.ServiceRequestRouting;
 import com.ozonehis.eip.odoo.openmrs.routes.SupplyRequestRouting;
+import com.ozonehis.eip.odoo.openmrs.shedding.LoadShedder;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -147,19 +165,23 @@ public abstract class BaseRouteIntegrationTest {
 
         CountryHandler countryHandler = new CountryHandler();
         countryHandler.setOdooClient(getOdooClient());
+        countryHandler.setCountryCache(new LookupCache<>("countries", 100));
 
         CountryStateHandler countryStateHandler = new CountryStateHandler();
         countryStateHandler.setOdooClient(getOdooClient());
+        countryStateHandler.setCountryStateCache(new LookupCache<>("states", 100));
 
         SaleOrderLineMapper<Resource> saleOrderLineMapper = new SaleOrderLineMapper<>();
 
         UomHandler uomHandler = new UomHandler();
         uomHandler.setOdooClient(getOdooClient());
         uomHandler.setOdooUtils(odooUtils);
+        uomHandler.setUomCache(new LookupCache<>("uoms", 100));
 
         ProductHandler productHandler = new ProductHandler();
         productHandler.setOdooClient(getOdooClient());
         productHandler.setOdooUtils(odooUtils);
+        productHandler.setProductCache(new LookupCache<>("products", 100));
 
         SaleOrderMapper saleOrderMapper = new SaleOrderMapper();
 
@@ -180,6 +202,8 @@ public abstract class BaseRouteIntegrationTest {
         partnerHandler.setOdooUtils(odooUtils);
         partnerHandler.setOdooCustomerDobField(odooCustomerDobField);
         partnerHandler.setPartnerDefaultAttributes(partnerDefaultAttributes);
+        partnerHandler.setPartnerIndex(new UuidIntIndex("partners"));
+        partnerHandler.setKnownRefsFilter(new KnownRefsFilter());
 
         // Setup IGenericClient
         FhirContext fhirContext = FhirContext.forR4();
@@ -191,26 +215,83 @@ public abstract class BaseRouteIntegrationTest {
         BasicAuthInterceptor authInterceptor = new BasicAuthInterceptor(username, password);
         client.registerInterceptor(authInterceptor);
 
-        PatientHandler patientHandler = new PatientHandler(client);
-        patientHandler.setOpenmrsFhirClient(client);
+        FhirResourceCache fhirResourceCache = new FhirResourceCache();
+        fhirResourceCache.setEnabled(false);
+        fhirResourceCache.setOpenmrsFhirClient(client);
+        fhirResourceCache.setFhirResourceCache(new LookupCache<>("fhir-resources", 100));
+
+        PatientHandler patientHandler = new PatientHandler();
+        patientHandler.setFhirResourceCache(fhirResourceCache);
 
         EncounterHandler encounterHandler = new EncounterHandler();
         encounterHandler.setOpenmrsFhirClient(client);
+        encounterHandler.setFhirResourceCache(fhirResourceCache);
 
         ObservationHandler observationHandler = new ObservationHandler();
         observationHandler.setOpenmrsFhirClient(client);
 
+        PatientWeightCache patientWeightCache = new PatientWeightCache();
+        patientWeightCache.setWeightCache(new LookupCache<>("weights", 100));
+        patientWeightCache.setObservationHandler(observationHandler);
+        patientWeightCache.setWeightConcept("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
         SaleOrderHandler saleOrderHandler = new SaleOrderHandler();
         saleOrderHandler.setOdooClient(getOdooClient());
         saleOrderHandler.setSaleOrderLineHandler(saleOrderLineHandler);
         saleOrderHandler.setSaleOrderMapper(saleOrderMapper);
         saleOrderHandler.setProductHandler(productHandler);
-        saleOrderHandler.setObservationHandler(observationHandler);
-        saleOrderHandler.setWeightConcept("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+        saleOrderHandler.setPatientWeightCache(patientWeightCache);
         saleOrderHandler.setOdooCustomerWeightField(odooCustomerWeightField);
         saleOrderHandler.setOdooCustomerDobField(odooCustomerDobField);
         saleOrderHandler.setOrderDefaultAttributes(orderDefaultAttributes);
         saleOrderHandler.setOdooUtils(odooUtils);
+        saleOrderHandler.setVisitIndex(new UuidIntIndex("visits"));
+        saleOrderHandler.setKnownRefsFilter(new KnownRefsFilter());
+        saleOrderHandler.setVisitLocks(new VisitLocks());
+
+        OrderEnricher orderEnricher = new OrderEnricher();
+        orderEnricher.setEnrichmentExecutor(Runnable::run);
+        orderEnricher.setTimeout(30000);
+        orderEnricher.setPartnerHandler(partnerHandler);
+        orderEnricher.setSaleOrderHandler(saleOrderHandler);
+        orderEnricher.setSaleOrderLineHandler(saleOrderLineHandler);
+
+        VisitOrderAggregator visitOrderAggregator = new VisitOrderAggregator();
+        visitOrderAggregator.setEnabled(false);
+        visitOrderAggregator.init();
+
+        PartitionedLanes partitionedLanes = new PartitionedLanes();
+        partitionedLanes.setLaneCount(2);
+        partitionedLanes.setLaneCapacity(100);
+        partitionedLanes.setWaitForCompletion(true);
+        partitionedLanes.setCamelContext(context);
+        partitionedLanes.setRetryQueue(new RetryQueue());
+        partitionedLanes.setFastRetry(new FastRetry());
+        partitionedLanes.init();
+
+        PatientUpdateDebouncer patientUpdateDebouncer = new PatientUpdateDebouncer();
+        patientUpdateDebouncer.setEnabled(false);
+        patientUpdateDebouncer.init();
+
+        AppliedVersionFilter appliedVersionFilter = new AppliedVersionFilter();
+        appliedVersionFilter.setEnabled(false);
+        appliedVersionFilter.setAppliedVersionCache(new LookupCache<>("applied-versions", 100));
+
+        OrderEventPreFilter orderEventPreFilter = new OrderEventPreFilter();
+        orderEventPreFilter.setEnabled(false);
+
+        LoadShedder loadShedder = new LoadShedder();
+        loadShedder.setEnabled(false);
+        loadShedder.setLatencyMonitor(new OdooLatencyMonitor());
+
+        FhirFetchBatcher fhirFetchBatcher = new FhirFetchBatcher();
+        fhirFetchBatcher.setEnabled(false);
+        fhirFetchBatcher.init();
+
+        FhirFetchProcessor fhirFetchProcessor = new FhirFetchProcessor();
+        fhirFetchProcessor.setOpenmrsFhirClient(client);
+        fhirFetchProcessor.setFhirFetchBatcher(fhirFetchBatcher);
+        fhirFetchProcessor.setFhirResourceCache(fhirResourceCache);
 
         PatientProcessor patientProcessor = new PatientProcessor();
         patientProcessor.setPartnerHandler(partnerHandler);
@@ -218,33 +299,52 @@ public abstract class BaseRouteIntegrationTest {
 
         PatientRouting patientRouting = new PatientRouting();
         patientRouting.setPatientProcessor(patientProcessor);
+        patientRouting.setPartitionedLanes(partitionedLanes);
+        patientRouting.setAppliedVersionFilter(appliedVersionFilter);
+        patientRouting.setLoadShedder(loadShedder);
+        patientRouting.setPatientUpdateDebouncer(patientUpdateDebouncer);
         patientRouting.setPatientSyncEnabled(true);
 
         MedicationRequestProcessor medicationRequestProcessor = new MedicationRequestProcessor();
         medicationRequestProcessor.setSaleOrderHandler(saleOrderHandler);
-        medicationRequestProcessor.setPartnerHandler(partnerHandler);
+        medicationRequestProcessor.setOrderEnricher(orderEnricher);
+        medicationRequestProcessor.setVisitOrderAggregator(visitOrderAggregator);
 
         MedicationRequestRouting medicationRequestRouting = new MedicationRequestRouting();
         medicationRequestRouting.setMedicationRequestProcessor(medicationRequestProcessor);
+        medicationRequestRouting.setFhirFetchProcessor(fhirFetchProcessor);
+        medicationRequestRouting.setPartitionedLanes(partitionedLanes);
+        medicationRequestRouting.setOrderEventPreFilter(orderEventPreFilter);
+        medicationRequestRouting.setAppliedVersionFilter(appliedVersionFilter);
 
         ServiceRequestProcessor serviceRequestProcessor = new ServiceRequestProcessor();
         serviceRequestProcessor.setSaleOrderHandler(saleOrderHandler);
-        serviceRequestProcessor.setPartnerHandler(partnerHandler);
+        serviceRequestProcessor.setOrderEnricher(orderEnricher);
+        serviceRequestProcessor.setVisitOrderAggregator(visitOrderAggregator);
 
         ServiceRequestRouting serviceRequestRouting = new ServiceRequestRouting();
         serviceRequestRouting.setServiceRequestProcessor(serviceRequestProcessor);
+        serviceRequestRouting.setFhirFetchProcessor(fhirFetchProcessor);
+        serviceRequestRouting.setPartitionedLanes(partitionedLanes);
+        serviceRequestRouting.setOrderEventPreFilter(orderEventPreFilter);
+        serviceRequestRouting.setAppliedVersionFilter(appliedVersionFilter);
 
         ProcedureRouting procedureRouting = new ProcedureRouting();
         procedureRouting.setServiceRequestProcessor(serviceRequestProcessor);
+        procedureRouting.setPartitionedLanes(partitionedLanes);
+        procedureRouting.setAppliedVersionFilter(appliedVersionFilter);
 
         SupplyRequestProcessor supplyRequestProcessor = new SupplyRequestProcessor();
         supplyRequestProcessor.setSaleOrderHandler(saleOrderHandler);
-        supplyRequestProcessor.setPartnerHandler(partnerHandler);
+        supplyRequestProcessor.setOrderEnricher(orderEnricher);
+        supplyRequestProcessor.setVisitOrderAggregator(visitOrderAggregator);
         supplyRequestProcessor.setEncounterHandler(encounterHandler);
         supplyRequestProcessor.setPatientHandler(patientHandler);
 
         SupplyRequestRouting supplyRequestRouting = new SupplyRequestRouting();
         supplyRequestRouting.setSupplyRequestProcessor(supplyRequestProcessor);
+        supplyRequestRouting.setPartitionedLanes(partitionedLanes);
+        supplyRequestRouting.setAppliedVersionFilter(appliedVersionFilter);
 
         context.addRoutes(patientRouting);
         context.addRoutes(medicationRequestRouting);
@@ -36,9 +36,21 @@ public class Constants {
 
     public static final String HEADER_ODOO_ID_ATTRIBUTE_VALUE = "odoo.attribute.value";
 
+    public static final String HEADER_ODOO_CREATED_ID = "odoo.created.id";
+
     public static final String EXCHANGE_PROPERTY_SKIP_ENCOUNTER = "skip.encounter";
 
+    public static final String EXCHANGE_PROPERTY_UNIT_OF_WORK = "odoo.unit.of.work";
+
+    public static final String EXCHANGE_PROPERTY_VERSION_KEY = "fhir.resource.version.key";
+
+    public static final String EXCHANGE_PROPERTY_PENDING_FETCH = "fhir.resource.pending.fetch";
+
     public static final String FHIR_RESOURCE_TYPE = "fhir.resource.type";
 
+    public static final String HEADER_FHIR_RESOURCE_ID = "fhir.resource.id";
+
+    public static final String HEADER_FHIR_INCLUDE = "fhir.include";
+
     public static final String HEADER_ENABLE_PATIENT_SYNC = "enable.patient.sync";
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.aggregation;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import com.ozonehis.eip.odoo.openmrs.reconciliation.VisitOrderReconciler;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.support.LifecycleStrategySupport;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects the sale order line changes of the order events of a visit during a short window and writes them to the
+ * draft sale order of the visit in a single call, e.g. the items of a prescription or of a lab panel saved together.
+ * The window starts with the first event of the visit. Events are acknowledged once they are collected, so a failed
+ * write is put back with the changes collected since and written again after a backoff that doubles with each failure
+ * up to {@code odoo.openmrs.aggregation.retry.max-delay}. After {@code odoo.openmrs.aggregation.retry.max-attempts}
+ * failed writes the events of the batch are added to the db event retry queue by the {@link RetryQueue}. The pending
+ * batches are written when the Camel context starts stopping, while the Odoo routes are still running, and the events
+ * collected after that are written right away.
+ *
+ * <p>When {@code odoo.openmrs.aggregation.reconcile} is true the medication and service request events only mark their
+ * visit as changed and the sale order of the visit is reconciled with the current state of its orders at the end of
+ * the window, the line changes of the other events are applied with it.
+ */
+@Slf4j
+@Setter
+@Component
+public class VisitOrderAggregator {
+
+    @Value("${odoo.openmrs.aggregation.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.aggregation.window:500}")
+    private long window;
+
+    @Value("${odoo.openmrs.aggregation.threads:4}")
+    private int threads;
+
+    @Value("${odoo.openmrs.aggregation.reconcile:false}")
+    private boolean reconcile;
+
+    @Value("${odoo.openmrs.aggregation.retry.max-delay:60000}")
+    private long retryMaxDelay;
+
+    @Value("${odoo.openmrs.aggregation.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private ProductHandler productHandler;
+
+    @Autowired
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Autowired
+    private SaleOrderHandler saleOrderHandler;
+
+    @Autowired
+    private VisitOrderReconciler visitOrderReconciler;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @Autowired
+    private RetryQueue retryQueue;
+
+    // Two batches of the same visit are never written at the same time, the second would create another sale order
+    @Autowired
+    private VisitLocks visitLocks;
+
+    private final Map<String, VisitOrderBatch> batches = new ConcurrentHashMap<>();
+
+    private final AtomicLong aggregatedEventCount = new AtomicLong();
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong failedWriteCount = new AtomicLong();
+
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile boolean stopping;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "odoo-openmrs-aggregation-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        camelContext.addLifecycleStrategy(new LifecycleStrategySupport() {
+
+            @Override
+            public void onContextStopping(CamelContext context) {
+                flush();
+            }
+        });
+        log.info(
+                "VisitOrderAggregator: Aggregating order events of a visit within {} ms, reconcile {}",
+                window,
+                reconcile);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Stops the scheduled writes and writes all the pending batches on the calling thread, the batches collected after
+     * this are written right away.
+     */
+    public void flush() {
+        stopping = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        List.copyOf(batches.keySet()).forEach(this::write);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the sale order line of an active order to the pending changes of its visit.
+     *
+     * @param event the exchange of the order event, its version is recorded as applied once the visit is written
+     */
+    public void addLine(
+            Resource resource,
+            Encounter encounter,
+            Partner partner,
+            String encounterVisitUuid,
+            String patientID,
+            Exchange event) {
+        if (reconcile && VisitOrderReconciler.isReconciled(resource)) {
+            collect(encounterVisitUuid, event, batch -> batch.addEvent(encounter, partner, patientID));
+            return;
+        }
+        SaleOrderLine saleOrderLine = saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(resource);
+        if (saleOrderLine == null) {
+            log.info(
+                    "{}: Skipping create sale order line for encounter Visit {}",
+                    resource.getClass().getName(),
+                    encounterVisitUuid);
+            return;
+        }
+        collect(encounterVisitUuid, event, batch -> batch.addLine(saleOrderLine, encounter, partner, patientID));
+    }
+
+    /**
+     * Adds the removal of the sale order line of a modified or discontinued order to the pending changes of its visit.
+     *
+     * @param cancelWhenEmpty whether to cancel the sale order when it has no line left
+     * @param event the exchange of the order event, its version is recorded as applied once the visit is written
+     */
+    public void removeLine(
+            Resource resource,
+            Encounter encounter,
+            Partner partner,
+            String encounterVisitUuid,
+            String patientID,
+            boolean cancelWhenEmpty,
+            Exchange event) {
+        if (reconcile && VisitOrderReconciler.isReconciled(resource)) {
+            collect(encounterVisitUuid, event, batch -> batch.addEvent(encounter, partner, patientID));
+            return;
+        }
+        Product product = productHandler.getProduct(resource);
+        if (product == null) {
+            return;
+        }
+        collect(
+                encounterVisitUuid,
+                event,
+                batch -> batch.removeLine(product.getProductResId(), encounter, partner, patientID, cancelWhenEmpty));
+    }
+
+    private void collect(String encounterVisitUuid, Exchange event, Consumer<VisitOrderBatch> change) {
+        String versionKey = AppliedVersionFilter.takeVersionKey(event);
+        if (stopping) {
+            // Written right away, a failure fails the event which is then left to the db event retry queue
+            VisitOrderBatch batch = new VisitOrderBatch(encounterVisitUuid);
+            change.accept(batch);
+            batch.addVersionKey(versionKey);
+            aggregatedEventCount.incrementAndGet();
+            ReentrantLock lock = visitLocks.get(encounterVisitUuid);
+            ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+            lock.lock();
+            try {
+                writeBatch(batch, producerTemplate);
+            } finally {
+                lock.unlock();
+                producerTemplate.stop();
+            }
+            return;
+        }
+        batches.compute(encounterVisitUuid, (visitUuid, batch) -> {
+            if (batch == null) {
+                batch = new VisitOrderBatch(visitUuid);
+                scheduleWrite(visitUuid, window);
+            }
+            change.accept(batch);
+            batch.addVersionKey(versionKey);
+            batch.addEventExchange(event.copy());
+            return batch;
+        });
+        aggregatedEventCount.incrementAndGet();
+    }
+
+    private void scheduleWrite(String visitUuid, long delay) {
+        if (!stopping) {
+            scheduler.schedule(() -> write(visitUuid), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void write(String encounterVisitUuid) {
+        ReentrantLock lock = visitLocks.get(encounterVisitUuid);
+        lock.lock();
+        try {
+            VisitOrderBatch batch = batches.remove(encounterVisitUuid);
+            if (batch == null) {
+                return;
+            }
+            try (ProducerTemplate producerTemplate = camelContext.createProducerTemplate()) {
+                writeBatch(batch, producerTemplate);
+            } catch (Exception e) {
+                retry(batch, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBatch(VisitOrderBatch batch, ProducerTemplate producerTemplate) {
+        try {
+            if (reconcile) {
+                visitOrderReconciler.reconcile(batch, producerTemplate);
+            } else {
+                saleOrderHandler.writeVisitOrderChanges(batch, producerTemplate);
+            }
+        } catch (RuntimeException e) {
+            failedWriteCount.incrementAndGet();
+            throw e;
+        }
+        writeCount.incrementAndGet();
+        appliedVersionFilter.markApplied(batch.getVersionKeys());
+        log.debug(
+                "VisitOrderAggregator: Wrote {} order events of visit {} in {} ms",
+                batch.getEventCount(),
+                batch.getVisitUuid(),
+                System.currentTimeMillis() - batch.getCreatedAt());
+    }
+
+    // The changes collected since the failed write are newer, they are applied over those of the failed batch
+    private void retry(VisitOrderBatch failedBatch, Exception failure) {
+        int attempts = failedBatch.incrementAttempts();
+        if (stopping || attempts >= retryMaxAttempts) {
+            exhaustedCount.incrementAndGet();
+            log.warn(
+                    "VisitOrderAggregator: Failed to write {} order events of visit {} after {} attempts, adding them"
+                            + " to the retry queue",
+                    failedBatch.getEventCount(),
+                    failedBatch.getVisitUuid(),
+                    attempts,
+                    failure);
+            failedBatch.getEvents().forEach(event -> retryQueue.add(event, failure));
+            return;
+        }
+        long delay = Math.min(window << Math.min(attempts, 20), retryMaxDelay);
+        log.warn(
+                "VisitOrderAggregator: Failed to write {} order events of visit {}, retrying in {} ms",
+                failedBatch.getEventCount(),
+                failedBatch.getVisitUuid(),
+                delay,
+                failure);
+        batches.compute(failedBatch.getVisitUuid(), (visitUuid, newerBatch) -> {
+            if (newerBatch == null) {
+                scheduleWrite(visitUuid, delay);
+            } else {
+                // The write of the newer batch is already scheduled
+                failedBatch.addAll(newerBatch);
+            }
+            return failedBatch;
+        });
+    }
+
+    public int getPendingVisitCount() {
+        return batches.size();
+    }
+
+    public long getAggregatedEventCount() {
+        return aggregatedEventCount.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWriteCount.get();
+    }
+
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.aggregation;
+
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import lombok.Getter;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.Encounter;
+
+/**
+ * The pending sale order line changes of a visit. Changes are keyed by product so that the last event of an item wins,
+ * e.g. an order discontinued right after it was placed results in no line at all.
+ */
+@Getter
+public class VisitOrderBatch {
+
+    private final String visitUuid;
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private Encounter encounter;
+
+    private Partner partner;
+
+    private String patientID;
+
+    // A null line means the line of the product must be removed
+    private final Map<Integer, SaleOrderLine> linesByProduct = new LinkedHashMap<>();
+
+    private boolean cancelWhenEmpty;
+
+    private int eventCount;
+
+    private int attempts;
+
+    // The versions of the collected events, recorded as applied once the batch is written
+    private final Set<String> versionKeys = new LinkedHashSet<>();
+
+    // The collected events, added to the db event retry queue when the batch cannot be written
+    private final List<Exchange> events = new ArrayList<>();
+
+    public VisitOrderBatch(String visitUuid) {
+        this.visitUuid = visitUuid;
+    }
+
+    public void addLine(SaleOrderLine saleOrderLine, Encounter encounter, Partner partner, String patientID) {
+        linesByProduct.put((Integer) saleOrderLine.getSaleOrderLineProductId(), saleOrderLine);
+        update(encounter, partner, patientID);
+    }
+
+    public void removeLine(
+            int productId, Encounter encounter, Partner partner, String patientID, boolean cancelWhenEmpty) {
+        linesByProduct.put(productId, null);
+        this.cancelWhenEmpty |= cancelWhenEmpty;
+        update(encounter, partner, patientID);
+    }
+
+    /**
+     * Records an order event of the visit without its sale order line change, the lines are derived from the state of
+     * the orders of the visit when the batch is reconciled.
+     */
+    public void addEvent(Encounter encounter, Partner partner, String patientID) {
+        update(encounter, partner, patientID);
+    }
+
+    /**
+     * Applies the changes of a newer batch of the same visit over those of this batch, e.g. when this batch failed to
+     * be written and is put back.
+     */
+    public void addAll(VisitOrderBatch newerBatch) {
+        linesByProduct.putAll(newerBatch.linesByProduct);
+        cancelWhenEmpty |= newerBatch.cancelWhenEmpty;
+        encounter = newerBatch.encounter;
+        partner = newerBatch.partner;
+        patientID = newerBatch.patientID;
+        eventCount += newerBatch.eventCount;
+        versionKeys.addAll(newerBatch.versionKeys);
+        events.addAll(newerBatch.events);
+    }
+
+    public void addEventExchange(Exchange event) {
+        events.add(event);
+    }
+
+    public void addVersionKey(String versionKey) {
+        if (versionKey != null) {
+            versionKeys.add(versionKey);
+        }
+    }
+
+    /**
+     * @return the number of failed writes of the batch
+     */
+    public int incrementAttempts() {
+        return ++attempts;
+    }
+
+    public List<SaleOrderLine> getAddedLines() {
+        return linesByProduct.values().stream().filter(Objects::nonNull).toList();
+    }
+
+    public List<Integer> getRemovedProductIds() {
+        List<Integer> removedProductIds = new ArrayList<>();
+        linesByProduct.forEach((productId, line) -> {
+            if (line == null) {
+                removedProductIds.add(productId);
+            }
+        });
+        return removedProductIds;
+    }
+
+    private void update(Encounter encounter, Partner partner, String patientID) {
+        this.encounter = encounter;
+        this.partner = partner;
+        this.patientID = patientID;
+        eventCount++;
+    }
+}
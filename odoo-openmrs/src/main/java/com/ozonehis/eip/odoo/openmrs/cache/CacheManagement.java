@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exposes the statistics of the lookup caches and uuid indexes over JMX and allows to invalidate a single entry or to
+ * flush a cache without restarting the application. Caches are addressed by their name, e.g. {@code products} or
+ * {@code partners}.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Caches,name=CacheManagement",
+        description = "Lookup caches of the Odoo OpenMRS integration")
+public class CacheManagement {
+
+    @Autowired
+    private List<LookupCache<?, ?>> lookupCaches;
+
+    @Autowired
+    private List<UuidIntIndex> uuidIndexes;
+
+    @Autowired
+    private KnownRefsFilter knownRefsFilter;
+
+    @ManagedAttribute(description = "The names of the caches")
+    public List<String> getCacheNames() {
+        List<String> names = new ArrayList<>();
+        lookupCaches.forEach(cache -> names.add(cache.getName()));
+        uuidIndexes.forEach(index -> names.add(index.getName()));
+        return names;
+    }
+
+    @ManagedAttribute(description = "The statistics of all the caches by cache name")
+    public Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> statistics = new LinkedHashMap<>();
+        for (String name : getCacheNames()) {
+            statistics.put(name, getCacheStatistics(name));
+        }
+        if (knownRefsFilter.getPartnerRefs() != null) {
+            Map<String, Object> filterStatistics = new LinkedHashMap<>();
+            filterStatistics.put("seeded", knownRefsFilter.isSeeded());
+            filterStatistics.put("partnerRefs", knownRefsFilter.getPartnerRefs().getCount());
+            filterStatistics.put("visitRefs", knownRefsFilter.getVisitRefs().getCount());
+            filterStatistics.put("skippedSearches", knownRefsFilter.getSkippedSearchCount());
+            filterStatistics.put(
+                    "memoryBytes",
+                    knownRefsFilter.getPartnerRefs().getMemoryFootprint()
+                            + knownRefsFilter.getVisitRefs().getMemoryFootprint());
+            statistics.put("known-refs", filterStatistics);
+        }
+        return statistics;
+    }
+
+    @ManagedOperation(description = "Returns the statistics of a cache")
+    @ManagedOperationParameters({@ManagedOperationParameter(name = "cacheName", description = "The cache name")})
+    public Map<String, Object> getCacheStatistics(String cacheName) {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        LookupCache<?, ?> cache = findLookupCache(cacheName);
+        if (cache != null) {
+            long hits = cache.getHitCount();
+            long misses = cache.getMissCount();
+            statistics.put("size", cache.size());
+            statistics.put("maxSize", cache.getMaxSize());
+            statistics.put("hits", hits);
+            statistics.put("misses", misses);
+            statistics.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+            statistics.put("evictions", cache.getEvictionCount());
+            statistics.put("loads", cache.getLoadCount());
+            statistics.put(
+                    "averageLoadMillis",
+                    cache.getLoadCount() == 0
+                            ? 0.0
+                            : cache.getTotalLoadTimeNanos() / 1_000_000.0 / cache.getLoadCount());
+            return statistics;
+        }
+
+        UuidIntIndex index = findIndex(cacheName);
+        if (index != null) {
+            long hits = index.getHitCount();
+            long misses = index.getMissCount();
+            statistics.put("size", index.size());
+            statistics.put("hits", hits);
+            statistics.put("misses", misses);
+            statistics.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+            statistics.put("memoryBytes", index.getMemoryFootprint());
+            return statistics;
+        }
+        throw new IllegalArgumentException("Unknown cache " + cacheName);
+    }
+
+    @ManagedOperation(description = "Removes an entry from a cache, it will be looked up again on next use")
+    @ManagedOperationParameters({
+        @ManagedOperationParameter(name = "cacheName", description = "The cache name"),
+        @ManagedOperationParameter(name = "key", description = "The key of the entry, e.g. a uuid or a name")
+    })
+    public void invalidate(String cacheName, String key) {
+        LookupCache<?, ?> cache = findLookupCache(cacheName);
+        UuidIntIndex index = findIndex(cacheName);
+        if (cache != null) {
+            ((LookupCache<String, ?>) cache).invalidate(key);
+        } else if (index != null) {
+            index.remove(key);
+        } else {
+            throw new IllegalArgumentException("Unknown cache " + cacheName);
+        }
+        log.info("CacheManagement: Invalidated {} in {} cache", key, cacheName);
+    }
+
+    @ManagedOperation(description = "Removes all the entries of a cache")
+    @ManagedOperationParameters({@ManagedOperationParameter(name = "cacheName", description = "The cache name")})
+    public void flush(String cacheName) {
+        LookupCache<?, ?> cache = findLookupCache(cacheName);
+        UuidIntIndex index = findIndex(cacheName);
+        if (cache != null) {
+            cache.invalidateAll();
+        } else if (index != null) {
+            index.clear();
+            log.info("CacheManagement: Flushed {} index", cacheName);
+        } else {
+            throw new IllegalArgumentException("Unknown cache " + cacheName);
+        }
+    }
+
+    @ManagedOperation(description = "Removes all the entries of all the caches")
+    public void flushAll() {
+        getCacheNames().forEach(this::flush);
+    }
+
+    private LookupCache<?, ?> findLookupCache(String name) {
+        return lookupCaches.stream()
+                .filter(cache -> cache.getName().equals(name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private UuidIntIndex findIndex(String name) {
+        return uuidIndexes.stream()
+                .filter(index -> index.getName().equals(name))
+                .findFirst()
+                .orElse(null);
+    }
+}
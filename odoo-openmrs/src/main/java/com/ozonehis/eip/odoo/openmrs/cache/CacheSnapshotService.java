@@ -0,0 +1,357 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.Uom;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically writes the Odoo lookup caches and uuid indexes to a binary snapshot file under the application home
+ * directory and reloads it at startup so that the application starts with a warm working set. The snapshot is read
+ * through a memory mapped buffer and is discarded if it is corrupted, too old, of another format version or taken
+ * against another Odoo database. The periodic and the shutdown saves are serialized since they share a temporary file.
+ *
+ * <pre>
+ * int magic, int version, long createdAt, string source, int cacheCount,
+ * { string cacheName, int entryCount, { string key, value }* }*, int indexCount,
+ * { string indexName, int entryCount, { long msb, long lsb, int value }* }*, long crc32
+ * </pre>
+ */
+@Slf4j
+@Setter
+@Component
+public class CacheSnapshotService {
+
+    protected static final int MAGIC = 0x4F434353;
+
+    protected static final int FORMAT_VERSION = 2;
+
+    private static final String SNAPSHOT_FILE_NAME = "lookup-caches.bin";
+
+    @Value("${eip.home}")
+    private String eipHome;
+
+    @Value("${odoo.openmrs.cache.snapshot.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.cache.snapshot.max-age:86400000}")
+    private long maxAge;
+
+    @Value("${odoo.baseUrl}")
+    private String odooUrl;
+
+    @Value("${odoo.database}")
+    private String odooDatabase;
+
+    @Autowired
+    private LookupCache<String, Integer> countryCache;
+
+    @Autowired
+    private LookupCache<String, Integer> countryStateCache;
+
+    @Autowired
+    private LookupCache<String, Uom> uomCache;
+
+    @Autowired
+    private LookupCache<String, Product> productCache;
+
+    @Autowired
+    private UuidIntIndex partnerIndex;
+
+    @Autowired
+    private UuidIntIndex visitIndex;
+
+    @PostConstruct
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        Path file = getSnapshotFile();
+        if (!Files.isRegularFile(file)) {
+            log.info("CacheSnapshotService: No lookup cache snapshot found at {}", file);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = read(buffer);
+            log.info(
+                    "CacheSnapshotService: Loaded {} lookup cache entries from {} in {} ms",
+                    count,
+                    file,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            log.warn("CacheSnapshotService: Ignoring unreadable lookup cache snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void save() {
+        if (!enabled) {
+            return;
+        }
+        Path file = getSnapshotFile();
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = file.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+            Files.write(tempFile, write());
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("CacheSnapshotService: Saved lookup cache snapshot to {}", file);
+        } catch (IOException e) {
+            log.warn("CacheSnapshotService: Failed to save lookup cache snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    protected byte[] write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+        writeString(out, getSource());
+
+        Map<LookupCache<String, ?>, Codec<?>> caches = getCaches();
+        out.writeInt(caches.size());
+        for (Map.Entry<LookupCache<String, ?>, Codec<?>> cache : caches.entrySet()) {
+            writeCache(out, cache.getKey(), cache.getValue());
+        }
+
+        List<UuidIntIndex> indexes = getIndexes();
+        out.writeInt(indexes.size());
+        for (UuidIntIndex index : indexes) {
+            writeString(out, index.getName());
+            index.writeTo(out);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    protected int read(ByteBuffer buffer) {
+        int size = buffer.limit();
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(size - Long.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != buffer.getLong(size - Long.BYTES)) {
+            throw new IllegalStateException("checksum mismatch");
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalStateException("not a lookup cache snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException("unsupported format version " + version);
+        }
+        long age = System.currentTimeMillis() - buffer.getLong();
+        if (age > maxAge) {
+            throw new IllegalStateException("snapshot is " + age + " ms old");
+        }
+        String source = readString(buffer);
+        if (!getSource().equals(source)) {
+            throw new IllegalStateException("snapshot was taken against " + source);
+        }
+
+        // The whole snapshot is parsed before any entry is applied, so an unreadable one leaves the caches untouched
+        Map<String, Map.Entry<LookupCache<String, ?>, Codec<?>>> cachesByName = new LinkedHashMap<>();
+        getCaches().entrySet().forEach(e -> cachesByName.put(e.getKey().getName(), e));
+        Map<LookupCache<String, ?>, Map<String, ?>> stagedCaches = new LinkedHashMap<>();
+        int count = 0;
+        int cacheCount = buffer.getInt();
+        for (int i = 0; i < cacheCount; i++) {
+            String name = readString(buffer);
+            Map.Entry<LookupCache<String, ?>, Codec<?>> cache = cachesByName.get(name);
+            if (cache == null) {
+                throw new IllegalStateException("unknown cache " + name);
+            }
+            Map<String, ?> entries = readCache(buffer, cache.getValue());
+            stagedCaches.put(cache.getKey(), entries);
+            count += entries.size();
+        }
+
+        Map<String, UuidIntIndex> indexesByName = new LinkedHashMap<>();
+        getIndexes().forEach(index -> indexesByName.put(index.getName(), index));
+        Map<UuidIntIndex, UuidIntIndex> stagedIndexes = new LinkedHashMap<>();
+        int indexCount = buffer.getInt();
+        for (int i = 0; i < indexCount; i++) {
+            String name = readString(buffer);
+            UuidIntIndex index = indexesByName.get(name);
+            if (index == null) {
+                throw new IllegalStateException("unknown index " + name);
+            }
+            UuidIntIndex staged = new UuidIntIndex(name);
+            count += staged.readFrom(buffer);
+            stagedIndexes.put(index, staged);
+        }
+        if (buffer.position() != size - Long.BYTES) {
+            throw new IllegalStateException("unexpected bytes after the last index");
+        }
+
+        stagedCaches.forEach(CacheSnapshotService::putAll);
+        stagedIndexes.forEach(UuidIntIndex::putAll);
+        return count;
+    }
+
+    private Map<LookupCache<String, ?>, Codec<?>> getCaches() {
+        Map<LookupCache<String, ?>, Codec<?>> caches = new LinkedHashMap<>();
+        caches.put(countryCache, INTEGER_CODEC);
+        caches.put(countryStateCache, INTEGER_CODEC);
+        caches.put(uomCache, UOM_CODEC);
+        caches.put(productCache, PRODUCT_CODEC);
+        return caches;
+    }
+
+    private List<UuidIntIndex> getIndexes() {
+        return List.of(partnerIndex, visitIndex);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> void writeCache(DataOutputStream out, LookupCache<String, ?> cache, Codec<V> codec) throws IOException {
+        Map<String, V> entries = ((LookupCache<String, V>) cache).asMap();
+        writeString(out, cache.getName());
+        out.writeInt(entries.size());
+        for (Map.Entry<String, V> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            codec.write(out, entry.getValue());
+        }
+    }
+
+    private static <V> Map<String, V> readCache(ByteBuffer buffer, Codec<V> codec) {
+        int entryCount = buffer.getInt();
+        Map<String, V> entries = new LinkedHashMap<>();
+        for (int i = 0; i < entryCount; i++) {
+            entries.put(readString(buffer), codec.read(buffer));
+        }
+        return entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putAll(LookupCache<String, ?> cache, Map<String, ?> entries) {
+        // Entries are stored from the least to the most recently used which restores the eviction order
+        entries.forEach((key, value) -> ((LookupCache<String, Object>) cache).put(key, value));
+    }
+
+    private String getSource() {
+        return odooUrl + "/" + odooDatabase;
+    }
+
+    private Path getSnapshotFile() {
+        return Paths.get(eipHome, "cache", SNAPSHOT_FILE_NAME);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Integer readInteger(ByteBuffer buffer) {
+        return buffer.get() != 0 ? buffer.getInt() : null;
+    }
+
+    private interface Codec<V> {
+
+        void write(DataOutputStream out, V value) throws IOException;
+
+        V read(ByteBuffer buffer);
+    }
+
+    private static final Codec<Integer> INTEGER_CODEC = new Codec<>() {
+
+        @Override
+        public void write(DataOutputStream out, Integer value) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    private static final Codec<Uom> UOM_CODEC = new Codec<>() {
+
+        @Override
+        public void write(DataOutputStream out, Uom uom) throws IOException {
+            writeInteger(out, uom.getUomId());
+            writeString(out, uom.getUomName());
+            writeInteger(out, uom.getUomResId());
+            writeString(out, uom.getUomDisplayName());
+        }
+
+        @Override
+        public Uom read(ByteBuffer buffer) {
+            return new Uom(readInteger(buffer), readString(buffer), readInteger(buffer), readString(buffer));
+        }
+    };
+
+    private static final Codec<Product> PRODUCT_CODEC = new Codec<>() {
+
+        @Override
+        public void write(DataOutputStream out, Product product) throws IOException {
+            writeInteger(out, product.getProductId());
+            writeString(out, product.getProductDisplayName());
+            writeString(out, product.getProductName());
+            writeInteger(out, product.getProductResId());
+        }
+
+        @Override
+        public Product read(ByteBuffer buffer) {
+            return new Product(readInteger(buffer), readString(buffer), readString(buffer), readInteger(buffer));
+        }
+    };
+}
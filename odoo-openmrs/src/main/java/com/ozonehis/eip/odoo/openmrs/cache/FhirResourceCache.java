@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.util.FhirTerser;
+import jakarta.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the latest fetched version of the OpenMRS patients, encounters and medications, keyed by type and id. A cached
+ * resource is revalidated with a conditional read, which OpenMRS answers with a 304 Not Modified without body while
+ * the cached version is still current, so that the resources shared by the orders of a visit are downloaded and parsed
+ * once per version. A resource without version is always read in full. A resource read with a subset of its elements
+ * is cached apart from the full one. The cached includes of an order are revalidated at the same time, along with the
+ * fetch of the order, and not at all when the reference to them carries the cached version.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Caches,name=FhirResourceCache",
+        description = "Versioned cache of the OpenMRS FHIR resources")
+public class FhirResourceCache {
+
+    public static final Set<String> CACHED_TYPES = Set.of("Patient", "Encounter", "Medication");
+
+    @Value("${odoo.openmrs.fhir-cache.enabled:false}")
+    private boolean enabled;
+
+    @Autowired
+    private IGenericClient openmrsFhirClient;
+
+    @Autowired
+    private LookupCache<String, Resource> fhirResourceCache;
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    private final AtomicLong modifiedCount = new AtomicLong();
+
+    private final AtomicLong trustedCount = new AtomicLong();
+
+    private final ExecutorService revalidationExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "odoo-openmrs-fhir-cache-revalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reads a resource, from the cache if its cached version is still current.
+     *
+     * @param elements the elements needed by the caller, all the elements are read if there is none
+     */
+    public <T extends Resource> T read(Class<T> type, String id, String... elements) {
+        if (!enabled) {
+            return type.cast(newRead(type.getSimpleName(), id, elements).execute());
+        }
+        return type.cast(readCurrent(type.getSimpleName(), id, elements));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        revalidationExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the resource included by a search parameter of a resource if it is cached, e.g. the patient of a
+     * medication request for {@code MedicationRequest:patient}, once revalidated. The cached resource is returned
+     * without revalidation when the reference carries its version, otherwise it is revalidated in the background.
+     *
+     * @param resource the resource holding the reference
+     * @param include the include, the name of its parameter is the type of the included resource
+     * @return the revalidation of the included resource or null if it is not cached
+     */
+    public CompletableFuture<Resource> getIncluded(Resource resource, String include) {
+        String parameter = include.substring(include.indexOf(':') + 1).trim();
+        if (!enabled || parameter.isEmpty()) {
+            return null;
+        }
+        String type = Character.toUpperCase(parameter.charAt(0)) + parameter.substring(1);
+        if (!CACHED_TYPES.contains(type)) {
+            return null;
+        }
+        FhirTerser terser = openmrsFhirClient.getFhirContext().newTerser();
+        for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            IIdType referenceElement = reference.getReferenceElement();
+            if (type.equals(referenceElement.getResourceType()) && referenceElement.hasIdPart()) {
+                Resource cached =
+                        fhirResourceCache.getIfPresent(key(type, referenceElement.getIdPart(), new String[0]));
+                if (cached == null) {
+                    return null;
+                }
+                if (referenceElement.hasVersionIdPart()
+                        && referenceElement.getVersionIdPart().equals(getVersion(cached))) {
+                    trustedCount.incrementAndGet();
+                    return CompletableFuture.completedFuture(cached);
+                }
+                // Read in full if it is evicted in the meantime
+                return CompletableFuture.supplyAsync(
+                        () -> readCurrent(type, referenceElement.getIdPart(), new String[0]), revalidationExecutor);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches the resources of the cached types of a bundle, e.g. the resources included in a search.
+     */
+    public void putAll(Bundle bundle) {
+        if (!enabled) {
+            return;
+        }
+        bundle.getEntry().forEach(entry -> put(entry.getResource(), new String[0]));
+    }
+
+    private void put(Resource resource, String[] elements) {
+        if (resource != null && CACHED_TYPES.contains(resource.fhirType()) && getVersion(resource) != null) {
+            fhirResourceCache.put(
+                    key(resource.fhirType(), resource.getIdElement().getIdPart(), elements), resource);
+        }
+    }
+
+    private Resource readCurrent(String type, String id, String[] elements) {
+        String key = key(type, id, elements);
+        Resource cached = fhirResourceCache.getIfPresent(key);
+        IBaseResource current;
+        if (cached == null) {
+            current = newRead(type, id, elements).execute();
+        } else {
+            current = newRead(type, id, elements)
+                    .ifVersionMatches(getVersion(cached))
+                    .returnNull()
+                    .execute();
+            if (current == null) {
+                notModifiedCount.incrementAndGet();
+                log.debug("FhirResourceCache: {} is not modified", key);
+                return cached;
+            }
+            modifiedCount.incrementAndGet();
+        }
+        put((Resource) current, elements);
+        return (Resource) current;
+    }
+
+    private IReadExecutable<IBaseResource> newRead(String type, String id, String[] elements) {
+        IReadExecutable<IBaseResource> read =
+                openmrsFhirClient.read().resource(type).withId(id);
+        return elements.length == 0 ? read : read.elementsSubset(elements);
+    }
+
+    private static String getVersion(Resource resource) {
+        String version = resource.getIdElement().getVersionIdPart();
+        return version != null ? version : resource.getMeta().getVersionId();
+    }
+
+    private static String key(String type, String id, String[] elements) {
+        return elements.length == 0 ? type + "/" + id : type + "/" + id + "?_elements=" + String.join(",", elements);
+    }
+
+    @ManagedAttribute(description = "The number of cached resources still current when revalidated since startup")
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of cached resources read again when revalidated since startup")
+    public long getModifiedCount() {
+        return modifiedCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of cached includes referenced by their current version since startup")
+    public long getTrustedCount() {
+        return trustedCount.get();
+    }
+}
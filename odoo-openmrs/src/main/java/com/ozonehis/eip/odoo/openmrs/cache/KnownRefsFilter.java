@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static java.util.Arrays.asList;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps Bloom filters of the partner references and sale order client references that exist in Odoo, so that searches
+ * for a new patient or a visit without quotation can be skipped. The filters are seeded by a paged scan of Odoo,
+ * topped up by periodic scans of the records created since and by every create sent by this application.
+ *
+ * <p>Records created in Odoo by other means are only seen at the next scan, the filters must therefore only be enabled
+ * when this application is the one creating the partners and quotations of OpenMRS patients and visits. Until the
+ * first scan completes every ref is reported as possibly existing.
+ */
+@Slf4j
+@Setter
+@Component
+public class KnownRefsFilter {
+
+    @Value("${odoo.openmrs.ref-filter.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.ref-filter.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    @Value("${odoo.openmrs.ref-filter.page-size:5000}")
+    private int pageSize;
+
+    @Autowired
+    private OdooClient odooClient;
+
+    @Getter
+    private ScalableBloomFilter partnerRefs;
+
+    @Getter
+    private ScalableBloomFilter visitRefs;
+
+    @Getter
+    private volatile boolean seeded;
+
+    // Each scan starts after the highest id seen by the scan before the previous one, so that records committed late
+    // by a transaction that started during the previous scan are not missed
+    private int partnerScanStart;
+
+    private int partnerScanEnd;
+
+    private int orderScanStart;
+
+    private int orderScanEnd;
+
+    private final LongAdder skippedSearches = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            partnerRefs = new ScalableBloomFilter("partner-refs", 100_000, falsePositiveRate);
+            visitRefs = new ScalableBloomFilter("visit-refs", 100_000, falsePositiveRate);
+        }
+    }
+
+    /**
+     * Scans the partners and sale orders created since the previous scans and adds their refs to the filters.
+     */
+    public synchronized void refresh() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // Archived partners are included so that the filter is a superset of what any search can find
+        List<Object> partnerCriteria = asList("|", asList("active", "=", true), asList("active", "=", false));
+        int lastPartnerId = scan(Constants.PARTNER_MODEL, partnerCriteria, "ref", partnerScanStart, partnerRefs);
+        int lastOrderId = scan(Constants.SALE_ORDER_MODEL, List.of(), "client_order_ref", orderScanStart, visitRefs);
+
+        partnerScanStart = seeded ? partnerScanEnd : lastPartnerId;
+        partnerScanEnd = Math.max(partnerScanEnd, lastPartnerId);
+        orderScanStart = seeded ? orderScanEnd : lastOrderId;
+        orderScanEnd = Math.max(orderScanEnd, lastOrderId);
+        if (!seeded) {
+            seeded = true;
+            log.info(
+                    "KnownRefsFilter: Seeded with {} partner refs and {} visit refs in {} ms",
+                    partnerRefs.getCount(),
+                    visitRefs.getCount(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    public boolean mightHavePartner(String partnerRefID) {
+        return mightContain(partnerRefs, partnerRefID);
+    }
+
+    public boolean mightHaveVisitOrder(String visitId) {
+        return mightContain(visitRefs, visitId);
+    }
+
+    public void addPartner(String partnerRefID) {
+        if (enabled) {
+            partnerRefs.add(partnerRefID);
+        }
+    }
+
+    public void addVisitOrder(String visitId) {
+        if (enabled) {
+            visitRefs.add(visitId);
+        }
+    }
+
+    public long getSkippedSearchCount() {
+        return skippedSearches.sum();
+    }
+
+    private boolean mightContain(ScalableBloomFilter filter, String ref) {
+        if (!enabled || !seeded || filter.mightContain(ref)) {
+            return true;
+        }
+        skippedSearches.increment();
+        return false;
+    }
+
+    /**
+     * Reads the records matching the criteria with an id greater than the given one, page by page.
+     *
+     * @return the highest id read
+     */
+    private int scan(String model, List<Object> criteria, String refField, int fromId, ScalableBloomFilter filter) {
+        int lastId = fromId;
+        while (true) {
+            List<Object> pageCriteria = new ArrayList<>(criteria);
+            pageCriteria.add(asList("id", ">", lastId));
+            Object[] records = odooClient.searchAndRead(model, pageCriteria, asList("id", refField), 0, pageSize);
+            if (records == null) {
+                throw new EIPException(String.format("Got null response while scanning %s", model));
+            }
+            for (Object record : records) {
+                Map<String, Object> fields = (Map<String, Object>) record;
+                // Odoo returns false for empty fields
+                if (fields.get(refField) instanceof String ref) {
+                    filter.add(ref);
+                }
+                lastId = Math.max(lastId, (Integer) fields.get("id"));
+            }
+            if (records.length < pageSize) {
+                return lastId;
+            }
+        }
+    }
+}
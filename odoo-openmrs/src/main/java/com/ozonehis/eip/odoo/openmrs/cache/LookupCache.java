@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded, least recently used, in-memory cache for values looked up from Odoo or OpenMRS. Values are loaded on a
+ * miss by the supplied loader, {@code null} values are never cached.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@Slf4j
+public class LookupCache<K, V> {
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final int maxSize;
+
+    private final Map<K, V> entries;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder loads = new LongAdder();
+
+    private final LongAdder totalLoadTimeNanos = new LongAdder();
+
+    public LookupCache(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > LookupCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public V get(K key, Function<K, V> loader) {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        long start = System.nanoTime();
+        value = loader.apply(key);
+        loads.increment();
+        totalLoadTimeNanos.add(System.nanoTime() - start);
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    public V getIfPresent(K key) {
+        V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (maxSize <= 0 || value == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        log.info("LookupCache: Flushed {} cache", name);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return a point in time copy of the cached entries, ordered from the least to the most recently used
+     */
+    public Map<K, V> asMap() {
+        synchronized (entries) {
+            return new LinkedHashMap<>(entries);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getTotalLoadTimeNanos() {
+        return totalLoadTimeNanos.sum();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.ObservationHandler;
+import java.util.Date;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Observation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the latest weight of each patient. Entries are fed by weight {@link Observation} events, the FHIR server is
+ * only searched when a patient is not yet cached.
+ */
+@Slf4j
+@Setter
+@Component
+public class PatientWeightCache {
+
+    @Value("${eip.weight.concept}")
+    private String weightConcept;
+
+    @Autowired
+    private ObservationHandler observationHandler;
+
+    @Getter
+    @Autowired
+    private LookupCache<String, PatientWeight> weightCache;
+
+    public String getWeight(String patientID) {
+        return weightCache.get(patientID, this::load).value();
+    }
+
+    /**
+     * Records the weight carried by the given observation if it is a weight observation more recent than the cached
+     * one.
+     *
+     * @param observation the observation
+     * @return true if the cached weight of the patient changed otherwise false
+     */
+    public boolean update(Observation observation) {
+        if (!isWeightObservation(observation)) {
+            return false;
+        }
+
+        String patientID = getPatientID(observation);
+        PatientWeight weight = toPatientWeight(observation);
+        synchronized (weightCache) {
+            PatientWeight cachedWeight = weightCache.getIfPresent(patientID);
+            if (cachedWeight != null && !cachedWeight.isOlderThan(weight)) {
+                log.debug("PatientWeightCache: Ignoring weight observation {} older than cached", observation.getId());
+                return false;
+            }
+            weightCache.put(patientID, weight);
+        }
+        log.debug("PatientWeightCache: Updated weight of patient {} to {}", patientID, weight.value());
+        return true;
+    }
+
+    public void invalidate(Observation observation) {
+        if (isWeightObservation(observation)) {
+            weightCache.invalidate(getPatientID(observation));
+        }
+    }
+
+    public boolean isWeightObservation(Observation observation) {
+        return observation != null
+                && observation.hasSubject()
+                && observation.hasValueQuantity()
+                && observation.getCode().getCoding().stream()
+                        .anyMatch(coding -> weightConcept.equals(coding.getCode()));
+    }
+
+    public String getPatientID(Observation observation) {
+        return observation.getSubject().getReferenceElement().getIdPart();
+    }
+
+    private PatientWeight load(String patientID) {
+        Observation observation = observationHandler.getObservationBySubjectIDAndConceptID(patientID, weightConcept);
+        if (observation == null) {
+            // Cache the absence too, a weight event will replace it
+            return new PatientWeight(null, null);
+        }
+        return toPatientWeight(observation);
+    }
+
+    private PatientWeight toPatientWeight(Observation observation) {
+        String value = observation.getValueQuantity().getValue() + " "
+                + observation.getValueQuantity().getUnit();
+        Date effectiveDate = observation.hasEffectiveDateTimeType()
+                ? observation.getEffectiveDateTimeType().getValue()
+                : null;
+        return new PatientWeight(value, effectiveDate);
+    }
+
+    public record PatientWeight(String value, Date effectiveDate) {
+
+        boolean isOlderThan(PatientWeight other) {
+            if (value == null || effectiveDate == null || other.effectiveDate() == null) {
+                return true;
+            }
+            return !effectiveDate.after(other.effectiveDate());
+        }
+    }
+}
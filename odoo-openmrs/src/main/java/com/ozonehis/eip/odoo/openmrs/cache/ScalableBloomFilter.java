@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * A Bloom filter which grows with the number of added keys. When the current layer reaches its capacity a new layer
+ * twice as large and with half the false positive rate is added. The first layer gets half the configured false
+ * positive rate so that the sum of the rates of all the layers, which is the overall rate, stays close to the
+ * configured one however many keys are added. Like any Bloom filter it never gives false negatives, a key that was
+ * added is always reported as possibly contained.
+ */
+public class ScalableBloomFilter {
+
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    @Getter
+    private final String name;
+
+    private final double falsePositiveRate;
+
+    private final List<Layer> layers = new ArrayList<>();
+
+    public ScalableBloomFilter(String name, int initialCapacity, double falsePositiveRate) {
+        this.name = name;
+        this.falsePositiveRate = falsePositiveRate;
+        layers.add(new Layer(Math.max(initialCapacity, 1), getLayerFalsePositiveRate(0)));
+    }
+
+    public synchronized void add(String key) {
+        if (key == null) {
+            return;
+        }
+        long hash = hash(key);
+        if (mightContain(hash)) {
+            return;
+        }
+        Layer layer = layers.get(layers.size() - 1);
+        if (layer.count >= layer.capacity) {
+            layer = new Layer(layer.capacity * 2, getLayerFalsePositiveRate(layers.size()));
+            layers.add(layer);
+        }
+        layer.add(hash);
+    }
+
+    public synchronized boolean mightContain(String key) {
+        return key != null && mightContain(hash(key));
+    }
+
+    public synchronized void clear() {
+        Layer first = layers.get(0);
+        layers.clear();
+        layers.add(new Layer(first.capacity, getLayerFalsePositiveRate(0)));
+    }
+
+    public synchronized long getCount() {
+        return layers.stream().mapToLong(layer -> layer.count).sum();
+    }
+
+    /**
+     * @return the number of bytes held by the bit arrays of all the layers
+     */
+    public synchronized long getMemoryFootprint() {
+        return layers.stream()
+                .mapToLong(layer -> (long) layer.bits.length * Long.BYTES)
+                .sum();
+    }
+
+    private double getLayerFalsePositiveRate(int layer) {
+        return falsePositiveRate * (1 - TIGHTENING_RATIO) * Math.pow(TIGHTENING_RATIO, layer);
+    }
+
+    private boolean mightContain(long hash) {
+        for (Layer layer : layers) {
+            if (layer.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 64-bit FNV-1a followed by a murmur finalizer, the two halves feed the double hashing of the layers
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static final class Layer {
+
+        private final long capacity;
+
+        private final long[] bits;
+
+        private final long bitCount;
+
+        private final int hashCount;
+
+        private long count;
+
+        Layer(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new long[(int) Math.max(1, (optimalBits + 63) / 64)];
+            this.bitCount = (long) bits.length * 64;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+        }
+
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
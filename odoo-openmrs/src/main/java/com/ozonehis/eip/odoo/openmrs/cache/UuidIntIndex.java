@@ -0,0 +1,367 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.Getter;
+
+/**
+ * A compact map of OpenMRS uuids to Odoo record ids, it is meant for the patient to partner and the visit to sale
+ * order mappings which can hold millions of entries.
+ *
+ * <p>Each 128-bit uuid is stored as two longs next to its int value in primitive arrays, using open addressing with
+ * linear probing and backward shift deletion so no entry object, boxed value or key string is ever allocated. The
+ * index is split in lock-striped segments, each segment doubles when it is 75% full. A slot costs 20 bytes (two longs
+ * and an int) which gives between 27 and 53 bytes per entry depending on how full the segments are. With 5 million
+ * entries {@code UuidIntIndexBenchmark} measures about 34 bytes per entry (160MB) against about 135 bytes per entry
+ * (640MB) for a {@code HashMap<String, Integer>} holding the same uuids.
+ *
+ * <p>Keys that are not uuids are not indexed, {@link #get(String)} always misses for them.
+ */
+public class UuidIntIndex {
+
+    public static final int NO_VALUE = -1;
+
+    private static final int SEGMENT_COUNT = 64;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    private static final int ENTRY_BYTES = 2 * Long.BYTES + Integer.BYTES;
+
+    @Getter
+    private final String name;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public UuidIntIndex(String name) {
+        this.name = name;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param uuid the uuid
+     * @return the value mapped to the uuid or {@link #NO_VALUE} if there is none
+     */
+    public int get(String uuid) {
+        UUID key = parse(uuid);
+        int value = key == null ? NO_VALUE : get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        if (value == NO_VALUE) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(String uuid, int value) {
+        UUID key = parse(uuid);
+        if (key != null && value != NO_VALUE) {
+            put(key.getMostSignificantBits(), key.getLeastSignificantBits(), value);
+        }
+    }
+
+    public void remove(String uuid) {
+        UUID key = parse(uuid);
+        if (key != null) {
+            long msb = key.getMostSignificantBits();
+            long lsb = key.getLeastSignificantBits();
+            segmentFor(msb, lsb).remove(msb, lsb);
+        }
+    }
+
+    public int get(long msb, long lsb) {
+        return segmentFor(msb, lsb).get(msb, lsb);
+    }
+
+    public void put(long msb, long lsb, int value) {
+        segmentFor(msb, lsb).put(msb, lsb, value);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes held by the slot arrays of all the segments
+     */
+    public long getMemoryFootprint() {
+        long slots = 0;
+        for (Segment segment : segments) {
+            slots += segment.capacity();
+        }
+        return slots * ENTRY_BYTES;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Copies all the entries of another index into this one.
+     */
+    public void putAll(UuidIntIndex index) {
+        for (Segment segment : index.segments) {
+            segment.copyTo(this);
+        }
+    }
+
+    /**
+     * Writes the entry count followed by each entry as two longs and an int. The entries are buffered before the count
+     * is written since each segment is only locked while it is copied, so the count is the one of the entries written
+     * even when the index is changed meanwhile.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entries);
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.writeTo(entriesOut);
+        }
+        entriesOut.flush();
+        out.writeInt(count);
+        entries.writeTo(out);
+    }
+
+    /**
+     * Reads entries written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @return the number of entries read
+     */
+    public int readFrom(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * ENTRY_BYTES > buffer.remaining()) {
+            throw new IllegalStateException("invalid entry count " + count + " for index " + name);
+        }
+        for (int i = 0; i < count; i++) {
+            put(buffer.getLong(), buffer.getLong(), buffer.getInt());
+        }
+        return count;
+    }
+
+    private Segment segmentFor(long msb, long lsb) {
+        return segments[(int) (mix(msb, lsb) >>> 58)];
+    }
+
+    private static long mix(long msb, long lsb) {
+        // Random uuids are already well distributed, the mix protects from sequential or time based ones
+        long h = msb ^ Long.rotateLeft(lsb, 32);
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static UUID parse(String uuid) {
+        if (uuid == null || uuid.length() != 36) {
+            return null;
+        }
+        try {
+            UUID key = UUID.fromString(uuid);
+            // The nil uuid marks empty slots
+            return key.getMostSignificantBits() == 0 && key.getLeastSignificantBits() == 0 ? null : key;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private long[] msbs = new long[INITIAL_SEGMENT_CAPACITY];
+
+        private long[] lsbs = new long[INITIAL_SEGMENT_CAPACITY];
+
+        private int[] values = new int[INITIAL_SEGMENT_CAPACITY];
+
+        private int size;
+
+        int get(long msb, long lsb) {
+            lock.readLock().lock();
+            try {
+                int mask = msbs.length - 1;
+                for (int i = indexFor(msb, lsb, mask); ; i = (i + 1) & mask) {
+                    if (msbs[i] == msb && lsbs[i] == lsb) {
+                        return values[i];
+                    }
+                    if (msbs[i] == 0 && lsbs[i] == 0) {
+                        return NO_VALUE;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(long msb, long lsb, int value) {
+            lock.writeLock().lock();
+            try {
+                if ((size + 1) * 4L > msbs.length * 3L) {
+                    resize(msbs.length * 2);
+                }
+                if (insert(msbs, lsbs, values, msb, lsb, value)) {
+                    size++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long msb, long lsb) {
+            lock.writeLock().lock();
+            try {
+                int mask = msbs.length - 1;
+                int i = indexFor(msb, lsb, mask);
+                while (msbs[i] != msb || lsbs[i] != lsb) {
+                    if (msbs[i] == 0 && lsbs[i] == 0) {
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+                // Shift back the following entries of the probe sequence so that no tombstone is needed
+                int gap = i;
+                for (int j = (gap + 1) & mask; msbs[j] != 0 || lsbs[j] != 0; j = (j + 1) & mask) {
+                    int home = indexFor(msbs[j], lsbs[j], mask);
+                    if (((j - home) & mask) >= ((j - gap) & mask)) {
+                        msbs[gap] = msbs[j];
+                        lsbs[gap] = lsbs[j];
+                        values[gap] = values[j];
+                        gap = j;
+                    }
+                }
+                msbs[gap] = 0;
+                lsbs[gap] = 0;
+                values[gap] = 0;
+                size--;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                msbs = new long[INITIAL_SEGMENT_CAPACITY];
+                lsbs = new long[INITIAL_SEGMENT_CAPACITY];
+                values = new int[INITIAL_SEGMENT_CAPACITY];
+                size = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int capacity() {
+            lock.readLock().lock();
+            try {
+                return msbs.length;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Returns the number of entries written
+        int writeTo(DataOutputStream out) throws IOException {
+            lock.readLock().lock();
+            try {
+                int count = 0;
+                for (int i = 0; i < msbs.length; i++) {
+                    if (msbs[i] != 0 || lsbs[i] != 0) {
+                        out.writeLong(msbs[i]);
+                        out.writeLong(lsbs[i]);
+                        out.writeInt(values[i]);
+                        count++;
+                    }
+                }
+                return count;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void copyTo(UuidIntIndex index) {
+            lock.readLock().lock();
+            try {
+                for (int i = 0; i < msbs.length; i++) {
+                    if (msbs[i] != 0 || lsbs[i] != 0) {
+                        index.put(msbs[i], lsbs[i], values[i]);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] newMsbs = new long[capacity];
+            long[] newLsbs = new long[capacity];
+            int[] newValues = new int[capacity];
+            for (int i = 0; i < msbs.length; i++) {
+                if (msbs[i] != 0 || lsbs[i] != 0) {
+                    insert(newMsbs, newLsbs, newValues, msbs[i], lsbs[i], values[i]);
+                }
+            }
+            msbs = newMsbs;
+            lsbs = newLsbs;
+            values = newValues;
+        }
+
+        // Returns true if a new slot was used, false if an existing entry was replaced
+        private static boolean insert(long[] msbs, long[] lsbs, int[] values, long msb, long lsb, int value) {
+            int mask = msbs.length - 1;
+            for (int i = indexFor(msb, lsb, mask); ; i = (i + 1) & mask) {
+                if (msbs[i] == 0 && lsbs[i] == 0) {
+                    msbs[i] = msb;
+                    lsbs[i] = lsb;
+                    values[i] = value;
+                    return true;
+                }
+                if (msbs[i] == msb && lsbs[i] == lsb) {
+                    values[i] = value;
+                    return false;
+                }
+            }
+        }
+
+        private static int indexFor(long msb, long lsb, int mask) {
+            return (int) mix(msb, lsb) & mask;
+        }
+    }
+}
@@ -16,14 +16,17 @@ import com.ozonehis.eip.odoo.openmrs.Constants;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -51,6 +54,10 @@ public class OdooClient {
 
     private XmlRpcClient client;
 
+    @Setter
+    @Autowired(required = false)
+    private OdooLatencyMonitor latencyMonitor;
+
     private static final String SERVER_OBJECT_URL = "%s/xmlrpc/2/object";
 
     private static final String SERVER_COMMON_URL = "%s/xmlrpc/2/common";
@@ -98,9 +105,8 @@ public class OdooClient {
         init();
 
         try {
-            return (Integer) client.execute(
-                    "execute_kw",
-                    asList(getDatabase(), uid, getPassword(), model, Constants.CREATE_METHOD, dataParams));
+            return (Integer)
+                    execute(asList(getDatabase(), uid, getPassword(), model, Constants.CREATE_METHOD, dataParams));
         } catch (XmlRpcException e) {
             throw new RuntimeException("Error occurred while creating in odoo server error", e);
         }
@@ -110,8 +116,8 @@ public class OdooClient {
         init();
 
         try {
-            return (Boolean) client.execute(
-                    "execute_kw", asList(getDatabase(), uid, getPassword(), model, Constants.WRITE_METHOD, dataParams));
+            return (Boolean)
+                    execute(asList(getDatabase(), uid, getPassword(), model, Constants.WRITE_METHOD, dataParams));
         } catch (XmlRpcException e) {
             throw new RuntimeException("Error occurred while writing to odoo server error", e);
         }
@@ -121,9 +127,8 @@ public class OdooClient {
         init();
 
         try {
-            return (Boolean) client.execute(
-                    "execute_kw",
-                    asList(getDatabase(), uid, getPassword(), model, Constants.UNLINK_METHOD, dataParams));
+            return (Boolean)
+                    execute(asList(getDatabase(), uid, getPassword(), model, Constants.UNLINK_METHOD, dataParams));
         } catch (XmlRpcException e) {
             throw new RuntimeException("Error occurred while deleting from odoo server error", e);
         }
@@ -144,7 +149,32 @@ public class OdooClient {
                 params.add(singletonMap("fields", fields));
             }
 
-            return (Object[]) client.execute("execute_kw", params);
+            return (Object[]) execute(params);
+        } catch (XmlRpcException e) {
+            throw new RuntimeException("Error occurred while searchAndRead from odoo server error", e);
+        }
+    }
+
+    /**
+     * Reads one page of the records matching the criteria, ordered by id.
+     */
+    public Object[] searchAndRead(String model, List<Object> criteria, List<String> fields, int offset, int limit) {
+        init();
+
+        try {
+            Map<String, Object> options = new HashMap<>();
+            options.put("fields", fields);
+            options.put("offset", offset);
+            options.put("limit", limit);
+            options.put("order", "id asc");
+            return (Object[]) execute(asList(
+                    getDatabase(),
+                    uid,
+                    getPassword(),
+                    model,
+                    Constants.SEARCH_READ_METHOD,
+                    singletonList(criteria),
+                    options));
         } catch (XmlRpcException e) {
             throw new RuntimeException("Error occurred while searchAndRead from odoo server error", e);
         }
@@ -154,17 +184,30 @@ public class OdooClient {
         init();
 
         try {
-            return (Object[]) client.execute(
-                    "execute_kw",
-                    asList(
-                            getDatabase(),
-                            uid,
-                            getPassword(),
-                            model,
-                            Constants.SEARCH_METHOD,
-                            singletonList(singletonList(criteria))));
+            return (Object[]) execute(asList(
+                    getDatabase(),
+                    uid,
+                    getPassword(),
+                    model,
+                    Constants.SEARCH_METHOD,
+                    singletonList(singletonList(criteria))));
         } catch (XmlRpcException e) {
             throw new RuntimeException("Error occurred while searching from odoo server error", e);
         }
     }
+
+    private Object execute(List<Object> params) throws XmlRpcException {
+        if (latencyMonitor == null) {
+            return client.execute("execute_kw", params);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = client.execute("execute_kw", params);
+            failed = false;
+            return result;
+        } finally {
+            latencyMonitor.record(System.nanoTime() - start, failed);
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.client;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the duration and outcome of the latest Odoo calls made by {@link OdooClient}. Only the calls made within the
+ * last {@code odoo.openmrs.odoo-latency.window} milliseconds are taken into account so that the measures recover when
+ * Odoo is not called for a while.
+ */
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Odoo,name=OdooLatencyMonitor",
+        description = "Latency and error rate of the Odoo calls")
+public class OdooLatencyMonitor {
+
+    @Value("${odoo.openmrs.odoo-latency.window:60000}")
+    private long window;
+
+    private final long[] durations;
+
+    private final long[] endTimes;
+
+    private final boolean[] failures;
+
+    private int next;
+
+    private int size;
+
+    public OdooLatencyMonitor() {
+        this(200);
+    }
+
+    OdooLatencyMonitor(int sampleCount) {
+        durations = new long[sampleCount];
+        endTimes = new long[sampleCount];
+        failures = new boolean[sampleCount];
+    }
+
+    public synchronized void record(long durationNanos, boolean failed) {
+        durations[next] = durationNanos;
+        endTimes[next] = System.currentTimeMillis();
+        failures[next] = failed;
+        next = (next + 1) % durations.length;
+        size = Math.min(size + 1, durations.length);
+    }
+
+    /**
+     * @return the 99th percentile of the duration in milliseconds of the recent calls or 0 if there is none
+     */
+    @ManagedAttribute(description = "The 99th percentile of the duration in milliseconds of the recent Odoo calls")
+    public synchronized long getP99Latency() {
+        long[] recent = new long[size];
+        int count = 0;
+        long since = System.currentTimeMillis() - window;
+        for (int i = 0; i < size; i++) {
+            if (endTimes[i] >= since) {
+                recent[count++] = durations[i];
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(recent, 0, count);
+        return TimeUnit.NANOSECONDS.toMillis(recent[(int) Math.ceil(count * 0.99) - 1]);
+    }
+
+    /**
+     * @return the share of the recent calls that failed or 0 if there is none
+     */
+    @ManagedAttribute(description = "The share of the recent Odoo calls that failed")
+    public synchronized double getErrorRate() {
+        int count = 0;
+        int failed = 0;
+        long since = System.currentTimeMillis() - window;
+        for (int i = 0; i < size; i++) {
+            if (endTimes[i] >= since) {
+                count++;
+                failed += failures[i] ? 1 : 0;
+            }
+        }
+        return count == 0 ? 0 : (double) failed / count;
+    }
+}
@@ -44,7 +44,7 @@ public class OdooProducer extends DefaultProducer {
         Object attributeValue = exchange.getMessage().getHeader(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, Object.class);
         switch (method) {
             case Constants.CREATE_METHOD:
-                create(model, body);
+                exchange.getMessage().setHeader(Constants.HEADER_ODOO_CREATED_ID, create(model, body));
                 break;
             case Constants.WRITE_METHOD:
                 write(model, body, (List<Integer>) attributeValue);
@@ -58,13 +58,14 @@ public class OdooProducer extends DefaultProducer {
         }
     }
 
-    private void create(String model, Object body) throws Exception {
+    private Integer create(String model, Object body) throws Exception {
         log.debug("OdooProducer: Creating data {} in Odoo", body);
         Integer record = odooClient.create(model, List.of(odooUtils.convertObjectToMap(body)));
         if (record == null) {
             throw new EIPException(String.format("Got null response while creating %s with body %s", model, body));
         }
         log.debug("OdooProducer: Created data {} in Odoo with id: {}", body, record);
+        return record;
     }
 
     private void write(String model, Object body, List<Integer> ids) throws Exception {
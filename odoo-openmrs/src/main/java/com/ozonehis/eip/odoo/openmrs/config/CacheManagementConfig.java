@@ -0,0 +1,22 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
+import org.springframework.jmx.support.RegistrationPolicy;
+
+/**
+ * Registers the {@link org.springframework.jmx.export.annotation.ManagedResource} beans, i.e. the cache management, in
+ * the platform MBean server.
+ */
+@Configuration
+@EnableMBeanExport(registration = RegistrationPolicy.REPLACE_EXISTING)
+@ConditionalOnProperty(name = "odoo.openmrs.cache.jmx.enabled", havingValue = "true", matchIfMissing = true)
+public class CacheManagementConfig {}
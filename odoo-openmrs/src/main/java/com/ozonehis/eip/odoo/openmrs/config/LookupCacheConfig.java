@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.config;
+
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache.PatientWeight;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.Uom;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Declares the in-memory lookup caches and uuid indexes, each one is injected by its bean name.
+ */
+@Configuration
+public class LookupCacheConfig {
+
+    @Bean
+    public LookupCache<String, Integer> countryCache(@Value("${odoo.openmrs.reference.cache.size:5000}") int maxSize) {
+        return new LookupCache<>("countries", maxSize);
+    }
+
+    @Bean
+    public LookupCache<String, Integer> countryStateCache(
+            @Value("${odoo.openmrs.reference.cache.size:5000}") int maxSize) {
+        return new LookupCache<>("states", maxSize);
+    }
+
+    @Bean
+    public LookupCache<String, Uom> uomCache(@Value("${odoo.openmrs.reference.cache.size:5000}") int maxSize) {
+        return new LookupCache<>("uoms", maxSize);
+    }
+
+    @Bean
+    public LookupCache<String, Product> productCache(@Value("${odoo.openmrs.product.cache.size:20000}") int maxSize) {
+        return new LookupCache<>("products", maxSize);
+    }
+
+    @Bean
+    public UuidIntIndex partnerIndex() {
+        return new UuidIntIndex("partners");
+    }
+
+    @Bean
+    public UuidIntIndex visitIndex() {
+        return new UuidIntIndex("visits");
+    }
+
+    @Bean
+    public LookupCache<String, PatientWeight> weightCache(
+            @Value("${odoo.openmrs.weight.cache.size:10000}") int maxSize) {
+        return new LookupCache<>("weights", maxSize);
+    }
+
+    @Bean
+    public LookupCache<String, Boolean> appliedVersionCache(
+            @Value("${odoo.openmrs.idempotency.cache.size:100000}") int maxSize) {
+        return new LookupCache<>("applied-versions", maxSize);
+    }
+
+    @Bean
+    public LookupCache<String, Resource> fhirResourceCache(
+            @Value("${odoo.openmrs.fhir-cache.size:10000}") int maxSize) {
+        return new LookupCache<>("fhir-resources", maxSize);
+    }
+}
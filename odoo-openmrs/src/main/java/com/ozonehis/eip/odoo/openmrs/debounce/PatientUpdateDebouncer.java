@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.debounce;
+
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.LifecycleStrategySupport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the update events of a patient until no other update of the patient is received for a quiet period and then
+ * emits only the latest one, e.g. the demographics, address and identifiers of a registration saved one after the
+ * other result in a single partner upsert. Create and delete events are barriers: the pending update of the patient is
+ * emitted before them so the partner changes keep their order. Held updates are acknowledged when received, an emitted
+ * update that fails is added to the db event retry queue by the {@link RetryQueue}. The pending updates are emitted
+ * when the Camel context starts stopping, while the routes are still running, and the updates received after that are
+ * passed on right away.
+ */
+@Slf4j
+@Setter
+@Component
+public class PatientUpdateDebouncer {
+
+    private static final int LOCK_STRIPES = 64;
+
+    @Value("${odoo.openmrs.patient-debounce.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.patient-debounce.quiet-period:2000}")
+    private long quietPeriod;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private RetryQueue retryQueue;
+
+    private final Map<String, PendingUpdate> pendingUpdates = new ConcurrentHashMap<>();
+
+    // The pending update of a patient is emitted by one thread at a time and before the barrier that follows it
+    private final ReentrantLock[] emitLocks = new ReentrantLock[LOCK_STRIPES];
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong emittedCount = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile boolean stopping;
+
+    @PostConstruct
+    public void init() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            emitLocks[i] = new ReentrantLock();
+        }
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "odoo-openmrs-patient-debounce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        camelContext.addLifecycleStrategy(new LifecycleStrategySupport() {
+
+            @Override
+            public void onContextStopping(CamelContext context) {
+                flush();
+            }
+        });
+        log.info("PatientUpdateDebouncer: Coalescing patient updates within a quiet period of {} ms", quietPeriod);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Stops the timers and emits all the pending updates on the calling thread, the updates received after this are
+     * passed on right away.
+     */
+    public void flush() {
+        stopping = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        List.copyOf(pendingUpdates.keySet()).forEach(this::emit);
+    }
+
+    /**
+     * @param next processes the events let through, e.g. the dispatch to the patient lanes
+     * @return a processor holding the update events of a patient and passing the other events on
+     */
+    public Processor debounce(Processor next) {
+        return exchange -> {
+            String patientUuid = PartitionedLanes.getPatientUuid(exchange);
+            if (!enabled || patientUuid == null) {
+                next.process(exchange);
+                return;
+            }
+            ReentrantLock lock = getLock(patientUuid);
+            lock.lock();
+            try {
+                if (!stopping && "u".equals(exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class))) {
+                    hold(patientUuid, exchange, next);
+                    return;
+                }
+                emit(patientUuid);
+                next.process(exchange);
+            } finally {
+                lock.unlock();
+            }
+        };
+    }
+
+    private void hold(String patientUuid, Exchange exchange, Processor next) {
+        PendingUpdate pendingUpdate = new PendingUpdate(exchange.copy(), next);
+        PendingUpdate replaced = pendingUpdates.put(patientUuid, pendingUpdate);
+        if (replaced != null) {
+            replaced.timer.cancel(false);
+            coalescedCount.incrementAndGet();
+        }
+        pendingUpdate.timer =
+                scheduler.schedule(() -> emit(patientUuid, pendingUpdate), quietPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    void emit(String patientUuid) {
+        emit(patientUuid, null);
+    }
+
+    // A timer only emits its own update, the update may have been replaced while the timer was waiting for the lock
+    private void emit(String patientUuid, PendingUpdate expected) {
+        ReentrantLock lock = getLock(patientUuid);
+        lock.lock();
+        try {
+            PendingUpdate pendingUpdate = pendingUpdates.get(patientUuid);
+            if (pendingUpdate == null || (expected != null && pendingUpdate != expected)) {
+                return;
+            }
+            pendingUpdates.remove(patientUuid);
+            pendingUpdate.timer.cancel(false);
+            try {
+                pendingUpdate.next.process(pendingUpdate.exchange);
+                emittedCount.incrementAndGet();
+            } catch (Exception e) {
+                log.warn("PatientUpdateDebouncer: Failed to process the update of patient {}", patientUuid, e);
+                retryQueue.add(pendingUpdate.exchange, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock getLock(String patientUuid) {
+        return emitLocks[Math.floorMod(patientUuid.hashCode(), LOCK_STRIPES)];
+    }
+
+    public int getPendingUpdateCount() {
+        return pendingUpdates.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getEmittedCount() {
+        return emittedCount.get();
+    }
+
+    private static class PendingUpdate {
+
+        private final Exchange exchange;
+
+        private final Processor next;
+
+        private ScheduledFuture<?> timer;
+
+        private PendingUpdate(Exchange exchange, Processor next) {
+            this.exchange = exchange;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.enrichment;
+
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * The data looked up for an order event before any sale order or sale order line is written.
+ *
+ * @param patient the patient
+ * @param encounter the encounter of the order
+ * @param partner the created or updated partner of the patient
+ * @param draftSaleOrder the draft sale order of the visit if it was looked up and exists otherwise null
+ */
+public record EnrichedOrder(Patient patient, Encounter encounter, Partner partner, SaleOrder draftSaleOrder) {
+
+    public String getVisitUuid() {
+        return getVisitUuid(encounter);
+    }
+
+    public static String getVisitUuid(Encounter encounter) {
+        return encounter.getPartOf().getReference().split("/")[1];
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.enrichment;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the independent lookups of an order event concurrently before the write phase: the patient and encounter
+ * fetches, the draft sale order search, the product and unit of measure lookups and the patient weight lookup. The
+ * product, unit of measure and weight lookups warm the lookup caches the write phase reads from. The latency of the
+ * stage is that of the longest lookup instead of the sum of all the calls. The partner upsert is a write, it runs on
+ * the calling thread once all the lookups completed so that it never outlives an event that failed on a timeout.
+ */
+@Slf4j
+@Setter
+@Component
+public class OrderEnricher {
+
+    @Value("${odoo.openmrs.enrichment.timeout:30000}")
+    private long timeout;
+
+    @Autowired
+    private Executor enrichmentExecutor;
+
+    @Autowired
+    private PartnerHandler partnerHandler;
+
+    @Autowired
+    private SaleOrderHandler saleOrderHandler;
+
+    @Autowired
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    /**
+     * @param orderResource the MedicationRequest, ServiceRequest or SupplyRequest
+     * @param patientID the uuid of the patient
+     * @param patientSupplier supplies the patient, it is called on the enrichment pool
+     * @param encounterSupplier supplies the encounter, it is called on the enrichment pool
+     * @param findDraftSaleOrder whether to search the draft sale order of the visit
+     * @param producerTemplate the producer template used to upsert the partner
+     * @return the looked up data and the upserted partner
+     */
+    public EnrichedOrder enrich(
+            Resource orderResource,
+            String patientID,
+            Supplier<Patient> patientSupplier,
+            Supplier<Encounter> encounterSupplier,
+            boolean findDraftSaleOrder,
+            ProducerTemplate producerTemplate) {
+        long start = System.nanoTime();
+        CompletableFuture<Patient> patient = CompletableFuture.supplyAsync(patientSupplier, enrichmentExecutor);
+        CompletableFuture<Encounter> encounter = CompletableFuture.supplyAsync(encounterSupplier, enrichmentExecutor);
+        CompletableFuture<SaleOrder> draftSaleOrder = findDraftSaleOrder
+                ? encounter.thenApplyAsync(
+                        e -> e == null || !e.hasPartOf()
+                                ? null
+                                : saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(EnrichedOrder.getVisitUuid(e)),
+                        enrichmentExecutor)
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> productAndUom = CompletableFuture.runAsync(
+                () -> saleOrderLineHandler.prefetchProductAndUom(orderResource), enrichmentExecutor);
+        CompletableFuture<Void> weight =
+                CompletableFuture.runAsync(() -> prefetchWeight(patientID), enrichmentExecutor);
+
+        CompletableFuture<?>[] lookups = {patient, encounter, draftSaleOrder, productAndUom, weight};
+        try {
+            CompletableFuture.allOf(lookups).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            for (CompletableFuture<?> lookup : lookups) {
+                lookup.cancel(true);
+            }
+            throw new EIPException(String.format(
+                    "Lookups of %s did not complete within %d ms",
+                    orderResource.getClass().getSimpleName(), timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EIPException("Interrupted while waiting for the order lookups");
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+
+        log.debug(
+                "OrderEnricher: Looked up {} in {} ms",
+                orderResource.getClass().getSimpleName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Partner partner =
+                patient.join() == null ? null : partnerHandler.createOrUpdatePartner(producerTemplate, patient.join());
+        return new EnrichedOrder(patient.join(), encounter.join(), partner, draftSaleOrder.join());
+    }
+
+    // The weight is only needed when a quotation is created or has no weight, a failure is surfaced by the write phase
+    private void prefetchWeight(String patientID) {
+        try {
+            saleOrderHandler.getPartnerWeight(patientID);
+        } catch (RuntimeException e) {
+            log.debug("OrderEnricher: Failed to prefetch the weight of patient {}", patientID, e);
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        return new RuntimeException(cause);
+    }
+}
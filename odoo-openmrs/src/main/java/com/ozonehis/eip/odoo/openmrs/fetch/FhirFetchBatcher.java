@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.fetch;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.util.FhirTerser;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the fetches of the resources of a type with the same includes as a single search by the ids of the resources,
+ * e.g. the medication requests of a prescription saved together, so that their shared patient and encounter are
+ * downloaded and parsed once. Each fetch gets a bundle with its own resource and the included resources it references,
+ * like a search by its id alone would return.
+ *
+ * <p>A fetch is searched right away when no search of its kind is running, the fetches started while one is running are
+ * collected and searched together as soon as it completes, or as soon as they are
+ * {@code odoo.openmrs.fhir-fetch.batching.max-size} ids. The order events start their fetch before they are dispatched
+ * to their lane, so that the orders of a visit which share a lane are batched as well as those of different lanes.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Fetch,name=FhirFetchBatcher",
+        description = "Batching of the OpenMRS FHIR fetches of the Odoo OpenMRS integration")
+public class FhirFetchBatcher {
+
+    @Value("${odoo.openmrs.fhir-fetch.batching.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.fhir-fetch.batching.threads:4}")
+    private int threads;
+
+    @Value("${odoo.openmrs.fhir-fetch.batching.max-size:50}")
+    private int maxSize;
+
+    @Autowired
+    private IGenericClient openmrsFhirClient;
+
+    // Guarded by this
+    private final Map<String, FetchBatch> batches = new HashMap<>();
+
+    // Guarded by this, the number of searches submitted by key
+    private final Map<String, Integer> runningSearches = new HashMap<>();
+
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    private final AtomicLong searchCount = new AtomicLong();
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "odoo-openmrs-fhir-fetch-batching-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("FhirFetchBatcher: Batching OpenMRS FHIR fetches on {} threads, up to {} ids", threads, maxSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        List<FetchBatch> pendingBatches;
+        synchronized (this) {
+            pendingBatches = List.copyOf(batches.values());
+            batches.clear();
+        }
+        pendingBatches.forEach(this::search);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the fetch to the batch of its kind, which is searched right away when no search of its kind is running.
+     *
+     * @param resourceType the type of the resource, e.g. MedicationRequest
+     * @param id the id of the resource
+     * @param includes the comma separated includes or null
+     * @return the bundle with the resource and the included resources it references, empty if it does not exist
+     */
+    public CompletableFuture<Bundle> start(String resourceType, String id, String includes) {
+        String key = resourceType + "|" + (includes == null ? "" : includes);
+        CompletableFuture<Bundle> result;
+        FetchBatch readyBatch = null;
+        synchronized (this) {
+            FetchBatch batch = batches.computeIfAbsent(key, k -> new FetchBatch(resourceType, includes));
+            result = batch.results.computeIfAbsent(id, k -> new CompletableFuture<>());
+            if (!runningSearches.containsKey(key) || batch.results.size() >= maxSize) {
+                batches.remove(key);
+                runningSearches.merge(key, 1, Integer::sum);
+                readyBatch = batch;
+            }
+        }
+        fetchCount.incrementAndGet();
+        if (readyBatch != null) {
+            submit(key, readyBatch);
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the batch of the fetch to be searched.
+     *
+     * @see #start(String, String, String)
+     */
+    public Bundle fetch(String resourceType, String id, String includes) throws Exception {
+        try {
+            return start(resourceType, id, includes).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    private void submit(String key, FetchBatch batch) {
+        try {
+            executor.execute(() -> searchAndSubmitNext(key, batch));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            searchAndSubmitNext(key, batch);
+        }
+    }
+
+    // The fetches started during the search are submitted once it completes
+    private void searchAndSubmitNext(String key, FetchBatch batch) {
+        search(batch);
+        FetchBatch nextBatch;
+        synchronized (this) {
+            nextBatch = batches.remove(key);
+            if (nextBatch == null) {
+                runningSearches.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+        if (nextBatch != null) {
+            submit(key, nextBatch);
+        }
+    }
+
+    private void search(FetchBatch batch) {
+        try {
+            IQuery<IBaseBundle> query = openmrsFhirClient
+                    .search()
+                    .forResource(batch.resourceType)
+                    .where(Resource.RES_ID.exactly().codes(batch.results.keySet()));
+            if (batch.includes != null && !batch.includes.isBlank()) {
+                for (String include : batch.includes.split(",")) {
+                    query = query.include(new Include(include.trim()));
+                }
+            }
+            Bundle bundle =
+                    query.count(batch.results.size()).returnBundle(Bundle.class).execute();
+            searchCount.incrementAndGet();
+            List<Resource> resources = new ArrayList<>();
+            while (bundle != null) {
+                bundle.getEntry().forEach(entry -> resources.add(entry.getResource()));
+                bundle = bundle.getLink(Bundle.LINK_NEXT) == null
+                        ? null
+                        : openmrsFhirClient.loadPage().next(bundle).execute();
+            }
+            log.debug(
+                    "FhirFetchBatcher: Fetched {} resources for {} {} resources in one search",
+                    resources.size(),
+                    batch.results.size(),
+                    batch.resourceType);
+            batch.results.forEach((id, result) -> result.complete(split(batch.resourceType, id, resources)));
+        } catch (Exception e) {
+            batch.results.values().forEach(result -> result.completeExceptionally(e));
+        }
+    }
+
+    private Bundle split(String resourceType, String id, List<Resource> resources) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        Resource resource = resources.stream()
+                .filter(candidate -> resourceType.equals(candidate.fhirType())
+                        && id.equals(candidate.getIdElement().getIdPart()))
+                .findFirst()
+                .orElse(null);
+        if (resource == null) {
+            return bundle;
+        }
+        bundle.addEntry().setResource(resource);
+        FhirTerser terser = openmrsFhirClient.getFhirContext().newTerser();
+        Set<String> references = new HashSet<>();
+        for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            IIdType referenceElement = reference.getReferenceElement();
+            if (referenceElement.hasIdPart()) {
+                references.add(referenceElement.getResourceType() + "/" + referenceElement.getIdPart());
+            }
+        }
+        for (Resource candidate : resources) {
+            String candidateReference =
+                    candidate.fhirType() + "/" + candidate.getIdElement().getIdPart();
+            if (candidate != resource && references.contains(candidateReference)) {
+                bundle.addEntry().setResource(candidate);
+            }
+        }
+        return bundle;
+    }
+
+    @ManagedAttribute(description = "The number of fetches of OpenMRS FHIR resources batched since startup")
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of OpenMRS FHIR searches run for the batched fetches since startup")
+    public long getSearchCount() {
+        return searchCount.get();
+    }
+
+    private static class FetchBatch {
+
+        private final String resourceType;
+
+        private final String includes;
+
+        private final Map<String, CompletableFuture<Bundle>> results = new LinkedHashMap<>();
+
+        private FetchBatch(String resourceType, String includes) {
+            this.resourceType = resourceType;
+            this.includes = includes;
+        }
+    }
+}
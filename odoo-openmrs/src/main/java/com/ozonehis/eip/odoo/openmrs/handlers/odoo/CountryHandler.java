@@ -10,6 +10,7 @@ package com.ozonehis.eip.odoo.openmrs.handlers.odoo;
 import static java.util.Arrays.asList;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -25,7 +26,14 @@ public class CountryHandler {
     @Autowired
     private OdooClient odooClient;
 
+    @Autowired
+    private LookupCache<String, Integer> countryCache;
+
     public Integer getCountryId(String countryName) {
+        return countryCache.get(countryName, this::fetchCountryId);
+    }
+
+    private Integer fetchCountryId(String countryName) {
         Object[] records = odooClient.search(Constants.COUNTRY_MODEL, asList("name", "=", countryName));
         if (records.length > 1) {
             throw new EIPException(
@@ -10,6 +10,8 @@ package com.ozonehis.eip.odoo.openmrs.handlers.odoo;
 import static java.util.Arrays.asList;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.PartnerMapper;
@@ -43,9 +45,19 @@ public class PartnerHandler {
     @Autowired
     private OdooUtils odooUtils;
 
+    @Autowired
+    private UuidIntIndex partnerIndex;
+
+    @Autowired
+    private KnownRefsFilter knownRefsFilter;
+
     public List<String> partnerDefaultAttributes;
 
     public Partner getPartnerByID(String partnerRefID) {
+        if (!knownRefsFilter.mightHavePartner(partnerRefID)) {
+            log.debug("No Partner known with reference id {}, skipping search", partnerRefID);
+            return null;
+        }
         partnerDefaultAttributes = asList(
                 "id", "name", "ref", "street", "street2", "city", "zip", "active", "comment", odooCustomerDobField);
         Object[] records = odooClient.searchAndRead(
@@ -55,7 +67,11 @@ public class PartnerHandler {
                     String.format("Got null response while searching for Partner with reference id %s", partnerRefID));
         } else if (records.length == 1) {
             log.debug("Partner exists with reference id {} record {}", partnerRefID, records[0]);
-            return odooUtils.convertToObject((Map<String, Object>) records[0], Partner.class);
+            Partner partner = odooUtils.convertToObject((Map<String, Object>) records[0], Partner.class);
+            if (partner.getPartnerId() != null) {
+                partnerIndex.put(partnerRefID, partner.getPartnerId());
+            }
+            return partner;
         } else if (records.length == 0) {
             log.warn("No Partner found with reference id {}", partnerRefID);
             return null;
@@ -66,6 +82,22 @@ public class PartnerHandler {
     }
 
     public Partner createOrUpdatePartner(ProducerTemplate producerTemplate, Patient patient) {
+        int cachedPartnerId = partnerIndex.get(patient.getIdPart());
+        if (cachedPartnerId != UuidIntIndex.NO_VALUE) {
+            // The partner id is known, the mapped partner already holds what callers need so skip the searches
+            log.info("Partner with reference id {} already exists, updating...", patient.getIdPart());
+            Partner partner = partnerMapper.toOdoo(patient);
+            partner.setPartnerId(cachedPartnerId);
+            try {
+                sendPartner(producerTemplate, "direct:odoo-update-partner-route", partner);
+            } catch (RuntimeException e) {
+                // The partner may have been removed from Odoo
+                partnerIndex.remove(patient.getIdPart());
+                throw e;
+            }
+            return partner;
+        }
+
         Partner fetchedPartner = getPartnerByID(patient.getIdPart());
         if (fetchedPartner != null && fetchedPartner.getPartnerId() > 0) {
             int partnerId = fetchedPartner.getPartnerId();
@@ -77,11 +109,17 @@ public class PartnerHandler {
         } else {
             log.info("Partner with reference id {} does not exist, creating...", patient.getIdPart());
             Partner partner = partnerMapper.toOdoo(patient);
+            // Recorded before the create so that a concurrent lookup never skips the search for it
+            knownRefsFilter.addPartner(partner.getPartnerRef());
             sendPartner(producerTemplate, "direct:odoo-create-partner-route", partner);
             return getPartnerByID(partner.getPartnerRef());
         }
     }
 
+    public void invalidatePartner(String partnerRefID) {
+        partnerIndex.remove(partnerRefID);
+    }
+
     public void sendPartner(ProducerTemplate producerTemplate, String endpointUri, Partner partner) {
         Map<String, Object> headers = new HashMap<>();
         if (endpointUri.contains("update")) {
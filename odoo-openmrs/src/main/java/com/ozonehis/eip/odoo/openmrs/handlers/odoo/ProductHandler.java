@@ -10,6 +10,7 @@ package com.ozonehis.eip.odoo.openmrs.handlers.odoo;
 import static java.util.Arrays.asList;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.model.Product;
@@ -35,9 +36,14 @@ public class ProductHandler {
     @Autowired
     private OdooUtils odooUtils;
 
+    @Autowired
+    private LookupCache<String, Product> productCache;
+
     public Product getProduct(Resource resource) {
-        String externalId = getProductExternalId(resource);
+        return productCache.get(getProductExternalId(resource), this::fetchProduct);
+    }
 
+    private Product fetchProduct(String externalId) {
         Object[] records = odooClient.searchAndRead(
                 Constants.IR_MODEL,
                 asList(asList("model", "=", Constants.PRODUCT_MODEL), asList("name", "=", externalId)),
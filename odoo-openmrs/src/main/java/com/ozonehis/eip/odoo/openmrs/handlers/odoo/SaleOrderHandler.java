@@ -10,22 +10,31 @@ package com.ozonehis.eip.odoo.openmrs.handlers.odoo;
 import static java.util.Arrays.asList;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderBatch;
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
-import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.ObservationHandler;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderMapper;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.Product;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import com.ozonehis.eip.odoo.openmrs.unitofwork.OdooUnitOfWork;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
 import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RuntimeCamelException;
 import org.hl7.fhir.r4.model.Encounter;
-import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Resource;
 import org.openmrs.eip.EIPException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,9 +46,6 @@ import org.springframework.stereotype.Component;
 @Component
 public class SaleOrderHandler {
 
-    @Value("${eip.weight.concept}")
-    private String weightConcept;
-
     @Value("${odoo.customer.weight.field}")
     private String odooCustomerWeightField;
 
@@ -59,22 +65,48 @@ public class SaleOrderHandler {
     private ProductHandler productHandler;
 
     @Autowired
-    private ObservationHandler observationHandler;
+    private PatientWeightCache patientWeightCache;
 
     @Autowired
     private OdooUtils odooUtils;
 
+    @Autowired
+    private UuidIntIndex visitIndex;
+
+    @Autowired
+    private KnownRefsFilter knownRefsFilter;
+
+    @Autowired
+    private VisitLocks visitLocks;
+
     public List<String> orderDefaultAttributes;
 
     public SaleOrder getDraftSaleOrderIfExistsByVisitId(String visitId) {
-        orderDefaultAttributes = asList(
-                "id",
-                "client_order_ref",
-                "partner_id",
-                "state",
-                "order_line",
-                odooCustomerWeightField,
-                odooCustomerDobField);
+        orderDefaultAttributes = getOrderDefaultAttributes();
+        int indexedOrderId = visitIndex.get(visitId);
+        if (indexedOrderId != UuidIntIndex.NO_VALUE) {
+            // client_order_ref is not indexed in Odoo, reading by id avoids scanning the sale orders. The visit is
+            // still matched so that a stale or wrong index entry never returns the sale order of another visit.
+            Object[] records = odooClient.searchAndRead(
+                    Constants.SALE_ORDER_MODEL,
+                    List.of(
+                            asList("id", "=", indexedOrderId),
+                            asList("client_order_ref", "=", visitId),
+                            asList("state", "=", "draft")),
+                    orderDefaultAttributes);
+            if (records != null && records.length == 1) {
+                SaleOrder saleOrder = odooUtils.convertToObject((Map<String, Object>) records[0], SaleOrder.class);
+                log.debug("Sale order exists with client_order_ref {} sale order {}", visitId, saleOrder);
+                return saleOrder;
+            }
+            // The order is no longer a draft, look for another draft of the visit
+            visitIndex.remove(visitId);
+        }
+        if (!knownRefsFilter.mightHaveVisitOrder(visitId)) {
+            log.debug("No Sale order known with client_order_ref {}, skipping search", visitId);
+            return null;
+        }
+
         Object[] records = odooClient.searchAndRead(
                 Constants.SALE_ORDER_MODEL,
                 List.of(asList("client_order_ref", "=", visitId), asList("state", "=", "draft")),
@@ -85,6 +117,9 @@ public class SaleOrderHandler {
         } else if (records.length == 1) {
             SaleOrder saleOrder = odooUtils.convertToObject((Map<String, Object>) records[0], SaleOrder.class);
             log.debug("Sale order exists with client_order_ref {} sale order {}", visitId, saleOrder);
+            if (saleOrder.getOrderId() != null) {
+                visitIndex.put(visitId, saleOrder.getOrderId());
+            }
             return saleOrder;
         } else if (records.length == 0) {
             log.warn("No Sale order found with client_order_ref {}", visitId);
@@ -95,6 +130,35 @@ public class SaleOrderHandler {
         }
     }
 
+    public List<SaleOrder> getDraftSaleOrdersByPartnerRef(String partnerRefID) {
+        orderDefaultAttributes = getOrderDefaultAttributes();
+        Object[] records = odooClient.searchAndRead(
+                Constants.SALE_ORDER_MODEL,
+                List.of(asList("partner_id.ref", "=", partnerRefID), asList("state", "=", "draft")),
+                orderDefaultAttributes);
+        if (records == null) {
+            throw new EIPException(String.format(
+                    "Got null response while fetching for Sale orders with partner reference id %s", partnerRefID));
+        }
+        List<SaleOrder> saleOrders = new ArrayList<>();
+        for (Object record : records) {
+            saleOrders.add(odooUtils.convertToObject((Map<String, Object>) record, SaleOrder.class));
+        }
+        log.debug("Found {} draft Sale orders with partner reference id {}", saleOrders.size(), partnerRefID);
+        return saleOrders;
+    }
+
+    private List<String> getOrderDefaultAttributes() {
+        return asList(
+                "id",
+                "client_order_ref",
+                "partner_id",
+                "state",
+                "order_line",
+                odooCustomerWeightField,
+                odooCustomerDobField);
+    }
+
     public void sendSaleOrder(ProducerTemplate producerTemplate, String endpointUri, SaleOrder saleOrder) {
         Map<String, Object> saleOrderHeaders = new HashMap<>();
         if (endpointUri.contains("update")) {
@@ -105,45 +169,135 @@ public class SaleOrderHandler {
         producerTemplate.sendBodyAndHeaders(endpointUri, saleOrder, saleOrderHeaders);
     }
 
+    /**
+     * Adds the sale order line of an order resource to the sale order of its visit. When the sale order already has a
+     * line for the product, e.g. for a revised order, the line is updated in place with the values that changed.
+     */
     public void updateSaleOrderIfExistsWithSaleOrderLine(
             Resource resource,
             SaleOrder saleOrder,
             String encounterVisitUuid,
             int partnerId,
             String patientID,
-            ProducerTemplate producerTemplate) {
-        // If sale order exists create sale order line and link it to sale order
-        SaleOrderLine saleOrderLine = saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder);
-        if (saleOrderLine == null) {
+            OdooUnitOfWork unitOfWork) {
+        Product product = productHandler.getProduct(resource);
+        if (product == null) {
             log.info(
                     "{}: Skipping create sale order line for encounter Visit {}",
                     resource.getClass().getName(),
                     encounterVisitUuid);
             return;
         }
+        SaleOrderLine saleOrderLine = saleOrderLineHandler.buildSaleOrderLine(resource, product);
+        SaleOrderLine existingLine =
+                saleOrderLineHandler.getSaleOrderLineIfExists(saleOrder.getOrderId(), product.getProductResId());
+        if (existingLine != null) {
+            Map<String, Object> changes = saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine);
+            if (changes.isEmpty()) {
+                log.debug(
+                        "{}: Sale order line {} of sale order {} is up to date",
+                        resource.getClass().getName(),
+                        existingLine.getSaleOrderLineId(),
+                        saleOrder.getOrderId());
+                return;
+            }
+            unitOfWork.updateSaleOrderLine(saleOrder, existingLine.getSaleOrderLineId(), changes);
+            log.debug(
+                    "{}: Updated {} of sale order line {} of sale order {}",
+                    resource.getClass().getName(),
+                    changes.keySet(),
+                    existingLine.getSaleOrderLineId(),
+                    saleOrder.getOrderId());
+            return;
+        }
 
         // Update sale order with Patient Weight if not already present
         if (saleOrder.getPartnerWeight() == null
                 || saleOrder.getPartnerWeight().isEmpty()
                 || saleOrder.getPartnerWeight().equals("false")) {
-            updateSaleOrderWithPatientWeight(partnerId, patientID, saleOrder, producerTemplate);
+            updateSaleOrderWithPatientWeight(partnerId, patientID, saleOrder, unitOfWork);
         }
-        producerTemplate.sendBody("direct:odoo-create-sale-order-line-route", saleOrderLine);
+        unitOfWork.createSaleOrderLine(saleOrder, getSaleOrderLineValues(saleOrderLine));
         log.debug(
-                "{}: Created sale order line {} and linked to sale order {}",
+                "{}: Added sale order line {} to sale order {}",
                 resource.getClass().getName(),
                 saleOrderLine,
-                saleOrder);
+                saleOrder.getOrderId());
     }
 
-    public void createSaleOrderWithSaleOrderLine(
+    /**
+     * Creates the sale order of a visit together with its first sale order line in a single call, the line is embedded
+     * in the order as a one2many create command. The draft sale order of the visit is looked up again under the lock
+     * of the visit and the line is added to it when it was created since, e.g. by the draft pre-creation.
+     *
+     * @return the created sale order with its id, or the draft sale order the line was added to
+     */
+    public SaleOrder createSaleOrderWithSaleOrderLine(
             Resource resource,
             Encounter encounter,
             Partner partner,
             String encounterVisitUuid,
             String patientID,
             ProducerTemplate producerTemplate) {
-        // If the sale order does not exist, create it, then create sale order line and link it to sale order
+        ReentrantLock lock = visitLocks.get(encounterVisitUuid);
+        lock.lock();
+        try {
+            SaleOrder saleOrder = getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
+            if (saleOrder != null) {
+                OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+                updateSaleOrderIfExistsWithSaleOrderLine(
+                        resource, saleOrder, encounterVisitUuid, partner.getPartnerId(), patientID, unitOfWork);
+                flush(unitOfWork, producerTemplate);
+                return saleOrder;
+            }
+            SaleOrderLine saleOrderLine = saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(resource);
+            if (saleOrderLine == null) {
+                log.info(
+                        "{}: Skipping create sale order line for sale order of partner_id {}",
+                        resource.getClass().getName(),
+                        partner.getPartnerId());
+            }
+            SaleOrder newSaleOrder = createSaleOrderWithSaleOrderLines(
+                    encounter,
+                    partner,
+                    encounterVisitUuid,
+                    patientID,
+                    saleOrderLine == null ? List.of() : List.of(saleOrderLine),
+                    producerTemplate);
+            log.debug(
+                    "{}: Created sale order {} with partner_id {} and sale order line {}",
+                    resource.getClass().getName(),
+                    newSaleOrder.getOrderId(),
+                    partner.getPartnerId(),
+                    saleOrderLine);
+            return newSaleOrder;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates the draft sale order of a visit without sale order line, the lines are added by the order events.
+     *
+     * @return the created sale order with its id
+     */
+    public SaleOrder createDraftSaleOrder(
+            Encounter encounter,
+            Partner partner,
+            String encounterVisitUuid,
+            String patientID,
+            ProducerTemplate producerTemplate) {
+        return createSaleOrderWithSaleOrderLines(
+                encounter, partner, encounterVisitUuid, patientID, List.of(), producerTemplate);
+    }
+
+    private SaleOrder createSaleOrderWithSaleOrderLines(
+            Encounter encounter,
+            Partner partner,
+            String encounterVisitUuid,
+            String patientID,
+            List<SaleOrderLine> saleOrderLines,
+            ProducerTemplate producerTemplate) {
         SaleOrder newSaleOrder = saleOrderMapper.toOdoo(encounter);
         newSaleOrder.setOrderPartnerId(partner.getPartnerId());
         newSaleOrder.setOrderState("draft");
@@ -151,80 +305,291 @@ public class SaleOrderHandler {
         newSaleOrder.setPartnerBirthDate(partner.getPartnerBirthDate());
         String patientWeight = getPartnerWeight(patientID);
         if (patientWeight != null) {
-            newSaleOrder.setPartnerWeight(getPartnerWeight(patientID));
+            newSaleOrder.setPartnerWeight(patientWeight);
+        }
+        if (!saleOrderLines.isEmpty()) {
+            List<Object> commands = new ArrayList<>();
+            saleOrderLines.forEach(line -> commands.add(asList(0, 0, getSaleOrderLineValues(line))));
+            newSaleOrder.setOrderLine(commands);
         }
 
-        sendSaleOrder(producerTemplate, "direct:odoo-create-sale-order-route", newSaleOrder);
-        log.debug(
-                "{}: Created sale order with partner_id {}", resource.getClass().getName(), partner.getPartnerId());
+        // Recorded before the create so that a concurrent lookup never skips the search for it
+        knownRefsFilter.addVisitOrder(newSaleOrder.getOrderClientOrderRef());
+        Integer orderId = createSaleOrder(producerTemplate, newSaleOrder);
+        newSaleOrder.setOrderId(orderId);
+        if (orderId != null) {
+            visitIndex.put(encounterVisitUuid, orderId);
+        }
+        return newSaleOrder;
+    }
 
-        SaleOrder fetchedSaleOrder = getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
-        if (fetchedSaleOrder != null) {
-            SaleOrderLine saleOrderLine =
-                    saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, fetchedSaleOrder);
-            if (saleOrderLine == null) {
-                log.info(
-                        "{}: Skipping create sale order line and sale order for partner_id {}",
-                        resource.getClass().getName(),
-                        partner.getPartnerId());
-                return;
+    /**
+     * Applies the aggregated sale order line changes of a visit. The draft sale order of the visit is created with all
+     * the added lines when it does not exist yet, otherwise the added and removed lines, the patient weight when
+     * missing and the cancellation of an emptied order are written to it in a single call.
+     */
+    public void writeVisitOrderChanges(VisitOrderBatch batch, ProducerTemplate producerTemplate) {
+        String encounterVisitUuid = batch.getVisitUuid();
+        SaleOrder saleOrder = getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
+        if (saleOrder == null) {
+            if (!batch.getAddedLines().isEmpty()) {
+                SaleOrder newSaleOrder = createSaleOrderWithSaleOrderLines(
+                        batch.getEncounter(),
+                        batch.getPartner(),
+                        encounterVisitUuid,
+                        batch.getPatientID(),
+                        batch.getAddedLines(),
+                        producerTemplate);
+                log.debug(
+                        "SaleOrderHandler: Created sale order {} with {} sale order lines for visit {}",
+                        newSaleOrder.getOrderId(),
+                        batch.getAddedLines().size(),
+                        encounterVisitUuid);
+            }
+            return;
+        }
+
+        Map<Integer, Integer> lineIdsByProduct =
+                saleOrderLineHandler.getSaleOrderLineIdsByProduct(saleOrder.getOrderId());
+        List<Object> commands = new ArrayList<>();
+        int remainingLineCount = lineIdsByProduct.size();
+        for (SaleOrderLine saleOrderLine : batch.getAddedLines()) {
+            if (!lineIdsByProduct.containsKey((Integer) saleOrderLine.getSaleOrderLineProductId())) {
+                commands.add(asList(0, 0, getSaleOrderLineValues(saleOrderLine)));
+                remainingLineCount++;
             }
+        }
+        for (Integer productId : batch.getRemovedProductIds()) {
+            Integer lineId = lineIdsByProduct.get(productId);
+            if (lineId != null) {
+                commands.add(asList(2, lineId, 0));
+                remainingLineCount--;
+            }
+        }
 
-            producerTemplate.sendBody("direct:odoo-create-sale-order-line-route", saleOrderLine);
-            log.debug(
-                    "{}: Created sale order {} and sale order line {} and linked to sale order",
-                    resource.getClass().getName(),
-                    fetchedSaleOrder.getOrderId(),
-                    saleOrderLine);
+        boolean cancel = batch.isCancelWhenEmpty() && remainingLineCount == 0;
+        boolean missingWeight = saleOrder.getPartnerWeight() == null
+                || saleOrder.getPartnerWeight().isEmpty()
+                || saleOrder.getPartnerWeight().equals("false");
+        String patientWeight = missingWeight && !commands.isEmpty() ? getPartnerWeight(batch.getPatientID()) : null;
+        if (commands.isEmpty() && !cancel) {
+            log.debug("SaleOrderHandler: No sale order line change for visit {}", encounterVisitUuid);
+            return;
+        }
+
+        saleOrder.setOrderLine(commands);
+        saleOrder.setOrderPartnerId(batch.getPartner().getPartnerId());
+        if (patientWeight != null) {
+            saleOrder.setPartnerWeight(patientWeight);
         }
+        if (cancel) {
+            saleOrder.setOrderState("cancel");
+        }
+        sendSaleOrder(producerTemplate, "direct:odoo-update-sale-order-route", saleOrder);
+        log.debug(
+                "SaleOrderHandler: Wrote {} sale order line changes to sale order {} of visit {}",
+                commands.size(),
+                saleOrder.getOrderId(),
+                encounterVisitUuid);
     }
 
-    public void deleteSaleOrderLine(Resource resource, String encounterVisitUuid, ProducerTemplate producerTemplate) {
+    /**
+     * Brings the draft sale order of a visit in line with the current state of the orders of the visit. The lines of
+     * the active orders are created or updated and the lines of the other ordered products are removed, lines of
+     * products that are not ordered in the visit, e.g. added in Odoo, are kept. The sale order is cancelled when the
+     * removed lines were its last ones. Nothing is written when the sale order is already in line, so the same state
+     * can be applied again.
+     *
+     * @param activeLines the sale order lines of the active orders of the visit by product id
+     * @param orderedProducts the ids of the products of all the orders of the visit
+     */
+    public void writeVisitOrderState(
+            VisitOrderBatch batch,
+            Map<Integer, SaleOrderLine> activeLines,
+            Set<Integer> orderedProducts,
+            ProducerTemplate producerTemplate) {
+        String encounterVisitUuid = batch.getVisitUuid();
         SaleOrder saleOrder = getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
+        if (saleOrder == null) {
+            if (!activeLines.isEmpty()) {
+                SaleOrder newSaleOrder = createSaleOrderWithSaleOrderLines(
+                        batch.getEncounter(),
+                        batch.getPartner(),
+                        encounterVisitUuid,
+                        batch.getPatientID(),
+                        List.copyOf(activeLines.values()),
+                        producerTemplate);
+                log.debug(
+                        "SaleOrderHandler: Created sale order {} with {} sale order lines for visit {}",
+                        newSaleOrder.getOrderId(),
+                        activeLines.size(),
+                        encounterVisitUuid);
+            }
+            return;
+        }
+
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+        Map<Integer, SaleOrderLine> existingLines =
+                saleOrderLineHandler.getSaleOrderLinesByProduct(saleOrder.getOrderId());
+        boolean linesAdded = false;
+        for (Map.Entry<Integer, SaleOrderLine> activeLine : activeLines.entrySet()) {
+            SaleOrderLine existingLine = existingLines.get(activeLine.getKey());
+            if (existingLine == null) {
+                unitOfWork.createSaleOrderLine(saleOrder, getSaleOrderLineValues(activeLine.getValue()));
+                linesAdded = true;
+                continue;
+            }
+            Map<String, Object> changes =
+                    saleOrderLineHandler.getSaleOrderLineChanges(existingLine, activeLine.getValue());
+            if (!changes.isEmpty()) {
+                unitOfWork.updateSaleOrderLine(saleOrder, existingLine.getSaleOrderLineId(), changes);
+            }
+        }
+        boolean linesRemoved = false;
+        for (Map.Entry<Integer, SaleOrderLine> existingLine : existingLines.entrySet()) {
+            if (orderedProducts.contains(existingLine.getKey()) && !activeLines.containsKey(existingLine.getKey())) {
+                unitOfWork.deleteSaleOrderLine(
+                        saleOrder, existingLine.getValue().getSaleOrderLineId());
+                linesRemoved = true;
+            }
+        }
+        // Like a discontinued order, removing the last line cancels the sale order, an empty one is left as is
+        if (linesRemoved) {
+            unitOfWork.cancelSaleOrderWhenEmpty(saleOrder);
+        }
+        if (linesAdded
+                && (saleOrder.getPartnerWeight() == null
+                        || saleOrder.getPartnerWeight().isEmpty()
+                        || saleOrder.getPartnerWeight().equals("false"))) {
+            updateSaleOrderWithPatientWeight(
+                    batch.getPartner().getPartnerId(), batch.getPatientID(), saleOrder, unitOfWork);
+        }
+        flush(unitOfWork, producerTemplate);
+    }
+
+    private Integer createSaleOrder(ProducerTemplate producerTemplate, SaleOrder saleOrder) {
+        Exchange exchange = producerTemplate.send(
+                "direct:odoo-create-sale-order-route",
+                createExchange -> createExchange.getMessage().setBody(saleOrder));
+        if (exchange.getException() != null) {
+            throw RuntimeCamelException.wrapRuntimeCamelException(exchange.getException());
+        }
+        return exchange.getMessage().getHeader(Constants.HEADER_ODOO_CREATED_ID, Integer.class);
+    }
+
+    // The order line is linked to the order by Odoo when created through the order
+    private Map<String, Object> getSaleOrderLineValues(SaleOrderLine saleOrderLine) {
+        try {
+            Map<String, Object> values = odooUtils.convertObjectToMap(saleOrderLine);
+            values.remove("id");
+            values.remove("order_id");
+            return values;
+        } catch (Exception e) {
+            throw new EIPException(String.format("Unable to convert sale order line %s", saleOrderLine));
+        }
+    }
+
+    public void deleteSaleOrderLine(Resource resource, String encounterVisitUuid, OdooUnitOfWork unitOfWork) {
+        deleteSaleOrderLine(resource, encounterVisitUuid, false, unitOfWork);
+    }
+
+    /**
+     * Deletes the sale order line of an order replaced by a revision. The line is kept when it no longer matches the
+     * order, the revision was processed first and updated it in place.
+     */
+    public void deleteSaleOrderLineOfRevisedOrder(
+            Resource resource, String encounterVisitUuid, OdooUnitOfWork unitOfWork) {
+        deleteSaleOrderLine(resource, encounterVisitUuid, true, unitOfWork);
+    }
+
+    private void deleteSaleOrderLine(
+            Resource resource, String encounterVisitUuid, boolean onlyIfUnchanged, OdooUnitOfWork unitOfWork) {
+        SaleOrder saleOrder = getDraftSaleOrder(encounterVisitUuid, unitOfWork);
         if (saleOrder != null) {
             Product product = productHandler.getProduct(resource);
             if (product != null) {
                 SaleOrderLine saleOrderLine = saleOrderLineHandler.getSaleOrderLineIfExists(
                         saleOrder.getOrderId(), product.getProductResId());
-                if (saleOrderLine != null) {
-                    saleOrderLineHandler.sendSaleOrderLine(
-                            producerTemplate, "direct:odoo-delete-sale-order-line-route", saleOrderLine);
+                if (saleOrderLine == null) {
+                    return;
                 }
+                if (onlyIfUnchanged && isUpdatedByRevision(saleOrderLine, resource, product)) {
+                    log.debug(
+                            "SaleOrderHandler: Keeping sale order line {} updated by the revision of its order",
+                            saleOrderLine.getSaleOrderLineId());
+                    return;
+                }
+                unitOfWork.deleteSaleOrderLine(saleOrder, saleOrderLine.getSaleOrderLineId());
             }
         }
     }
 
+    private boolean isUpdatedByRevision(SaleOrderLine saleOrderLine, Resource resource, Product product) {
+        SaleOrderLine orderLine = saleOrderLineHandler.buildSaleOrderLine(resource, product);
+        return !saleOrderLineHandler
+                .getSaleOrderLineChanges(saleOrderLine, orderLine)
+                .isEmpty();
+    }
+
     // Check if sale order has no sale order line, then cancel the sale order
     public void cancelSaleOrderWhenNoSaleOrderLine(
-            int partnerId, String encounterVisitUuid, ProducerTemplate producerTemplate) {
-        SaleOrder saleOrder = getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
-        if (saleOrder != null
-                && (saleOrder.getOrderLine() == null || saleOrder.getOrderLine().isEmpty())) {
-            log.debug("SaleOrderHandler: Count of sale order line {}", saleOrder.getOrderLine());
-            saleOrder.setOrderState("cancel");
+            int partnerId, String encounterVisitUuid, OdooUnitOfWork unitOfWork) {
+        SaleOrder saleOrder = getDraftSaleOrder(encounterVisitUuid, unitOfWork);
+        if (saleOrder != null) {
+            log.debug("SaleOrderHandler: Cancel sale order {} when it has no sale order line", saleOrder.getOrderId());
+            unitOfWork.cancelSaleOrderWhenEmpty(saleOrder);
             saleOrder.setOrderPartnerId((Integer) partnerId);
-            sendSaleOrder(producerTemplate, "direct:odoo-update-sale-order-route", saleOrder);
         }
     }
 
     public void updateSaleOrderWithPatientWeight(
-            int partnerId, String patientID, SaleOrder saleOrder, ProducerTemplate producerTemplate) {
+            int partnerId, String patientID, SaleOrder saleOrder, OdooUnitOfWork unitOfWork) {
         String patientWeight = getPartnerWeight(patientID);
         if (saleOrder != null && patientWeight != null) {
             log.debug("SaleOrderHandler: Update sale order with Patient weight {}", saleOrder.getOrderId());
-            saleOrder.setOrderPartnerId(partnerId);
-            saleOrder.setPartnerWeight(patientWeight);
+            SaleOrder changedSaleOrder = unitOfWork.updateSaleOrder(saleOrder);
+            changedSaleOrder.setOrderPartnerId(partnerId);
+            changedSaleOrder.setPartnerWeight(patientWeight);
+        }
+    }
+
+    /**
+     * Writes the sale orders changed in a unit of work, each with a single call.
+     */
+    public void flush(OdooUnitOfWork unitOfWork, ProducerTemplate producerTemplate) {
+        for (SaleOrder saleOrder : unitOfWork.drain()) {
             sendSaleOrder(producerTemplate, "direct:odoo-update-sale-order-route", saleOrder);
+            log.debug(
+                    "SaleOrderHandler: Wrote sale order {} with {} sale order line changes",
+                    saleOrder.getOrderId(),
+                    saleOrder.getOrderLine().size());
         }
     }
 
-    public String getPartnerWeight(String patientID) {
-        Observation observation = observationHandler.getObservationBySubjectIDAndConceptID(patientID, weightConcept);
-        if (observation == null) {
-            return null;
+    // The sale order changed earlier in the unit of work already holds the pending changes and needs no read
+    private SaleOrder getDraftSaleOrder(String encounterVisitUuid, OdooUnitOfWork unitOfWork) {
+        SaleOrder saleOrder = unitOfWork.getSaleOrder(encounterVisitUuid);
+        return saleOrder != null ? saleOrder : getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
+    }
+
+    // Pushes a newly recorded patient weight to all the open quotations of the patient
+    public void updateDraftSaleOrdersWithPatientWeight(
+            String patientID, String patientWeight, ProducerTemplate producerTemplate) {
+        for (SaleOrder saleOrder : getDraftSaleOrdersByPartnerRef(patientID)) {
+            if (patientWeight.equals(saleOrder.getPartnerWeight())) {
+                continue;
+            }
+            log.debug("SaleOrderHandler: Update sale order {} with new Patient weight", saleOrder.getOrderId());
+            // partner_id is read as [id, name] but must be written as an id
+            if (saleOrder.getOrderPartnerId() instanceof List<?> partner && !partner.isEmpty()) {
+                saleOrder.setOrderPartnerId(partner.get(0));
+            }
+            saleOrder.setPartnerWeight(patientWeight);
+            sendSaleOrder(producerTemplate, "direct:odoo-update-sale-order-route", saleOrder);
         }
+    }
 
-        return observation.getValueQuantity().getValue() + " "
-                + observation.getValueQuantity().getUnit();
+    public String getPartnerWeight(String patientID) {
+        return patientWeightCache.getWeight(patientID);
     }
 }
@@ -14,12 +14,13 @@ import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderLineMapper;
 import com.ozonehis.eip.odoo.openmrs.model.Product;
-import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
 import com.ozonehis.eip.odoo.openmrs.model.Uom;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.camel.ProducerTemplate;
@@ -51,27 +52,25 @@ public class SaleOrderLineHandler {
     @Autowired
     private OdooUtils odooUtils;
 
-    public SaleOrderLine buildSaleOrderLineIfProductExists(Resource resource, SaleOrder saleOrder) {
+    /**
+     * Builds the first sale order line of a sale order which is not created yet, there is no existing line to look for.
+     */
+    public SaleOrderLine buildNewSaleOrderLineIfProductExists(Resource resource) {
         Product product = productHandler.getProduct(resource);
         log.debug("SaleOrderLineHandler: Fetched Product {}", product);
-        if (product == null) { // TODO: Check should we allow product not found
+        if (product == null) {
             log.debug("SaleOrderLineHandler: No product found");
             return null;
         }
+        return buildSaleOrderLine(resource, product);
+    }
 
-        // Check if Sale order line order exists in Sale order
-        SaleOrderLine fetchedSaleOrderLine =
-                getSaleOrderLineIfExists(saleOrder.getOrderId(), product.getProductResId());
-        if (fetchedSaleOrderLine != null) {
-            log.debug(
-                    "SaleOrderLineHandler: Sale order line already exists for sale order {} Skipping create new sale order line",
-                    saleOrder);
-            return null;
-        }
-
+    /**
+     * Builds the sale order line of an order resource for a product, without order.
+     */
+    public SaleOrderLine buildSaleOrderLine(Resource resource, Product product) {
         SaleOrderLine saleOrderLine = saleOrderLineMapper.toOdoo(resource);
         saleOrderLine.setSaleOrderLineProductId(product.getProductResId());
-        saleOrderLine.setSaleOrderLineOrderId(saleOrder.getOrderId());
         if (resource instanceof MedicationRequest || resource instanceof SupplyRequest) {
             String uomExternalId = (String) saleOrderLine.getSaleOrderLineProductUom();
             Uom uom = uomHandler.getUom(uomExternalId);
@@ -86,6 +85,53 @@ public class SaleOrderLineHandler {
         return saleOrderLine;
     }
 
+    /**
+     * Looks up the product and the unit of measure of an order resource so that they are cached when the sale order
+     * line is built. Failures are ignored, they are surfaced when the sale order line is built.
+     */
+    public void prefetchProductAndUom(Resource resource) {
+        try {
+            productHandler.getProduct(resource);
+            if (resource instanceof MedicationRequest || resource instanceof SupplyRequest) {
+                Object uomExternalId = saleOrderLineMapper.toOdoo(resource).getSaleOrderLineProductUom();
+                if (uomExternalId instanceof String externalId) {
+                    uomHandler.getUom(externalId);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.debug("SaleOrderLineHandler: Failed to prefetch product and uom of {}", resource.getIdPart(), e);
+        }
+    }
+
+    /**
+     * Compares an existing sale order line with the line built for the current state of its order. The values missing
+     * on the built line, e.g. the quantity of a medication request without dispense request, are left as they are.
+     *
+     * @return the values to write on the existing line, empty when it is up to date
+     */
+    public Map<String, Object> getSaleOrderLineChanges(SaleOrderLine existingLine, SaleOrderLine saleOrderLine) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        putIfChanged(changes, "name", existingLine.getSaleOrderLineName(), saleOrderLine.getSaleOrderLineName());
+        putIfChanged(
+                changes,
+                "product_uom_qty",
+                existingLine.getSaleOrderLineProductUomQty(),
+                saleOrderLine.getSaleOrderLineProductUomQty());
+        // product_uom is read as [id, name]
+        Object existingUom = existingLine.getSaleOrderLineProductUom();
+        if (existingUom instanceof List<?> uom && !uom.isEmpty()) {
+            existingUom = uom.get(0);
+        }
+        putIfChanged(changes, "product_uom", existingUom, saleOrderLine.getSaleOrderLineProductUom());
+        return changes;
+    }
+
+    private static void putIfChanged(Map<String, Object> changes, String field, Object existing, Object desired) {
+        if (desired != null && !Objects.equals(existing, desired)) {
+            changes.put(field, desired);
+        }
+    }
+
     public SaleOrderLine getSaleOrderLineIfExists(int saleOrderId, int productId) {
         Object[] records = odooClient.searchAndRead(
                 Constants.SALE_ORDER_LINE_MODEL,
@@ -114,6 +160,46 @@ public class SaleOrderLineHandler {
         }
     }
 
+    /**
+     * @return the ids of the sale order lines of a sale order by product id
+     */
+    public Map<Integer, Integer> getSaleOrderLineIdsByProduct(int saleOrderId) {
+        Map<Integer, Integer> lineIdsByProduct = new HashMap<>();
+        getSaleOrderLinesByProduct(saleOrderId, asList("id", "product_id"))
+                .forEach((productId, line) -> lineIdsByProduct.put(productId, line.getSaleOrderLineId()));
+        return lineIdsByProduct;
+    }
+
+    /**
+     * @return the sale order lines of a sale order by product id, with the fields compared to the order lines
+     */
+    public Map<Integer, SaleOrderLine> getSaleOrderLinesByProduct(int saleOrderId) {
+        return getSaleOrderLinesByProduct(
+                saleOrderId, asList("id", "product_id", "name", "product_uom_qty", "product_uom"));
+    }
+
+    private Map<Integer, SaleOrderLine> getSaleOrderLinesByProduct(int saleOrderId, List<String> fields) {
+        Object[] records = odooClient.searchAndRead(
+                Constants.SALE_ORDER_LINE_MODEL, List.of(asList("order_id", "=", saleOrderId)), fields);
+        if (records == null) {
+            throw new EIPException(String.format(
+                    "Got null response while fetching for Sale order lines with sale order id %s", saleOrderId));
+        }
+        Map<Integer, SaleOrderLine> linesByProduct = new HashMap<>();
+        for (Object record : records) {
+            SaleOrderLine saleOrderLine = odooUtils.convertToObject((Map<String, Object>) record, SaleOrderLine.class);
+            // product_id is read as [id, name]
+            Object productId = saleOrderLine.getSaleOrderLineProductId();
+            if (productId instanceof List<?> product && !product.isEmpty()) {
+                productId = product.get(0);
+            }
+            if (productId instanceof Integer id) {
+                linesByProduct.put(id, saleOrderLine);
+            }
+        }
+        return linesByProduct;
+    }
+
     public void sendSaleOrderLine(ProducerTemplate producerTemplate, String endpointUri, SaleOrderLine saleOrderLine) {
         Map<String, Object> saleOrderLineHeaders = new HashMap<>();
         if (endpointUri.contains("update") || endpointUri.contains("delete")) {
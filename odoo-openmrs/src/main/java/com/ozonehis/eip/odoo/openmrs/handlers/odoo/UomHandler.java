@@ -10,6 +10,7 @@ package com.ozonehis.eip.odoo.openmrs.handlers.odoo;
 import static java.util.Arrays.asList;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.model.Uom;
@@ -31,7 +32,14 @@ public class UomHandler {
     @Autowired
     private OdooUtils odooUtils;
 
+    @Autowired
+    private LookupCache<String, Uom> uomCache;
+
     public Uom getUom(String externalId) {
+        return uomCache.get(externalId, this::fetchUom);
+    }
+
+    private Uom fetchUom(String externalId) {
         Object[] records = odooClient.searchAndRead(
                 Constants.IR_MODEL,
                 asList(asList("model", "=", Constants.UOM_MODEL), asList("name", "=", externalId)),
@@ -8,11 +8,18 @@
 package com.ozonehis.eip.odoo.openmrs.handlers.openmrs;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
+import java.util.ArrayList;
+import java.util.List;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -23,17 +30,49 @@ import org.springframework.stereotype.Component;
 @Component
 public class EncounterHandler {
 
+    // The elements that link the encounter to its visit and patient and tell whether it is closed
+    static final String[] ORDER_ENCOUNTER_ELEMENTS = {"partOf", "subject", "period"};
+
     @Autowired
     private IGenericClient openmrsFhirClient;
 
+    @Autowired
+    private FhirResourceCache fhirResourceCache;
+
     public Encounter getEncounterByEncounterID(String encounterID) {
-        Encounter encounter = openmrsFhirClient
-                .read()
-                .resource(Encounter.class)
-                .withId(encounterID)
-                .execute();
+        Encounter encounter = fhirResourceCache.read(Encounter.class, encounterID, ORDER_ENCOUNTER_ELEMENTS);
 
         log.info("EncounterHandler: Encounter getEncounterByEncounterID {}", encounter.getId());
         return encounter;
     }
+
+    /**
+     * Fetches the medication and service requests of all the encounters of a visit, whatever their status, in one
+     * search following the result pages.
+     */
+    public List<Resource> getOrdersByVisitID(String visitID) {
+        Bundle bundle = openmrsFhirClient
+                .search()
+                .forResource(Encounter.class)
+                .where(Encounter.PART_OF.hasId(visitID))
+                .revInclude(MedicationRequest.INCLUDE_ENCOUNTER)
+                .revInclude(ServiceRequest.INCLUDE_ENCOUNTER)
+                .returnBundle(Bundle.class)
+                .execute();
+
+        List<Resource> orders = new ArrayList<>();
+        while (true) {
+            bundle.getEntry().stream()
+                    .map(Bundle.BundleEntryComponent::getResource)
+                    .filter(resource -> resource instanceof MedicationRequest || resource instanceof ServiceRequest)
+                    .forEach(orders::add);
+            if (bundle.getLink(Bundle.LINK_NEXT) == null) {
+                break;
+            }
+            bundle = openmrsFhirClient.loadPage().next(bundle).execute();
+        }
+
+        log.debug("EncounterHandler: Found {} orders of visit {}", orders.size(), visitID);
+        return orders;
+    }
 }
@@ -20,6 +20,9 @@ import org.springframework.stereotype.Component;
 @Component
 public class ObservationHandler {
 
+    // The elements of the latest observation read by the callers, e.g. the patient weight cache
+    static final String[] LATEST_VALUE_ELEMENTS = {"subject", "code", "value", "effective"};
+
     @Autowired
     private IGenericClient openmrsFhirClient;
 
@@ -31,6 +34,8 @@ public class ObservationHandler {
                 .and(Observation.CODE.exactly().code(conceptID))
                 .sort()
                 .descending(Observation.DATE)
+                .count(1)
+                .elementsSubset(LATEST_VALUE_ELEMENTS)
                 .returnBundle(Bundle.class)
                 .execute();
 
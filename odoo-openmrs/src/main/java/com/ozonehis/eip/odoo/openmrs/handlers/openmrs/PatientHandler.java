@@ -7,7 +7,7 @@
  */
 package com.ozonehis.eip.odoo.openmrs.handlers.openmrs;
 
-import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -23,15 +23,14 @@ import org.springframework.stereotype.Component;
 @Component
 public class PatientHandler {
 
+    // The elements mapped to the partner of the patient
+    static final String[] PARTNER_ELEMENTS = {"identifier", "active", "name", "birthDate", "address"};
+
     @Autowired
-    private IGenericClient openmrsFhirClient;
+    private FhirResourceCache fhirResourceCache;
 
     public Patient getPatientByPatientID(String patientID) {
-        Patient patient = openmrsFhirClient
-                .read()
-                .resource(Patient.class)
-                .withId(patientID)
-                .execute();
+        Patient patient = fhirResourceCache.read(Patient.class, patientID, PARTNER_ELEMENTS);
 
         log.info("PatientHandler: Patient getPatientByPatientID {}", patient.getId());
         return patient;
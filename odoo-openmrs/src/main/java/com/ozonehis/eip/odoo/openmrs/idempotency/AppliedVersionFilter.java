@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.idempotency;
+
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
+import java.util.Collection;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drops the events of a resource version that was already applied, e.g. redelivered by Debezium or retried by the db
+ * event retry queue, at the entry of the routes before any OpenMRS or Odoo call. Applied versions are kept in the
+ * bounded {@code applied-versions} lookup cache keyed by event type, resource type, id and version, its hit ratio is
+ * the share of dropped events. An event is recorded once it was processed without error on its lane, or once its
+ * changes were written when they are deferred, e.g. by the aggregation of the order events of a visit, so that a
+ * failed event is processed again when it is retried. Events of resources without version id nor last updated date are
+ * always processed.
+ */
+@Slf4j
+@Setter
+@Component
+public class AppliedVersionFilter {
+
+    @Value("${odoo.openmrs.idempotency.enabled:false}")
+    private boolean enabled;
+
+    @Autowired
+    private LookupCache<String, Boolean> appliedVersionCache;
+
+    /**
+     * @return false when the version of the resource of the event was already applied
+     */
+    public boolean isNotApplied(Exchange exchange) {
+        if (!enabled) {
+            return true;
+        }
+        String versionKey = getVersionKey(exchange);
+        if (versionKey == null) {
+            return true;
+        }
+        if (appliedVersionCache.getIfPresent(versionKey) != null) {
+            log.debug("AppliedVersionFilter: Dropping event {} which was already applied", versionKey);
+            return false;
+        }
+        exchange.setProperty(Constants.EXCHANGE_PROPERTY_VERSION_KEY, versionKey);
+        return true;
+    }
+
+    /**
+     * Records the version of the resource of an event processed without error.
+     */
+    public void markApplied(Exchange exchange) {
+        String versionKey = exchange.getProperty(Constants.EXCHANGE_PROPERTY_VERSION_KEY, String.class);
+        if (versionKey != null) {
+            appliedVersionCache.put(versionKey, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records the versions of the events whose deferred changes were written.
+     */
+    public void markApplied(Collection<String> versionKeys) {
+        versionKeys.forEach(versionKey -> appliedVersionCache.put(versionKey, Boolean.TRUE));
+    }
+
+    /**
+     * Hands the recording of the version of an event over to the step writing its changes later, the version is then
+     * no longer recorded when the route of the event completes.
+     *
+     * @return the version key of the event or null when it is not recorded
+     */
+    public static String takeVersionKey(Exchange exchange) {
+        return (String) exchange.removeProperty(Constants.EXCHANGE_PROPERTY_VERSION_KEY);
+    }
+
+    static String getVersionKey(Exchange exchange) {
+        if (!(exchange.getMessage().getBody() instanceof Resource resource)) {
+            return null;
+        }
+        String id = resource.getIdElement().getIdPart();
+        String version = resource.getMeta().getVersionId();
+        if (version == null && resource.getMeta().hasLastUpdated()) {
+            version = String.valueOf(resource.getMeta().getLastUpdated().getTime());
+        }
+        if (version == null) {
+            version = resource.getIdElement().getVersionIdPart();
+        }
+        if (id == null || version == null) {
+            return null;
+        }
+        String eventType = exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class);
+        return eventType + ":" + resource.fhirType() + "/" + id + "/" + version;
+    }
+}
@@ -33,7 +33,7 @@ public class SaleOrder implements OdooResource {
     private Object orderPartnerId; // Can be used as a list or Integer
 
     @JsonProperty("order_line")
-    private List<Integer> orderLine;
+    private List<Object> orderLine; // Line ids when read, one2many commands when written
 
     @JsonProperty("type_name")
     private String orderTypeName;
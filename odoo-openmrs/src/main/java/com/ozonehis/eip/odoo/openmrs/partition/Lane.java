@@ -0,0 +1,299 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.partition;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single threaded lane with a bounded number of waiting events. Interactive events run in arrival order ahead of the
+ * bulk events, e.g. retried or replayed ones, but a bulk event runs after every {@code interactiveWeight} interactive
+ * ones so that the bulk events are not starved. An event of a partition that has bulk events waiting is queued as a
+ * bulk event so that the events of a partition still run in arrival order.
+ *
+ * <p>An attempt of an event may ask for another attempt after a delay, its partition is then set aside: the following
+ * events of the partition are held until the event ran again, while the lane goes on with the other partitions.
+ */
+class Lane {
+
+    /**
+     * An attempt of an event.
+     */
+    @FunctionalInterface
+    interface Attempt {
+
+        /**
+         * @return the delay in milliseconds before the next attempt of the event or a negative value once it is done
+         */
+        long run();
+    }
+
+    private final String name;
+
+    private final int interactiveWeight;
+
+    private final boolean blockWhenFull;
+
+    private final Semaphore capacity;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService retryScheduler;
+
+    private final Deque<LaneEvent> interactiveEvents = new ArrayDeque<>();
+
+    private final Deque<LaneEvent> bulkEvents = new ArrayDeque<>();
+
+    private final Map<String, Integer> bulkEventCounts = new HashMap<>();
+
+    // The partitions set aside until the next attempt of their first event, mapped to that event and the held events
+    private final Map<String, Deque<LaneEvent>> parkedEvents = new HashMap<>();
+
+    private int interactiveRunCount;
+
+    // The events queued, running or set aside that are not done yet
+    private int pendingCount;
+
+    private boolean shutdown;
+
+    private boolean stopped;
+
+    Lane(
+            String name,
+            int capacity,
+            int interactiveWeight,
+            boolean blockWhenFull,
+            ScheduledExecutorService retryScheduler) {
+        this.name = name;
+        this.interactiveWeight = interactiveWeight;
+        this.blockWhenFull = blockWhenFull;
+        this.capacity = new Semaphore(capacity);
+        this.retryScheduler = retryScheduler;
+        this.executor =
+                new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues an event, blocks the caller until the lane has room unless the lane rejects events when it is full.
+     *
+     * @return a future completed once the last attempt of the event ran
+     * @throws RejectedExecutionException if the lane is full and does not block or if it is shut down
+     */
+    Future<?> submit(String partitionKey, boolean bulk, Attempt attempt) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException(name + " is shut down");
+        }
+        if (!blockWhenFull) {
+            if (!capacity.tryAcquire()) {
+                throw new RejectedExecutionException(name + " is full");
+            }
+        } else {
+            try {
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for " + name, e);
+            }
+        }
+        LaneEvent event = new LaneEvent(partitionKey, attempt, new CompletableFuture<>(), false);
+        synchronized (this) {
+            if (shutdown) {
+                capacity.release();
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            pendingCount++;
+            if (bulk || bulkEventCounts.containsKey(partitionKey)) {
+                bulkEvents.add(event);
+                bulkEventCounts.merge(partitionKey, 1, Integer::sum);
+            } else {
+                interactiveEvents.add(event);
+            }
+        }
+        // Each queued event has a run of the lane thread, which takes the next event by priority
+        executor.execute(this::runNext);
+        return event.result();
+    }
+
+    private void runNext() {
+        LaneEvent next;
+        synchronized (this) {
+            next = pollNext();
+        }
+        if (next == null) {
+            return;
+        }
+        long retryDelay;
+        try {
+            retryDelay = next.attempt().run();
+        } catch (RuntimeException e) {
+            done();
+            next.result().completeExceptionally(e);
+            return;
+        }
+        if (retryDelay < 0) {
+            done();
+            next.result().complete(null);
+            return;
+        }
+        synchronized (this) {
+            if (stopped) {
+                done();
+                next.result().cancel(false);
+                return;
+            }
+            Deque<LaneEvent> parked = new ArrayDeque<>();
+            parked.add(new LaneEvent(next.partitionKey(), next.attempt(), next.result(), true));
+            parkedEvents.put(next.partitionKey(), parked);
+        }
+        try {
+            retryScheduler.schedule(() -> unpark(next.partitionKey()), retryDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            unpark(next.partitionKey());
+        }
+    }
+
+    private LaneEvent pollNext() {
+        LaneEvent next = pollByPriority();
+        while (next != null && parkedEvents.containsKey(next.partitionKey())) {
+            if (!next.requeued()) {
+                capacity.release();
+            }
+            parkedEvents
+                    .get(next.partitionKey())
+                    .add(new LaneEvent(next.partitionKey(), next.attempt(), next.result(), true));
+            next = pollByPriority();
+        }
+        if (next != null && !next.requeued()) {
+            capacity.release();
+        }
+        return next;
+    }
+
+    private LaneEvent pollByPriority() {
+        if (!interactiveEvents.isEmpty() && bulkEvents.isEmpty()) {
+            return interactiveEvents.poll();
+        }
+        if (!interactiveEvents.isEmpty() && interactiveRunCount < interactiveWeight) {
+            interactiveRunCount++;
+            return interactiveEvents.poll();
+        }
+        interactiveRunCount = 0;
+        LaneEvent next = bulkEvents.poll();
+        if (next != null) {
+            bulkEventCounts.computeIfPresent(next.partitionKey(), (key, count) -> count == 1 ? null : count - 1);
+        }
+        return next;
+    }
+
+    /**
+     * Queues the set aside event of a partition and its held events again, ahead of the other events so that the
+     * events of the partition still run in arrival order.
+     */
+    private void unpark(String partitionKey) {
+        int requeuedCount;
+        synchronized (this) {
+            Deque<LaneEvent> parked = parkedEvents.remove(partitionKey);
+            if (parked == null) {
+                // Cancelled while it was set aside
+                return;
+            }
+            parked.descendingIterator().forEachRemaining(interactiveEvents::addFirst);
+            requeuedCount = parked.size();
+        }
+        for (int i = 0; i < requeuedCount; i++) {
+            executor.execute(this::runNext);
+        }
+    }
+
+    private synchronized void done() {
+        pendingCount--;
+        notifyAll();
+    }
+
+    synchronized int getQueueDepth() {
+        return interactiveEvents.size()
+                + bulkEvents.size()
+                + parkedEvents.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    synchronized int getBulkQueueDepth() {
+        return bulkEvents.size();
+    }
+
+    private synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Stops taking events, the queued events and the next attempts of the events set aside still run.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * @return true if the queued events ran before the timeout elapsed
+     */
+    boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this) {
+            while (pendingCount > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Cancels the queued events and the events set aside, the callers waiting for them fail. An event still running
+     * is not attempted again.
+     *
+     * @return the number of cancelled events
+     */
+    int cancelQueued() {
+        List<LaneEvent> queued;
+        synchronized (this) {
+            stopped = true;
+            queued = new ArrayList<>(interactiveEvents);
+            queued.addAll(bulkEvents);
+            parkedEvents.values().forEach(queued::addAll);
+            interactiveEvents.clear();
+            bulkEvents.clear();
+            bulkEventCounts.clear();
+            parkedEvents.clear();
+            pendingCount -= queued.size();
+            notifyAll();
+        }
+        executor.shutdown();
+        queued.forEach(event -> event.result().cancel(false));
+        return queued.size();
+    }
+
+    private record LaneEvent(String partitionKey, Attempt attempt, CompletableFuture<Void> result, boolean requeued) {}
+}
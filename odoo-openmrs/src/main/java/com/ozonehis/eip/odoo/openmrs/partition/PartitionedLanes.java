@@ -0,0 +1,582 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.partition;
+
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.retry.FastRetry;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.support.LifecycleStrategySupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.SupplyRequest;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Processes events on a fixed number of single threaded lanes. Events are assigned to a lane by the hash of their
+ * partition key so that the events of a partition are processed one at a time and in arrival order, while different
+ * partitions are processed in parallel. The partition key is the patient uuid: every event that touches a visit's
+ * draft sale order or a partner carries it, which keeps two orders of the same visit from both creating a draft sale
+ * order and a patient update from racing with the partner upsert of an order.
+ *
+ * <p>By default the caller waits for its event to be processed, so failures still reach the caller and its retry
+ * mechanism. The db events are read by a single reader, the lanes then only process one event at a time. When
+ * {@code odoo.openmrs.lanes.wait-for-completion} is false the caller returns once the event is queued and a failed
+ * event is added to the db event retry queue by the {@link RetryQueue}, the lanes are then the asynchronous intake
+ * queues of the routes and process the events of different patients in parallel, which is how the lanes raise the
+ * throughput, and a slow Odoo no longer holds the event reader.
+ *
+ * <p>An event that failed with a transient error is retried on its lane by the {@link FastRetry}. Its partition is set
+ * aside until its next attempt, the later events of the partition wait while the lane goes on with the other
+ * partitions. An event whose caller did not wait is added to the retry queue once its retries are exhausted.
+ *
+ * <p>When the Camel context starts stopping the lanes stop taking events and the queued events are processed, while the
+ * routes are still running, for up to {@code odoo.openmrs.lanes.drain-timeout}. The events left after that are
+ * cancelled, those whose caller did not wait are added to the retry queue. A failed event is no longer retried on its
+ * lane once the lanes stop.
+ *
+ * <p>A full lane blocks the caller until the lane has room. When {@code odoo.openmrs.lanes.overflow} is {@code retry}
+ * the event is rejected instead, the caller fails and the event is left to the db event retry queue.
+ *
+ * <p>When {@code odoo.openmrs.bulkheads.enabled} is true the patient, order and encounter events are processed on their
+ * own lanes, so a burst of slow events of one domain, e.g. the product lookups of a big prescription, does not delay
+ * the events of the others. The events of a patient are then only processed in order within a domain.
+ *
+ * <p>When {@code odoo.openmrs.priority.enabled} is true the bulk events, i.e. events redelivered or of a resource last
+ * updated longer than {@code odoo.openmrs.priority.bulk-age} ago such as retried or replayed ones, give way on their
+ * lane to the live events, see {@link Lane}. Cancellations, deletions and encounter closes are always live events.
+ * The priority only has an effect when the caller does not wait for completion, otherwise there is at most one waiting
+ * event per lane.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Lanes,name=PartitionedLanes",
+        description = "Partitioned processing lanes of the Odoo OpenMRS integration")
+public class PartitionedLanes {
+
+    public static final String OVERFLOW_BLOCK = "block";
+
+    public static final String OVERFLOW_RETRY = "retry";
+
+    public static final String DOMAIN_PATIENT = "patient";
+
+    public static final String DOMAIN_ORDER = "order";
+
+    public static final String DOMAIN_ENCOUNTER = "encounter";
+
+    @Value("${odoo.openmrs.lanes.count:8}")
+    private int laneCount;
+
+    @Value("${odoo.openmrs.lanes.capacity:1000}")
+    private int laneCapacity;
+
+    @Value("${odoo.openmrs.lanes.wait-for-completion:true}")
+    private boolean waitForCompletion;
+
+    @Value("${odoo.openmrs.lanes.overflow:block}")
+    private String overflow;
+
+    @Value("${odoo.openmrs.lanes.drain-timeout:30000}")
+    private long drainTimeout;
+
+    @Value("${odoo.openmrs.bulkheads.enabled:false}")
+    private boolean bulkheadsEnabled;
+
+    @Value("${odoo.openmrs.bulkheads.patient.lanes:2}")
+    private int patientLaneCount;
+
+    @Value("${odoo.openmrs.bulkheads.order.lanes:4}")
+    private int orderLaneCount;
+
+    @Value("${odoo.openmrs.bulkheads.encounter.lanes:2}")
+    private int encounterLaneCount;
+
+    @Value("${odoo.openmrs.priority.enabled:false}")
+    private boolean priorityEnabled;
+
+    @Value("${odoo.openmrs.priority.bulk-age:60000}")
+    private long bulkAge;
+
+    @Value("${odoo.openmrs.priority.interactive-weight:4}")
+    private int interactiveWeight;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private RetryQueue retryQueue;
+
+    @Autowired
+    private FastRetry fastRetry;
+
+    private final List<Lane> lanes = new ArrayList<>();
+
+    private final Map<String, List<Lane>> bulkheads = new LinkedHashMap<>();
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong bulkCount = new AtomicLong();
+
+    private final LongAdder waitedCount = new LongAdder();
+
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    // The events, as received, queued without waiting for completion that are not running, i.e. not started yet or
+    // waiting for their next attempt
+    private final Set<Exchange> unstartedEvents = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService retryScheduler;
+
+    private final AtomicBoolean drained = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "odoo-openmrs-lane-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lanes.addAll(createLanes("odoo-openmrs-lane-", laneCount));
+        if (bulkheadsEnabled) {
+            bulkheads.put(DOMAIN_PATIENT, createLanes("odoo-openmrs-patient-lane-", patientLaneCount));
+            bulkheads.put(DOMAIN_ORDER, createLanes("odoo-openmrs-order-lane-", orderLaneCount));
+            bulkheads.put(DOMAIN_ENCOUNTER, createLanes("odoo-openmrs-encounter-lane-", encounterLaneCount));
+        }
+        log.info(
+                "PartitionedLanes: Started {} lanes of capacity {}, overflow policy {}, bulkheads {}, priority {}",
+                laneCount,
+                laneCapacity,
+                overflow,
+                bulkheads.keySet(),
+                priorityEnabled);
+        if (waitForCompletion) {
+            log.info("PartitionedLanes: The caller waits for each event, events are processed in parallel only when"
+                    + " odoo.openmrs.lanes.wait-for-completion is false");
+            if (priorityEnabled) {
+                log.warn("PartitionedLanes: The caller waits for each event, there are no waiting events to reorder"
+                        + " by priority");
+            }
+        }
+        camelContext.addLifecycleStrategy(new LifecycleStrategySupport() {
+
+            @Override
+            public void onContextStopping(CamelContext context) {
+                drain();
+            }
+        });
+    }
+
+    private List<Lane> createLanes(String threadNamePrefix, int count) {
+        List<Lane> domainLanes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            domainLanes.add(new Lane(
+                    threadNamePrefix + i,
+                    laneCapacity,
+                    interactiveWeight,
+                    !OVERFLOW_RETRY.equals(overflow),
+                    retryScheduler));
+        }
+        return domainLanes;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drain();
+    }
+
+    /**
+     * Stops taking events and waits for the queued events to be processed, the events left once the drain timeout
+     * elapsed are cancelled and those whose caller did not wait are added to the retry queue.
+     */
+    public void drain() {
+        if (!drained.compareAndSet(false, true)) {
+            return;
+        }
+        List<Lane> allLanes = getAllLanes();
+        allLanes.forEach(Lane::shutdown);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        int cancelledCount = 0;
+        for (Lane lane : allLanes) {
+            try {
+                if (!lane.awaitTermination(deadline - System.nanoTime())) {
+                    cancelledCount += lane.cancelQueued();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelledCount += lane.cancelQueued();
+            }
+        }
+        if (cancelledCount > 0) {
+            log.warn("PartitionedLanes: Cancelled {} events not processed within {} ms", cancelledCount, drainTimeout);
+        }
+        retryScheduler.shutdownNow();
+        for (Exchange event : List.copyOf(unstartedEvents)) {
+            if (unstartedEvents.remove(event)) {
+                retryQueue.add(event, new EIPException("The event was not processed before the lanes stopped"));
+            }
+        }
+    }
+
+    private List<Lane> getAllLanes() {
+        List<Lane> allLanes = new ArrayList<>(lanes);
+        bulkheads.values().forEach(allLanes::addAll);
+        return allLanes;
+    }
+
+    /**
+     * @param endpointUri the endpoint processing the events, e.g. a direct route
+     * @param partitionKey extracts the partition key of an exchange
+     * @return a processor sending each exchange to the endpoint on the lane of its partition
+     */
+    public Processor dispatchTo(String endpointUri, Function<Exchange, String> partitionKey) {
+        return exchange -> dispatch(exchange, endpointUri, partitionKey.apply(exchange));
+    }
+
+    /**
+     * @param domain the domain of the events, their lanes are isolated from the other domains when bulkheads are
+     *     enabled
+     * @param endpointUri the endpoint processing the events, e.g. a direct route
+     * @param partitionKey extracts the partition key of an exchange
+     * @return a processor sending each exchange to the endpoint on the lane of its partition
+     */
+    public Processor dispatchTo(String domain, String endpointUri, Function<Exchange, String> partitionKey) {
+        return exchange ->
+                dispatch(bulkheads.getOrDefault(domain, lanes), exchange, endpointUri, partitionKey.apply(exchange));
+    }
+
+    public void dispatch(Exchange exchange, String endpointUri, String partitionKey) throws Exception {
+        dispatch(lanes, exchange, endpointUri, partitionKey);
+    }
+
+    private void dispatch(List<Lane> domainLanes, Exchange exchange, String endpointUri, String partitionKey)
+            throws Exception {
+        String laneKey = partitionKey != null ? partitionKey : exchange.getExchangeId();
+        Lane lane = domainLanes.get(getLane(domainLanes, laneKey));
+        boolean bulk = priorityEnabled && isBulk(exchange);
+        // The event as received, each attempt processes a copy of it
+        Exchange event = exchange.copy();
+        EventAttempts attempts = new EventAttempts(event, endpointUri, System.nanoTime());
+        if (!waitForCompletion) {
+            unstartedEvents.add(event);
+            try {
+                execute(lane, laneKey, bulk, () -> {
+                    if (!unstartedEvents.remove(event)) {
+                        // Already added to the retry queue by the drain
+                        return -1;
+                    }
+                    long retryDelay = attempts.run();
+                    if (retryDelay >= 0) {
+                        // Added to the retry queue by the drain if the lanes stop before its next attempt
+                        unstartedEvents.add(event);
+                    } else if (attempts.getFailure() != null) {
+                        retryQueue.add(event, attempts.getFailure());
+                    }
+                    return retryDelay;
+                });
+            } catch (RuntimeException e) {
+                unstartedEvents.remove(event);
+                throw e;
+            }
+            return;
+        }
+
+        Future<?> result = execute(lane, laneKey, bulk, attempts);
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (CancellationException e) {
+            throw new EIPException(String.format(
+                    "Event of partition %s was not processed before the lanes stopped, it is left to the retry queue",
+                    partitionKey));
+        }
+        if (attempts.getFailure() != null) {
+            throw attempts.getFailure();
+        }
+        exchange.getMessage().copyFrom(attempts.getLastAttempt().getMessage());
+    }
+
+    private Future<?> execute(Lane lane, String partitionKey, boolean bulk, Lane.Attempt attempt) {
+        Future<?> result;
+        try {
+            result = lane.submit(partitionKey, bulk, attempt);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            throw new EIPException(String.format(
+                    "Rejected event of partition %s, %s, it is left to the retry queue", partitionKey, e.getMessage()));
+        }
+        dispatchedCount.incrementAndGet();
+        if (bulk) {
+            bulkCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the event is a redelivered or old event that gives way to the live events
+     */
+    boolean isBulk(Exchange exchange) {
+        Object body = exchange.getMessage().getBody();
+        Resource resource = body instanceof Bundle bundle
+                ? bundle.getEntry().stream()
+                        .map(Bundle.BundleEntryComponent::getResource)
+                        .filter(entryResource -> !(entryResource instanceof Patient))
+                        .findFirst()
+                        .orElse(null)
+                : body instanceof Resource bodyResource ? bodyResource : null;
+        if (resource == null
+                || "d".equals(exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class))
+                || isCancellationOrClose(resource)) {
+            return false;
+        }
+        if (exchange.getMessage().getHeader(Exchange.REDELIVERED, false, Boolean.class)) {
+            return true;
+        }
+        return resource.getMeta().hasLastUpdated()
+                && System.currentTimeMillis()
+                                - resource.getMeta().getLastUpdated().getTime()
+                        > bulkAge;
+    }
+
+    private static boolean isCancellationOrClose(Resource resource) {
+        if (resource instanceof MedicationRequest medicationRequest) {
+            return medicationRequest.getStatus() == MedicationRequest.MedicationRequestStatus.CANCELLED
+                    || medicationRequest.getStatus() == MedicationRequest.MedicationRequestStatus.STOPPED;
+        } else if (resource instanceof ServiceRequest serviceRequest) {
+            return serviceRequest.getStatus() == ServiceRequest.ServiceRequestStatus.REVOKED;
+        } else if (resource instanceof Encounter encounter) {
+            return encounter.hasPeriod() && encounter.getPeriod().hasEnd();
+        }
+        return false;
+    }
+
+    private void recordWait(long waitNanos) {
+        waitedCount.increment();
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    int getLane(String partitionKey) {
+        return getLane(lanes, partitionKey);
+    }
+
+    private static int getLane(List<Lane> domainLanes, String partitionKey) {
+        return Math.floorMod(partitionKey.hashCode(), domainLanes.size());
+    }
+
+    public boolean isWaitForCompletion() {
+        return waitForCompletion;
+    }
+
+    @ManagedAttribute(
+            description = "The number of events waiting on each lane, the shared lanes then the bulkhead lanes")
+    public List<Integer> getQueueDepths() {
+        return getAllLanes().stream().map(Lane::getQueueDepth).toList();
+    }
+
+    @ManagedAttribute(description = "The number of events waiting on all the lanes, including the bulkhead lanes")
+    public int getTotalQueueDepth() {
+        return getQueueDepth(getAllLanes());
+    }
+
+    @ManagedAttribute(description = "The number of events waiting on the lanes of each bulkhead domain")
+    public Map<String, Integer> getBulkheadQueueDepths() {
+        Map<String, Integer> queueDepths = new LinkedHashMap<>();
+        bulkheads.forEach((domain, domainLanes) -> queueDepths.put(domain, getQueueDepth(domainLanes)));
+        return queueDepths;
+    }
+
+    @ManagedAttribute(description = "The number of events dispatched to the lanes since startup")
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of bulk events waiting on all the lanes, including the bulkhead lanes")
+    public int getBulkQueueDepth() {
+        return getAllLanes().stream().mapToInt(Lane::getBulkQueueDepth).sum();
+    }
+
+    @ManagedAttribute(description = "The number of events dispatched to the lanes as bulk events since startup")
+    public long getBulkCount() {
+        return bulkCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of events rejected because their lane was full since startup")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedAttribute(description = "The average time in milliseconds events waited on their lane before processing")
+    public double getAverageWaitTime() {
+        long count = waitedCount.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / (count * 1_000_000.0);
+    }
+
+    @ManagedAttribute(description = "The longest time in milliseconds an event waited on its lane before processing")
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    private static int getQueueDepth(List<Lane> domainLanes) {
+        return domainLanes.stream().mapToInt(Lane::getQueueDepth).sum();
+    }
+
+    private static void send(Exchange exchange, String endpointUri) {
+        try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            producerTemplate.send(endpointUri, exchange);
+        } catch (Exception e) {
+            exchange.setException(e);
+        }
+    }
+
+    /**
+     * The attempts of an event on its lane, each attempt processes a copy of the event as received and a failed attempt
+     * is attempted again after the delay of the {@link FastRetry}.
+     */
+    private class EventAttempts implements Lane.Attempt {
+
+        private final Exchange event;
+
+        private final String endpointUri;
+
+        private final long queuedAt;
+
+        private int count;
+
+        private long startedAt;
+
+        private Exchange lastAttempt;
+
+        EventAttempts(Exchange event, String endpointUri, long queuedAt) {
+            this.event = event;
+            this.endpointUri = endpointUri;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public long run() {
+            if (count == 0) {
+                recordWait(System.nanoTime() - queuedAt);
+                startedAt = System.currentTimeMillis();
+            }
+            count++;
+            lastAttempt = event.copy();
+            send(lastAttempt, endpointUri);
+            Exception failure = lastAttempt.getException();
+            if (failure == null) {
+                if (count > 1) {
+                    fastRetry.recovered();
+                }
+                return -1;
+            }
+            if (drained.get()) {
+                return -1;
+            }
+            return fastRetry.getRetryDelay(
+                    event.getExchangeId(), failure, count, System.currentTimeMillis() - startedAt);
+        }
+
+        Exchange getLastAttempt() {
+            return lastAttempt;
+        }
+
+        Exception getFailure() {
+            return lastAttempt.getException();
+        }
+    }
+
+    /**
+     * @param exchange the exchange of an event
+     * @return the uuid of the patient the event belongs to or null if it cannot be determined
+     */
+    public static String getPatientUuid(Exchange exchange) {
+        Object body = exchange.getMessage().getBody();
+        if (body instanceof Bundle bundle) {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() instanceof Patient patient) {
+                    return patient.getIdPart();
+                }
+            }
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                String patientUuid = getPatientUuid(entry.getResource());
+                if (patientUuid != null) {
+                    return patientUuid;
+                }
+            }
+            return null;
+        }
+        return body instanceof Resource resource ? getPatientUuid(resource) : null;
+    }
+
+    private static String getPatientUuid(Resource resource) {
+        if (resource instanceof Patient patient) {
+            return patient.getIdPart();
+        } else if (resource instanceof Encounter encounter) {
+            return getReferenceId(encounter.getSubject());
+        } else if (resource instanceof MedicationRequest medicationRequest) {
+            return getReferenceId(medicationRequest.getSubject());
+        } else if (resource instanceof ServiceRequest serviceRequest) {
+            return getReferenceId(serviceRequest.getSubject());
+        } else if (resource instanceof SupplyRequest supplyRequest) {
+            return getReferenceId(supplyRequest.getDeliverTo());
+        } else if (resource instanceof Observation observation) {
+            return getReferenceId(observation.getSubject());
+        }
+        return null;
+    }
+
+    private static String getReferenceId(Reference reference) {
+        if (reference == null || !reference.hasReference()) {
+            return null;
+        }
+        String[] parts = reference.getReference().split("/");
+        return parts[parts.length - 1];
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.partition;
+
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.stereotype.Component;
+
+/**
+ * Striped locks of the visits, held while the sale order of a visit is looked up and created so that a visit never
+ * gets two sale orders, e.g. when the draft pre-creation of an encounter event and the first order event of the visit
+ * run at the same time on different lanes or bulkheads, or when the order events of a visit are written by the
+ * aggregator.
+ */
+@Component
+public class VisitLocks {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public VisitLocks() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock get(String visitUuid) {
+        return locks[Math.floorMod(visitUuid.hashCode(), LOCK_STRIPES)];
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.precreation;
+
+import com.ozonehis.eip.odoo.openmrs.enrichment.EnrichedOrder;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.PatientHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the partner of the patient and an empty draft sale order for a visit when an encounter of the visit is
+ * received, so that the first order event of the visit finds both and only adds its sale order line. The draft is
+ * looked up and created under the lock of the visit shared with the order events, an order event processed at the same
+ * time, e.g. on another bulkhead or when the events are not awaited, therefore either finds the draft or creates the
+ * sale order before it is looked up here. A draft still without sale order line when its visit is closed is cancelled.
+ */
+@Slf4j
+@Setter
+@Component
+public class VisitDraftPreparer {
+
+    @Value("${odoo.openmrs.draft-precreation.enabled:false}")
+    private boolean enabled;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private PatientHandler patientHandler;
+
+    @Autowired
+    private PartnerHandler partnerHandler;
+
+    @Autowired
+    private SaleOrderHandler saleOrderHandler;
+
+    @Autowired
+    private VisitLocks visitLocks;
+
+    private final AtomicLong preparedCount = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Prepares the draft sale order of the visit of an encounter unless the visit already has one. Failures are logged,
+     * the first order event of the visit then creates the draft itself.
+     */
+    public void prepare(Encounter encounter) {
+        String encounterVisitUuid = EnrichedOrder.getVisitUuid(encounter);
+        ReentrantLock lock = visitLocks.get(encounterVisitUuid);
+        lock.lock();
+        try (ProducerTemplate producerTemplate = camelContext.createProducerTemplate()) {
+            if (saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid) != null) {
+                log.debug("VisitDraftPreparer: Visit {} already has a draft sale order", encounterVisitUuid);
+                return;
+            }
+            String patientID = encounter.getSubject().getReferenceElement().getIdPart();
+            Patient patient = patientHandler.getPatientByPatientID(patientID);
+            Partner partner = partnerHandler.createOrUpdatePartner(producerTemplate, patient);
+            SaleOrder saleOrder = saleOrderHandler.createDraftSaleOrder(
+                    encounter, partner, encounterVisitUuid, patientID, producerTemplate);
+            preparedCount.incrementAndGet();
+            log.debug(
+                    "VisitDraftPreparer: Created draft sale order {} of visit {}",
+                    saleOrder.getOrderId(),
+                    encounterVisitUuid);
+        } catch (Exception e) {
+            log.warn("VisitDraftPreparer: Failed to prepare the draft sale order of visit {}", encounterVisitUuid, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the draft sale order of a closed visit has no sale order line and is to be cancelled
+     */
+    public boolean isUnused(SaleOrder saleOrder) {
+        return enabled
+                && (saleOrder.getOrderLine() == null || saleOrder.getOrderLine().isEmpty());
+    }
+
+    public long getPreparedCount() {
+        return preparedCount.get();
+    }
+}
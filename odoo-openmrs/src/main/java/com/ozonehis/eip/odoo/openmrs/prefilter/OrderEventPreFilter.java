@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.prefilter;
+
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import jakarta.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drops the order events that the processors would ignore or reject by looking at the resource of the event only, at
+ * the entry of the order routes before the FHIR fetch of the order and its includes. Each rule is evaluated on the
+ * resource and the event type, the rules applied are listed in {@code odoo.openmrs.pre-filter.rules} and the events
+ * dropped by each rule are counted. The {@code service-request-intent} rule is not applied by default since it changes
+ * the behavior, the service requests whose intent is not order are otherwise still processed: their patient is
+ * upserted as a partner, their sale order line is removed and the sale order is cancelled on delete when it has no line
+ * left.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Filters,name=OrderEventPreFilter",
+        description = "Pre-filtering of the order events of the Odoo OpenMRS integration")
+public class OrderEventPreFilter {
+
+    public static final String EVENT_TYPE_RULE = "event-type";
+
+    public static final String SERVICE_REQUEST_INTENT_RULE = "service-request-intent";
+
+    // The processors reject any other event type
+    private static final Set<String> EVENT_TYPES = Set.of("c", "u", "d");
+
+    // The rules are evaluated in this order, an event is counted by the first rule that drops it
+    private static final List<Rule> RULES = List.of(
+            new Rule(EVENT_TYPE_RULE, (resource, eventType) -> !EVENT_TYPES.contains(eventType)),
+            // Stops syncing the service requests whose intent is not order instead of removing their sale order line
+            new Rule(
+                    SERVICE_REQUEST_INTENT_RULE,
+                    (resource, eventType) -> resource instanceof ServiceRequest serviceRequest
+                            && serviceRequest.getIntent() != ServiceRequest.ServiceRequestIntent.ORDER));
+
+    @Value("${odoo.openmrs.pre-filter.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.pre-filter.rules:event-type}")
+    private List<String> rules;
+
+    private final Map<String, LongAdder> dropCounts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        rules.stream()
+                .filter(name -> RULES.stream().noneMatch(rule -> rule.name().equals(name)))
+                .forEach(name -> log.warn("OrderEventPreFilter: Ignoring unknown rule {}", name));
+        log.info("OrderEventPreFilter: Dropping order events by rules {}", rules);
+    }
+
+    /**
+     * @return false when the event is dropped by one of the rules
+     */
+    public boolean isRelevant(Exchange exchange) {
+        if (!enabled) {
+            return true;
+        }
+        Resource resource = exchange.getMessage().getBody(Resource.class);
+        String eventType = exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class);
+        for (Rule rule : RULES) {
+            if (rules.contains(rule.name()) && rule.drops().test(resource, eventType)) {
+                dropCounts.computeIfAbsent(rule.name(), name -> new LongAdder()).increment();
+                log.debug(
+                        "OrderEventPreFilter: Dropping {} event of {} by rule {}",
+                        eventType,
+                        resource.getIdElement().getIdPart(),
+                        rule.name());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @ManagedAttribute(description = "The number of order events dropped by each rule since startup")
+    public Map<String, Long> getDropCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        dropCounts.forEach((name, count) -> counts.put(name, count.sum()));
+        return counts;
+    }
+
+    private record Rule(String name, BiPredicate<Resource, String> drops) {}
+}
@@ -12,9 +12,11 @@ import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
 import com.ozonehis.eip.odoo.openmrs.Constants;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.precreation.VisitDraftPreparer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
 import org.apache.camel.Processor;
@@ -22,12 +24,16 @@ import org.hl7.fhir.r4.model.Encounter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+@Slf4j
 @Component
 public class EncounterProcessor implements Processor {
 
     @Autowired
     private SaleOrderHandler saleOrderHandler;
 
+    @Autowired
+    private VisitDraftPreparer visitDraftPreparer;
+
     @Override
     public void process(Exchange exchange) {
         Message message = exchange.getMessage();
@@ -39,6 +45,10 @@ public class EncounterProcessor implements Processor {
                 Map<String, Object> headers = new HashMap<>();
                 // Check if Sale Order needs to be moved from `draft` state to `sale` state
                 // saleOrder.setOrderState("sale");
+                if (visitDraftPreparer.isUnused(saleOrder)) {
+                    log.debug("Cancelling unused draft sale order {} of closed visit", saleOrder.getOrderId());
+                    saleOrder.setOrderState("cancel");
+                }
                 headers.put(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, List.of(saleOrder.getOrderId()));
                 headers.put(HEADER_FHIR_EVENT_TYPE, "u");
 
@@ -48,6 +58,9 @@ public class EncounterProcessor implements Processor {
             } else {
                 exchange.setProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER, true);
             }
+        } else if (encounter != null && encounter.hasPartOf() && visitDraftPreparer.isEnabled()) {
+            visitDraftPreparer.prepare(encounter);
+            exchange.setProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER, true);
         } else {
             exchange.setProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER, true);
         }
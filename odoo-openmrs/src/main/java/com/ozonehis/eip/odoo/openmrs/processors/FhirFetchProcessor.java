@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.processors;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
+import com.ozonehis.eip.odoo.openmrs.fetch.FhirFetchBatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelExecutionException;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replaces the body with the bundle of the resource of the exchange and its included resources fetched from OpenMRS.
+ * The resource type is read from the {@link Constants#FHIR_RESOURCE_TYPE} exchange property, the id and the comma
+ * separated includes from the {@link Constants#HEADER_FHIR_RESOURCE_ID} and {@link Constants#HEADER_FHIR_INCLUDE}
+ * headers, so that the routes fetch every resource through the same step instead of resolving an endpoint per id.
+ * The fetch is left to the {@link FhirFetchBatcher} when batching is enabled, the order routes start it with
+ * {@link #start(Exchange)} before they dispatch the event to its lane. The includes cached by the
+ * {@link FhirResourceCache} are left out of the fetch and added to the bundle once revalidated, the revalidations run
+ * at the same time as the fetch.
+ */
+@Slf4j
+@Setter
+@Component
+public class FhirFetchProcessor implements Processor {
+
+    @Autowired
+    private IGenericClient openmrsFhirClient;
+
+    @Autowired
+    private FhirFetchBatcher fhirFetchBatcher;
+
+    @Autowired
+    private FhirResourceCache fhirResourceCache;
+
+    /**
+     * Starts the batched fetch of the event before it is dispatched to its lane, so that it is batched with the fetches
+     * of the events queued on the same lane. The first attempt to process the event takes the started fetch, its
+     * retries fetch again. Does nothing when batching is disabled.
+     *
+     * @param exchange the exchange of the event
+     */
+    public void start(Exchange exchange) {
+        if (!fhirFetchBatcher.isEnabled()) {
+            return;
+        }
+        String resourceType = exchange.getProperty(Constants.FHIR_RESOURCE_TYPE, String.class);
+        String id = exchange.getMessage().getHeader(Constants.HEADER_FHIR_RESOURCE_ID, String.class);
+        String includes = exchange.getMessage().getHeader(Constants.HEADER_FHIR_INCLUDE, String.class);
+        List<CompletableFuture<Resource>> cachedIncludes = new ArrayList<>();
+        includes = takeCachedIncludes(exchange, includes, cachedIncludes);
+        PendingFetch pendingFetch =
+                new PendingFetch(fhirFetchBatcher.start(resourceType, id, includes), cachedIncludes);
+        // Shared by the copies of the exchange made for each attempt
+        exchange.setProperty(Constants.EXCHANGE_PROPERTY_PENDING_FETCH, new AtomicReference<>(pendingFetch));
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+        String resourceType = exchange.getProperty(Constants.FHIR_RESOURCE_TYPE, String.class);
+        String id = exchange.getMessage().getHeader(Constants.HEADER_FHIR_RESOURCE_ID, String.class);
+        String includes = exchange.getMessage().getHeader(Constants.HEADER_FHIR_INCLUDE, String.class);
+        try {
+            PendingFetch pendingFetch = takePendingFetch(exchange);
+            Bundle bundle;
+            List<CompletableFuture<Resource>> cachedIncludes;
+            if (pendingFetch != null) {
+                bundle = pendingFetch.bundle().join();
+                cachedIncludes = pendingFetch.cachedIncludes();
+            } else {
+                cachedIncludes = new ArrayList<>();
+                includes = takeCachedIncludes(exchange, includes, cachedIncludes);
+                bundle = fhirFetchBatcher.isEnabled()
+                        ? fhirFetchBatcher.fetch(resourceType, id, includes)
+                        : search(resourceType, id, includes);
+            }
+            fhirResourceCache.putAll(bundle);
+            if (!bundle.getEntry().isEmpty()) {
+                cachedIncludes.forEach(included -> bundle.addEntry().setResource(included.join()));
+            }
+            log.debug(
+                    "FhirFetchProcessor: Fetched {} resources for {} {}",
+                    bundle.getEntry().size(),
+                    resourceType,
+                    id);
+            exchange.getMessage().setBody(bundle);
+        } catch (Exception e) {
+            throw new CamelExecutionException(
+                    String.format("Error fetching %s %s from OpenMRS", resourceType, id), exchange, e);
+        }
+    }
+
+    // A started fetch that failed is left for the retries to fetch again
+    @SuppressWarnings("unchecked")
+    private PendingFetch takePendingFetch(Exchange exchange) {
+        AtomicReference<PendingFetch> reference =
+                exchange.getProperty(Constants.EXCHANGE_PROPERTY_PENDING_FETCH, AtomicReference.class);
+        PendingFetch pendingFetch = reference == null ? null : reference.getAndSet(null);
+        if (pendingFetch == null) {
+            return null;
+        }
+        try {
+            pendingFetch.bundle().join();
+            return pendingFetch;
+        } catch (CompletionException e) {
+            log.debug("FhirFetchProcessor: The started fetch failed, fetching again: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts the revalidation of the includes cached by the {@link FhirResourceCache}.
+     *
+     * @return the includes left to fetch
+     */
+    private String takeCachedIncludes(
+            Exchange exchange, String includes, List<CompletableFuture<Resource>> cachedIncludes) {
+        if (!fhirResourceCache.isEnabled()
+                || includes == null
+                || !(exchange.getMessage().getBody() instanceof Resource resource)) {
+            return includes;
+        }
+        List<String> fetchedIncludes = new ArrayList<>();
+        for (String include : includes.split(",")) {
+            CompletableFuture<Resource> included = fhirResourceCache.getIncluded(resource, include.trim());
+            if (included != null) {
+                cachedIncludes.add(included);
+            } else {
+                fetchedIncludes.add(include.trim());
+            }
+        }
+        return String.join(",", fetchedIncludes);
+    }
+
+    private Bundle search(String resourceType, String id, String includes) {
+        IQuery<IBaseBundle> query = openmrsFhirClient
+                .search()
+                .forResource(resourceType)
+                .where(Resource.RES_ID.exactly().code(id));
+        if (includes != null && !includes.isBlank()) {
+            for (String include : includes.split(",")) {
+                query = query.include(new Include(include.trim()));
+            }
+        }
+        return query.returnBundle(Bundle.class).execute();
+    }
+
+    private record PendingFetch(CompletableFuture<Bundle> bundle, List<CompletableFuture<Resource>> cachedIncludes) {}
+}
@@ -7,10 +7,13 @@
  */
 package com.ozonehis.eip.odoo.openmrs.processors;
 
-import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.enrichment.EnrichedOrder;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.unitofwork.OdooUnitOfWork;
 import java.util.List;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -37,11 +40,15 @@ public class MedicationRequestProcessor implements Processor {
     private SaleOrderHandler saleOrderHandler;
 
     @Autowired
-    private PartnerHandler partnerHandler;
+    private OrderEnricher orderEnricher;
+
+    @Autowired
+    private VisitOrderAggregator visitOrderAggregator;
 
     @Override
     public void process(Exchange exchange) {
         try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            OdooUnitOfWork unitOfWork = OdooUnitOfWork.of(exchange);
             Bundle bundle = exchange.getMessage().getBody(Bundle.class);
             List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
 
@@ -74,18 +81,39 @@ public class MedicationRequestProcessor implements Processor {
                     throw new IllegalArgumentException("Event type not found in the exchange headers.");
                 }
                 String encounterVisitUuid = encounter.getPartOf().getReference().split("/")[1];
-                Partner partner = partnerHandler.createOrUpdatePartner(producerTemplate, patient);
-                if ("c".equals(eventType) || "u".equals(eventType)) {
-                    if (!medicationRequest.getStatus().equals(MedicationRequest.MedicationRequestStatus.CANCELLED)) {
-                        SaleOrder saleOrder = saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
-                        if (saleOrder != null) {
+                boolean isActive =
+                        !medicationRequest.getStatus().equals(MedicationRequest.MedicationRequestStatus.CANCELLED);
+                boolean isCreateOrUpdate = "c".equals(eventType) || "u".equals(eventType);
+                Patient bundlePatient = patient;
+                Encounter bundleEncounter = encounter;
+                EnrichedOrder enrichedOrder = orderEnricher.enrich(
+                        medicationRequest,
+                        patient.getIdPart(),
+                        () -> bundlePatient,
+                        () -> bundleEncounter,
+                        // The aggregator looks up the draft sale order itself when it writes the visit
+                        isCreateOrUpdate && isActive && !visitOrderAggregator.isEnabled(),
+                        producerTemplate);
+                Partner partner = enrichedOrder.partner();
+                if (isCreateOrUpdate) {
+                    if (isActive) {
+                        SaleOrder saleOrder = enrichedOrder.draftSaleOrder();
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.addLine(
+                                    medicationRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    exchange);
+                        } else if (saleOrder != null) {
                             saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
                                     medicationRequest,
                                     saleOrder,
                                     encounterVisitUuid,
                                     partner.getPartnerId(),
                                     patient.getIdPart(),
-                                    producerTemplate);
+                                    unitOfWork);
                         } else {
                             saleOrderHandler.createSaleOrderWithSaleOrderLine(
                                     medicationRequest,
@@ -97,16 +125,40 @@ public class MedicationRequestProcessor implements Processor {
                         }
                     } else {
                         // Executed when MODIFY option is selected in OpenMRS
-                        saleOrderHandler.deleteSaleOrderLine(medicationRequest, encounterVisitUuid, producerTemplate);
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.removeLine(
+                                    medicationRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    false,
+                                    exchange);
+                        } else {
+                            saleOrderHandler.deleteSaleOrderLineOfRevisedOrder(
+                                    medicationRequest, encounterVisitUuid, unitOfWork);
+                        }
                     }
                 } else if ("d".equals(eventType)) {
                     // Executed when DISCONTINUE option is selected in OpenMRS
-                    saleOrderHandler.deleteSaleOrderLine(medicationRequest, encounterVisitUuid, producerTemplate);
-                    saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
-                            partner.getPartnerId(), encounterVisitUuid, producerTemplate);
+                    if (visitOrderAggregator.isEnabled()) {
+                        visitOrderAggregator.removeLine(
+                                medicationRequest,
+                                encounter,
+                                partner,
+                                encounterVisitUuid,
+                                patient.getIdPart(),
+                                true,
+                                exchange);
+                    } else {
+                        saleOrderHandler.deleteSaleOrderLine(medicationRequest, encounterVisitUuid, unitOfWork);
+                        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
+                                partner.getPartnerId(), encounterVisitUuid, unitOfWork);
+                    }
                 } else {
                     throw new IllegalArgumentException("Unsupported event type: " + eventType);
                 }
+                saleOrderHandler.flush(unitOfWork, producerTemplate);
             }
         } catch (Exception e) {
             throw new CamelExecutionException("Error processing MedicationRequest", exchange, e);
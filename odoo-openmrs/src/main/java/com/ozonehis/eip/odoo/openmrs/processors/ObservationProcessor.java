@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.processors;
+
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelExecutionException;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Observation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Setter
+@Component
+public class ObservationProcessor implements Processor {
+
+    @Autowired
+    private PatientWeightCache patientWeightCache;
+
+    @Autowired
+    private SaleOrderHandler saleOrderHandler;
+
+    @Override
+    public void process(Exchange exchange) {
+        try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            Observation observation = exchange.getMessage().getBody(Observation.class);
+            if (!patientWeightCache.isWeightObservation(observation)) {
+                return;
+            }
+
+            String eventType = exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class);
+            if ("d".equals(eventType)) {
+                // The voided weight may be the latest one, the next lookup reloads it
+                patientWeightCache.invalidate(observation);
+            } else if (patientWeightCache.update(observation)) {
+                String patientID = patientWeightCache.getPatientID(observation);
+                log.debug("Processing weight Observation for Patient with UUID {}", patientID);
+                saleOrderHandler.updateDraftSaleOrdersWithPatientWeight(
+                        patientID, patientWeightCache.getWeight(patientID), producerTemplate);
+            }
+        } catch (Exception e) {
+            throw new CamelExecutionException("Error processing Observation", exchange, e);
+        }
+    }
+}
@@ -59,6 +59,7 @@ public class PatientProcessor implements Processor {
                     headers.put(HEADER_FHIR_EVENT_TYPE, "u");
                 } else {
                     headers.put(HEADER_FHIR_EVENT_TYPE, "d");
+                    partnerHandler.invalidatePartner(partner.getPartnerRef());
                 }
                 exchange.getMessage().setHeaders(headers);
             }
@@ -7,12 +7,15 @@
  */
 package com.ozonehis.eip.odoo.openmrs.processors;
 
-import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.enrichment.EnrichedOrder;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.EncounterHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.PatientHandler;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.unitofwork.OdooUnitOfWork;
 import java.util.List;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -38,7 +41,10 @@ public class ServiceRequestProcessor implements Processor {
     private SaleOrderHandler saleOrderHandler;
 
     @Autowired
-    private PartnerHandler partnerHandler;
+    private OrderEnricher orderEnricher;
+
+    @Autowired
+    private VisitOrderAggregator visitOrderAggregator;
 
     @Autowired
     private PatientHandler patientHandler;
@@ -49,6 +55,7 @@ public class ServiceRequestProcessor implements Processor {
     @Override
     public void process(Exchange exchange) {
         try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            OdooUnitOfWork unitOfWork = OdooUnitOfWork.of(exchange);
             Bundle bundle = exchange.getMessage().getBody(Bundle.class);
             List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
 
@@ -69,37 +76,60 @@ public class ServiceRequestProcessor implements Processor {
             if (serviceRequest == null) {
                 throw new CamelExecutionException("Invalid Bundle. Bundle must contain ServiceRequest", exchange);
             }
-            if (patient == null) {
-                patient = patientHandler.getPatientByPatientID(
-                        serviceRequest.getSubject().getReference().split("/")[1]);
-            }
-            if (encounter == null) {
-                encounter = encounterHandler.getEncounterByEncounterID(
-                        serviceRequest.getEncounter().getReference().split("/")[1]);
+            String eventType = exchange.getMessage().getHeader(Constants.HEADER_FHIR_EVENT_TYPE, String.class);
+            if (eventType == null) {
+                throw new IllegalArgumentException("Event type not found in the exchange headers.");
             }
+            boolean isActive = serviceRequest.getStatus().equals(ServiceRequest.ServiceRequestStatus.ACTIVE)
+                    && serviceRequest.getIntent().equals(ServiceRequest.ServiceRequestIntent.ORDER);
+            boolean isCreateOrUpdate = "c".equals(eventType) || "u".equals(eventType);
+            Patient bundlePatient = patient;
+            Encounter bundleEncounter = encounter;
+            String encounterID = encounter != null
+                    ? encounter.getIdPart()
+                    : serviceRequest.getEncounter().getReference().split("/")[1];
+            String patientID = patient != null
+                    ? patient.getIdPart()
+                    : serviceRequest.getSubject().getReference().split("/")[1];
+            // The patient and the encounter are fetched concurrently with the other lookups when not in the bundle
+            EnrichedOrder enrichedOrder = orderEnricher.enrich(
+                    serviceRequest,
+                    patientID,
+                    () -> bundlePatient != null ? bundlePatient : patientHandler.getPatientByPatientID(patientID),
+                    () -> bundleEncounter != null
+                            ? bundleEncounter
+                            : encounterHandler.getEncounterByEncounterID(encounterID),
+                    // The aggregator looks up the draft sale order itself when it writes the visit
+                    isCreateOrUpdate && isActive && !visitOrderAggregator.isEnabled(),
+                    producerTemplate);
+            patient = enrichedOrder.patient();
+            encounter = enrichedOrder.encounter();
             if (patient == null || encounter == null) {
                 throw new CamelExecutionException(
                         "Invalid Bundle. Bundle must contain Patient and Encounter", exchange);
             } else {
                 log.debug("Processing ServiceRequest for Patient with UUID {}", patient.getIdPart());
-                String eventType = exchange.getMessage().getHeader(Constants.HEADER_FHIR_EVENT_TYPE, String.class);
-                if (eventType == null) {
-                    throw new IllegalArgumentException("Event type not found in the exchange headers.");
-                }
                 String encounterVisitUuid = encounter.getPartOf().getReference().split("/")[1];
-                Partner partner = partnerHandler.createOrUpdatePartner(producerTemplate, patient);
-                if ("c".equals(eventType) || "u".equals(eventType)) {
-                    if (serviceRequest.getStatus().equals(ServiceRequest.ServiceRequestStatus.ACTIVE)
-                            && serviceRequest.getIntent().equals(ServiceRequest.ServiceRequestIntent.ORDER)) {
-                        SaleOrder saleOrder = saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
-                        if (saleOrder != null) {
+                Partner partner = enrichedOrder.partner();
+                if (isCreateOrUpdate) {
+                    if (isActive) {
+                        SaleOrder saleOrder = enrichedOrder.draftSaleOrder();
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.addLine(
+                                    serviceRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    exchange);
+                        } else if (saleOrder != null) {
                             saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
                                     serviceRequest,
                                     saleOrder,
                                     encounterVisitUuid,
                                     partner.getPartnerId(),
                                     patient.getIdPart(),
-                                    producerTemplate);
+                                    unitOfWork);
                         } else {
                             saleOrderHandler.createSaleOrderWithSaleOrderLine(
                                     serviceRequest,
@@ -111,16 +141,40 @@ public class ServiceRequestProcessor implements Processor {
                         }
                     } else {
                         // Executed when MODIFY option is selected in OpenMRS
-                        saleOrderHandler.deleteSaleOrderLine(serviceRequest, encounterVisitUuid, producerTemplate);
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.removeLine(
+                                    serviceRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    false,
+                                    exchange);
+                        } else {
+                            saleOrderHandler.deleteSaleOrderLineOfRevisedOrder(
+                                    serviceRequest, encounterVisitUuid, unitOfWork);
+                        }
                     }
                 } else if ("d".equals(eventType)) {
                     // Executed when DISCONTINUE option is selected in OpenMRS
-                    saleOrderHandler.deleteSaleOrderLine(serviceRequest, encounterVisitUuid, producerTemplate);
-                    saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
-                            partner.getPartnerId(), encounterVisitUuid, producerTemplate);
+                    if (visitOrderAggregator.isEnabled()) {
+                        visitOrderAggregator.removeLine(
+                                serviceRequest,
+                                encounter,
+                                partner,
+                                encounterVisitUuid,
+                                patient.getIdPart(),
+                                true,
+                                exchange);
+                    } else {
+                        saleOrderHandler.deleteSaleOrderLine(serviceRequest, encounterVisitUuid, unitOfWork);
+                        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
+                                partner.getPartnerId(), encounterVisitUuid, unitOfWork);
+                    }
                 } else {
                     throw new IllegalArgumentException("Unsupported event type: " + eventType);
                 }
+                saleOrderHandler.flush(unitOfWork, producerTemplate);
             }
         } catch (Exception e) {
             throw new CamelExecutionException("Error processing ServiceRequest", exchange, e);
@@ -7,12 +7,15 @@
  */
 package com.ozonehis.eip.odoo.openmrs.processors;
 
-import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.enrichment.EnrichedOrder;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.EncounterHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.PatientHandler;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.unitofwork.OdooUnitOfWork;
 import java.util.List;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -38,7 +41,10 @@ public class SupplyRequestProcessor implements Processor {
     private SaleOrderHandler saleOrderHandler;
 
     @Autowired
-    private PartnerHandler partnerHandler;
+    private OrderEnricher orderEnricher;
+
+    @Autowired
+    private VisitOrderAggregator visitOrderAggregator;
 
     @Autowired
     private PatientHandler patientHandler;
@@ -49,6 +55,7 @@ public class SupplyRequestProcessor implements Processor {
     @Override
     public void process(Exchange exchange) {
         try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            OdooUnitOfWork unitOfWork = OdooUnitOfWork.of(exchange);
             Bundle bundle = exchange.getMessage().getBody(Bundle.class);
             List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
 
@@ -70,36 +77,59 @@ public class SupplyRequestProcessor implements Processor {
                 throw new CamelExecutionException("Invalid Bundle. Bundle must contain SupplyRequest", exchange);
             }
             log.info("Processing SupplyRequest for Patient with UUID {}", supplyRequest.getId());
-            if (patient == null) {
-                patient = patientHandler.getPatientByPatientID(
-                        supplyRequest.getDeliverTo().getReference().split("/")[1]);
-            }
-            if (encounter == null) {
-                encounter = encounterHandler.getEncounterByEncounterID(
-                        supplyRequest.getReasonReference().get(0).getReference().split("/")[1]);
+            String eventType = exchange.getMessage().getHeader(Constants.HEADER_FHIR_EVENT_TYPE, String.class);
+            if (eventType == null) {
+                throw new IllegalArgumentException("Event type not found in the exchange headers.");
             }
+            boolean isActive = supplyRequest.getStatus().equals(SupplyRequest.SupplyRequestStatus.ACTIVE);
+            boolean isCreateOrUpdate = "c".equals(eventType) || "u".equals(eventType);
+            Patient bundlePatient = patient;
+            Encounter bundleEncounter = encounter;
+            String encounterID = encounter != null
+                    ? encounter.getIdPart()
+                    : supplyRequest.getReasonReference().get(0).getReference().split("/")[1];
+            String patientID = patient != null
+                    ? patient.getIdPart()
+                    : supplyRequest.getDeliverTo().getReference().split("/")[1];
+            // The patient and the encounter are fetched concurrently with the other lookups when not in the bundle
+            EnrichedOrder enrichedOrder = orderEnricher.enrich(
+                    supplyRequest,
+                    patientID,
+                    () -> bundlePatient != null ? bundlePatient : patientHandler.getPatientByPatientID(patientID),
+                    () -> bundleEncounter != null
+                            ? bundleEncounter
+                            : encounterHandler.getEncounterByEncounterID(encounterID),
+                    // The aggregator looks up the draft sale order itself when it writes the visit
+                    isCreateOrUpdate && isActive && !visitOrderAggregator.isEnabled(),
+                    producerTemplate);
+            patient = enrichedOrder.patient();
+            encounter = enrichedOrder.encounter();
             if (patient == null || encounter == null) {
                 throw new CamelExecutionException(
                         "Invalid Bundle. Bundle must contain Patient and Encounter", exchange);
             } else {
                 log.debug("Processing SupplyRequest for Patient with UUID {}", patient.getIdPart());
-                String eventType = exchange.getMessage().getHeader(Constants.HEADER_FHIR_EVENT_TYPE, String.class);
-                if (eventType == null) {
-                    throw new IllegalArgumentException("Event type not found in the exchange headers.");
-                }
                 String encounterVisitUuid = encounter.getPartOf().getReference().split("/")[1];
-                Partner partner = partnerHandler.createOrUpdatePartner(producerTemplate, patient);
-                if ("c".equals(eventType) || "u".equals(eventType)) {
-                    if (supplyRequest.getStatus().equals(SupplyRequest.SupplyRequestStatus.ACTIVE)) {
-                        SaleOrder saleOrder = saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(encounterVisitUuid);
-                        if (saleOrder != null) {
+                Partner partner = enrichedOrder.partner();
+                if (isCreateOrUpdate) {
+                    if (isActive) {
+                        SaleOrder saleOrder = enrichedOrder.draftSaleOrder();
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.addLine(
+                                    supplyRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    exchange);
+                        } else if (saleOrder != null) {
                             saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
                                     supplyRequest,
                                     saleOrder,
                                     encounterVisitUuid,
                                     partner.getPartnerId(),
                                     patient.getIdPart(),
-                                    producerTemplate);
+                                    unitOfWork);
                         } else {
                             saleOrderHandler.createSaleOrderWithSaleOrderLine(
                                     supplyRequest,
@@ -111,16 +141,40 @@ public class SupplyRequestProcessor implements Processor {
                         }
                     } else {
                         // Executed when MODIFY option is selected in OpenMRS
-                        saleOrderHandler.deleteSaleOrderLine(supplyRequest, encounterVisitUuid, producerTemplate);
+                        if (visitOrderAggregator.isEnabled()) {
+                            visitOrderAggregator.removeLine(
+                                    supplyRequest,
+                                    encounter,
+                                    partner,
+                                    encounterVisitUuid,
+                                    patient.getIdPart(),
+                                    false,
+                                    exchange);
+                        } else {
+                            saleOrderHandler.deleteSaleOrderLineOfRevisedOrder(
+                                    supplyRequest, encounterVisitUuid, unitOfWork);
+                        }
                     }
                 } else if ("d".equals(eventType)) {
                     // Executed when DISCONTINUE option is selected in OpenMRS
-                    saleOrderHandler.deleteSaleOrderLine(supplyRequest, encounterVisitUuid, producerTemplate);
-                    saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
-                            partner.getPartnerId(), encounterVisitUuid, producerTemplate);
+                    if (visitOrderAggregator.isEnabled()) {
+                        visitOrderAggregator.removeLine(
+                                supplyRequest,
+                                encounter,
+                                partner,
+                                encounterVisitUuid,
+                                patient.getIdPart(),
+                                true,
+                                exchange);
+                    } else {
+                        saleOrderHandler.deleteSaleOrderLine(supplyRequest, encounterVisitUuid, unitOfWork);
+                        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(
+                                partner.getPartnerId(), encounterVisitUuid, unitOfWork);
+                    }
                 } else {
                     throw new IllegalArgumentException("Unsupported event type: " + eventType);
                 }
+                saleOrderHandler.flush(unitOfWork, producerTemplate);
             }
         } catch (Exception e) {
             throw new CamelExecutionException("Error processing SupplyRequest", exchange, e);
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.reconciliation;
+
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderBatch;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.EncounterHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Derives the sale order lines of a visit from the current state of its medication and service requests instead of
+ * from the events that changed them, so the draft sale order of the visit ends up in line with the orders whatever the
+ * order in which the events arrived or how many of them were collapsed. Supply requests cannot be searched by visit,
+ * the line changes collected for them in the batch are applied on top of the state of the other orders.
+ */
+@Slf4j
+@Setter
+@Component
+public class VisitOrderReconciler {
+
+    @Autowired
+    private EncounterHandler encounterHandler;
+
+    @Autowired
+    private ProductHandler productHandler;
+
+    @Autowired
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Autowired
+    private SaleOrderHandler saleOrderHandler;
+
+    public void reconcile(VisitOrderBatch batch, ProducerTemplate producerTemplate) {
+        List<Resource> orders = encounterHandler.getOrdersByVisitID(batch.getVisitUuid());
+        Map<Integer, SaleOrderLine> activeLines = new LinkedHashMap<>();
+        Set<Integer> orderedProducts = new HashSet<>();
+        for (Resource order : orders) {
+            Product product = productHandler.getProduct(order);
+            if (product == null) {
+                log.debug("VisitOrderReconciler: No product found for order {}", order.getIdPart());
+                continue;
+            }
+            orderedProducts.add(product.getProductResId());
+            if (isActive(order)) {
+                activeLines.put(product.getProductResId(), saleOrderLineHandler.buildSaleOrderLine(order, product));
+            }
+        }
+        batch.getLinesByProduct().forEach((productId, saleOrderLine) -> {
+            orderedProducts.add(productId);
+            if (saleOrderLine != null) {
+                activeLines.putIfAbsent(productId, saleOrderLine);
+            }
+        });
+        log.debug(
+                "VisitOrderReconciler: Reconciling {} active orders of {} ordered products of visit {}",
+                activeLines.size(),
+                orderedProducts.size(),
+                batch.getVisitUuid());
+        saleOrderHandler.writeVisitOrderState(batch, activeLines, orderedProducts, producerTemplate);
+    }
+
+    /**
+     * @return whether the sale order line of an order is derived from the state of the orders of its visit
+     */
+    public static boolean isReconciled(Resource order) {
+        return order instanceof MedicationRequest || order instanceof ServiceRequest;
+    }
+
+    static boolean isActive(Resource order) {
+        if (order instanceof MedicationRequest medicationRequest) {
+            MedicationRequest.MedicationRequestStatus status = medicationRequest.getStatus();
+            return status != MedicationRequest.MedicationRequestStatus.CANCELLED
+                    && status != MedicationRequest.MedicationRequestStatus.STOPPED
+                    && status != MedicationRequest.MedicationRequestStatus.ENTEREDINERROR;
+        } else if (order instanceof ServiceRequest serviceRequest) {
+            return serviceRequest.getStatus() == ServiceRequest.ServiceRequestStatus.ACTIVE
+                    && serviceRequest.getIntent() == ServiceRequest.ServiceRequestIntent.ORDER;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.retry;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Retries an event that failed with a transient error, i.e. Odoo could not be reached, answered with an HTTP error or
+ * hit a concurrent update, a few times with an exponential backoff before its failure reaches the db event retry queue,
+ * so that a short Odoo blip delays the event by seconds instead of a retry interval. The retries of an event stop after
+ * {@code odoo.openmrs.fast-retry.max-attempts} attempts or once its next attempt would start after its retry budget.
+ * The events are retried on their lane by the {@link com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes}, which
+ * sets the partition of a retried event aside until its next attempt instead of sleeping.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Retry,name=FastRetry",
+        description = "In process retries of the Odoo OpenMRS integration")
+public class FastRetry {
+
+    @Value("${odoo.openmrs.fast-retry.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.fast-retry.max-attempts:4}")
+    private int maxAttempts;
+
+    @Value("${odoo.openmrs.fast-retry.initial-delay:500}")
+    private long initialDelay;
+
+    @Value("${odoo.openmrs.fast-retry.multiplier:2}")
+    private double multiplier;
+
+    @Value("${odoo.openmrs.fast-retry.budget:10000}")
+    private long budget;
+
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    private final AtomicLong recoveredCount = new AtomicLong();
+
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    /**
+     * @param eventId the id of the failed event
+     * @param failure the failure of the last attempt of the event
+     * @param attempts the number of attempts of the event so far
+     * @param elapsed the time in milliseconds since the first attempt of the event
+     * @return the delay in milliseconds before the next attempt of the event or -1 if it is not retried
+     */
+    public long getRetryDelay(String eventId, Exception failure, int attempts, long elapsed) {
+        if (!enabled || !isTransient(failure)) {
+            return -1;
+        }
+        long delay = (long) (initialDelay * Math.pow(multiplier, attempts - 1));
+        if (attempts >= maxAttempts || elapsed + delay > budget) {
+            exhaustedCount.incrementAndGet();
+            log.warn("FastRetry: Giving up event {} after {} attempts", eventId, attempts);
+            return -1;
+        }
+        retriedCount.incrementAndGet();
+        log.debug(
+                "FastRetry: Retrying event {} in {} ms after transient error: {}",
+                eventId,
+                delay,
+                failure.getMessage());
+        return delay;
+    }
+
+    /**
+     * Records an event processed after it was retried.
+     */
+    public void recovered() {
+        recoveredCount.incrementAndGet();
+    }
+
+    static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException
+                    || cause instanceof XmlRpcClientException
+                    || cause instanceof XmlRpcHttpTransportException) {
+                return true;
+            }
+            if (cause.getMessage() != null && cause.getMessage().contains("could not serialize access")) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    @ManagedAttribute(description = "The number of retries of events that failed with a transient error since startup")
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of events processed after a retry since startup")
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of events left to the retry queue after their last retry since startup")
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands the events that fail after their caller returned over to the db event retry queue, e.g. an event that failed on
+ * a lane the caller did not wait for. The failed exchange is sent to {@code odoo.openmrs.retry-queue.uri}, the error
+ * handler route of the db event watcher, with its failure as the caught exception like the error handler of the caller
+ * would do, so that the db event it carries is retried by the retry route.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Retry,name=RetryQueue",
+        description = "Events of the Odoo OpenMRS integration handed over to the db event retry queue")
+public class RetryQueue {
+
+    @Value("${odoo.openmrs.retry-queue.uri:direct:watcher-error-handler}")
+    private String uri;
+
+    private final AtomicLong addedCount = new AtomicLong();
+
+    private final AtomicLong lostCount = new AtomicLong();
+
+    /**
+     * @param exchange the exchange of the failed event, it is copied
+     * @param failure the failure of the event
+     */
+    public void add(Exchange exchange, Exception failure) {
+        Exchange failed = exchange.copy();
+        failed.setException(null);
+        failed.setProperty(Exchange.EXCEPTION_CAUGHT, failure);
+        try (ProducerTemplate producerTemplate = exchange.getContext().createProducerTemplate()) {
+            producerTemplate.send(uri, failed);
+        } catch (Exception e) {
+            failed.setException(e);
+        }
+        if (failed.getException() != null) {
+            lostCount.incrementAndGet();
+            log.error(
+                    "RetryQueue: Failed to add event {} to the retry queue, it is lost. The event failed with: {}",
+                    exchange.getExchangeId(),
+                    failure.getMessage(),
+                    failed.getException());
+            return;
+        }
+        addedCount.incrementAndGet();
+        log.warn(
+                "RetryQueue: Added event {} to the retry queue after it failed with: {}",
+                exchange.getExchangeId(),
+                failure.getMessage());
+    }
+
+    @ManagedAttribute(description = "The number of failed events added to the retry queue since startup")
+    public long getAddedCount() {
+        return addedCount.get();
+    }
+
+    @ManagedAttribute(description = "The number of failed events that could not be added to the retry queue")
+    public long getLostCount() {
+        return lostCount.get();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import com.ozonehis.eip.odoo.openmrs.cache.CacheSnapshotService;
+import lombok.Setter;
+import org.apache.camel.builder.RouteBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Setter
+@Component
+public class CacheSnapshotRouting extends RouteBuilder {
+
+    @Value("${odoo.openmrs.cache.snapshot.enabled:false}")
+    private boolean isSnapshotEnabled;
+
+    @Value("${odoo.openmrs.cache.snapshot.interval:300000}")
+    private long snapshotInterval;
+
+    @Autowired
+    private CacheSnapshotService cacheSnapshotService;
+
+    @Override
+    public void configure() {
+        // spotless:off
+        from("timer:lookup-cache-snapshot?delay=" + snapshotInterval + "&period=" + snapshotInterval)
+                .routeId("lookup-cache-snapshot")
+                .autoStartup(isSnapshotEnabled)
+                .process(exchange -> cacheSnapshotService.save())
+                .end();
+        // spotless:on
+    }
+}
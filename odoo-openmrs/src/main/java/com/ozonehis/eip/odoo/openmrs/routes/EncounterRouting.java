@@ -8,7 +8,10 @@
 package com.ozonehis.eip.odoo.openmrs.routes;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
 import com.ozonehis.eip.odoo.openmrs.processors.EncounterProcessor;
+import com.ozonehis.eip.odoo.openmrs.shedding.LoadShedder;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
 import org.hl7.fhir.r4.model.Encounter;
@@ -21,6 +24,15 @@ public class EncounterRouting extends RouteBuilder {
     @Autowired
     private EncounterProcessor encounterProcessor;
 
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @Autowired
+    private LoadShedder loadShedder;
+
     @Override
     public void configure() throws Exception {
         // spotless:off
@@ -34,13 +46,18 @@ public class EncounterRouting extends RouteBuilder {
                 .log(LoggingLevel.INFO, "Processing Encounter")
                 .to("direct:odoo-update-sale-order-route")
                 .end()
+                .process(appliedVersionFilter::markApplied)
                 .end();
 
         from("direct:fhir-encounter")
                 .routeId("fhir-encounter-to-sale-order-router")
                 .filter(body().isNotNull())
                 .filter(exchange -> exchange.getMessage().getBody() instanceof Encounter)
-                .to("direct:encounter-to-sale-order-router")
+                .filter(appliedVersionFilter::isNotApplied)
+                .process(loadShedder.shed(LoadShedder.ENCOUNTER_EVENTS))
+                .process(partitionedLanes.dispatchTo(
+                        PartitionedLanes.DOMAIN_ENCOUNTER,
+                        "direct:encounter-to-sale-order-router", PartitionedLanes::getPatientUuid))
                 .end();
         // spotless:on
     }
@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import lombok.Setter;
+import org.apache.camel.builder.RouteBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Setter
+@Component
+public class KnownRefsFilterRouting extends RouteBuilder {
+
+    @Value("${odoo.openmrs.ref-filter.enabled:false}")
+    private boolean isRefFilterEnabled;
+
+    @Value("${odoo.openmrs.ref-filter.refresh-interval:60000}")
+    private long refreshInterval;
+
+    @Autowired
+    private KnownRefsFilter knownRefsFilter;
+
+    @Override
+    public void configure() {
+        // spotless:off
+        from("timer:known-refs-filter?delay=0&period=" + refreshInterval)
+                .routeId("known-refs-filter-refresh")
+                .autoStartup(isRefFilterEnabled)
+                .process(exchange -> knownRefsFilter.refresh())
+                .end();
+        // spotless:on
+    }
+}
@@ -8,6 +8,10 @@
 package com.ozonehis.eip.odoo.openmrs.routes;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.prefilter.OrderEventPreFilter;
+import com.ozonehis.eip.odoo.openmrs.processors.FhirFetchProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.MedicationRequestProcessor;
 import lombok.Setter;
 import org.apache.camel.LoggingLevel;
@@ -20,14 +24,24 @@ import org.springframework.stereotype.Component;
 @Component
 public class MedicationRequestRouting extends RouteBuilder {
 
-    private static final String MEDICATION_REQUEST_ID = "medication.request.id";
-
     private static final String MEDICATION_REQUEST_INCLUDE_PARAMS =
             "MedicationRequest:encounter,MedicationRequest:medication,MedicationRequest:patient";
 
     @Autowired
     private MedicationRequestProcessor medicationRequestProcessor;
 
+    @Autowired
+    private FhirFetchProcessor fhirFetchProcessor;
+
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private OrderEventPreFilter orderEventPreFilter;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
     @Override
     public void configure() {
         // spotless:off
@@ -35,23 +49,30 @@ public class MedicationRequestRouting extends RouteBuilder {
                 .routeId("medication-request-to-sale-order-router")
                 .filter(body().isNotNull())
                 .filter(exchange -> exchange.getMessage().getBody() instanceof MedicationRequest)
+                .filter(orderEventPreFilter::isRelevant)
+                .filter(appliedVersionFilter::isNotApplied)
                 .process(exchange -> {
                     MedicationRequest medicationRequest = exchange.getMessage().getBody(MedicationRequest.class);
                     exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, medicationRequest.fhirType());
-                    exchange.setProperty(
-                            MEDICATION_REQUEST_ID,
+                    exchange.getMessage().setHeader(
+                            Constants.HEADER_FHIR_RESOURCE_ID,
                             medicationRequest.getIdElement().getIdPart());
-                    exchange.getMessage().setBody(medicationRequest);
+                    exchange.getMessage().setHeader(Constants.HEADER_FHIR_INCLUDE, MEDICATION_REQUEST_INCLUDE_PARAMS);
                 })
-                .toD("openmrs-fhir://?id=${exchangeProperty." + MEDICATION_REQUEST_ID + "}&resource=${exchangeProperty."
-                        + Constants.FHIR_RESOURCE_TYPE + "}&include=" + MEDICATION_REQUEST_INCLUDE_PARAMS)
-                .to("direct:medication-request-to-sale-order-processor")
+                // Started before the dispatch so that the fetches of the events queued on the same lane are batched
+                .process(fhirFetchProcessor::start)
+                .process(partitionedLanes.dispatchTo(
+                        PartitionedLanes.DOMAIN_ORDER,
+                        "direct:medication-request-to-sale-order-processor", PartitionedLanes::getPatientUuid))
                 .end();
 
         from("direct:medication-request-to-sale-order-processor")
                 .routeId("medication-request-to-sale-order-processor")
+                // Takes the fetch started by the router
+                .process(fhirFetchProcessor)
                 .log(LoggingLevel.INFO, "Processing MedicationRequest")
                 .process(medicationRequestProcessor)
+                .process(appliedVersionFilter::markApplied)
                 .end();
         // spotless:on
     }
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.processors.ObservationProcessor;
+import com.ozonehis.eip.odoo.openmrs.shedding.LoadShedder;
+import lombok.Setter;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.hl7.fhir.r4.model.Observation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Setter
+@Component
+public class ObservationRouting extends RouteBuilder {
+
+    @Autowired
+    private ObservationProcessor observationProcessor;
+
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @Autowired
+    private LoadShedder loadShedder;
+
+    @Override
+    public void configure() {
+        // spotless:off
+        from("direct:fhir-observation")
+                .routeId("fhir-observation-to-patient-weight-router")
+                .filter(body().isNotNull())
+                .filter(exchange -> exchange.getMessage().getBody() instanceof Observation)
+                .filter(appliedVersionFilter::isNotApplied)
+                .process(loadShedder.shed(LoadShedder.OBSERVATION_EVENTS))
+                .process(partitionedLanes.dispatchTo(
+                        "direct:observation-to-patient-weight-processor", PartitionedLanes::getPatientUuid))
+                .end();
+
+        from("direct:observation-to-patient-weight-processor")
+                .routeId("observation-to-patient-weight-processor")
+                .log(LoggingLevel.DEBUG, "Processing Observation")
+                .process(observationProcessor)
+                .process(appliedVersionFilter::markApplied)
+                .end();
+        // spotless:on
+    }
+}
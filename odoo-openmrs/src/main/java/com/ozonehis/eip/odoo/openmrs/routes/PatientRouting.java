@@ -10,7 +10,11 @@ package com.ozonehis.eip.odoo.openmrs.routes;
 import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.debounce.PatientUpdateDebouncer;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
 import com.ozonehis.eip.odoo.openmrs.processors.PatientProcessor;
+import com.ozonehis.eip.odoo.openmrs.shedding.LoadShedder;
 import lombok.Setter;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.Predicate;
@@ -30,6 +34,18 @@ public class PatientRouting extends RouteBuilder {
     @Autowired
     private PatientProcessor patientProcessor;
 
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @Autowired
+    private LoadShedder loadShedder;
+
+    @Autowired
+    private PatientUpdateDebouncer patientUpdateDebouncer;
+
     Predicate isPatientSyncEnabled() {
         return exchange -> isPatientSyncEnabled
                 || Boolean.TRUE.equals(exchange.getIn().getHeader(Constants.HEADER_ENABLE_PATIENT_SYNC, Boolean.class));
@@ -41,7 +57,6 @@ public class PatientRouting extends RouteBuilder {
         from("direct:patient-to-partner-router")
                 .routeId("patient-to-partner-router")
                 .filter(exchange -> exchange.getMessage().getBody() instanceof Patient)
-                .filter(isPatientSyncEnabled())
                 .log(LoggingLevel.INFO, "Processing Patient")
                 .process(patientProcessor)
                 .choice()
@@ -54,11 +69,19 @@ public class PatientRouting extends RouteBuilder {
                 .when(header(HEADER_FHIR_EVENT_TYPE).isEqualTo("d"))
                 .toD("direct:odoo-delete-partner-route")
                 .endChoice()
+                .end()
+                .process(appliedVersionFilter::markApplied)
                 .end();
 
         from("direct:fhir-patient")
                 .routeId("fhir-patient-to-partner-router")
-                .to("direct:patient-to-partner-router")
+                // Dropped before they are shed, held or queued when they are not synced
+                .filter(isPatientSyncEnabled())
+                .filter(appliedVersionFilter::isNotApplied)
+                .process(loadShedder.shed(LoadShedder.PATIENT_EVENTS))
+                .process(patientUpdateDebouncer.debounce(partitionedLanes.dispatchTo(
+                        PartitionedLanes.DOMAIN_PATIENT,
+                        "direct:patient-to-partner-router", PartitionedLanes::getPatientUuid)))
                 .end();
         // spotless:on
     }
@@ -8,6 +8,8 @@
 package com.ozonehis.eip.odoo.openmrs.routes;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
 import com.ozonehis.eip.odoo.openmrs.processors.ServiceRequestProcessor;
 import lombok.Setter;
 import org.apache.camel.LoggingLevel;
@@ -26,12 +28,19 @@ public class ProcedureRouting extends RouteBuilder {
     @Autowired
     private ServiceRequestProcessor serviceRequestProcessor;
 
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
     @Override
     public void configure() {
         // spotless:off
         from("direct:fhir-procedure")
                 .routeId("procedure-to-sale-order-router")
                 .filter(body().isNotNull())
+                .filter(appliedVersionFilter::isNotApplied)
                 .process(exchange -> {
                     ServiceRequest serviceRequest = exchange.getMessage().getBody(ServiceRequest.class);
                     exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, serviceRequest.fhirType());
@@ -41,13 +50,16 @@ public class ProcedureRouting extends RouteBuilder {
                     bundle.addEntry().setResource(serviceRequest);
                     exchange.getMessage().setBody(bundle);
                 })
-                .to("direct:procedure-to-sale-order-processor")
+                .process(partitionedLanes.dispatchTo(
+                        PartitionedLanes.DOMAIN_ORDER,
+                        "direct:procedure-to-sale-order-processor", PartitionedLanes::getPatientUuid))
                 .end();
 
         from("direct:procedure-to-sale-order-processor")
                 .routeId("procedure-to-sale-order-processor")
                 .process(serviceRequestProcessor)
                 .log(LoggingLevel.INFO, "Processing Procedure")
+                .process(appliedVersionFilter::markApplied)
                 .end();
         // spotless:on
     }
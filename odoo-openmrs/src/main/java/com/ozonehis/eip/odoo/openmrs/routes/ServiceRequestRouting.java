@@ -8,6 +8,10 @@
 package com.ozonehis.eip.odoo.openmrs.routes;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.prefilter.OrderEventPreFilter;
+import com.ozonehis.eip.odoo.openmrs.processors.FhirFetchProcessor;
 import com.ozonehis.eip.odoo.openmrs.processors.ServiceRequestProcessor;
 import lombok.Setter;
 import org.apache.camel.LoggingLevel;
@@ -20,17 +24,23 @@ import org.springframework.stereotype.Component;
 @Component
 public class ServiceRequestRouting extends RouteBuilder {
 
-    private static final String SERVICE_REQUEST_ID = "service.request.id";
-
     private static final String SERVICE_REQUEST_INCLUDE_PARAMS = "ServiceRequest:encounter,ServiceRequest:patient";
 
-    private static final String SEARCH_PARAMS =
-            "id=${exchangeProperty." + SERVICE_REQUEST_ID + "}&resource=${exchangeProperty."
-                    + Constants.FHIR_RESOURCE_TYPE + "}&include=" + SERVICE_REQUEST_INCLUDE_PARAMS;
-
     @Autowired
     private ServiceRequestProcessor serviceRequestProcessor;
 
+    @Autowired
+    private FhirFetchProcessor fhirFetchProcessor;
+
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private OrderEventPreFilter orderEventPreFilter;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
     @Override
     public void configure() {
         // spotless:off
@@ -38,21 +48,29 @@ public class ServiceRequestRouting extends RouteBuilder {
                 .routeId("service-request-to-sale-order-router")
                 .filter(body().isNotNull())
                 .filter(exchange -> exchange.getMessage().getBody() instanceof ServiceRequest)
+                .filter(orderEventPreFilter::isRelevant)
+                .filter(appliedVersionFilter::isNotApplied)
                 .process(exchange -> {
                     ServiceRequest serviceRequest = exchange.getMessage().getBody(ServiceRequest.class);
                     exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, serviceRequest.fhirType());
-                    exchange.setProperty(
-                            SERVICE_REQUEST_ID, serviceRequest.getIdElement().getIdPart());
-                    exchange.getMessage().setBody(serviceRequest);
+                    exchange.getMessage().setHeader(
+                            Constants.HEADER_FHIR_RESOURCE_ID, serviceRequest.getIdElement().getIdPart());
+                    exchange.getMessage().setHeader(Constants.HEADER_FHIR_INCLUDE, SERVICE_REQUEST_INCLUDE_PARAMS);
                 })
-                .toD("openmrs-fhir://?" + SEARCH_PARAMS)
-                .to("direct:service-request-to-sale-order-processor")
+                // Started before the dispatch so that the fetches of the events queued on the same lane are batched
+                .process(fhirFetchProcessor::start)
+                .process(partitionedLanes.dispatchTo(
+                        PartitionedLanes.DOMAIN_ORDER,
+                        "direct:service-request-to-sale-order-processor", PartitionedLanes::getPatientUuid))
                 .end();
 
         from("direct:service-request-to-sale-order-processor")
                 .routeId("service-request-to-sale-order-processor")
+                // Takes the fetch started by the router
+                .process(fhirFetchProcessor)
                 .process(serviceRequestProcessor)
                 .log(LoggingLevel.INFO, "Processing ServiceRequest")
+                .process(appliedVersionFilter::markApplied)
                 .end();
         // spotless:on
     }
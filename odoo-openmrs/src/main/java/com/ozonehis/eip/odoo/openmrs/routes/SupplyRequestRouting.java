@@ -8,6 +8,8 @@
 package com.ozonehis.eip.odoo.openmrs.routes;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
 import com.ozonehis.eip.odoo.openmrs.processors.SupplyRequestProcessor;
 import lombok.Setter;
 import org.apache.camel.LoggingLevel;
@@ -26,12 +28,19 @@ public class SupplyRequestRouting extends RouteBuilder {
     @Autowired
     private SupplyRequestProcessor supplyRequestProcessor;
 
+    @Autowired
+    private PartitionedLanes partitionedLanes;
+
+    @Autowired
+    private AppliedVersionFilter appliedVersionFilter;
+
     @Override
     public void configure() {
         // spotless:off
         from("direct:fhir-supplyrequest")
             .routeId("supplyrequest-to-sale-order-router")
             .filter(body().isNotNull())
+            .filter(appliedVersionFilter::isNotApplied)
             .process(exchange -> {
                     SupplyRequest supplyRequest = exchange.getMessage().getBody(SupplyRequest.class);
                     exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, supplyRequest.fhirType());
@@ -41,13 +50,16 @@ public class SupplyRequestRouting extends RouteBuilder {
                     bundle.addEntry().setResource(supplyRequest);
                     exchange.getMessage().setBody(bundle);
                 })
-            .to("direct:supplyrequest-to-sale-order-processor")
+            .process(partitionedLanes.dispatchTo(
+                    PartitionedLanes.DOMAIN_ORDER,
+                    "direct:supplyrequest-to-sale-order-processor", PartitionedLanes::getPatientUuid))
                 .end();
 
         from("direct:supplyrequest-to-sale-order-processor")
             .routeId("supplyrequest-to-sale-order-processor")
             .process(supplyRequestProcessor)
             .log(LoggingLevel.INFO, "Processing SupplyRequest")
+            .process(appliedVersionFilter::markApplied)
                 .end();
         // spotless:on
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.shedding;
+
+import com.ozonehis.eip.odoo.openmrs.client.OdooLatencyMonitor;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Processor;
+import org.openmrs.eip.EIPException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Defers the events of the configured classes, e.g. patient updates, while Odoo is overloaded, i.e. the 99th
+ * percentile of the duration of the recent Odoo calls or their error rate is above its threshold. A deferred event
+ * fails right away so that it is left to the db event retry queue, it never waits for Odoo to recover on the thread
+ * reading the events. Order events are never deferred.
+ */
+@Slf4j
+@Setter
+@Component
+@ManagedResource(
+        objectName = "com.ozonehis.eip.odoo.openmrs:type=Shedding,name=LoadShedder",
+        description = "Load shedding of the Odoo OpenMRS integration")
+public class LoadShedder {
+
+    public static final String PATIENT_EVENTS = "patient";
+
+    public static final String ENCOUNTER_EVENTS = "encounter";
+
+    public static final String OBSERVATION_EVENTS = "observation";
+
+    public static final String ORDER_EVENTS = "order";
+
+    @Value("${odoo.openmrs.load-shedding.enabled:false}")
+    private boolean enabled;
+
+    @Value("${odoo.openmrs.load-shedding.latency-threshold:2000}")
+    private long latencyThreshold;
+
+    @Value("${odoo.openmrs.load-shedding.error-rate-threshold:0.5}")
+    private double errorRateThreshold;
+
+    @Value("${odoo.openmrs.load-shedding.deferred-events:patient,observation}")
+    private List<String> deferredEvents;
+
+    @Autowired
+    private OdooLatencyMonitor latencyMonitor;
+
+    private final AtomicLong deferredCount = new AtomicLong();
+
+    /**
+     * @param eventClass the class of the events of the route, e.g. {@link #PATIENT_EVENTS}
+     * @return a processor failing the events of the class while they are deferred
+     */
+    public Processor shed(String eventClass) {
+        return exchange -> {
+            if (isDeferred(eventClass)) {
+                throw new EIPException(String.format(
+                        "Odoo is overloaded, deferring %s event to the retry queue, p99 latency %d ms, error rate %.2f",
+                        eventClass, latencyMonitor.getP99Latency(), latencyMonitor.getErrorRate()));
+            }
+        };
+    }
+
+    boolean isDeferred(String eventClass) {
+        if (!enabled || ORDER_EVENTS.equals(eventClass) || !deferredEvents.contains(eventClass) || !isOverloaded()) {
+            return false;
+        }
+        deferredCount.incrementAndGet();
+        log.debug("LoadShedder: Deferring {} event while Odoo is overloaded", eventClass);
+        return true;
+    }
+
+    @ManagedAttribute(description = "Whether the latency or the error rate of the recent Odoo calls is above threshold")
+    public boolean isOverloaded() {
+        return latencyMonitor.getP99Latency() > latencyThreshold || latencyMonitor.getErrorRate() > errorRateThreshold;
+    }
+
+    @ManagedAttribute(description = "The number of events deferred to the retry queue since startup")
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+}
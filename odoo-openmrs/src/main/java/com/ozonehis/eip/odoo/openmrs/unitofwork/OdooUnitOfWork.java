@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.unitofwork;
+
+import static java.util.Arrays.asList;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.camel.Exchange;
+
+/**
+ * Collects the changes an event makes to Odoo sale orders so that they are written at the end of the event. All the
+ * changes of a sale order are applied to a single instance, its sale order line creations, updates and removals are
+ * expressed as one2many commands on the order and the cancellation of an emptied order is decided from the lines read
+ * with the order, so each changed sale order is written with one call and without reading it again.
+ */
+public class OdooUnitOfWork {
+
+    private final Map<Integer, PendingSaleOrder> saleOrders = new LinkedHashMap<>();
+
+    /**
+     * @return the unit of work of the exchange, created on first use
+     */
+    public static OdooUnitOfWork of(Exchange exchange) {
+        OdooUnitOfWork unitOfWork =
+                exchange.getProperty(Constants.EXCHANGE_PROPERTY_UNIT_OF_WORK, OdooUnitOfWork.class);
+        if (unitOfWork == null) {
+            unitOfWork = new OdooUnitOfWork();
+            exchange.setProperty(Constants.EXCHANGE_PROPERTY_UNIT_OF_WORK, unitOfWork);
+        }
+        return unitOfWork;
+    }
+
+    /**
+     * @return the sale order of the visit already registered in this unit of work or null
+     */
+    public SaleOrder getSaleOrder(String visitUuid) {
+        return saleOrders.values().stream()
+                .map(PendingSaleOrder::getSaleOrder)
+                .filter(saleOrder -> visitUuid.equals(saleOrder.getOrderClientOrderRef()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Registers a sale order to change, the returned instance is the one to set the changed fields on.
+     */
+    public SaleOrder updateSaleOrder(SaleOrder saleOrder) {
+        PendingSaleOrder pending = register(saleOrder);
+        pending.changed = true;
+        return pending.saleOrder;
+    }
+
+    public void createSaleOrderLine(SaleOrder saleOrder, Map<String, Object> saleOrderLineValues) {
+        PendingSaleOrder pending = register(saleOrder);
+        pending.commands.add(asList(0, 0, saleOrderLineValues));
+        pending.lineCount++;
+    }
+
+    public void updateSaleOrderLine(SaleOrder saleOrder, int saleOrderLineId, Map<String, Object> changes) {
+        register(saleOrder).commands.add(asList(1, saleOrderLineId, changes));
+    }
+
+    public void deleteSaleOrderLine(SaleOrder saleOrder, int saleOrderLineId) {
+        PendingSaleOrder pending = register(saleOrder);
+        if (pending.deletedLineIds.add(saleOrderLineId)) {
+            pending.commands.add(asList(2, saleOrderLineId, 0));
+            pending.lineCount--;
+        }
+    }
+
+    /**
+     * Cancels the sale order if it has no sale order line left once the changes of this unit of work are applied.
+     */
+    public void cancelSaleOrderWhenEmpty(SaleOrder saleOrder) {
+        register(saleOrder).cancelWhenEmpty = true;
+    }
+
+    /**
+     * Empties this unit of work.
+     *
+     * @return the changed sale orders with their pending one2many commands as order lines
+     */
+    public List<SaleOrder> drain() {
+        List<SaleOrder> changedSaleOrders = new ArrayList<>();
+        for (PendingSaleOrder pending : saleOrders.values()) {
+            boolean cancel = pending.cancelWhenEmpty && pending.lineCount <= 0;
+            if (!pending.changed && pending.commands.isEmpty() && !cancel) {
+                continue;
+            }
+            pending.saleOrder.setOrderLine(pending.commands);
+            if (cancel) {
+                pending.saleOrder.setOrderState("cancel");
+            }
+            changedSaleOrders.add(pending.saleOrder);
+        }
+        saleOrders.clear();
+        return changedSaleOrders;
+    }
+
+    private PendingSaleOrder register(SaleOrder saleOrder) {
+        return saleOrders.computeIfAbsent(saleOrder.getOrderId(), orderId -> new PendingSaleOrder(saleOrder));
+    }
+
+    private static class PendingSaleOrder {
+
+        private final SaleOrder saleOrder;
+
+        private final List<Object> commands = new ArrayList<>();
+
+        private final Set<Integer> deletedLineIds = new LinkedHashSet<>();
+
+        private int lineCount;
+
+        private boolean changed;
+
+        private boolean cancelWhenEmpty;
+
+        private PendingSaleOrder(SaleOrder saleOrder) {
+            this.saleOrder = saleOrder;
+            // The order lines are read as ids, they are replaced by the commands when the order is written
+            this.lineCount = saleOrder.getOrderLine() == null
+                    ? 0
+                    : saleOrder.getOrderLine().size();
+            // partner_id is read as [id, name] but must be written as an id
+            if (saleOrder.getOrderPartnerId() instanceof List<?> partner && !partner.isEmpty()) {
+                saleOrder.setOrderPartnerId(partner.get(0));
+            }
+        }
+
+        private SaleOrder getSaleOrder() {
+            return saleOrder;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.aggregation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import com.ozonehis.eip.odoo.openmrs.reconciliation.VisitOrderReconciler;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.spi.LifecycleStrategy;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+
+class VisitOrderAggregatorTest {
+
+    private static final String VISIT_ID_1 = "e5ca6578-fb37-4900-a054-c68db82a551c";
+
+    private static final String VISIT_ID_2 = "0b1c3a0e-2f4e-4c5c-9f57-7d1f4c2f1a2b";
+
+    private static final String PATIENT_ID = "patient-id-987";
+
+    private static final String FIRST_VERSION = "c:MedicationRequest/2f1c6d38-5b7a-4c0e-9d8c-1a7f3e4b6c21/1";
+
+    private static final String SECOND_VERSION = "c:MedicationRequest/8a3e9f02-7c4d-4b1a-a6e5-3d2c1b0f9e87/1";
+
+    @Mock
+    private CamelContext camelContext;
+
+    @Mock
+    private ProducerTemplate producerTemplate;
+
+    @Mock
+    private ProductHandler productHandler;
+
+    @Mock
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Mock
+    private SaleOrderHandler saleOrderHandler;
+
+    @Mock
+    private VisitOrderReconciler visitOrderReconciler;
+
+    @Mock
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @Mock
+    private RetryQueue retryQueue;
+
+    @Spy
+    private VisitLocks visitLocks = new VisitLocks();
+
+    @InjectMocks
+    private VisitOrderAggregator visitOrderAggregator;
+
+    private final CamelContext eventContext = new DefaultCamelContext();
+
+    private AutoCloseable mocksCloser;
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        when(camelContext.createProducerTemplate()).thenReturn(producerTemplate);
+        visitOrderAggregator.setEnabled(true);
+        visitOrderAggregator.setWindow(100);
+        visitOrderAggregator.setThreads(1);
+        visitOrderAggregator.setRetryMaxDelay(1000);
+        visitOrderAggregator.setRetryMaxAttempts(5);
+        visitOrderAggregator.init();
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        visitOrderAggregator.shutdown();
+        mocksCloser.close();
+    }
+
+    @Test
+    public void shouldWriteTheOrderEventsOfAVisitInOneCall() {
+        // Setup
+        MedicationRequest firstOrder = new MedicationRequest();
+        ServiceRequest secondOrder = new ServiceRequest();
+        MedicationRequest discontinuedOrder = new MedicationRequest();
+        MedicationRequest otherVisitOrder = new MedicationRequest();
+        Product product = new Product();
+        product.setProductResId(9);
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(firstOrder))
+                .thenReturn(getSaleOrderLine(7));
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(secondOrder))
+                .thenReturn(getSaleOrderLine(8));
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(otherVisitOrder))
+                .thenReturn(getSaleOrderLine(7));
+        when(productHandler.getProduct(discontinuedOrder)).thenReturn(product);
+
+        // Act
+        visitOrderAggregator.addLine(firstOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        visitOrderAggregator.addLine(secondOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        visitOrderAggregator.removeLine(
+                discontinuedOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, true, event());
+        visitOrderAggregator.addLine(otherVisitOrder, new Encounter(), new Partner(), VISIT_ID_2, PATIENT_ID, event());
+
+        // Verify
+        verify(saleOrderHandler, timeout(2000))
+                .writeVisitOrderChanges(
+                        argThat(batch -> batch.getVisitUuid().equals(VISIT_ID_1)
+                                && batch.getEventCount() == 3
+                                && batch.getAddedLines().size() == 2
+                                && batch.getRemovedProductIds().equals(List.of(9))
+                                && batch.isCancelWhenEmpty()),
+                        any());
+        verify(saleOrderHandler, timeout(2000))
+                .writeVisitOrderChanges(argThat(batch -> batch.getVisitUuid().equals(VISIT_ID_2)), any());
+        assertEquals(4, visitOrderAggregator.getAggregatedEventCount());
+    }
+
+    @Test
+    public void shouldSkipOrderWhenProductDoesNotExist() {
+        // Setup
+        MedicationRequest medicationRequest = new MedicationRequest();
+
+        // Act
+        visitOrderAggregator.addLine(
+                medicationRequest, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        visitOrderAggregator.removeLine(
+                medicationRequest, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, true, event());
+
+        // Verify
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+        assertEquals(0, visitOrderAggregator.getAggregatedEventCount());
+    }
+
+    @Test
+    public void shouldWritePendingChangesOnShutdown() {
+        // Setup
+        MedicationRequest medicationRequest = new MedicationRequest();
+        visitOrderAggregator.setWindow(60000);
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(medicationRequest))
+                .thenReturn(getSaleOrderLine(7));
+
+        // Act
+        visitOrderAggregator.addLine(
+                medicationRequest, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        verify(saleOrderHandler, never()).writeVisitOrderChanges(any(), any());
+        visitOrderAggregator.shutdown();
+
+        // Verify
+        verify(saleOrderHandler).writeVisitOrderChanges(argThat(batch -> batch.getEventCount() == 1), any());
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+        assertEquals(1, visitOrderAggregator.getWriteCount());
+    }
+
+    @Test
+    public void shouldRetryAFailedWriteWithTheChangesCollectedSince() throws Exception {
+        // Setup
+        MedicationRequest firstOrder = new MedicationRequest();
+        MedicationRequest secondOrder = new MedicationRequest();
+        CountDownLatch failed = new CountDownLatch(1);
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(firstOrder))
+                .thenReturn(getSaleOrderLine(7));
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(secondOrder))
+                .thenReturn(getSaleOrderLine(8));
+        doAnswer(invocation -> {
+                    failed.countDown();
+                    throw new RuntimeException("Odoo is unavailable");
+                })
+                .doNothing()
+                .when(saleOrderHandler)
+                .writeVisitOrderChanges(any(), any());
+
+        // Act
+        visitOrderAggregator.addLine(
+                firstOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event(FIRST_VERSION));
+        assertTrue(failed.await(2, TimeUnit.SECONDS));
+        visitOrderAggregator.addLine(
+                secondOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event(SECOND_VERSION));
+
+        // Verify
+        verify(saleOrderHandler, timeout(2000).times(2))
+                .writeVisitOrderChanges(
+                        argThat(batch -> batch.getEventCount() == 2
+                                && batch.getAddedLines().size() == 2),
+                        any());
+        assertEquals(1, visitOrderAggregator.getFailedWriteCount());
+        assertEquals(1, visitOrderAggregator.getWriteCount());
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+        verify(appliedVersionFilter).markApplied(eq(Set.of(FIRST_VERSION, SECOND_VERSION)));
+    }
+
+    @Test
+    public void shouldAddTheEventsOfABatchToTheRetryQueueOnceItsAttemptsAreExhausted() {
+        // Setup
+        MedicationRequest firstOrder = new MedicationRequest();
+        MedicationRequest secondOrder = new MedicationRequest();
+        RuntimeException failure = new RuntimeException("Odoo is unavailable");
+        visitOrderAggregator.setRetryMaxAttempts(2);
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(firstOrder))
+                .thenReturn(getSaleOrderLine(7));
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(secondOrder))
+                .thenReturn(getSaleOrderLine(8));
+        doThrow(failure).when(saleOrderHandler).writeVisitOrderChanges(any(), any());
+
+        // Act
+        visitOrderAggregator.addLine(
+                firstOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event(FIRST_VERSION));
+        visitOrderAggregator.addLine(
+                secondOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event(SECOND_VERSION));
+
+        // Verify
+        ArgumentCaptor<Exchange> events = ArgumentCaptor.forClass(Exchange.class);
+        verify(retryQueue, timeout(2000).times(2)).add(events.capture(), eq(failure));
+        verify(saleOrderHandler, times(2)).writeVisitOrderChanges(any(), any());
+        assertEquals(
+                List.of(FIRST_VERSION, SECOND_VERSION),
+                events.getAllValues().stream()
+                        .map(event -> event.getMessage().getHeader("version", String.class))
+                        .toList());
+        assertEquals(1, visitOrderAggregator.getExhaustedCount());
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+        verify(appliedVersionFilter, never()).markApplied(any(Set.class));
+    }
+
+    @Test
+    public void shouldWritePendingChangesWhenTheCamelContextIsStopping() {
+        // Setup
+        MedicationRequest medicationRequest = new MedicationRequest();
+        visitOrderAggregator.setWindow(60000);
+        ArgumentCaptor<LifecycleStrategy> lifecycleStrategy = ArgumentCaptor.forClass(LifecycleStrategy.class);
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(medicationRequest))
+                .thenReturn(getSaleOrderLine(7));
+
+        // Act
+        visitOrderAggregator.addLine(
+                medicationRequest, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        verify(camelContext).addLifecycleStrategy(lifecycleStrategy.capture());
+        lifecycleStrategy.getValue().onContextStopping(camelContext);
+
+        // Verify
+        verify(saleOrderHandler).writeVisitOrderChanges(argThat(batch -> batch.getEventCount() == 1), any());
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+    }
+
+    @Test
+    public void shouldWriteRightAwayAndFailTheEventOnceStopping() {
+        // Setup
+        MedicationRequest firstOrder = new MedicationRequest();
+        MedicationRequest secondOrder = new MedicationRequest();
+
+        // Mock behavior
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(firstOrder))
+                .thenReturn(getSaleOrderLine(7));
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(secondOrder))
+                .thenReturn(getSaleOrderLine(8));
+        doNothing()
+                .doThrow(new RuntimeException("Odoo is unavailable"))
+                .when(saleOrderHandler)
+                .writeVisitOrderChanges(any(), any());
+
+        // Act
+        visitOrderAggregator.flush();
+        visitOrderAggregator.addLine(firstOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+
+        // Verify
+        verify(saleOrderHandler).writeVisitOrderChanges(argThat(batch -> batch.getEventCount() == 1), any());
+        assertThrows(
+                RuntimeException.class,
+                () -> visitOrderAggregator.addLine(
+                        secondOrder, new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event()));
+        assertEquals(0, visitOrderAggregator.getPendingVisitCount());
+        assertEquals(1, visitOrderAggregator.getFailedWriteCount());
+    }
+
+    @Test
+    public void shouldReconcileTheVisitOfTheOrderEventsInReconcileMode() {
+        // Setup
+        visitOrderAggregator.setReconcile(true);
+
+        // Act
+        visitOrderAggregator.addLine(
+                new MedicationRequest(), new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, event());
+        visitOrderAggregator.removeLine(
+                new ServiceRequest(), new Encounter(), new Partner(), VISIT_ID_1, PATIENT_ID, true, event());
+
+        // Verify
+        verify(visitOrderReconciler, timeout(2000))
+                .reconcile(
+                        argThat(batch -> batch.getVisitUuid().equals(VISIT_ID_1)
+                                && batch.getEventCount() == 2
+                                && batch.getLinesByProduct().isEmpty()),
+                        any());
+        verify(saleOrderHandler, never()).writeVisitOrderChanges(any(), any());
+        verify(saleOrderLineHandler, never()).buildNewSaleOrderLineIfProductExists(any());
+        verify(productHandler, never()).getProduct(any());
+    }
+
+    @Test
+    public void shouldKeepTheLastChangeOfAProduct() {
+        // Setup
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+
+        // Act
+        batch.addLine(getSaleOrderLine(7), new Encounter(), new Partner(), PATIENT_ID);
+        batch.removeLine(7, new Encounter(), new Partner(), PATIENT_ID, false);
+        batch.removeLine(8, new Encounter(), new Partner(), PATIENT_ID, false);
+        batch.addLine(getSaleOrderLine(8), new Encounter(), new Partner(), PATIENT_ID);
+
+        // Verify
+        assertEquals(List.of(7), batch.getRemovedProductIds());
+        assertEquals(1, batch.getAddedLines().size());
+        assertEquals(8, batch.getAddedLines().get(0).getSaleOrderLineProductId());
+        assertEquals(4, batch.getEventCount());
+    }
+
+    private Exchange event() {
+        return new DefaultExchange(eventContext);
+    }
+
+    private Exchange event(String versionKey) {
+        Exchange exchange = event();
+        exchange.setProperty(Constants.EXCHANGE_PROPERTY_VERSION_KEY, versionKey);
+        exchange.getMessage().setHeader("version", versionKey);
+        return exchange;
+    }
+
+    private SaleOrderLine getSaleOrderLine(int productId) {
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineProductId(productId);
+        return saleOrderLine;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CacheManagementTest {
+
+    private static final String PATIENT_ID = "d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52";
+
+    private LookupCache<String, Integer> countryCache;
+
+    private UuidIntIndex partnerIndex;
+
+    private CacheManagement cacheManagement;
+
+    @BeforeEach
+    public void setup() {
+        countryCache = new LookupCache<>("countries", 10);
+        partnerIndex = new UuidIntIndex("partners");
+        cacheManagement = new CacheManagement();
+        cacheManagement.setLookupCaches(List.of(countryCache));
+        cacheManagement.setUuidIndexes(List.of(partnerIndex));
+        cacheManagement.setKnownRefsFilter(new KnownRefsFilter());
+    }
+
+    @Test
+    void shouldReturnStatisticsOfAllCaches() {
+        // Setup
+        countryCache.get("India", key -> 10);
+        countryCache.get("India", key -> 10);
+        partnerIndex.put(PATIENT_ID, 12);
+
+        // Act
+        Map<String, Map<String, Object>> statistics = cacheManagement.getStatistics();
+
+        // Verify
+        assertEquals(List.of("countries", "partners"), List.copyOf(statistics.keySet()));
+        assertEquals(1, statistics.get("countries").get("size"));
+        assertEquals(1L, statistics.get("countries").get("hits"));
+        assertEquals(1L, statistics.get("countries").get("misses"));
+        assertEquals(1L, statistics.get("countries").get("loads"));
+        assertEquals(1, statistics.get("partners").get("size"));
+    }
+
+    @Test
+    void shouldInvalidateEntryByKey() {
+        // Setup
+        countryCache.put("India", 10);
+        countryCache.put("Kenya", 11);
+        partnerIndex.put(PATIENT_ID, 12);
+
+        // Act
+        cacheManagement.invalidate("countries", "India");
+        cacheManagement.invalidate("partners", PATIENT_ID);
+
+        // Verify
+        assertNull(countryCache.getIfPresent("India"));
+        assertEquals(11, countryCache.getIfPresent("Kenya"));
+        assertEquals(UuidIntIndex.NO_VALUE, partnerIndex.get(PATIENT_ID));
+    }
+
+    @Test
+    void shouldFlushAllCaches() {
+        // Setup
+        countryCache.put("India", 10);
+        partnerIndex.put(PATIENT_ID, 12);
+
+        // Act
+        cacheManagement.flushAll();
+
+        // Verify
+        assertEquals(0, countryCache.size());
+        assertEquals(0, partnerIndex.size());
+    }
+
+    @Test
+    void shouldRejectUnknownCache() {
+        // Verify
+        assertThrows(IllegalArgumentException.class, () -> cacheManagement.flush("unknown"));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.Uom;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CacheSnapshotServiceTest {
+
+    @TempDir
+    Path eipHome;
+
+    private LookupCache<String, Integer> countryCache;
+
+    private LookupCache<String, Uom> uomCache;
+
+    private LookupCache<String, Product> productCache;
+
+    private UuidIntIndex partnerIndex;
+
+    private UuidIntIndex visitIndex;
+
+    @BeforeEach
+    public void setup() {
+        countryCache = new LookupCache<>("countries", 10);
+        uomCache = new LookupCache<>("uoms", 10);
+        productCache = new LookupCache<>("products", 10);
+        partnerIndex = new UuidIntIndex("partners");
+        visitIndex = new UuidIntIndex("visits");
+    }
+
+    @Test
+    void shouldReloadSavedSnapshot() {
+        // Setup
+        countryCache.put("India", 10);
+        uomCache.put(
+                "1513AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA",
+                new Uom(1, "1513AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA", 5, "Tablet"));
+        productCache.put("ab5ca0c5-0a0a-4ae3-a5f5-22d1e6e7a1ab", new Product(2, "Aspirin", null, 7));
+        partnerIndex.put("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52", 12);
+        visitIndex.put("e5ca6578-fb37-4900-a054-c68db82a551c", 3);
+        createService("http://odoo").save();
+
+        // Act
+        setup();
+        createService("http://odoo").load();
+
+        // Verify
+        assertEquals(10, countryCache.getIfPresent("India"));
+        assertEquals(
+                5, uomCache.getIfPresent("1513AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA").getUomResId());
+        Product product = productCache.getIfPresent("ab5ca0c5-0a0a-4ae3-a5f5-22d1e6e7a1ab");
+        assertEquals(7, product.getProductResId());
+        assertNull(product.getProductName());
+        assertEquals(12, partnerIndex.get("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+        assertEquals(3, visitIndex.get("e5ca6578-fb37-4900-a054-c68db82a551c"));
+    }
+
+    @Test
+    void shouldIgnoreSnapshotTakenAgainstAnotherOdooInstance() {
+        // Setup
+        countryCache.put("India", 10);
+        createService("http://odoo").save();
+
+        // Act
+        setup();
+        createService("http://other-odoo").load();
+
+        // Verify
+        assertEquals(0, countryCache.size());
+    }
+
+    @Test
+    void shouldIgnoreCorruptedSnapshot() throws Exception {
+        // Setup
+        countryCache.put("India", 10);
+        createService("http://odoo").save();
+        Path file = eipHome.resolve("cache").resolve("lookup-caches.bin");
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x7F;
+        Files.write(file, bytes);
+
+        // Act
+        setup();
+        createService("http://odoo").load();
+
+        // Verify
+        assertEquals(0, countryCache.size());
+    }
+
+    @Test
+    void shouldNotApplyAnyEntryOfSnapshotThatDoesNotParse() throws Exception {
+        // Setup
+        countryCache.put("India", 10);
+        partnerIndex.put("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52", 12);
+        visitIndex.put("e5ca6578-fb37-4900-a054-c68db82a551c", 3);
+        byte[] bytes = createService("http://odoo").write();
+        // Drop the last visit entry and checksum the rest, as if the entry count did not match the entries
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 20);
+        CRC32 crc = new CRC32();
+        crc.update(truncated, 0, truncated.length - Long.BYTES);
+        ByteBuffer.wrap(truncated).putLong(truncated.length - Long.BYTES, crc.getValue());
+        setup();
+        CacheSnapshotService service = createService("http://odoo");
+
+        // Verify
+        assertThrows(IllegalStateException.class, () -> service.read(ByteBuffer.wrap(truncated)));
+        assertEquals(0, countryCache.size());
+        assertEquals(0, partnerIndex.size());
+        assertEquals(0, visitIndex.size());
+    }
+
+    private CacheSnapshotService createService(String odooUrl) {
+        CacheSnapshotService service = new CacheSnapshotService();
+        service.setEipHome(eipHome.toString());
+        service.setEnabled(true);
+        service.setMaxAge(60000);
+        service.setOdooUrl(odooUrl);
+        service.setOdooDatabase("odoo");
+        service.setCountryCache(countryCache);
+        service.setCountryStateCache(new LookupCache<>("states", 10));
+        service.setUomCache(uomCache);
+        service.setProductCache(productCache);
+        service.setPartnerIndex(partnerIndex);
+        service.setVisitIndex(visitIndex);
+        return service;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IRead;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.gclient.IReadIfNoneMatch;
+import ca.uhn.fhir.rest.gclient.IReadTyped;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+class FhirResourceCacheTest {
+
+    private static final String PATIENT_ID = "patient-id-1";
+
+    @Mock
+    private IGenericClient openmrsFhirClient;
+
+    @Mock
+    private IRead iRead;
+
+    @Mock
+    private IReadTyped iReadTyped;
+
+    @Mock
+    private IReadExecutable iReadExecutable;
+
+    @Mock
+    private IReadIfNoneMatch iReadIfNoneMatch;
+
+    @Mock
+    private IReadExecutable iConditionalReadExecutable;
+
+    @Mock
+    private IReadExecutable iSubsetReadExecutable;
+
+    private FhirResourceCache fhirResourceCache;
+
+    private static AutoCloseable mocksCloser;
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        fhirResourceCache = new FhirResourceCache();
+        fhirResourceCache.setEnabled(true);
+        fhirResourceCache.setOpenmrsFhirClient(openmrsFhirClient);
+        fhirResourceCache.setFhirResourceCache(new LookupCache<>("fhir-resources", 100));
+        when(openmrsFhirClient.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+        when(openmrsFhirClient.read()).thenReturn(iRead);
+        when(iRead.resource("Patient")).thenReturn(iReadTyped);
+        when(iReadTyped.withId(PATIENT_ID)).thenReturn(iReadExecutable);
+        when(iReadExecutable.ifVersionMatches("1")).thenReturn(iReadIfNoneMatch);
+        when(iReadIfNoneMatch.returnNull()).thenReturn(iConditionalReadExecutable);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fhirResourceCache.shutdown();
+    }
+
+    @Test
+    void shouldReturnCachedResourceGivenItIsNotModified() {
+        // Setup
+        Patient patient = patient("1");
+
+        // Mock behavior
+        when(iReadExecutable.execute()).thenReturn(patient);
+        when(iConditionalReadExecutable.execute()).thenReturn(null);
+
+        // Act
+        fhirResourceCache.read(Patient.class, PATIENT_ID);
+        Patient result = fhirResourceCache.read(Patient.class, PATIENT_ID);
+
+        // Verify
+        assertSame(patient, result);
+        verify(iReadExecutable, times(1)).execute();
+        verify(iConditionalReadExecutable, times(1)).execute();
+        assertEquals(1, fhirResourceCache.getNotModifiedCount());
+    }
+
+    @Test
+    void shouldReplaceCachedResourceGivenItIsModified() {
+        // Setup
+        Patient patient = patient("1");
+        Patient modifiedPatient = patient("2");
+
+        // Mock behavior
+        when(iReadExecutable.execute()).thenReturn(patient);
+        when(iConditionalReadExecutable.execute()).thenReturn(modifiedPatient);
+
+        // Act
+        fhirResourceCache.read(Patient.class, PATIENT_ID);
+        Patient result = fhirResourceCache.read(Patient.class, PATIENT_ID);
+
+        // Verify
+        assertSame(modifiedPatient, result);
+        assertEquals(1, fhirResourceCache.getModifiedCount());
+    }
+
+    @Test
+    void shouldCacheResourceReadWithElementsApartFromFullResource() {
+        // Setup
+        Patient patient = patient("1");
+        Patient projectedPatient = patient("1");
+
+        // Mock behavior
+        when(iReadExecutable.execute()).thenReturn(patient);
+        when(iReadExecutable.elementsSubset("name", "birthDate")).thenReturn(iSubsetReadExecutable);
+        when(iSubsetReadExecutable.execute()).thenReturn(projectedPatient);
+
+        // Act
+        fhirResourceCache.read(Patient.class, PATIENT_ID);
+        Patient result = fhirResourceCache.read(Patient.class, PATIENT_ID, "name", "birthDate");
+
+        // Verify
+        assertSame(projectedPatient, result);
+        verify(iSubsetReadExecutable, times(1)).execute();
+    }
+
+    @Test
+    void shouldReturnCachedIncludedResourceOnceRevalidated() {
+        // Setup
+        Patient patient = patient("1");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        fhirResourceCache.putAll(bundle);
+
+        // Mock behavior
+        when(iConditionalReadExecutable.execute()).thenReturn(null);
+
+        // Act
+        Resource result = fhirResourceCache
+                .getIncluded(medicationRequest("Patient/" + PATIENT_ID), "MedicationRequest:patient")
+                .join();
+
+        // Verify
+        assertSame(patient, result);
+        verify(iConditionalReadExecutable, times(1)).execute();
+        verify(iReadExecutable, never()).execute();
+    }
+
+    @Test
+    void shouldReturnCachedIncludedResourceWithoutRevalidationGivenReferenceCarriesItsVersion() {
+        // Setup
+        Patient patient = patient("1");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        fhirResourceCache.putAll(bundle);
+
+        // Act
+        Resource result = fhirResourceCache
+                .getIncluded(medicationRequest("Patient/" + PATIENT_ID + "/_history/1"), "MedicationRequest:patient")
+                .join();
+
+        // Verify
+        assertSame(patient, result);
+        verify(openmrsFhirClient, never()).read();
+        assertEquals(1, fhirResourceCache.getTrustedCount());
+    }
+
+    @Test
+    void shouldRevalidateCachedIncludedResourceGivenReferenceCarriesAnotherVersion() {
+        // Setup
+        Patient patient = patient("1");
+        Patient modifiedPatient = patient("2");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        fhirResourceCache.putAll(bundle);
+
+        // Mock behavior
+        when(iConditionalReadExecutable.execute()).thenReturn(modifiedPatient);
+
+        // Act
+        Resource result = fhirResourceCache
+                .getIncluded(medicationRequest("Patient/" + PATIENT_ID + "/_history/2"), "MedicationRequest:patient")
+                .join();
+
+        // Verify
+        assertSame(modifiedPatient, result);
+        assertEquals(1, fhirResourceCache.getModifiedCount());
+    }
+
+    @Test
+    void shouldReturnNullGivenIncludedResourceIsNotCached() {
+        // Act
+        CompletableFuture<Resource> result =
+                fhirResourceCache.getIncluded(medicationRequest("Patient/" + PATIENT_ID), "MedicationRequest:patient");
+
+        // Verify
+        assertNull(result);
+        verify(openmrsFhirClient, never()).read();
+    }
+
+    @Test
+    void shouldReturnNullGivenIncludedTypeIsNotCached() {
+        // Act
+        CompletableFuture<Resource> result = fhirResourceCache.getIncluded(
+                medicationRequest("Patient/" + PATIENT_ID), "MedicationRequest:requester");
+
+        // Verify
+        assertNull(result);
+    }
+
+    private static Patient patient(String version) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + PATIENT_ID + "/_history/" + version);
+        return patient;
+    }
+
+    private static MedicationRequest medicationRequest(String patientReference) {
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setSubject(new Reference(patientReference));
+        return medicationRequest;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+class KnownRefsFilterTest {
+
+    @Mock
+    private OdooClient odooClient;
+
+    @InjectMocks
+    private KnownRefsFilter knownRefsFilter;
+
+    private static AutoCloseable mocksCloser;
+
+    private static final String PARTNER_REF_ID = "4ed050e1-c1be-4b4c-b407-c48d2db49b87";
+
+    private static final String VISIT_ID = "e5ca6578-fb37-4900-a054-c68db82a551c";
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        knownRefsFilter.setEnabled(true);
+        knownRefsFilter.setFalsePositiveRate(0.001);
+        knownRefsFilter.setPageSize(2);
+        knownRefsFilter.init();
+    }
+
+    @Test
+    void shouldReportEveryRefAsPossiblyExistingUntilSeeded() {
+        // Verify
+        assertTrue(knownRefsFilter.mightHavePartner(PARTNER_REF_ID));
+        assertTrue(knownRefsFilter.mightHaveVisitOrder(VISIT_ID));
+    }
+
+    @Test
+    void shouldSeedFiltersFromPagedScan() {
+        // Mock behavior
+        when(odooClient.searchAndRead(eq(Constants.PARTNER_MODEL), any(), any(), eq(0), eq(2)))
+                .thenReturn(new Object[] {record(1, "ref", PARTNER_REF_ID), record(2, "ref", false)})
+                .thenReturn(new Object[] {record(3, "ref", "other-ref")});
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any(), eq(0), eq(2)))
+                .thenReturn(new Object[] {record(7, "client_order_ref", VISIT_ID)});
+
+        // Act
+        knownRefsFilter.refresh();
+
+        // Verify
+        assertTrue(knownRefsFilter.isSeeded());
+        assertTrue(knownRefsFilter.mightHavePartner(PARTNER_REF_ID));
+        assertTrue(knownRefsFilter.mightHavePartner("other-ref"));
+        assertTrue(knownRefsFilter.mightHaveVisitOrder(VISIT_ID));
+        assertFalse(knownRefsFilter.mightHavePartner("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+        assertFalse(knownRefsFilter.mightHaveVisitOrder("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+        assertEquals(2, knownRefsFilter.getSkippedSearchCount());
+    }
+
+    @Test
+    void shouldReportCreatedRefsAsPossiblyExisting() {
+        // Mock behavior
+        when(odooClient.searchAndRead(any(), any(), any(), anyInt(), anyInt())).thenReturn(new Object[] {});
+        knownRefsFilter.refresh();
+
+        // Act
+        knownRefsFilter.addPartner(PARTNER_REF_ID);
+        knownRefsFilter.addVisitOrder(VISIT_ID);
+
+        // Verify
+        assertTrue(knownRefsFilter.mightHavePartner(PARTNER_REF_ID));
+        assertTrue(knownRefsFilter.mightHaveVisitOrder(VISIT_ID));
+    }
+
+    @Test
+    void shouldScanFromTheHighestIdSeenBeforeThePreviousScan() {
+        // Mock behavior
+        when(odooClient.searchAndRead(eq(Constants.PARTNER_MODEL), any(), any(), anyInt(), anyInt()))
+                .thenReturn(new Object[] {record(5, "ref", PARTNER_REF_ID)});
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any(), anyInt(), anyInt()))
+                .thenReturn(new Object[] {});
+
+        // Act
+        knownRefsFilter.refresh();
+        knownRefsFilter.refresh();
+
+        // Verify
+        List<Object> activeCriteria = asList("|", asList("active", "=", true), asList("active", "=", false));
+        List<Object> seedCriteria = new ArrayList<>(activeCriteria);
+        seedCriteria.add(asList("id", ">", 0));
+        List<Object> refreshCriteria = new ArrayList<>(activeCriteria);
+        refreshCriteria.add(asList("id", ">", 5));
+        verify(odooClient).searchAndRead(Constants.PARTNER_MODEL, seedCriteria, asList("id", "ref"), 0, 2);
+        verify(odooClient).searchAndRead(Constants.PARTNER_MODEL, refreshCriteria, asList("id", "ref"), 0, 2);
+    }
+
+    private Map<String, Object> record(int id, String refField, Object ref) {
+        return Map.of("id", id, refField, ref);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.ObservationHandler;
+import java.util.Date;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+class PatientWeightCacheTest {
+
+    private static final String WEIGHT_CONCEPT = "5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+    private static final String PATIENT_ID = "patient-id-987";
+
+    @Mock
+    private ObservationHandler observationHandler;
+
+    private PatientWeightCache patientWeightCache;
+
+    private static AutoCloseable mocksCloser;
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        patientWeightCache = new PatientWeightCache();
+        patientWeightCache.setWeightCache(new LookupCache<>("weights", 100));
+        patientWeightCache.setWeightConcept(WEIGHT_CONCEPT);
+        patientWeightCache.setObservationHandler(observationHandler);
+    }
+
+    @Test
+    void shouldSearchObservationOnlyOnColdMiss() {
+        // Mock
+        when(observationHandler.getObservationBySubjectIDAndConceptID(PATIENT_ID, WEIGHT_CONCEPT))
+                .thenReturn(getWeightObservation(67, new Date(1000)));
+
+        // Act
+        String first = patientWeightCache.getWeight(PATIENT_ID);
+        String second = patientWeightCache.getWeight(PATIENT_ID);
+
+        // Assert
+        assertEquals("67 Kg", first);
+        assertEquals("67 Kg", second);
+        verify(observationHandler, times(1)).getObservationBySubjectIDAndConceptID(PATIENT_ID, WEIGHT_CONCEPT);
+    }
+
+    @Test
+    void shouldCacheAbsenceOfWeight() {
+        // Mock
+        when(observationHandler.getObservationBySubjectIDAndConceptID(PATIENT_ID, WEIGHT_CONCEPT))
+                .thenReturn(null);
+
+        // Act
+        patientWeightCache.getWeight(PATIENT_ID);
+        String result = patientWeightCache.getWeight(PATIENT_ID);
+
+        // Assert
+        assertNull(result);
+        verify(observationHandler, times(1)).getObservationBySubjectIDAndConceptID(PATIENT_ID, WEIGHT_CONCEPT);
+    }
+
+    @Test
+    void shouldUpdateWeightFromNewerObservationEvent() {
+        // Act
+        boolean firstUpdated = patientWeightCache.update(getWeightObservation(67, new Date(1000)));
+        boolean secondUpdated = patientWeightCache.update(getWeightObservation(70, new Date(2000)));
+
+        // Assert
+        assertTrue(firstUpdated);
+        assertTrue(secondUpdated);
+        assertEquals("70 Kg", patientWeightCache.getWeight(PATIENT_ID));
+        verifyNoInteractions(observationHandler);
+    }
+
+    @Test
+    void shouldIgnoreOlderObservationEvent() {
+        // Act
+        patientWeightCache.update(getWeightObservation(70, new Date(2000)));
+        boolean updated = patientWeightCache.update(getWeightObservation(67, new Date(1000)));
+
+        // Assert
+        assertFalse(updated);
+        assertEquals("70 Kg", patientWeightCache.getWeight(PATIENT_ID));
+    }
+
+    @Test
+    void shouldIgnoreObservationOfOtherConcept() {
+        // Setup
+        Observation observation = getWeightObservation(120, new Date(1000));
+        observation.setCode(new CodeableConcept(new Coding().setCode("5085AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA")));
+
+        // Act
+        boolean updated = patientWeightCache.update(observation);
+
+        // Assert
+        assertFalse(updated);
+        assertEquals(0, patientWeightCache.getWeightCache().size());
+    }
+
+    private Observation getWeightObservation(int value, Date effectiveDate) {
+        Observation observation = new Observation();
+        observation.setSubject(new Reference("Patient/" + PATIENT_ID));
+        observation.setCode(new CodeableConcept(new Coding().setCode(WEIGHT_CONCEPT)));
+        observation.setValue(new Quantity().setValue(value).setUnit("Kg"));
+        observation.setEffective(new DateTimeType(effectiveDate));
+        return observation;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class ScalableBloomFilterTest {
+
+    @Test
+    void shouldContainAllAddedKeysWhenGrowingBeyondInitialCapacity() {
+        // Setup
+        ScalableBloomFilter filter = new ScalableBloomFilter("refs", 100, 0.01);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add(UUID.randomUUID().toString());
+        }
+
+        // Act
+        keys.forEach(filter::add);
+
+        // Verify
+        keys.forEach(key -> assertTrue(filter.mightContain(key)));
+    }
+
+    @Test
+    void shouldKeepFalsePositiveRateCloseToTheConfiguredRate() {
+        // Setup
+        ScalableBloomFilter filter = new ScalableBloomFilter("refs", 100, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(UUID.randomUUID().toString());
+        }
+
+        // Act
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(UUID.randomUUID().toString())) {
+                falsePositives++;
+            }
+        }
+
+        // Verify
+        assertTrue(falsePositives < 200, "Got " + falsePositives + " false positives");
+    }
+
+    @Test
+    void shouldNotContainKeysAfterClear() {
+        // Setup
+        ScalableBloomFilter filter = new ScalableBloomFilter("refs", 100, 0.01);
+        filter.add("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52");
+
+        // Act
+        filter.clear();
+
+        // Verify
+        assertFalse(filter.mightContain("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+    }
+}
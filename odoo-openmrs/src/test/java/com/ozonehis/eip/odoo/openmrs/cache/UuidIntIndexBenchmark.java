@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares the memory footprint and lookup time of {@link UuidIntIndex} with a {@code HashMap<String, Integer>}, it is
+ * not run by the build. Run it with a fixed heap, e.g. {@code java -Xms4g -Xmx4g}, and optionally pass the number of
+ * entries which defaults to 5 million.
+ */
+public class UuidIntIndexBenchmark {
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        String[] uuids = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            uuids[i] = UUID.randomUUID().toString();
+        }
+
+        long baseline = usedMemory();
+        UuidIntIndex index = new UuidIntIndex("benchmark");
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            index.put(uuids[i], i);
+        }
+        long indexLoadNanos = System.nanoTime() - start;
+        long indexBytes = usedMemory() - baseline;
+        long indexLookupNanos = lookup(uuids, uuid -> index.get(uuid));
+        report("UuidIntIndex", entries, indexBytes, indexLoadNanos, indexLookupNanos);
+        System.out.printf("UuidIntIndex slot arrays: %d bytes%n", index.getMemoryFootprint());
+
+        index.clear();
+        baseline = usedMemory();
+        // The key strings are counted as well since a map has to hold them while the index does not
+        Map<String, Integer> map = new HashMap<>();
+        start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            map.put(new String(uuids[i].toCharArray()), i);
+        }
+        long mapLoadNanos = System.nanoTime() - start;
+        long mapBytes = usedMemory() - baseline;
+        long mapLookupNanos = lookup(uuids, uuid -> map.get(uuid));
+        report("HashMap", entries, mapBytes, mapLoadNanos, mapLookupNanos);
+    }
+
+    private static long lookup(String[] uuids, ToIntFunction<String> getter) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (String uuid : uuids) {
+            checksum += getter.applyAsInt(uuid);
+        }
+        long nanos = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return nanos;
+    }
+
+    private static void report(String name, int entries, long bytes, long loadNanos, long lookupNanos) {
+        System.out.printf(
+                "%s: %d entries, %d MB, %.1f bytes/entry, load %d ms, lookup %.0f ns/op%n",
+                name,
+                entries,
+                bytes / (1024 * 1024),
+                (double) bytes / entries,
+                loadNanos / 1_000_000,
+                (double) lookupNanos / entries);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class UuidIntIndexTest {
+
+    @Test
+    void shouldReturnTheValueMappedToTheUuid() {
+        // Setup
+        UuidIntIndex index = new UuidIntIndex("partners");
+
+        // Act
+        index.put("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52", 12);
+        index.put("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52", 13);
+
+        // Verify
+        assertEquals(13, index.get("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+        assertEquals(UuidIntIndex.NO_VALUE, index.get("4ed050e1-c1be-4b4c-b407-c48d2db49b87"));
+        assertEquals(1, index.size());
+        assertEquals(1, index.getHitCount());
+        assertEquals(1, index.getMissCount());
+    }
+
+    @Test
+    void shouldIgnoreKeysThatAreNotUuids() {
+        // Setup
+        UuidIntIndex index = new UuidIntIndex("partners");
+
+        // Act
+        index.put("patient-id-987", 12);
+        index.put("00000000-0000-0000-0000-000000000000", 12);
+
+        // Verify
+        assertEquals(UuidIntIndex.NO_VALUE, index.get("patient-id-987"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void shouldKeepOtherEntriesReachableAfterRemovals() {
+        // Setup
+        UuidIntIndex index = new UuidIntIndex("visits");
+        List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add(uuid);
+            index.put(uuid, i);
+        }
+
+        // Act
+        for (int i = 0; i < uuids.size(); i += 2) {
+            index.remove(uuids.get(i));
+        }
+
+        // Verify
+        assertEquals(5000, index.size());
+        for (int i = 0; i < uuids.size(); i++) {
+            assertEquals(i % 2 == 0 ? UuidIntIndex.NO_VALUE : i, index.get(uuids.get(i)));
+        }
+    }
+
+    @Test
+    void shouldReadBackWrittenEntries() throws Exception {
+        // Setup
+        UuidIntIndex index = new UuidIntIndex("partners");
+        index.put("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52", 12);
+        index.put("4ed050e1-c1be-4b4c-b407-c48d2db49b87", 15);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+
+        // Act
+        UuidIntIndex reloaded = new UuidIntIndex("partners");
+        int count = reloaded.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+        // Verify
+        assertEquals(2, count);
+        assertEquals(12, reloaded.get("d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52"));
+        assertEquals(15, reloaded.get("4ed050e1-c1be-4b4c-b407-c48d2db49b87"));
+    }
+
+    @Test
+    void shouldWriteTheCountOfTheWrittenEntriesWhileTheIndexChanges() throws Exception {
+        // Setup
+        UuidIntIndex index = new UuidIntIndex("visits");
+        List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add(uuid);
+            index.put(uuid, i);
+        }
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; writing.get(); i = (i + 1) % uuids.size()) {
+                index.remove(uuids.get(i));
+                index.put(UUID.randomUUID().toString(), i);
+            }
+        });
+        writer.start();
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                // Act
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                index.writeTo(new DataOutputStream(bytes));
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                new UuidIntIndex("visits").readFrom(buffer);
+
+                // Verify
+                assertFalse(buffer.hasRemaining());
+            }
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OdooLatencyMonitorTest {
+
+    private OdooLatencyMonitor latencyMonitor;
+
+    @BeforeEach
+    public void setup() {
+        latencyMonitor = new OdooLatencyMonitor(100);
+        latencyMonitor.setWindow(60000);
+    }
+
+    @Test
+    public void shouldReturnP99LatencyAndErrorRateOfRecentCalls() {
+        // Act
+        for (int i = 1; i <= 100; i++) {
+            latencyMonitor.record(TimeUnit.MILLISECONDS.toNanos(i * 10L), i % 4 == 0);
+        }
+
+        // Verify
+        assertEquals(990, latencyMonitor.getP99Latency());
+        assertEquals(0.25, latencyMonitor.getErrorRate());
+    }
+
+    @Test
+    public void shouldOnlyKeepTheLatestCalls() {
+        // Act
+        for (int i = 0; i < 100; i++) {
+            latencyMonitor.record(TimeUnit.SECONDS.toNanos(5), true);
+        }
+        for (int i = 0; i < 100; i++) {
+            latencyMonitor.record(TimeUnit.MILLISECONDS.toNanos(20), false);
+        }
+
+        // Verify
+        assertEquals(20, latencyMonitor.getP99Latency());
+        assertEquals(0, latencyMonitor.getErrorRate());
+    }
+
+    @Test
+    public void shouldIgnoreCallsOutsideTheWindow() throws Exception {
+        // Setup
+        latencyMonitor.setWindow(50);
+        latencyMonitor.record(TimeUnit.SECONDS.toNanos(5), true);
+
+        // Act
+        Thread.sleep(100);
+
+        // Verify
+        assertEquals(0, latencyMonitor.getP99Latency());
+        assertEquals(0, latencyMonitor.getErrorRate());
+    }
+}
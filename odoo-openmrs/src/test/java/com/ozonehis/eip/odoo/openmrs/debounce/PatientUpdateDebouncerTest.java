@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.debounce;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.eip.EIPException;
+
+class PatientUpdateDebouncerTest {
+
+    private static final String PATIENT_ID = "d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52";
+
+    private static final String OTHER_PATIENT_ID = "0b1c3a0e-2f4e-4c5c-9f57-7d1f4c2f1a2b";
+
+    private final List<String> processed = new CopyOnWriteArrayList<>();
+
+    private final List<Exchange> retried = new CopyOnWriteArrayList<>();
+
+    private final CamelContext context = new DefaultCamelContext();
+
+    private PatientUpdateDebouncer patientUpdateDebouncer;
+
+    private Processor debounced;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:retry-queue").process(retried::add);
+            }
+        });
+        context.start();
+        RetryQueue retryQueue = new RetryQueue();
+        retryQueue.setUri("direct:retry-queue");
+        patientUpdateDebouncer = new PatientUpdateDebouncer();
+        patientUpdateDebouncer.setCamelContext(context);
+        patientUpdateDebouncer.setRetryQueue(retryQueue);
+        patientUpdateDebouncer.setEnabled(true);
+        patientUpdateDebouncer.setQuietPeriod(100);
+        patientUpdateDebouncer.init();
+        debounced = patientUpdateDebouncer.debounce(exchange -> {
+            Patient patient = exchange.getMessage().getBody(Patient.class);
+            String familyName = patient.getNameFirstRep().getFamily();
+            if ("Failing".equals(familyName)) {
+                throw new EIPException("Odoo is down");
+            }
+            String eventType = exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE, String.class);
+            processed.add(eventType + ":" + patient.getIdPart() + ":" + familyName);
+        });
+    }
+
+    @AfterEach
+    public void close() {
+        patientUpdateDebouncer.shutdown();
+        context.stop();
+    }
+
+    @Test
+    public void shouldEmitOnlyTheLatestUpdateOfAPatientAfterTheQuietPeriod() throws Exception {
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "u", "First"));
+        debounced.process(createExchange(PATIENT_ID, "u", "Second"));
+        debounced.process(createExchange(OTHER_PATIENT_ID, "u", "Other"));
+        debounced.process(createExchange(PATIENT_ID, "u", "Third"));
+        assertTrue(processed.isEmpty());
+        waitUntilProcessed(2);
+
+        // Verify
+        assertEquals(2, processed.size());
+        assertTrue(processed.contains("u:" + PATIENT_ID + ":Third"));
+        assertTrue(processed.contains("u:" + OTHER_PATIENT_ID + ":Other"));
+        assertEquals(2, patientUpdateDebouncer.getCoalescedCount());
+        assertEquals(2, patientUpdateDebouncer.getEmittedCount());
+        assertEquals(0, patientUpdateDebouncer.getPendingUpdateCount());
+    }
+
+    @Test
+    public void shouldEmitThePendingUpdateBeforeACreateOrDelete() throws Exception {
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "c", "Created"));
+        debounced.process(createExchange(PATIENT_ID, "u", "Updated"));
+        debounced.process(createExchange(PATIENT_ID, "d", "Deleted"));
+
+        // Verify
+        assertEquals(
+                List.of("c:" + PATIENT_ID + ":Created", "u:" + PATIENT_ID + ":Updated", "d:" + PATIENT_ID + ":Deleted"),
+                processed);
+        assertEquals(0, patientUpdateDebouncer.getPendingUpdateCount());
+    }
+
+    @Test
+    public void shouldPassEventsThroughWhenDisabled() throws Exception {
+        // Setup
+        patientUpdateDebouncer.setEnabled(false);
+
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "u", "First"));
+        debounced.process(createExchange(PATIENT_ID, "u", "Second"));
+
+        // Verify
+        assertEquals(List.of("u:" + PATIENT_ID + ":First", "u:" + PATIENT_ID + ":Second"), processed);
+    }
+
+    @Test
+    public void shouldEmitPendingUpdatesOnShutdown() throws Exception {
+        // Setup
+        patientUpdateDebouncer.setQuietPeriod(60000);
+
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "u", "First"));
+        patientUpdateDebouncer.shutdown();
+
+        // Verify
+        assertEquals(List.of("u:" + PATIENT_ID + ":First"), processed);
+    }
+
+    @Test
+    public void shouldEmitPendingUpdatesWhenTheCamelContextIsStopping() throws Exception {
+        // Setup
+        patientUpdateDebouncer.setQuietPeriod(60000);
+
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "u", "First"));
+        context.stop();
+        debounced.process(createExchange(PATIENT_ID, "u", "Second"));
+
+        // Verify
+        assertEquals(List.of("u:" + PATIENT_ID + ":First", "u:" + PATIENT_ID + ":Second"), processed);
+        assertEquals(0, patientUpdateDebouncer.getPendingUpdateCount());
+    }
+
+    @Test
+    public void shouldAddTheEmittedUpdateThatFailedToTheRetryQueue() throws Exception {
+        // Act
+        debounced.process(createExchange(PATIENT_ID, "u", "Failing"));
+        debounced.process(createExchange(PATIENT_ID, "d", "Deleted"));
+
+        // Verify
+        assertEquals(List.of("d:" + PATIENT_ID + ":Deleted"), processed);
+        assertEquals(0, patientUpdateDebouncer.getEmittedCount());
+        assertEquals(1, retried.size());
+        assertEquals(
+                "Failing",
+                retried.get(0)
+                        .getMessage()
+                        .getBody(Patient.class)
+                        .getNameFirstRep()
+                        .getFamily());
+        assertEquals(
+                "Odoo is down",
+                retried.get(0)
+                        .getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class)
+                        .getMessage());
+    }
+
+    private Exchange createExchange(String patientId, String eventType, String familyName) {
+        Patient patient = new Patient();
+        patient.setId(patientId);
+        patient.addName().setFamily(familyName);
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, eventType);
+        exchange.getMessage().setBody(patient);
+        return exchange;
+    }
+
+    private void waitUntilProcessed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && processed.size() < count) {
+            Thread.sleep(10);
+        }
+    }
+}
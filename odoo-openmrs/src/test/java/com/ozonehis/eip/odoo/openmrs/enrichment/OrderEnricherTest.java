@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.enrichment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.openmrs.eip.EIPException;
+
+class OrderEnricherTest {
+
+    private static final String PATIENT_ID = "patient-id-987";
+
+    private static final String VISIT_ID = "visit-id-1234";
+
+    @Mock
+    private PartnerHandler partnerHandler;
+
+    @Mock
+    private SaleOrderHandler saleOrderHandler;
+
+    @Mock
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @InjectMocks
+    private OrderEnricher orderEnricher;
+
+    private ExecutorService executor;
+
+    private AutoCloseable mocksCloser;
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        executor = Executors.newFixedThreadPool(4);
+        orderEnricher.setEnrichmentExecutor(executor);
+        orderEnricher.setTimeout(5000);
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        executor.shutdownNow();
+        mocksCloser.close();
+    }
+
+    @Test
+    public void shouldReturnAllTheLookedUpData() {
+        // Setup
+        Patient patient = new Patient();
+        patient.setId(PATIENT_ID);
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference("Encounter/" + VISIT_ID));
+        MedicationRequest medicationRequest = new MedicationRequest();
+        ProducerTemplate producerTemplate = mock(ProducerTemplate.class);
+        Partner partner = new Partner();
+        SaleOrder saleOrder = new SaleOrder();
+
+        // Mock behavior
+        when(partnerHandler.createOrUpdatePartner(producerTemplate, patient)).thenReturn(partner);
+        when(saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(VISIT_ID)).thenReturn(saleOrder);
+
+        // Act
+        EnrichedOrder result = orderEnricher.enrich(
+                medicationRequest, PATIENT_ID, () -> patient, () -> encounter, true, producerTemplate);
+
+        // Verify
+        assertSame(patient, result.patient());
+        assertSame(encounter, result.encounter());
+        assertSame(partner, result.partner());
+        assertSame(saleOrder, result.draftSaleOrder());
+        assertEquals(VISIT_ID, result.getVisitUuid());
+        verify(saleOrderLineHandler).prefetchProductAndUom(medicationRequest);
+        verify(saleOrderHandler).getPartnerWeight(PATIENT_ID);
+    }
+
+    @Test
+    public void shouldNotSearchDraftSaleOrderWhenNotRequested() {
+        // Setup
+        Patient patient = new Patient();
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference("Encounter/" + VISIT_ID));
+
+        // Act
+        EnrichedOrder result =
+                orderEnricher.enrich(new MedicationRequest(), PATIENT_ID, () -> patient, () -> encounter, false, null);
+
+        // Verify
+        assertNull(result.draftSaleOrder());
+        verify(saleOrderHandler, never()).getDraftSaleOrderIfExistsByVisitId(anyString());
+    }
+
+    @Test
+    public void shouldIgnoreWeightLookupFailure() {
+        // Setup
+        Patient patient = new Patient();
+        Encounter encounter = new Encounter();
+
+        // Mock behavior
+        when(saleOrderHandler.getPartnerWeight(PATIENT_ID)).thenThrow(new EIPException("Odoo is down"));
+
+        // Act
+        EnrichedOrder result =
+                orderEnricher.enrich(new MedicationRequest(), PATIENT_ID, () -> patient, () -> encounter, true, null);
+
+        // Verify
+        assertSame(patient, result.patient());
+        verify(saleOrderHandler, never()).getDraftSaleOrderIfExistsByVisitId(anyString());
+    }
+
+    @Test
+    public void shouldRethrowPartnerUpsertFailure() {
+        // Setup
+        Patient patient = new Patient();
+        Encounter encounter = new Encounter();
+        EIPException failure = new EIPException("Failed to create partner");
+
+        // Mock behavior
+        when(partnerHandler.createOrUpdatePartner(any(), any())).thenThrow(failure);
+
+        // Verify
+        EIPException thrown = assertThrows(
+                EIPException.class,
+                () -> orderEnricher.enrich(
+                        new MedicationRequest(), PATIENT_ID, () -> patient, () -> encounter, false, null));
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    public void shouldFailWhenLookupsDoNotCompleteWithinTimeout() {
+        // Setup
+        CountDownLatch latch = new CountDownLatch(1);
+        orderEnricher.setTimeout(50);
+
+        // Verify
+        assertThrows(
+                EIPException.class,
+                () -> orderEnricher.enrich(
+                        new MedicationRequest(),
+                        PATIENT_ID,
+                        () -> {
+                            try {
+                                latch.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return new Patient();
+                        },
+                        Encounter::new,
+                        false,
+                        null));
+        verify(partnerHandler, never()).createOrUpdatePartner(any(), any());
+        latch.countDown();
+    }
+
+    @Test
+    public void shouldUpsertPartnerOnTheCallingThreadOnceLookupsComplete() {
+        // Setup
+        Patient patient = new Patient();
+        Encounter encounter = new Encounter();
+        AtomicReference<Thread> upsertThread = new AtomicReference<>();
+
+        // Mock behavior
+        when(partnerHandler.createOrUpdatePartner(any(), any())).thenAnswer(invocation -> {
+            upsertThread.set(Thread.currentThread());
+            return new Partner();
+        });
+
+        // Act
+        orderEnricher.enrich(new MedicationRequest(), PATIENT_ID, () -> patient, () -> encounter, false, null);
+
+        // Verify
+        assertSame(Thread.currentThread(), upsertThread.get());
+    }
+}
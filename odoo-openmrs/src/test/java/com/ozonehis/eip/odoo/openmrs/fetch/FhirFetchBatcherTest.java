@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.fetch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IUntypedQuery;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+class FhirFetchBatcherTest {
+
+    private static final String INCLUDES = "MedicationRequest:encounter,MedicationRequest:patient";
+
+    @Mock
+    private IGenericClient openmrsFhirClient;
+
+    @Mock
+    private IUntypedQuery iUntypedQuery;
+
+    @Mock
+    private IQuery iQuery;
+
+    @InjectMocks
+    private FhirFetchBatcher fhirFetchBatcher;
+
+    private static AutoCloseable mocksCloser;
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        fhirFetchBatcher.setEnabled(true);
+        fhirFetchBatcher.setThreads(2);
+        fhirFetchBatcher.setMaxSize(50);
+        fhirFetchBatcher.init();
+        when(openmrsFhirClient.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+        when(openmrsFhirClient.search()).thenReturn(iUntypedQuery);
+        when(iUntypedQuery.forResource("MedicationRequest")).thenReturn(iQuery);
+        when(iQuery.where(any(ICriterion.class))).thenReturn(iQuery);
+        when(iQuery.include(any(Include.class))).thenReturn(iQuery);
+        when(iQuery.count(anyInt())).thenReturn(iQuery);
+        when(iQuery.returnBundle(Bundle.class)).thenReturn(iQuery);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fhirFetchBatcher.shutdown();
+    }
+
+    @Test
+    void shouldSearchRightAwayGivenNoSearchIsRunning() throws Exception {
+        // Setup
+        MedicationRequest medicationRequest = medicationRequest("order-1", "encounter-1", "patient-1");
+
+        // Mock behavior
+        when(iQuery.execute()).thenReturn(bundle(medicationRequest));
+
+        // Act
+        Bundle result =
+                fhirFetchBatcher.start("MedicationRequest", "order-1", INCLUDES).get(1, TimeUnit.SECONDS);
+
+        // Verify
+        assertEquals(List.of(medicationRequest), resources(result));
+        verify(iQuery).count(1);
+    }
+
+    @Test
+    void shouldSearchTheFetchesStartedDuringASearchTogetherAndSplitTheResults() throws Exception {
+        // Setup
+        Patient patient = resource(new Patient(), "patient-1");
+        Encounter encounter1 = resource(new Encounter(), "encounter-1");
+        Encounter encounter2 = resource(new Encounter(), "encounter-2");
+        MedicationRequest medicationRequest1 = medicationRequest("order-1", "encounter-1", "patient-1");
+        MedicationRequest medicationRequest2 = medicationRequest("order-2", "encounter-2", "patient-1");
+        MedicationRequest medicationRequest3 = medicationRequest("order-3", "encounter-2", "patient-1");
+        Bundle bundle =
+                bundle(medicationRequest1, medicationRequest2, medicationRequest3, encounter1, encounter2, patient);
+        CountDownLatch firstSearch = new CountDownLatch(1);
+
+        // Mock behavior
+        when(iQuery.execute()).thenAnswer(invocation -> {
+            firstSearch.await();
+            return bundle;
+        });
+
+        // Act
+        CompletableFuture<Bundle> result1 = fhirFetchBatcher.start("MedicationRequest", "order-1", INCLUDES);
+        CompletableFuture<Bundle> result2 = fhirFetchBatcher.start("MedicationRequest", "order-2", INCLUDES);
+        CompletableFuture<Bundle> result3 = fhirFetchBatcher.start("MedicationRequest", "order-3", INCLUDES);
+        firstSearch.countDown();
+
+        // Verify
+        assertEquals(List.of(medicationRequest1, encounter1, patient), resources(result1.get(1, TimeUnit.SECONDS)));
+        assertEquals(List.of(medicationRequest2, encounter2, patient), resources(result2.get(1, TimeUnit.SECONDS)));
+        assertEquals(List.of(medicationRequest3, encounter2, patient), resources(result3.get(1, TimeUnit.SECONDS)));
+        verify(openmrsFhirClient, times(2)).search();
+        verify(iQuery).count(1);
+        verify(iQuery).count(2);
+        assertEquals(3, fhirFetchBatcher.getFetchCount());
+        assertEquals(2, fhirFetchBatcher.getSearchCount());
+    }
+
+    @Test
+    void shouldSearchBatchAsSoonAsItIsFullWhileASearchIsRunning() throws Exception {
+        // Setup
+        fhirFetchBatcher.setMaxSize(2);
+        MedicationRequest medicationRequest1 = medicationRequest("order-1", "encounter-1", "patient-1");
+        MedicationRequest medicationRequest2 = medicationRequest("order-2", "encounter-1", "patient-1");
+        MedicationRequest medicationRequest3 = medicationRequest("order-3", "encounter-1", "patient-1");
+        CountDownLatch firstSearch = new CountDownLatch(1);
+
+        // Mock behavior
+        when(iQuery.execute())
+                .thenAnswer(invocation -> {
+                    firstSearch.await();
+                    return bundle(medicationRequest1);
+                })
+                .thenReturn(bundle(medicationRequest2, medicationRequest3));
+
+        // Act
+        CompletableFuture<Bundle> result1 = fhirFetchBatcher.start("MedicationRequest", "order-1", INCLUDES);
+        CompletableFuture<Bundle> result2 = fhirFetchBatcher.start("MedicationRequest", "order-2", INCLUDES);
+        CompletableFuture<Bundle> result3 = fhirFetchBatcher.start("MedicationRequest", "order-3", INCLUDES);
+
+        // Verify
+        assertEquals(List.of(medicationRequest2), resources(result2.get(1, TimeUnit.SECONDS)));
+        assertEquals(List.of(medicationRequest3), resources(result3.get(1, TimeUnit.SECONDS)));
+        assertFalse(result1.isDone());
+        firstSearch.countDown();
+        assertEquals(List.of(medicationRequest1), resources(result1.get(1, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void shouldReturnEmptyBundleGivenResourceIsNotFound() throws Exception {
+        // Setup
+        fhirFetchBatcher.setMaxSize(1);
+
+        // Mock behavior
+        when(iQuery.execute()).thenReturn(new Bundle());
+
+        // Act
+        Bundle result = fetch("order-1");
+
+        // Verify
+        assertTrue(result.getEntry().isEmpty());
+    }
+
+    @Test
+    void shouldThrowSearchErrorToEveryFetchOfTheBatch() {
+        // Setup
+        fhirFetchBatcher.setMaxSize(1);
+
+        // Mock behavior
+        when(iQuery.execute()).thenThrow(new IllegalStateException("Connection refused"));
+
+        // Verify
+        assertThrows(IllegalStateException.class, () -> fetch("order-1"));
+    }
+
+    private Bundle fetch(String id) throws Exception {
+        return fhirFetchBatcher.fetch("MedicationRequest", id, INCLUDES);
+    }
+
+    private static <T extends Resource> T resource(T resource, String id) {
+        resource.setId(id);
+        return resource;
+    }
+
+    private static MedicationRequest medicationRequest(String id, String encounterId, String patientId) {
+        MedicationRequest medicationRequest = resource(new MedicationRequest(), id);
+        medicationRequest.setEncounter(new Reference("Encounter/" + encounterId));
+        medicationRequest.setSubject(new Reference("Patient/" + patientId));
+        return medicationRequest;
+    }
+
+    private static Bundle bundle(Resource... resources) {
+        Bundle bundle = new Bundle();
+        for (Resource resource : resources) {
+            bundle.addEntry().setResource(resource);
+        }
+        return bundle;
+    }
+
+    private static List<Resource> resources(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .toList();
+    }
+}
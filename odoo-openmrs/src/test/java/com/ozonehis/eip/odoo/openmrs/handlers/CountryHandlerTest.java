@@ -12,10 +12,13 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.CountryHandler;
 import org.junit.jupiter.api.AfterAll;
@@ -42,6 +45,7 @@ class CountryHandlerTest {
     @BeforeEach
     public void setup() {
         mocksCloser = openMocks(this);
+        countryHandler.setCountryCache(new LookupCache<>("countries", 10));
     }
 
     @Test
@@ -62,6 +66,25 @@ class CountryHandlerTest {
         assertEquals(10, id);
     }
 
+    @Test
+    public void shouldSearchCountryOnlyOnceWhenCached() {
+        // Setup
+        String countryName = "India";
+        Integer[] countryIds = {10};
+
+        // Mock behavior
+        when(odooClient.search(Constants.COUNTRY_MODEL, asList("name", "=", countryName)))
+                .thenReturn(countryIds);
+
+        // Act
+        countryHandler.getCountryId(countryName);
+        Integer id = countryHandler.getCountryId(countryName);
+
+        // Verify
+        assertEquals(10, id);
+        verify(odooClient, times(1)).search(Constants.COUNTRY_MODEL, asList("name", "=", countryName));
+    }
+
     @Test
     public void shouldThrowErrorWhenMultipleCountriesExistsWithSameId() {
         // Setup
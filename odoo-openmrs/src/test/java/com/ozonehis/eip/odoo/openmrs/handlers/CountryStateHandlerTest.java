@@ -16,6 +16,7 @@ import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.CountryStateHandler;
 import org.junit.jupiter.api.AfterAll;
@@ -42,6 +43,7 @@ class CountryStateHandlerTest {
     @BeforeEach
     public void setup() {
         mocksCloser = openMocks(this);
+        countryStateHandler.setCountryStateCache(new LookupCache<>("states", 10));
     }
 
     @Test
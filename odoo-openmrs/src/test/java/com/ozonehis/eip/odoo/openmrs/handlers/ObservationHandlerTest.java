@@ -10,6 +10,7 @@ package com.ozonehis.eip.odoo.openmrs.handlers;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
@@ -81,6 +82,8 @@ class ObservationHandlerTest {
         when(iQuery.and(any(ICriterion.class))).thenReturn(iQuery);
         when(iQuery.sort()).thenReturn(iSort);
         when(iSort.descending(any(IParam.class))).thenReturn(iQuery);
+        when(iQuery.count(1)).thenReturn(iQuery);
+        when(iQuery.elementsSubset(any(String[].class))).thenReturn(iQuery);
         when(iQuery.returnBundle(Bundle.class)).thenReturn(iQuery);
         when(iQuery.execute()).thenReturn(bundle);
 
@@ -90,5 +93,6 @@ class ObservationHandlerTest {
         // Verify
         assertNotNull(result);
         assertEquals(observationID, result.getId());
+        verify(iQuery).count(1);
     }
 }
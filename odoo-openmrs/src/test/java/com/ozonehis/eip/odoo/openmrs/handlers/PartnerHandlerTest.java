@@ -13,12 +13,15 @@ import static org.junit.Assert.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
@@ -59,6 +62,8 @@ class PartnerHandlerTest {
 
     private static AutoCloseable mocksCloser;
 
+    private final UuidIntIndex partnerIndex = new UuidIntIndex("partners");
+
     @AfterAll
     public static void close() throws Exception {
         mocksCloser.close();
@@ -67,6 +72,8 @@ class PartnerHandlerTest {
     @BeforeEach
     public void setup() {
         mocksCloser = openMocks(this);
+        partnerHandler.setPartnerIndex(partnerIndex);
+        partnerHandler.setKnownRefsFilter(new KnownRefsFilter());
         Environment mockEnvironment = Mockito.mock(Environment.class);
         when(mockEnvironment.getProperty("odoo.customer.weight.field")).thenReturn("x_customer_weight");
         odooUtils = new OdooUtils();
@@ -168,6 +175,30 @@ class PartnerHandlerTest {
                 .sendBodyAndHeaders(eq("direct:odoo-create-partner-route"), eq(getPartner()), eq(headers));
     }
 
+    @Test
+    public void shouldUpdatePartnerWithoutSearchingWhenPartnerIdIsIndexed() {
+        // Setup
+        Patient patient = new Patient();
+        patient.setId(PARTNER_REF_ID);
+        partnerIndex.put(PARTNER_REF_ID, 12);
+
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, List.of(12));
+
+        // Mock behavior
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        when(partnerMapper.toOdoo(patient)).thenReturn(getPartner());
+
+        // Act
+        Partner result = partnerHandler.createOrUpdatePartner(producerTemplate, patient);
+
+        // Verify
+        assertEquals(12, result.getPartnerId());
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders(eq("direct:odoo-update-partner-route"), eq(getPartner()), eq(headers));
+        verify(odooClient, never()).searchAndRead(any(), any(), any());
+    }
+
     private Map<String, Object> getPartnerMap() {
         Map<String, Object> partnerMap = new HashMap<>();
         partnerMap.put("id", 12);
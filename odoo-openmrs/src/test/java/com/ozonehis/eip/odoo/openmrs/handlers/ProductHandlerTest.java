@@ -15,6 +15,7 @@ import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
@@ -88,6 +89,7 @@ class ProductHandlerTest {
     @BeforeEach
     public void setup() {
         mocksCloser = openMocks(this);
+        productHandler.setProductCache(new LookupCache<>("products", 10));
         Environment mockEnvironment = Mockito.mock(Environment.class);
         when(mockEnvironment.getProperty("odoo.customer.weight.field")).thenReturn("x_customer_weight");
         odooUtils = new OdooUtils();
@@ -12,41 +12,56 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderBatch;
+import com.ozonehis.eip.odoo.openmrs.cache.KnownRefsFilter;
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache;
+import com.ozonehis.eip.odoo.openmrs.cache.UuidIntIndex;
 import com.ozonehis.eip.odoo.openmrs.client.OdooClient;
 import com.ozonehis.eip.odoo.openmrs.client.OdooUtils;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
-import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.ObservationHandler;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderMapper;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.Product;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import com.ozonehis.eip.odoo.openmrs.unitofwork.OdooUnitOfWork;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
 import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.MedicationRequest;
-import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.openmrs.eip.EIPException;
 import org.springframework.core.env.Environment;
 
@@ -65,10 +80,15 @@ class SaleOrderHandlerTest {
     private ProductHandler productHandler;
 
     @Mock
-    private ObservationHandler observationHandler;
+    private PatientWeightCache patientWeightCache;
 
     private OdooUtils odooUtils;
 
+    private final UuidIntIndex visitIndex = new UuidIntIndex("visits");
+
+    @Spy
+    private VisitLocks visitLocks = new VisitLocks();
+
     @InjectMocks
     private SaleOrderHandler saleOrderHandler;
 
@@ -76,8 +96,6 @@ class SaleOrderHandlerTest {
 
     private static final String VISIT_ID_1 = "e5ca6578-fb37-4900-a054-c68db82a551c";
 
-    private static final String OBSERVATION_ID = "h4ca6578-db37-2910-c055-c90db82a919c";
-
     private static final String PATIENT_ID = "patient-id-987";
 
     private static final int PARTNER_ID = 12;
@@ -95,6 +113,8 @@ class SaleOrderHandlerTest {
         odooUtils = new OdooUtils();
         odooUtils.setEnvironment(mockEnvironment);
         saleOrderHandler.setOdooUtils(odooUtils);
+        saleOrderHandler.setVisitIndex(visitIndex);
+        saleOrderHandler.setKnownRefsFilter(new KnownRefsFilter());
     }
 
     @Test
@@ -121,6 +141,59 @@ class SaleOrderHandlerTest {
         assertEquals(12, result.getOrderPartnerId());
     }
 
+    @Test
+    public void shouldReadSaleOrderByIdWhenVisitIsIndexed() {
+        // Setup
+        visitIndex.put(VISIT_ID_1, 1);
+        Object[] saleOrders = {getSaleOrderMap(1, VISIT_ID_1, "draft", 12)};
+
+        // Mock behavior
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(
+                                asList("id", "=", 1),
+                                asList("client_order_ref", "=", VISIT_ID_1),
+                                asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(saleOrders);
+
+        // Act
+        SaleOrder result = saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(VISIT_ID_1);
+
+        // Verify
+        assertEquals(1, result.getOrderId());
+        verify(odooClient, times(1)).searchAndRead(any(), any(), any());
+    }
+
+    @Test
+    public void shouldSearchByVisitIdWhenIndexedSaleOrderIsNoLongerDraft() {
+        // Setup
+        visitIndex.put(VISIT_ID_1, 1);
+        Object[] saleOrders = {getSaleOrderMap(2, VISIT_ID_1, "draft", 12)};
+
+        // Mock behavior
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(
+                                asList("id", "=", 1),
+                                asList("client_order_ref", "=", VISIT_ID_1),
+                                asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {});
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(saleOrders);
+
+        // Act
+        SaleOrder result = saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(VISIT_ID_1);
+
+        // Verify
+        assertEquals(2, result.getOrderId());
+        assertEquals(2, visitIndex.get(VISIT_ID_1));
+    }
+
     @Test
     public void shouldThrowErrorWhenMultipleSaleOrderExistsWithSameVisitId() {
         // Setup
@@ -176,69 +249,224 @@ class SaleOrderHandlerTest {
     public void shouldUpdateSaleOrderWithSaleOrderLine() {
         // Setup
         SaleOrderLine saleOrderLine = new SaleOrderLine();
-        SaleOrder saleOrder = new SaleOrder();
+        saleOrderLine.setSaleOrderLineProductId(7);
+        saleOrderLine.setSaleOrderLineOrderId(1);
+        SaleOrder saleOrder = getSaleOrder();
         Resource resource = new MedicationRequest();
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+
+        Product product = new Product();
+        product.setProductResId(7);
 
         // Mock behaviour
-        when(saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder))
-                .thenReturn(saleOrderLine);
-        when(observationHandler.getObservationBySubjectIDAndConceptID(eq(PATIENT_ID), any()))
-                .thenReturn(null);
-        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.buildSaleOrderLine(resource, product)).thenReturn(saleOrderLine);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+
+        // Act
+        saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
+                resource, saleOrder, VISIT_ID_1, PARTNER_ID, PATIENT_ID, unitOfWork);
+
+        // Verify
+        List<SaleOrder> changedSaleOrders = unitOfWork.drain();
+        assertEquals(1, changedSaleOrders.size());
+        assertEquals("70 kg", changedSaleOrders.get(0).getPartnerWeight());
+        assertEquals(1, changedSaleOrders.get(0).getOrderLine().size());
+        List<?> command = (List<?>) changedSaleOrders.get(0).getOrderLine().get(0);
+        assertEquals(0, command.get(0));
+        Map<?, ?> lineValues = (Map<?, ?>) command.get(2);
+        assertEquals(7, lineValues.get("product_id"));
+        Assertions.assertFalse(lineValues.containsKey("order_id"));
+    }
+
+    @Test
+    public void shouldUpdateExistingSaleOrderLineInPlaceWhenItChanged() {
+        // Setup
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineProductUomQty(20.0f);
+        SaleOrderLine existingLine = new SaleOrderLine();
+        existingLine.setSaleOrderLineId(5);
+        existingLine.setSaleOrderLineProductUomQty(10.0f);
+        SaleOrder saleOrder = getSaleOrder();
+        Resource resource = new MedicationRequest();
+        Product product = new Product();
+        product.setProductResId(7);
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+
+        // Mock behaviour
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.buildSaleOrderLine(resource, product)).thenReturn(saleOrderLine);
+        when(saleOrderLineHandler.getSaleOrderLineIfExists(1, 7)).thenReturn(existingLine);
+        when(saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine))
+                .thenReturn(Map.of("product_uom_qty", 20.0f));
+
+        // Act
+        saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
+                resource, saleOrder, VISIT_ID_1, PARTNER_ID, PATIENT_ID, unitOfWork);
+
+        // Verify
+        List<SaleOrder> changedSaleOrders = unitOfWork.drain();
+        assertEquals(1, changedSaleOrders.size());
+        assertEquals(
+                List.of(asList(1, 5, Map.of("product_uom_qty", 20.0f))),
+                changedSaleOrders.get(0).getOrderLine());
+        verify(patientWeightCache, never()).getWeight(any());
+    }
+
+    @Test
+    public void shouldSkipExistingSaleOrderLineWhenItIsUpToDate() {
+        // Setup
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        SaleOrderLine existingLine = new SaleOrderLine();
+        existingLine.setSaleOrderLineId(5);
+        Resource resource = new MedicationRequest();
+        Product product = new Product();
+        product.setProductResId(7);
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+
+        // Mock behaviour
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.buildSaleOrderLine(resource, product)).thenReturn(saleOrderLine);
+        when(saleOrderLineHandler.getSaleOrderLineIfExists(1, 7)).thenReturn(existingLine);
+        when(saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine))
+                .thenReturn(Map.of());
 
         // Act
         saleOrderHandler.updateSaleOrderIfExistsWithSaleOrderLine(
-                resource, saleOrder, VISIT_ID_1, PARTNER_ID, PATIENT_ID, producerTemplate);
+                resource, getSaleOrder(), VISIT_ID_1, PARTNER_ID, PATIENT_ID, unitOfWork);
 
         // Verify
-        verify(producerTemplate, times(1)).sendBody("direct:odoo-create-sale-order-line-route", saleOrderLine);
+        assertTrue(unitOfWork.drain().isEmpty());
     }
 
     @Test
     public void shouldCreateSaleOrderWithSaleOrderLine() {
         // Setup
-        int partnerId = 12;
         SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineProductId(7);
+        saleOrderLine.setSaleOrderLineProductUomQty(5.0f);
         Encounter encounter = new Encounter();
-        SaleOrder saleOrder = getSaleOrder();
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderClientOrderRef(VISIT_ID_1);
         Resource resource = new MedicationRequest();
-        Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        Exchange createdExchange = new DefaultExchange(new DefaultCamelContext());
+        createdExchange.getMessage().setHeader(Constants.HEADER_ODOO_CREATED_ID, 1);
+
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
 
         // Mock behaviour
         when(saleOrderMapper.toOdoo(encounter)).thenReturn(saleOrder);
-        when(odooClient.searchAndRead(
-                        eq(Constants.SALE_ORDER_MODEL),
-                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
-                        any()))
-                .thenReturn(new Object[] {saleOrderMap});
-        when(saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder))
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(resource))
                 .thenReturn(saleOrderLine);
-        when(observationHandler.getObservationBySubjectIDAndConceptID(eq(PATIENT_ID), any()))
-                .thenReturn(null);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any()))
+                .thenReturn(new Object[] {});
+        when(producerTemplate.send(eq("direct:odoo-create-sale-order-route"), any(Processor.class)))
+                .thenReturn(createdExchange);
+
+        // Act
+        SaleOrder result = saleOrderHandler.createSaleOrderWithSaleOrderLine(
+                resource, encounter, partner, VISIT_ID_1, PATIENT_ID, producerTemplate);
+
+        // Verify
+        assertEquals(1, result.getOrderId());
+        assertEquals(PARTNER_ID, result.getOrderPartnerId());
+        assertEquals("70 kg", result.getPartnerWeight());
+        assertEquals(1, result.getOrderLine().size());
+        List<?> command = (List<?>) result.getOrderLine().get(0);
+        assertEquals(0, command.get(0));
+        assertEquals(0, command.get(1));
+        Map<?, ?> lineValues = (Map<?, ?>) command.get(2);
+        assertEquals(7, lineValues.get("product_id"));
+        assertEquals(5.0f, lineValues.get("product_uom_qty"));
+        Assertions.assertFalse(lineValues.containsKey("order_id"));
+        assertEquals(1, visitIndex.get(VISIT_ID_1));
+        verify(producerTemplate, never()).sendBody(eq("direct:odoo-create-sale-order-line-route"), any());
+        verify(odooClient, never()).searchAndRead(eq(Constants.SALE_ORDER_LINE_MODEL), any(), any());
+    }
+
+    @Test
+    public void shouldCreateSaleOrderWithoutSaleOrderLineWhenProductDoesNotExist() {
+        // Setup
+        Encounter encounter = new Encounter();
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderClientOrderRef(VISIT_ID_1);
+        Resource resource = new MedicationRequest();
         ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        Exchange createdExchange = new DefaultExchange(new DefaultCamelContext());
+        createdExchange.getMessage().setHeader(Constants.HEADER_ODOO_CREATED_ID, 1);
 
         Partner partner = new Partner();
         partner.setPartnerId(PARTNER_ID);
 
+        // Mock behaviour
+        when(saleOrderMapper.toOdoo(encounter)).thenReturn(saleOrder);
+        when(saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(resource))
+                .thenReturn(null);
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any()))
+                .thenReturn(new Object[] {});
+        when(producerTemplate.send(eq("direct:odoo-create-sale-order-route"), any(Processor.class)))
+                .thenReturn(createdExchange);
+
         // Act
-        saleOrderHandler.createSaleOrderWithSaleOrderLine(
+        SaleOrder result = saleOrderHandler.createSaleOrderWithSaleOrderLine(
                 resource, encounter, partner, VISIT_ID_1, PATIENT_ID, producerTemplate);
 
         // Verify
-        verify(producerTemplate, times(1))
-                .sendBodyAndHeaders("direct:odoo-create-sale-order-route", saleOrder, new HashMap<>());
-        verify(producerTemplate, times(1)).sendBody("direct:odoo-create-sale-order-line-route", saleOrderLine);
+        assertEquals(1, result.getOrderId());
+        assertNull(result.getOrderLine());
+        assertNull(result.getPartnerWeight());
+    }
+
+    @Test
+    public void shouldAddSaleOrderLineToDraftSaleOrderCreatedSinceItWasLookedUp() {
+        // Setup
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineProductId(7);
+        Resource resource = new MedicationRequest();
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        Product product = new Product();
+        product.setProductResId(7);
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        Object[] saleOrders = {getSaleOrderMap(1, VISIT_ID_1, "draft", PARTNER_ID)};
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(saleOrders);
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.buildSaleOrderLine(resource, product)).thenReturn(saleOrderLine);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+
+        // Act
+        SaleOrder result = saleOrderHandler.createSaleOrderWithSaleOrderLine(
+                resource, new Encounter(), partner, VISIT_ID_1, PATIENT_ID, producerTemplate);
+
+        // Verify
+        assertEquals(1, result.getOrderId());
+        verify(saleOrderMapper, never()).toOdoo(any());
+        verify(producerTemplate, never()).send(eq("direct:odoo-create-sale-order-route"), any(Processor.class));
+        verify(producerTemplate).sendBodyAndHeaders(eq("direct:odoo-update-sale-order-route"), eq(result), any());
+        assertEquals(1, result.getOrderLine().size());
     }
 
     @Test
     public void shouldDeleteSaleOrderLine() {
         // Setup
         SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineId(5);
         Product product = new Product();
         product.setProductResId(123);
         SaleOrder saleOrder = getSaleOrder();
         Resource resource = new MedicationRequest();
         Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        saleOrderMap.put("order_line", List.of(5, 6));
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
 
         // Mock behaviour
         when(odooClient.searchAndRead(
@@ -249,27 +477,55 @@ class SaleOrderHandlerTest {
         when(productHandler.getProduct(resource)).thenReturn(product);
         when(saleOrderLineHandler.getSaleOrderLineIfExists(saleOrder.getOrderId(), product.getProductResId()))
                 .thenReturn(saleOrderLine);
-        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
 
         // Act
-        saleOrderHandler.deleteSaleOrderLine(resource, VISIT_ID_1, producerTemplate);
+        saleOrderHandler.deleteSaleOrderLine(resource, VISIT_ID_1, unitOfWork);
 
         // Verify
-        verify(saleOrderLineHandler, times(1))
-                .sendSaleOrderLine(producerTemplate, "direct:odoo-delete-sale-order-line-route", saleOrderLine);
+        List<SaleOrder> changedSaleOrders = unitOfWork.drain();
+        assertEquals(1, changedSaleOrders.size());
+        assertEquals(List.of(asList(2, 5, 0)), changedSaleOrders.get(0).getOrderLine());
+        assertEquals("draft", changedSaleOrders.get(0).getOrderState());
     }
 
     @Test
-    public void shouldCancelSaleOrderWhenNoSaleOrderLine() {
+    public void shouldKeepSaleOrderLineOfRevisedOrderWhenRevisionUpdatedIt() {
         // Setup
-        int partnerId = 12;
+        SaleOrderLine existingLine = new SaleOrderLine();
+        existingLine.setSaleOrderLineId(5);
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
         Product product = new Product();
         product.setProductResId(123);
+        Resource resource = new MedicationRequest();
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any()))
+                .thenReturn(new Object[] {getSaleOrderMap(1, VISIT_ID_1, "draft", 12)});
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.getSaleOrderLineIfExists(1, 123)).thenReturn(existingLine);
+        when(saleOrderLineHandler.buildSaleOrderLine(resource, product)).thenReturn(saleOrderLine);
+        when(saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine))
+                .thenReturn(Map.of("product_uom_qty", 20.0f));
+
+        // Act
+        saleOrderHandler.deleteSaleOrderLineOfRevisedOrder(resource, VISIT_ID_1, unitOfWork);
+
+        // Verify
+        assertTrue(unitOfWork.drain().isEmpty());
+    }
+
+    @Test
+    public void shouldCancelSaleOrderWhenNoSaleOrderLine() {
+        // Setup
+        int partnerId = 12;
         SaleOrder saleOrder = getSaleOrder();
         saleOrder.setOrderState("cancel");
+        saleOrder.setOrderLine(List.of());
         Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
         Map<String, Object> saleOrderHeaders = new HashMap<>();
         saleOrderHeaders.put(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, List.of(saleOrder.getOrderId()));
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
 
         // Mock behaviour
         when(odooClient.searchAndRead(
@@ -280,13 +536,268 @@ class SaleOrderHandlerTest {
         ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
 
         // Act
-        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(partnerId, VISIT_ID_1, producerTemplate);
+        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(partnerId, VISIT_ID_1, unitOfWork);
+        saleOrderHandler.flush(unitOfWork, producerTemplate);
 
         // Verify
         verify(producerTemplate, times(1))
                 .sendBodyAndHeaders("direct:odoo-update-sale-order-route", saleOrder, saleOrderHeaders);
     }
 
+    @Test
+    public void shouldDeleteLastSaleOrderLineAndCancelSaleOrderInOneWrite() {
+        // Setup
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineId(5);
+        Product product = new Product();
+        product.setProductResId(123);
+        Resource resource = new MedicationRequest();
+        Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        saleOrderMap.put("order_line", List.of(5));
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any()))
+                .thenReturn(new Object[] {saleOrderMap});
+        when(productHandler.getProduct(resource)).thenReturn(product);
+        when(saleOrderLineHandler.getSaleOrderLineIfExists(1, 123)).thenReturn(saleOrderLine);
+
+        // Act
+        saleOrderHandler.deleteSaleOrderLine(resource, VISIT_ID_1, unitOfWork);
+        saleOrderHandler.cancelSaleOrderWhenNoSaleOrderLine(PARTNER_ID, VISIT_ID_1, unitOfWork);
+        saleOrderHandler.flush(unitOfWork, producerTemplate);
+
+        // Verify
+        SaleOrder expectedSaleOrder = getSaleOrder();
+        expectedSaleOrder.setOrderState("cancel");
+        expectedSaleOrder.setOrderLine(List.of(asList(2, 5, 0)));
+        verify(producerTemplate, times(1)).sendBodyAndHeaders(anyString(), any(), any());
+        verify(producerTemplate)
+                .sendBodyAndHeaders(
+                        "direct:odoo-update-sale-order-route",
+                        expectedSaleOrder,
+                        Map.of(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, List.of(1)));
+        verify(odooClient, times(1)).searchAndRead(eq(Constants.SALE_ORDER_MODEL), any(), any());
+        verify(saleOrderLineHandler, never()).sendSaleOrderLine(any(), any(), any());
+    }
+
+    @Test
+    public void shouldWriteAddedAndRemovedSaleOrderLinesOfVisitInOneCall() {
+        // Setup
+        SaleOrderLine addedLine = new SaleOrderLine();
+        addedLine.setSaleOrderLineProductId(7);
+        SaleOrderLine existingLine = new SaleOrderLine();
+        existingLine.setSaleOrderLineProductId(8);
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.addLine(addedLine, new Encounter(), partner, PATIENT_ID);
+        batch.addLine(existingLine, new Encounter(), partner, PATIENT_ID);
+        batch.removeLine(9, new Encounter(), partner, PATIENT_ID, true);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {getSaleOrderMap(1, VISIT_ID_1, "draft", 12)});
+        when(saleOrderLineHandler.getSaleOrderLineIdsByProduct(1)).thenReturn(Map.of(8, 80, 9, 90));
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+
+        // Act
+        saleOrderHandler.writeVisitOrderChanges(batch, producerTemplate);
+
+        // Verify
+        ArgumentCaptor<SaleOrder> saleOrderCaptor = ArgumentCaptor.forClass(SaleOrder.class);
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders(eq("direct:odoo-update-sale-order-route"), saleOrderCaptor.capture(), any());
+        SaleOrder result = saleOrderCaptor.getValue();
+        assertEquals(2, result.getOrderLine().size());
+        List<?> createCommand = (List<?>) result.getOrderLine().get(0);
+        assertEquals(0, createCommand.get(0));
+        assertEquals(7, ((Map<?, ?>) createCommand.get(2)).get("product_id"));
+        assertEquals(asList(2, 90, 0), result.getOrderLine().get(1));
+        assertEquals("draft", result.getOrderState());
+        assertEquals("70 kg", result.getPartnerWeight());
+        verify(producerTemplate, never()).sendBody(eq("direct:odoo-create-sale-order-line-route"), any());
+    }
+
+    @Test
+    public void shouldCancelSaleOrderWhenVisitChangesRemoveItsLastLine() {
+        // Setup
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.removeLine(9, new Encounter(), partner, PATIENT_ID, true);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {getSaleOrderMap(1, VISIT_ID_1, "draft", 12)});
+        when(saleOrderLineHandler.getSaleOrderLineIdsByProduct(1)).thenReturn(Map.of(9, 90));
+
+        // Act
+        saleOrderHandler.writeVisitOrderChanges(batch, producerTemplate);
+
+        // Verify
+        ArgumentCaptor<SaleOrder> saleOrderCaptor = ArgumentCaptor.forClass(SaleOrder.class);
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders(eq("direct:odoo-update-sale-order-route"), saleOrderCaptor.capture(), any());
+        assertEquals(List.of(asList(2, 90, 0)), saleOrderCaptor.getValue().getOrderLine());
+        assertEquals("cancel", saleOrderCaptor.getValue().getOrderState());
+    }
+
+    @Test
+    public void shouldCreateSaleOrderWithAllAddedLinesWhenVisitHasNoDraftSaleOrder() {
+        // Setup
+        SaleOrderLine firstLine = new SaleOrderLine();
+        firstLine.setSaleOrderLineProductId(7);
+        SaleOrderLine secondLine = new SaleOrderLine();
+        secondLine.setSaleOrderLineProductId(8);
+        Encounter encounter = new Encounter();
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderClientOrderRef(VISIT_ID_1);
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.addLine(firstLine, encounter, partner, PATIENT_ID);
+        batch.addLine(secondLine, encounter, partner, PATIENT_ID);
+        batch.removeLine(9, encounter, partner, PATIENT_ID, false);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+        Exchange createdExchange = new DefaultExchange(new DefaultCamelContext());
+        createdExchange.getMessage().setHeader(Constants.HEADER_ODOO_CREATED_ID, 1);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(any(), any(), any())).thenReturn(new Object[] {});
+        when(saleOrderMapper.toOdoo(encounter)).thenReturn(saleOrder);
+        when(producerTemplate.send(eq("direct:odoo-create-sale-order-route"), any(Processor.class)))
+                .thenReturn(createdExchange);
+
+        // Act
+        saleOrderHandler.writeVisitOrderChanges(batch, producerTemplate);
+
+        // Verify
+        assertEquals(2, saleOrder.getOrderLine().size());
+        assertEquals(1, saleOrder.getOrderId());
+        assertEquals(1, visitIndex.get(VISIT_ID_1));
+        verify(saleOrderLineHandler, never()).getSaleOrderLineIdsByProduct(anyInt());
+        verify(producerTemplate, never()).sendBodyAndHeaders(anyString(), any(), any());
+    }
+
+    @Test
+    public void shouldReconcileSaleOrderOfVisitWithStateOfItsOrders() {
+        // Setup
+        SaleOrderLine revisedLine = getSaleOrderLine(null, 7, 2f);
+        SaleOrderLine newLine = getSaleOrderLine(null, 10, 1f);
+        Map<Integer, SaleOrderLine> activeLines = new LinkedHashMap<>();
+        activeLines.put(7, revisedLine);
+        activeLines.put(10, newLine);
+        SaleOrderLine existingLine = getSaleOrderLine(70, 7, 1f);
+        Map<Integer, SaleOrderLine> existingLines =
+                Map.of(7, existingLine, 8, getSaleOrderLine(80, 8, 1f), 9, getSaleOrderLine(90, 9, 1f));
+        Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        saleOrderMap.put("order_line", List.of(70, 80, 90));
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.addEvent(new Encounter(), partner, PATIENT_ID);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {saleOrderMap});
+        when(saleOrderLineHandler.getSaleOrderLinesByProduct(1)).thenReturn(existingLines);
+        when(saleOrderLineHandler.getSaleOrderLineChanges(existingLine, revisedLine))
+                .thenReturn(Map.of("product_uom_qty", 2f));
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+
+        // Act
+        saleOrderHandler.writeVisitOrderState(batch, activeLines, Set.of(7, 8, 10), producerTemplate);
+
+        // Verify
+        ArgumentCaptor<SaleOrder> saleOrderCaptor = ArgumentCaptor.forClass(SaleOrder.class);
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders(eq("direct:odoo-update-sale-order-route"), saleOrderCaptor.capture(), any());
+        SaleOrder result = saleOrderCaptor.getValue();
+        assertEquals(3, result.getOrderLine().size());
+        assertEquals(
+                asList(1, 70, Map.of("product_uom_qty", 2f)),
+                result.getOrderLine().get(0));
+        List<?> createCommand = (List<?>) result.getOrderLine().get(1);
+        assertEquals(0, createCommand.get(0));
+        assertEquals(10, ((Map<?, ?>) createCommand.get(2)).get("product_id"));
+        assertEquals(asList(2, 80, 0), result.getOrderLine().get(2));
+        assertEquals("draft", result.getOrderState());
+        assertEquals("70 kg", result.getPartnerWeight());
+    }
+
+    @Test
+    public void shouldNotWriteSaleOrderOfVisitAlreadyInLineWithItsOrders() {
+        // Setup
+        SaleOrderLine activeLine = getSaleOrderLine(null, 7, 1f);
+        SaleOrderLine existingLine = getSaleOrderLine(70, 7, 1f);
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.addEvent(new Encounter(), partner, PATIENT_ID);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {getSaleOrderMap(1, VISIT_ID_1, "draft", 12)});
+        when(saleOrderLineHandler.getSaleOrderLinesByProduct(1)).thenReturn(Map.of(7, existingLine));
+        when(saleOrderLineHandler.getSaleOrderLineChanges(existingLine, activeLine))
+                .thenReturn(Map.of());
+
+        // Act
+        saleOrderHandler.writeVisitOrderState(batch, Map.of(7, activeLine), Set.of(7, 8), producerTemplate);
+
+        // Verify
+        verify(producerTemplate, never()).sendBodyAndHeaders(anyString(), any(), any());
+        verify(patientWeightCache, never()).getWeight(any());
+    }
+
+    @Test
+    public void shouldCancelSaleOrderWhenReconciliationRemovesItsLastLine() {
+        // Setup
+        Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        saleOrderMap.put("order_line", List.of(80));
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID_1);
+        batch.addEvent(new Encounter(), partner, PATIENT_ID);
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("client_order_ref", "=", VISIT_ID_1), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {saleOrderMap});
+        when(saleOrderLineHandler.getSaleOrderLinesByProduct(1)).thenReturn(Map.of(8, getSaleOrderLine(80, 8, 1f)));
+
+        // Act
+        saleOrderHandler.writeVisitOrderState(batch, Map.of(), Set.of(8), producerTemplate);
+
+        // Verify
+        ArgumentCaptor<SaleOrder> saleOrderCaptor = ArgumentCaptor.forClass(SaleOrder.class);
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders(eq("direct:odoo-update-sale-order-route"), saleOrderCaptor.capture(), any());
+        assertEquals(List.of(asList(2, 80, 0)), saleOrderCaptor.getValue().getOrderLine());
+        assertEquals("cancel", saleOrderCaptor.getValue().getOrderState());
+    }
+
     public Map<String, Object> getSaleOrderMap(int id, String clientOrderRef, String state, int partnerId) {
         Map<String, Object> saleOrderMap = new HashMap<>();
         saleOrderMap.put("id", id);
@@ -305,16 +816,18 @@ class SaleOrderHandlerTest {
         return saleOrder;
     }
 
+    private SaleOrderLine getSaleOrderLine(Integer id, int productId, float quantity) {
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineId(id);
+        saleOrderLine.setSaleOrderLineProductId(productId);
+        saleOrderLine.setSaleOrderLineProductUomQty(quantity);
+        return saleOrderLine;
+    }
+
     @Test
     void shouldReturnPatientWeightGivenPatientID() {
-        // Setup
-        Observation observation = new Observation();
-        observation.setId(OBSERVATION_ID);
-        observation.setValue(new Quantity().setValue(67).setUnit("Kg"));
-
         // Mock
-        when(observationHandler.getObservationBySubjectIDAndConceptID(eq(PATIENT_ID), any()))
-                .thenReturn(observation);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("67 Kg");
 
         // Act
         String result = saleOrderHandler.getPartnerWeight(PATIENT_ID);
@@ -324,10 +837,9 @@ class SaleOrderHandlerTest {
     }
 
     @Test
-    void shouldReturnNullWhenObservationIsNull() {
+    void shouldReturnNullWhenPatientWeightIsNotKnown() {
         // Mock
-        when(observationHandler.getObservationBySubjectIDAndConceptID(eq(PATIENT_ID), any()))
-                .thenReturn(null);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn(null);
 
         // Act
         String result = saleOrderHandler.getPartnerWeight(PATIENT_ID);
@@ -335,4 +847,30 @@ class SaleOrderHandlerTest {
         // Assert
         Assertions.assertNull(result);
     }
+
+    @Test
+    void shouldUpdateDraftSaleOrdersOfPatientWithNewWeight() {
+        // Setup
+        Map<String, Object> saleOrderMap = getSaleOrderMap(1, VISIT_ID_1, "draft", 12);
+        saleOrderMap.put("partner_id", List.of(PARTNER_ID, "John Doe"));
+        Map<String, Object> saleOrderHeaders = new HashMap<>();
+        saleOrderHeaders.put(Constants.HEADER_ODOO_ID_ATTRIBUTE_VALUE, List.of(1));
+        ProducerTemplate producerTemplate = Mockito.mock(ProducerTemplate.class);
+
+        // Mock behaviour
+        when(odooClient.searchAndRead(
+                        eq(Constants.SALE_ORDER_MODEL),
+                        eq(List.of(asList("partner_id.ref", "=", PATIENT_ID), asList("state", "=", "draft"))),
+                        any()))
+                .thenReturn(new Object[] {saleOrderMap});
+
+        // Act
+        saleOrderHandler.updateDraftSaleOrdersWithPatientWeight(PATIENT_ID, "70 kg", producerTemplate);
+
+        // Verify
+        SaleOrder expectedSaleOrder = getSaleOrder();
+        expectedSaleOrder.setPartnerWeight("70 kg");
+        verify(producerTemplate, times(1))
+                .sendBodyAndHeaders("direct:odoo-update-sale-order-route", expectedSaleOrder, saleOrderHeaders);
+    }
 }
@@ -12,6 +12,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 
@@ -23,10 +27,10 @@ import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.UomHandler;
 import com.ozonehis.eip.odoo.openmrs.mapper.odoo.SaleOrderLineMapper;
 import com.ozonehis.eip.odoo.openmrs.model.Product;
-import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
 import com.ozonehis.eip.odoo.openmrs.model.Uom;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.Resource;
@@ -147,92 +151,153 @@ class SaleOrderLineHandlerTest {
     }
 
     @Test
-    public void shouldReturnNullWhenProductAndSaleOrderLineExistsAndResourceIsServiceRequest() {
+    public void shouldReturnChangedValuesOfExistingSaleOrderLine() {
+        // Setup
+        Map<String, Object> existingLineMap =
+                getSaleOrderLineMap(1, "Aspirin 81 mg | 10 Tablet", ORDER_ID, PRODUCT_ID, 10.0f, PRODUCT_UOM_ID);
+        existingLineMap.put("product_uom", asList(999, "Tablet"));
+        SaleOrderLine existingLine = odooUtils.convertToObject(existingLineMap, SaleOrderLine.class);
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineName("Aspirin 81 mg | 20 Tablet");
+        saleOrderLine.setSaleOrderLineProductUomQty(20.0f);
+        saleOrderLine.setSaleOrderLineProductUom(999);
+
+        // Act
+        Map<String, Object> result = saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine);
+
+        // Verify
+        assertEquals(Map.of("name", "Aspirin 81 mg | 20 Tablet", "product_uom_qty", 20.0f), result);
+    }
+
+    @Test
+    public void shouldReturnNoChangeWhenSaleOrderLineIsUpToDate() {
+        // Setup
+        Map<String, Object> existingLineMap =
+                getSaleOrderLineMap(1, "Aspirin 81 mg | 10 Tablet", ORDER_ID, PRODUCT_ID, 10.0f, PRODUCT_UOM_ID);
+        existingLineMap.put("product_uom", asList(999, "Tablet"));
+        SaleOrderLine existingLine = odooUtils.convertToObject(existingLineMap, SaleOrderLine.class);
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineName("Aspirin 81 mg | 10 Tablet");
+        saleOrderLine.setSaleOrderLineProductUomQty(10.0f);
+        saleOrderLine.setSaleOrderLineProductUom(999);
+
+        // Act
+        Map<String, Object> result = saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine);
+
+        // Verify
+        assertTrue(result.isEmpty());
+    }
+
+    @Test
+    public void shouldNotClearSaleOrderLineValuesMissingOnTheBuiltLine() {
+        // Setup
+        Map<String, Object> existingLineMap =
+                getSaleOrderLineMap(1, "Aspirin 81 mg | 10 Tablet", ORDER_ID, PRODUCT_ID, 10.0f, PRODUCT_UOM_ID);
+        existingLineMap.put("product_uom", asList(999, "Tablet"));
+        SaleOrderLine existingLine = odooUtils.convertToObject(existingLineMap, SaleOrderLine.class);
+        SaleOrderLine saleOrderLine = new SaleOrderLine();
+        saleOrderLine.setSaleOrderLineName("Aspirin 81 mg");
+
+        // Act
+        Map<String, Object> result = saleOrderLineHandler.getSaleOrderLineChanges(existingLine, saleOrderLine);
+
+        // Verify
+        assertEquals(Map.of("name", "Aspirin 81 mg"), result);
+    }
+
+    @Test
+    public void shouldBuildSaleOrderLineWhenResourceIsServiceRequest() {
         // Setup
         Resource resource = new ServiceRequest();
-        SaleOrder saleOrder = new SaleOrder();
-        saleOrder.setOrderId(ORDER_ID);
         Product product = new Product();
         product.setProductResId(PRODUCT_ID);
         SaleOrderLine saleOrderLine = getSaleOrderLine();
-        Map<String, Object> saleOrderLineMap =
-                getSaleOrderLineMap(1, "Aspirin 81 mg | 10 Tablet", ORDER_ID, PRODUCT_ID, 5.0f, PRODUCT_UOM_ID);
-        Object[] saleOrderLines = {saleOrderLineMap};
 
         // Mock behaviour
-        when(productHandler.getProduct(resource)).thenReturn(product);
-        when(odooClient.searchAndRead(
-                        Constants.SALE_ORDER_LINE_MODEL,
-                        asList(asList("order_id", "=", ORDER_ID), asList("product_id", "=", PRODUCT_ID)),
-                        null))
-                .thenReturn(saleOrderLines);
         when(saleOrderLineMapper.toOdoo(resource)).thenReturn(saleOrderLine);
 
         // Act
-        SaleOrderLine result = saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder);
+        SaleOrderLine result = saleOrderLineHandler.buildSaleOrderLine(resource, product);
 
         // Verify
-        assertNull(result);
+        assertNotNull(result);
+        assertEquals(5.0f, saleOrderLine.getSaleOrderLineProductUomQty());
+        assertEquals(1, saleOrderLine.getSaleOrderLineProductUom());
     }
 
     @Test
-    public void shouldReturnSaleOrderLineWhenProductExistsAndResourceIsServiceRequest() {
+    public void shouldBuildSaleOrderLineWhenResourceIsMedicationRequest() {
         // Setup
-        Resource resource = new ServiceRequest();
-        SaleOrder saleOrder = new SaleOrder();
-        saleOrder.setOrderId(ORDER_ID);
+        Resource resource = new MedicationRequest();
+        Uom uom = new Uom();
+        uom.setUomResId(999);
         Product product = new Product();
         product.setProductResId(PRODUCT_ID);
         SaleOrderLine saleOrderLine = getSaleOrderLine();
 
         // Mock behaviour
-        when(productHandler.getProduct(resource)).thenReturn(product);
-        when(odooClient.searchAndRead(
-                        Constants.SALE_ORDER_LINE_MODEL,
-                        asList(asList("order_id", "=", ORDER_ID), asList("product_id", "=", PRODUCT_ID)),
-                        null))
-                .thenReturn(new Object[] {});
         when(saleOrderLineMapper.toOdoo(resource)).thenReturn(saleOrderLine);
+        when(uomHandler.getUom((String) saleOrderLine.getSaleOrderLineProductUom()))
+                .thenReturn(uom);
 
         // Act
-        SaleOrderLine result = saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder);
+        SaleOrderLine result = saleOrderLineHandler.buildSaleOrderLine(resource, product);
 
         // Verify
         assertNotNull(result);
         assertEquals(5.0f, saleOrderLine.getSaleOrderLineProductUomQty());
-        assertEquals(1, saleOrderLine.getSaleOrderLineProductUom());
+        assertEquals(999, saleOrderLine.getSaleOrderLineProductUom());
     }
 
     @Test
-    public void shouldReturnSaleOrderLineWhenProductExistsAndResourceIsMedicationRequest() {
+    public void shouldBuildNewSaleOrderLineWithoutSearchingExistingLines() {
         // Setup
         Resource resource = new MedicationRequest();
         Uom uom = new Uom();
         uom.setUomResId(999);
-        SaleOrder saleOrder = new SaleOrder();
-        saleOrder.setOrderId(ORDER_ID);
         Product product = new Product();
         product.setProductResId(PRODUCT_ID);
         SaleOrderLine saleOrderLine = getSaleOrderLine();
 
         // Mock behaviour
         when(productHandler.getProduct(resource)).thenReturn(product);
-        when(odooClient.searchAndRead(
-                        Constants.SALE_ORDER_LINE_MODEL,
-                        asList(asList("order_id", "=", ORDER_ID), asList("product_id", "=", PRODUCT_ID)),
-                        null))
-                .thenReturn(new Object[] {});
         when(saleOrderLineMapper.toOdoo(resource)).thenReturn(saleOrderLine);
         when(uomHandler.getUom((String) saleOrderLine.getSaleOrderLineProductUom()))
                 .thenReturn(uom);
 
         // Act
-        SaleOrderLine result = saleOrderLineHandler.buildSaleOrderLineIfProductExists(resource, saleOrder);
+        SaleOrderLine result = saleOrderLineHandler.buildNewSaleOrderLineIfProductExists(resource);
 
         // Verify
         assertNotNull(result);
-        assertEquals(5.0f, saleOrderLine.getSaleOrderLineProductUomQty());
-        assertEquals(999, saleOrderLine.getSaleOrderLineProductUom());
+        assertEquals(PRODUCT_ID, result.getSaleOrderLineProductId());
+        assertEquals(999, result.getSaleOrderLineProductUom());
+        verify(odooClient, never()).searchAndRead(any(), any(), any());
+    }
+
+    @Test
+    public void shouldReturnSaleOrderLinesOfSaleOrderByProductId() {
+        // Setup
+        Map<String, Object> firstLineMap =
+                getSaleOrderLineMap(1, "Aspirin 81 mg | 10 Tablet", ORDER_ID, PRODUCT_ID, 5.0f, PRODUCT_UOM_ID);
+        firstLineMap.put("product_id", List.of(PRODUCT_ID, "Aspirin 81 mg"));
+        Map<String, Object> secondLineMap = getSaleOrderLineMap(2, "Blood smear", ORDER_ID, 17, 1.0f, PRODUCT_UOM_ID);
+
+        // Mock behavior
+        when(odooClient.searchAndRead(
+                        Constants.SALE_ORDER_LINE_MODEL,
+                        List.of(asList("order_id", "=", ORDER_ID)),
+                        asList("id", "product_id", "name", "product_uom_qty", "product_uom")))
+                .thenReturn(new Object[] {firstLineMap, secondLineMap});
+
+        // Act
+        Map<Integer, SaleOrderLine> result = saleOrderLineHandler.getSaleOrderLinesByProduct(ORDER_ID);
+
+        // Verify
+        assertEquals(2, result.size());
+        assertEquals(1, result.get(PRODUCT_ID).getSaleOrderLineId());
+        assertEquals("Aspirin 81 mg | 10 Tablet", result.get(PRODUCT_ID).getSaleOrderLineName());
+        assertEquals(2, result.get(17).getSaleOrderLineId());
     }
 
     public Map<String, Object> getSaleOrderLineMap(
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.handlers.openmrs;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * Compares the size of the JSON responses and their parse time for the OpenMRS FHIR queries of the handlers with and
+ * without the {@code _count} and {@code _elements} projections declared by the handlers, it is not run by the build.
+ * The responses are encoded locally the way the server filters them. Optionally pass the number of weight observations
+ * of the patient, which defaults to 200, and the number of parses, which defaults to 2000.
+ */
+public class FhirProjectionBenchmark {
+
+    public static void main(String[] args) {
+        int observations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int parses = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        FhirContext fhirContext = FhirContext.forR4();
+
+        Bundle weights = new Bundle();
+        weights.setType(Bundle.BundleType.SEARCHSET);
+        for (int i = 0; i < observations; i++) {
+            weights.addEntry().setResource(observation(i));
+        }
+        Bundle latestWeight = new Bundle();
+        latestWeight.setType(Bundle.BundleType.SEARCHSET);
+        latestWeight.addEntry().setResource(observation(0));
+
+        run(
+                fhirContext,
+                "Latest weight observation",
+                parses,
+                weights,
+                latestWeight,
+                "Observation",
+                ObservationHandler.LATEST_VALUE_ELEMENTS);
+        run(fhirContext, "Patient read", parses, patient(), patient(), "Patient", PatientHandler.PARTNER_ELEMENTS);
+        run(
+                fhirContext,
+                "Encounter read",
+                parses,
+                encounter(),
+                encounter(),
+                "Encounter",
+                EncounterHandler.ORDER_ENCOUNTER_ELEMENTS);
+    }
+
+    private static void run(
+            FhirContext fhirContext,
+            String name,
+            int parses,
+            IBaseResource full,
+            IBaseResource projected,
+            String type,
+            String[] elements) {
+        String fullJson = fhirContext.newJsonParser().encodeResourceToString(full);
+        IParser projectingParser = fhirContext.newJsonParser();
+        projectingParser.setEncodeElements(
+                Arrays.stream(elements).map(element -> type + "." + element).collect(Collectors.toSet()));
+        projectingParser.setEncodeElementsAppliesToChildResourcesOnly(projected instanceof Bundle);
+        String projectedJson = projectingParser.encodeResourceToString(projected);
+        report(name + ", full", fullJson, parseNanos(fhirContext, fullJson, full.getClass(), parses), parses);
+        report(
+                name + ", projected",
+                projectedJson,
+                parseNanos(fhirContext, projectedJson, projected.getClass(), parses),
+                parses);
+    }
+
+    private static long parseNanos(
+            FhirContext fhirContext, String json, Class<? extends IBaseResource> type, int parses) {
+        IParser parser = fhirContext.newJsonParser();
+        // Warm up the parser so that the class loading is not measured
+        for (int i = 0; i < Math.min(parses, 100); i++) {
+            parser.parseResource(type, json);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < parses; i++) {
+            parser.parseResource(type, json);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, String json, long nanos, int parses) {
+        System.out.printf(
+                "%s: %d bytes, parse %.1f us/op%n",
+                name, json.getBytes(StandardCharsets.UTF_8).length, nanos / 1000.0 / parses);
+    }
+
+    private static Observation observation(int index) {
+        Observation observation = new Observation();
+        observation.setId(UUID.randomUUID().toString());
+        narrate(observation);
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.addCategory(new CodeableConcept().setText("exam"));
+        observation.setCode(new CodeableConcept().setText("Weight (kg)"));
+        observation.getCode().addCoding().setCode("5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("3141-9");
+        observation.setSubject(new Reference("Patient/" + UUID.randomUUID()));
+        observation.setEncounter(new Reference("Encounter/" + UUID.randomUUID()));
+        observation.addPerformer(new Reference("Practitioner/" + UUID.randomUUID()));
+        observation.setEffective(new DateTimeType(new Date(System.currentTimeMillis() - index * 86400000L)));
+        observation.setIssued(new Date());
+        observation.setValue(new Quantity(60 + index % 20).setUnit("kg"));
+        observation.addReferenceRange().setLow(new Quantity(0)).setHigh(new Quantity(250));
+        observation.addInterpretation().setText("Normal");
+        return observation;
+    }
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.setId(UUID.randomUUID().toString());
+        narrate(patient);
+        patient.setActive(true);
+        patient.addName().setFamily("Doe").addGiven("John").addGiven("Michael");
+        for (int i = 0; i < 3; i++) {
+            patient.addIdentifier().setValue("10000" + i);
+        }
+        patient.setGender(Enumerations.AdministrativeGender.MALE);
+        patient.setBirthDate(new Date(0));
+        patient.addAddress(new Address()
+                .addLine("1 Main Street")
+                .setCity("Kampala")
+                .setCountry("Uganda")
+                .setPostalCode("256"));
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("+256700000000");
+        for (int i = 0; i < 5; i++) {
+            patient.addExtension("http://fhir.openmrs.org/ext/person-attribute/" + i, new StringType("value " + i));
+        }
+        return patient;
+    }
+
+    private static Encounter encounter() {
+        Encounter encounter = new Encounter();
+        encounter.setId(UUID.randomUUID().toString());
+        narrate(encounter);
+        encounter.setStatus(Encounter.EncounterStatus.UNKNOWN);
+        encounter.addType(new CodeableConcept().setText("Consultation"));
+        encounter.setSubject(new Reference("Patient/" + UUID.randomUUID()));
+        encounter.setPartOf(new Reference("Encounter/" + UUID.randomUUID()));
+        encounter.setPeriod(new Period().setStart(new Date()));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/" + UUID.randomUUID()));
+        encounter.addLocation().setLocation(new Reference("Location/" + UUID.randomUUID()));
+        return encounter;
+    }
+
+    // OpenMRS returns a generated narrative with every resource unless it is left out by the projection
+    private static void narrate(DomainResource resource) {
+        resource.setText(new Narrative()
+                .setStatus(Narrative.NarrativeStatus.GENERATED)
+                .setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\"><table><tr><td>" + UUID.randomUUID()
+                        + "</td></tr></table></div>"));
+    }
+}
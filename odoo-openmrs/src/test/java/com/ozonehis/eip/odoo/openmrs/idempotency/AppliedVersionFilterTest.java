@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.idempotency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.cache.LookupCache;
+import java.util.Date;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AppliedVersionFilterTest {
+
+    private static final String PATIENT_ID = "d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52";
+
+    private LookupCache<String, Boolean> appliedVersionCache;
+
+    private AppliedVersionFilter appliedVersionFilter;
+
+    @BeforeEach
+    public void setup() {
+        appliedVersionCache = new LookupCache<>("applied-versions", 100);
+        appliedVersionFilter = new AppliedVersionFilter();
+        appliedVersionFilter.setEnabled(true);
+        appliedVersionFilter.setAppliedVersionCache(appliedVersionCache);
+    }
+
+    @Test
+    public void shouldDropEventOfAnAppliedVersion() {
+        // Setup
+        Exchange first = createExchange(createPatient("1"), "u");
+        Exchange redelivered = createExchange(createPatient("1"), "u");
+
+        // Act
+        assertTrue(appliedVersionFilter.isNotApplied(first));
+        appliedVersionFilter.markApplied(first);
+
+        // Verify
+        assertFalse(appliedVersionFilter.isNotApplied(redelivered));
+        assertEquals(1, appliedVersionCache.getHitCount());
+    }
+
+    @Test
+    public void shouldProcessAgainAnEventThatWasNotMarkedApplied() {
+        // Setup
+        Exchange failed = createExchange(createPatient("1"), "u");
+        Exchange retried = createExchange(createPatient("1"), "u");
+
+        // Act
+        assertTrue(appliedVersionFilter.isNotApplied(failed));
+
+        // Verify
+        assertTrue(appliedVersionFilter.isNotApplied(retried));
+        assertEquals(0, appliedVersionCache.size());
+    }
+
+    @Test
+    public void shouldProcessANewVersionOrEventTypeOfAnAppliedResource() {
+        // Setup
+        Exchange applied = createExchange(createPatient("1"), "u");
+        appliedVersionFilter.isNotApplied(applied);
+        appliedVersionFilter.markApplied(applied);
+
+        // Verify
+        assertTrue(appliedVersionFilter.isNotApplied(createExchange(createPatient("2"), "u")));
+        assertTrue(appliedVersionFilter.isNotApplied(createExchange(createPatient("1"), "d")));
+    }
+
+    @Test
+    public void shouldRecordTheVersionOfADeferredEventOnlyOnceItsChangesAreWritten() {
+        // Setup
+        Exchange deferred = createExchange(createPatient("1"), "u");
+        Exchange redelivered = createExchange(createPatient("1"), "u");
+
+        // Act
+        assertTrue(appliedVersionFilter.isNotApplied(deferred));
+        String versionKey = AppliedVersionFilter.takeVersionKey(deferred);
+        appliedVersionFilter.markApplied(deferred);
+
+        // Verify
+        assertEquals(0, appliedVersionCache.size());
+        appliedVersionFilter.markApplied(List.of(versionKey));
+        assertFalse(appliedVersionFilter.isNotApplied(redelivered));
+    }
+
+    @Test
+    public void shouldUseLastUpdatedDateWhenResourceHasNoVersionId() {
+        // Setup
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setId("bd45ba4b-2e0f-4a8a-9b58-9a4e1e0a3f53");
+        medicationRequest.getMeta().setLastUpdated(new Date(1700000000000L));
+
+        // Verify
+        assertEquals(
+                "c:MedicationRequest/bd45ba4b-2e0f-4a8a-9b58-9a4e1e0a3f53/1700000000000",
+                AppliedVersionFilter.getVersionKey(createExchange(medicationRequest, "c")));
+    }
+
+    @Test
+    public void shouldAlwaysProcessEventOfAResourceWithoutVersion() {
+        // Setup
+        Patient patient = new Patient();
+        patient.setId(PATIENT_ID);
+        Exchange exchange = createExchange(patient, "u");
+
+        // Act
+        appliedVersionFilter.isNotApplied(exchange);
+        appliedVersionFilter.markApplied(exchange);
+
+        // Verify
+        assertNull(AppliedVersionFilter.getVersionKey(exchange));
+        assertTrue(appliedVersionFilter.isNotApplied(createExchange(patient, "u")));
+        assertEquals(0, appliedVersionCache.size());
+    }
+
+    @Test
+    public void shouldProcessEveryEventWhenDisabled() {
+        // Setup
+        appliedVersionFilter.setEnabled(false);
+        Exchange applied = createExchange(createPatient("1"), "u");
+        appliedVersionCache.put(AppliedVersionFilter.getVersionKey(applied), Boolean.TRUE);
+
+        // Verify
+        assertTrue(appliedVersionFilter.isNotApplied(applied));
+    }
+
+    private static Patient createPatient(String versionId) {
+        Patient patient = new Patient();
+        patient.setId(PATIENT_ID);
+        patient.getMeta().setVersionId(versionId);
+        return patient;
+    }
+
+    private static Exchange createExchange(Object body, String eventType) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, eventType);
+        exchange.getMessage().setBody(body);
+        return exchange;
+    }
+}
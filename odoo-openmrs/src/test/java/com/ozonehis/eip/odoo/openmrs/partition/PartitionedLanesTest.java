@@ -0,0 +1,664 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.partition;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.retry.FastRetry;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.SupplyRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.eip.EIPException;
+
+class PartitionedLanesTest {
+
+    private static final String PATIENT_ID = "d64b5d32-6d8e-4a47-9b6b-4e8d2b4b7b52";
+
+    private final Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+
+    private final Map<String, String> threads = new ConcurrentHashMap<>();
+
+    private final List<Exchange> retried = Collections.synchronizedList(new ArrayList<>());
+
+    // The number of times the next events of a key fail with a transient error
+    private final Map<String, Integer> transientFailures = new ConcurrentHashMap<>();
+
+    private final FastRetry fastRetry = new FastRetry();
+
+    private CamelContext context;
+
+    private PartitionedLanes partitionedLanes;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        context = new DefaultCamelContext();
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:lane-target").process(exchange -> {
+                    String key = exchange.getMessage().getHeader("key", String.class);
+                    if ("failing".equals(key)) {
+                        throw new EIPException("Odoo is down");
+                    }
+                    Integer failures = transientFailures.computeIfPresent(key, (k, count) -> count - 1);
+                    if (failures != null && failures >= 0) {
+                        throw new RuntimeException("Odoo is unreachable", new ConnectException());
+                    }
+                    processed
+                            .computeIfAbsent(key, k -> new ArrayList<>())
+                            .add(exchange.getMessage().getBody(Integer.class));
+                    threads.merge(
+                            key,
+                            Thread.currentThread().getName(),
+                            (previous, current) -> previous.equals(current) ? current : "many");
+                });
+                from("direct:retry-queue").process(retried::add);
+            }
+        });
+        context.start();
+
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(4);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(true);
+        partitionedLanes.init();
+    }
+
+    @AfterEach
+    public void close() {
+        partitionedLanes.shutdown();
+        context.stop();
+    }
+
+    @Test
+    public void shouldProcessEventsOfAPartitionInOrderOnTheSameLane() throws Exception {
+        // Act
+        for (int i = 0; i < 20; i++) {
+            partitionedLanes.dispatch(createExchange("visit-" + (i % 3), i), "direct:lane-target", "visit-" + (i % 3));
+        }
+
+        // Verify
+        assertEquals(List.of(0, 3, 6, 9, 12, 15, 18), processed.get("visit-0"));
+        assertEquals(List.of(1, 4, 7, 10, 13, 16, 19), processed.get("visit-1"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("odoo-openmrs-lane-" + partitionedLanes.getLane("visit-" + i), threads.get("visit-" + i));
+        }
+        assertEquals(20, partitionedLanes.getDispatchedCount());
+    }
+
+    @Test
+    public void shouldProcessOtherPartitionsWhileALaneIsBusy() throws Exception {
+        // Setup
+        partitionedLanes.setWaitForCompletion(false);
+        CountDownLatch blocked = new CountDownLatch(1);
+        String busyKey = findKeyOnAnotherLane("visit-0");
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> blocked.await(5, TimeUnit.SECONDS));
+            }
+        });
+
+        // Act
+        partitionedLanes.dispatch(createExchange(busyKey, 0), "direct:blocking-target", busyKey);
+        partitionedLanes.dispatch(createExchange(busyKey, 1), "direct:lane-target", busyKey);
+        partitionedLanes.dispatch(createExchange(busyKey, 2), "direct:lane-target", busyKey);
+        for (int i = 0; i < 5; i++) {
+            partitionedLanes.dispatch(createExchange("visit-0", i), "direct:lane-target", "visit-0");
+        }
+        waitUntilProcessed("visit-0", 5);
+
+        // Verify
+        assertEquals(List.of(0, 1, 2, 3, 4), processed.get("visit-0"));
+        assertEquals(2, partitionedLanes.getQueueDepths().get(partitionedLanes.getLane(busyKey)));
+        blocked.countDown();
+        waitUntilProcessed(busyKey, 2);
+        assertEquals(List.of(1, 2), processed.get(busyKey));
+    }
+
+    @Test
+    public void shouldRethrowFailureToTheCaller() {
+        // Verify
+        assertThrows(
+                EIPException.class,
+                () -> partitionedLanes.dispatch(createExchange("failing", 1), "direct:lane-target", "failing"));
+        assertNull(processed.get("failing"));
+    }
+
+    @Test
+    public void shouldAddEventThatFailedOnItsLaneToTheRetryQueueWhenTheCallerDidNotWait() throws Exception {
+        // Setup
+        partitionedLanes.setWaitForCompletion(false);
+        Exchange exchange = createExchange("failing", 1);
+
+        // Act
+        partitionedLanes.dispatch(exchange, "direct:lane-target", "failing");
+        waitUntilRetried(1);
+
+        // Verify
+        assertEquals(1, retried.size());
+        assertEquals(1, retried.get(0).getMessage().getBody(Integer.class));
+        assertEquals(
+                "Odoo is down",
+                retried.get(0)
+                        .getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class)
+                        .getMessage());
+        assertNull(processed.get("failing"));
+    }
+
+    @Test
+    public void shouldRetryEventOnItsLaneWhileTheOtherPartitionsGoOn() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.init();
+        enableFastRetry(3, 300);
+        transientFailures.put("visit-a", 1);
+
+        // Act
+        partitionedLanes.dispatch(createExchange("visit-a", 1), "direct:lane-target", "visit-a");
+        partitionedLanes.dispatch(createExchange("visit-a", 2), "direct:lane-target", "visit-a");
+        partitionedLanes.dispatch(createExchange("visit-b", 3), "direct:lane-target", "visit-b");
+        waitUntilProcessed("visit-b", 1);
+
+        // Verify
+        assertEquals(List.of(3), processed.get("visit-b"));
+        assertNull(processed.get("visit-a"));
+        waitUntilProcessed("visit-a", 2);
+        assertEquals(List.of(1, 2), processed.get("visit-a"));
+        assertEquals(1, fastRetry.getRetriedCount());
+        assertEquals(1, fastRetry.getRecoveredCount());
+        assertTrue(retried.isEmpty());
+    }
+
+    @Test
+    public void shouldRetryEventOnItsLaneBeforeTheCallerWhoWaitsReturns() throws Exception {
+        // Setup
+        enableFastRetry(3, 10);
+        transientFailures.put("visit-a", 2);
+        Exchange exchange = createExchange("visit-a", 1);
+
+        // Act
+        partitionedLanes.dispatch(exchange, "direct:lane-target", "visit-a");
+
+        // Verify
+        assertNull(exchange.getException());
+        assertEquals(List.of(1), processed.get("visit-a"));
+        assertEquals(2, fastRetry.getRetriedCount());
+        assertEquals(1, fastRetry.getRecoveredCount());
+    }
+
+    @Test
+    public void shouldAddEventToTheRetryQueueOnceItsRetriesAreExhausted() throws Exception {
+        // Setup
+        partitionedLanes.setWaitForCompletion(false);
+        enableFastRetry(2, 10);
+        transientFailures.put("visit-a", 10);
+
+        // Act
+        partitionedLanes.dispatch(createExchange("visit-a", 1), "direct:lane-target", "visit-a");
+        waitUntilRetried(1);
+
+        // Verify
+        assertEquals(1, retried.size());
+        assertEquals(1, retried.get(0).getMessage().getBody(Integer.class));
+        assertEquals(1, fastRetry.getRetriedCount());
+        assertEquals(1, fastRetry.getExhaustedCount());
+        assertNull(processed.get("visit-a"));
+    }
+
+    @Test
+    public void shouldProcessQueuedEventsWhenTheCamelContextIsStopping() throws Exception {
+        // Setup
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setDrainTimeout(5000);
+        CountDownLatch started = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:slow-target").process(exchange -> {
+                    started.countDown();
+                    Thread.sleep(200);
+                });
+            }
+        });
+        partitionedLanes.dispatch(createExchange("visit-0", 0), "direct:slow-target", "visit-0");
+        started.await(5, TimeUnit.SECONDS);
+        for (int i = 1; i < 4; i++) {
+            partitionedLanes.dispatch(createExchange("visit-0", i), "direct:lane-target", "visit-0");
+        }
+
+        // Act
+        context.stop();
+
+        // Verify
+        assertEquals(List.of(1, 2, 3), processed.get("visit-0"));
+        assertTrue(retried.isEmpty());
+    }
+
+    @Test
+    public void shouldAddEventsNotProcessedWithinTheDrainTimeoutToTheRetryQueue() throws Exception {
+        // Setup
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setDrainTimeout(100);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> {
+                    started.countDown();
+                    blocked.await(5, TimeUnit.SECONDS);
+                });
+            }
+        });
+        partitionedLanes.dispatch(createExchange("visit-0", 0), "direct:blocking-target", "visit-0");
+        started.await(5, TimeUnit.SECONDS);
+        partitionedLanes.dispatch(createExchange("visit-0", 1), "direct:lane-target", "visit-0");
+
+        // Act
+        partitionedLanes.drain();
+
+        // Verify
+        assertEquals(1, retried.size());
+        assertEquals(1, retried.get(0).getMessage().getBody(Integer.class));
+        blocked.countDown();
+        assertThrows(
+                EIPException.class,
+                () -> partitionedLanes.dispatch(createExchange("visit-0", 2), "direct:lane-target", "visit-0"));
+        assertNull(processed.get("visit-0"));
+    }
+
+    @Test
+    public void shouldRejectEventWhenLaneIsFullAndOverflowIsRetry() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(1);
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setOverflow(PartitionedLanes.OVERFLOW_RETRY);
+        partitionedLanes.init();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> {
+                    started.countDown();
+                    blocked.await(5, TimeUnit.SECONDS);
+                });
+            }
+        });
+        partitionedLanes.dispatch(createExchange("visit-0", 0), "direct:blocking-target", "visit-0");
+        started.await(5, TimeUnit.SECONDS);
+        partitionedLanes.dispatch(createExchange("visit-0", 1), "direct:lane-target", "visit-0");
+
+        // Act
+        assertThrows(
+                EIPException.class,
+                () -> partitionedLanes.dispatch(createExchange("visit-0", 2), "direct:lane-target", "visit-0"));
+
+        // Verify
+        assertEquals(1, partitionedLanes.getRejectedCount());
+        assertEquals(2, partitionedLanes.getDispatchedCount());
+        blocked.countDown();
+        waitUntilProcessed("visit-0", 1);
+        assertEquals(List.of(1), processed.get("visit-0"));
+    }
+
+    @Test
+    public void shouldRecordTimeEventsWaitedOnTheirLane() throws Exception {
+        // Verify
+        assertEquals(0, partitionedLanes.getAverageWaitTime());
+
+        // Act
+        for (int i = 0; i < 5; i++) {
+            partitionedLanes.dispatch(createExchange("visit-0", i), "direct:lane-target", "visit-0");
+        }
+
+        // Verify
+        assertTrue(partitionedLanes.getAverageWaitTime() > 0);
+        assertTrue(partitionedLanes.getMaxWaitTime() >= 0);
+    }
+
+    @Test
+    public void shouldProcessEventsOfADomainWhileAnotherDomainIsBusy() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(true);
+        partitionedLanes.setBulkheadsEnabled(true);
+        partitionedLanes.setPatientLaneCount(1);
+        partitionedLanes.setOrderLaneCount(1);
+        partitionedLanes.setEncounterLaneCount(1);
+        partitionedLanes.init();
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> blocked.await(5, TimeUnit.SECONDS));
+            }
+        });
+        Processor toBlockedOrders = partitionedLanes.dispatchTo(
+                PartitionedLanes.DOMAIN_ORDER, "direct:blocking-target", exchange -> "visit-0");
+        Processor toPatients = partitionedLanes.dispatchTo(
+                PartitionedLanes.DOMAIN_PATIENT, "direct:lane-target", exchange -> "visit-0");
+        Thread orderCaller = new Thread(() -> {
+            try {
+                toBlockedOrders.process(createExchange("visit-0", 0));
+            } catch (Exception e) {
+                // ignored
+            }
+        });
+        orderCaller.start();
+
+        // Act
+        for (int i = 0; i < 3; i++) {
+            toPatients.process(createExchange("visit-0", i));
+        }
+
+        // Verify
+        assertEquals(List.of(0, 1, 2), processed.get("visit-0"));
+        assertEquals("odoo-openmrs-patient-lane-0", threads.get("visit-0"));
+        assertEquals(Map.of("patient", 0, "order", 0, "encounter", 0), partitionedLanes.getBulkheadQueueDepths());
+        blocked.countDown();
+        orderCaller.join(5000);
+    }
+
+    @Test
+    public void shouldProcessLiveEventsAheadOfBulkEventsOfOtherPartitions() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setPriorityEnabled(true);
+        partitionedLanes.setBulkAge(60000);
+        partitionedLanes.setInteractiveWeight(2);
+        partitionedLanes.init();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> {
+                    started.countDown();
+                    blocked.await(5, TimeUnit.SECONDS);
+                });
+                from("direct:ordered-target")
+                        .process(exchange -> order.add(exchange.getMessage().getHeader("event", String.class)));
+            }
+        });
+        partitionedLanes.dispatch(createExchange("visit-0", 0), "direct:blocking-target", "visit-0");
+        started.await(5, TimeUnit.SECONDS);
+
+        // Act
+        dispatchEvent("bulk-a1", "patient-a", true);
+        dispatchEvent("bulk-a2", "patient-a", true);
+        dispatchEvent("live-b1", "patient-b", false);
+        dispatchEvent("live-a3", "patient-a", false);
+        dispatchEvent("live-b2", "patient-b", false);
+        dispatchEvent("live-b3", "patient-b", false);
+        assertEquals(3, partitionedLanes.getBulkQueueDepth());
+        blocked.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && order.size() < 6) {
+            Thread.sleep(10);
+        }
+
+        // Verify
+        assertEquals(List.of("live-b1", "live-b2", "bulk-a1", "live-b3", "bulk-a2", "live-a3"), order);
+        assertEquals(2, partitionedLanes.getBulkCount());
+    }
+
+    @Test
+    public void shouldProcessRedeliveredAndOldEventsAsBulkEvents() {
+        // Setup
+        partitionedLanes.setBulkAge(60000);
+        Date old = new Date(System.currentTimeMillis() - 120000);
+        MedicationRequest live = new MedicationRequest();
+        live.getMeta().setLastUpdated(new Date());
+        MedicationRequest replayed = new MedicationRequest();
+        replayed.getMeta().setLastUpdated(old);
+        MedicationRequest replayedCancellation = new MedicationRequest();
+        replayedCancellation.setStatus(MedicationRequest.MedicationRequestStatus.CANCELLED);
+        replayedCancellation.getMeta().setLastUpdated(old);
+        Encounter replayedClose = new Encounter();
+        replayedClose.getPeriod().setEnd(old);
+        replayedClose.getMeta().setLastUpdated(old);
+        Exchange redelivered = createExchange(live);
+        redelivered.getMessage().setHeader(Exchange.REDELIVERED, true);
+        Exchange replayedDeletion = createExchange(replayed);
+        replayedDeletion.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, "d");
+
+        // Verify
+        assertFalse(partitionedLanes.isBulk(createExchange(live)));
+        assertTrue(partitionedLanes.isBulk(createExchange(replayed)));
+        assertTrue(partitionedLanes.isBulk(redelivered));
+        assertFalse(partitionedLanes.isBulk(createExchange(replayedCancellation)));
+        assertFalse(partitionedLanes.isBulk(createExchange(replayedClose)));
+        assertFalse(partitionedLanes.isBulk(replayedDeletion));
+    }
+
+    @Test
+    public void shouldReturnQueueDepthOfEachLane() {
+        // Verify
+        assertEquals(List.of(0, 0, 0, 0), partitionedLanes.getQueueDepths());
+        assertEquals(0, partitionedLanes.getTotalQueueDepth());
+    }
+
+    @Test
+    public void shouldIncludeTheBulkheadLanesInTheQueueDepth() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setBulkheadsEnabled(true);
+        partitionedLanes.setPatientLaneCount(1);
+        partitionedLanes.setOrderLaneCount(1);
+        partitionedLanes.setEncounterLaneCount(1);
+        partitionedLanes.init();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> {
+                    started.countDown();
+                    blocked.await(5, TimeUnit.SECONDS);
+                });
+            }
+        });
+        Processor toOrders = partitionedLanes.dispatchTo(
+                PartitionedLanes.DOMAIN_ORDER, "direct:blocking-target", exchange -> "visit-0");
+        toOrders.process(createExchange("visit-0", 0));
+        started.await(5, TimeUnit.SECONDS);
+
+        // Act
+        toOrders.process(createExchange("visit-0", 1));
+        toOrders.process(createExchange("visit-0", 2));
+
+        // Verify
+        assertEquals(List.of(0, 0, 2, 0), partitionedLanes.getQueueDepths());
+        assertEquals(2, partitionedLanes.getTotalQueueDepth());
+        blocked.countDown();
+    }
+
+    @Test
+    public void shouldIncludeTheBulkheadLanesInTheBulkQueueDepth() throws Exception {
+        // Setup
+        partitionedLanes.shutdown();
+        partitionedLanes = createPartitionedLanes();
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setBulkheadsEnabled(true);
+        partitionedLanes.setPatientLaneCount(1);
+        partitionedLanes.setOrderLaneCount(1);
+        partitionedLanes.setEncounterLaneCount(1);
+        partitionedLanes.setPriorityEnabled(true);
+        partitionedLanes.setBulkAge(60000);
+        partitionedLanes.init();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:blocking-target").process(exchange -> {
+                    started.countDown();
+                    blocked.await(5, TimeUnit.SECONDS);
+                });
+            }
+        });
+        Processor toOrders = partitionedLanes.dispatchTo(
+                PartitionedLanes.DOMAIN_ORDER, "direct:blocking-target", exchange -> "visit-0");
+        toOrders.process(createExchange("visit-0", 0));
+        started.await(5, TimeUnit.SECONDS);
+        MedicationRequest replayed = new MedicationRequest();
+        replayed.getMeta().setLastUpdated(new Date(System.currentTimeMillis() - 120000));
+
+        // Act
+        toOrders.process(createExchange(replayed));
+        toOrders.process(createExchange(replayed));
+
+        // Verify
+        assertEquals(2, partitionedLanes.getBulkQueueDepth());
+        blocked.countDown();
+    }
+
+    @Test
+    public void shouldReturnPatientUuidOfEvent() {
+        // Setup
+        Patient patient = new Patient();
+        patient.setId(PATIENT_ID);
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setSubject(new Reference("Patient/" + PATIENT_ID));
+        SupplyRequest supplyRequest = new SupplyRequest();
+        supplyRequest.setDeliverTo(new Reference("Patient/" + PATIENT_ID));
+        Bundle bundleWithPatient = new Bundle();
+        bundleWithPatient.addEntry().setResource(new MedicationRequest());
+        bundleWithPatient.addEntry().setResource(patient);
+        Bundle bundleWithoutPatient = new Bundle();
+        bundleWithoutPatient.addEntry().setResource(supplyRequest);
+
+        // Verify
+        assertEquals(PATIENT_ID, PartitionedLanes.getPatientUuid(createExchange(patient)));
+        assertEquals(PATIENT_ID, PartitionedLanes.getPatientUuid(createExchange(medicationRequest)));
+        assertEquals(PATIENT_ID, PartitionedLanes.getPatientUuid(createExchange(bundleWithPatient)));
+        assertEquals(PATIENT_ID, PartitionedLanes.getPatientUuid(createExchange(bundleWithoutPatient)));
+        assertNull(PartitionedLanes.getPatientUuid(createExchange(new MedicationRequest())));
+    }
+
+    private PartitionedLanes createPartitionedLanes() {
+        RetryQueue retryQueue = new RetryQueue();
+        retryQueue.setUri("direct:retry-queue");
+        PartitionedLanes lanes = new PartitionedLanes();
+        lanes.setCamelContext(context);
+        lanes.setRetryQueue(retryQueue);
+        lanes.setFastRetry(fastRetry);
+        return lanes;
+    }
+
+    private void dispatchEvent(String event, String partitionKey, boolean bulk) throws Exception {
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.getMeta().setLastUpdated(new Date(System.currentTimeMillis() - (bulk ? 120000 : 0)));
+        Exchange exchange = createExchange(medicationRequest);
+        exchange.getMessage().setHeader("event", event);
+        partitionedLanes.dispatch(exchange, "direct:ordered-target", partitionKey);
+    }
+
+    private Exchange createExchange(String key, int body) {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getMessage().setHeader("key", key);
+        exchange.getMessage().setBody(body);
+        return exchange;
+    }
+
+    private Exchange createExchange(Object body) {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getMessage().setBody(body);
+        return exchange;
+    }
+
+    private String findKeyOnAnotherLane(String key) {
+        for (int i = 0; ; i++) {
+            if (partitionedLanes.getLane("other-" + i) != partitionedLanes.getLane(key)) {
+                return "other-" + i;
+            }
+        }
+    }
+
+    private void enableFastRetry(int maxAttempts, long delay) {
+        fastRetry.setEnabled(true);
+        fastRetry.setMaxAttempts(maxAttempts);
+        fastRetry.setInitialDelay(delay);
+        fastRetry.setMultiplier(1);
+        fastRetry.setBudget(10000);
+    }
+
+    private void waitUntilRetried(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && retried.size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitUntilProcessed(String key, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline
+                && (processed.get(key) == null || processed.get(key).size() < count)) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.precreation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.PatientHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.partition.VisitLocks;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.openmrs.eip.EIPException;
+
+class VisitDraftPreparerTest {
+
+    private static final String VISIT_ID = "e5ca6578-fb37-4900-a054-c68db82a551c";
+
+    private static final String PATIENT_ID = "patient-id-987";
+
+    @Mock
+    private CamelContext camelContext;
+
+    @Mock
+    private ProducerTemplate producerTemplate;
+
+    @Mock
+    private PatientHandler patientHandler;
+
+    @Mock
+    private PartnerHandler partnerHandler;
+
+    @Mock
+    private SaleOrderHandler saleOrderHandler;
+
+    @Spy
+    private VisitLocks visitLocks = new VisitLocks();
+
+    @InjectMocks
+    private VisitDraftPreparer visitDraftPreparer;
+
+    private AutoCloseable mocksCloser;
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        when(camelContext.createProducerTemplate()).thenReturn(producerTemplate);
+        visitDraftPreparer.setEnabled(true);
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @Test
+    public void shouldCreatePartnerAndDraftSaleOrderOfVisit() {
+        // Setup
+        Encounter encounter = getEncounter();
+        Patient patient = new Patient();
+        Partner partner = new Partner();
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderId(1);
+
+        // Mock behavior
+        when(patientHandler.getPatientByPatientID(PATIENT_ID)).thenReturn(patient);
+        when(partnerHandler.createOrUpdatePartner(producerTemplate, patient)).thenReturn(partner);
+        when(saleOrderHandler.createDraftSaleOrder(encounter, partner, VISIT_ID, PATIENT_ID, producerTemplate))
+                .thenReturn(saleOrder);
+
+        // Act
+        visitDraftPreparer.prepare(encounter);
+
+        // Verify
+        verify(saleOrderHandler).createDraftSaleOrder(encounter, partner, VISIT_ID, PATIENT_ID, producerTemplate);
+        assertEquals(1, visitDraftPreparer.getPreparedCount());
+    }
+
+    @Test
+    public void shouldSkipVisitWithDraftSaleOrder() {
+        // Setup
+        Encounter encounter = getEncounter();
+
+        // Mock behavior
+        when(saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(VISIT_ID)).thenReturn(new SaleOrder());
+
+        // Act
+        visitDraftPreparer.prepare(encounter);
+
+        // Verify
+        verify(patientHandler, never()).getPatientByPatientID(any());
+        verify(saleOrderHandler, never()).createDraftSaleOrder(any(), any(), any(), any(), any());
+        assertEquals(0, visitDraftPreparer.getPreparedCount());
+    }
+
+    @Test
+    public void shouldNotFailWhenDraftSaleOrderCannotBePrepared() {
+        // Setup
+        Encounter encounter = getEncounter();
+
+        // Mock behavior
+        when(patientHandler.getPatientByPatientID(PATIENT_ID)).thenThrow(new EIPException("OpenMRS is down"));
+
+        // Act
+        visitDraftPreparer.prepare(encounter);
+
+        // Verify
+        verify(saleOrderHandler, never()).createDraftSaleOrder(any(), any(), any(), any(), any());
+        assertEquals(0, visitDraftPreparer.getPreparedCount());
+    }
+
+    @Test
+    public void shouldReturnWhetherDraftSaleOrderIsUnused() {
+        // Setup
+        SaleOrder emptySaleOrder = new SaleOrder();
+        emptySaleOrder.setOrderLine(new ArrayList<>());
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderLine(List.of(10));
+
+        // Verify
+        assertTrue(visitDraftPreparer.isUnused(emptySaleOrder));
+        assertFalse(visitDraftPreparer.isUnused(saleOrder));
+        visitDraftPreparer.setEnabled(false);
+        assertFalse(visitDraftPreparer.isUnused(emptySaleOrder));
+    }
+
+    private Encounter getEncounter() {
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference("Encounter/" + VISIT_ID));
+        encounter.setSubject(new Reference("Patient/" + PATIENT_ID));
+        return encounter;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.prefilter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import java.util.List;
+import java.util.Map;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OrderEventPreFilterTest {
+
+    private OrderEventPreFilter orderEventPreFilter;
+
+    @BeforeEach
+    public void setup() {
+        orderEventPreFilter = new OrderEventPreFilter();
+        orderEventPreFilter.setEnabled(true);
+        orderEventPreFilter.setRules(
+                List.of(OrderEventPreFilter.EVENT_TYPE_RULE, OrderEventPreFilter.SERVICE_REQUEST_INTENT_RULE));
+    }
+
+    @Test
+    public void shouldDropEventOfAnUnsupportedType() {
+        // Setup
+        Exchange exchange = createExchange(createMedicationRequest(), "x");
+
+        // Verify
+        assertFalse(orderEventPreFilter.isRelevant(exchange));
+        assertEquals(Map.of(OrderEventPreFilter.EVENT_TYPE_RULE, 1L), orderEventPreFilter.getDropCounts());
+    }
+
+    @Test
+    public void shouldDropServiceRequestWhoseIntentIsNotOrder() {
+        // Setup
+        Exchange exchange = createExchange(createServiceRequest(ServiceRequest.ServiceRequestIntent.PROPOSAL), "c");
+
+        // Verify
+        assertFalse(orderEventPreFilter.isRelevant(exchange));
+        assertEquals(Map.of(OrderEventPreFilter.SERVICE_REQUEST_INTENT_RULE, 1L), orderEventPreFilter.getDropCounts());
+    }
+
+    @Test
+    public void shouldDropEveryEventOfServiceRequestWhoseIntentIsNotOrder() {
+        // Setup
+        ServiceRequest serviceRequest = createServiceRequest(ServiceRequest.ServiceRequestIntent.PLAN);
+
+        // Verify
+        assertFalse(orderEventPreFilter.isRelevant(createExchange(serviceRequest, "c")));
+        assertFalse(orderEventPreFilter.isRelevant(createExchange(serviceRequest, "u")));
+        assertFalse(orderEventPreFilter.isRelevant(createExchange(serviceRequest, "d")));
+        assertEquals(Map.of(OrderEventPreFilter.SERVICE_REQUEST_INTENT_RULE, 3L), orderEventPreFilter.getDropCounts());
+    }
+
+    @Test
+    public void shouldKeepEventsThatMayChangeOdoo() {
+        // Setup
+        Exchange serviceRequest = createExchange(createServiceRequest(ServiceRequest.ServiceRequestIntent.ORDER), "u");
+        Exchange medicationRequest = createExchange(createMedicationRequest(), "d");
+
+        // Verify
+        assertTrue(orderEventPreFilter.isRelevant(serviceRequest));
+        assertTrue(orderEventPreFilter.isRelevant(medicationRequest));
+        assertTrue(orderEventPreFilter.getDropCounts().isEmpty());
+    }
+
+    @Test
+    public void shouldCountDropsByRule() {
+        // Act
+        orderEventPreFilter.isRelevant(createExchange(createMedicationRequest(), null));
+        orderEventPreFilter.isRelevant(createExchange(createMedicationRequest(), "x"));
+        orderEventPreFilter.isRelevant(
+                createExchange(createServiceRequest(ServiceRequest.ServiceRequestIntent.PLAN), "u"));
+
+        // Verify
+        assertEquals(
+                Map.of(OrderEventPreFilter.EVENT_TYPE_RULE, 2L, OrderEventPreFilter.SERVICE_REQUEST_INTENT_RULE, 1L),
+                orderEventPreFilter.getDropCounts());
+    }
+
+    @Test
+    public void shouldNotApplyRuleThatIsNotListed() {
+        // Setup
+        orderEventPreFilter.setRules(List.of(OrderEventPreFilter.EVENT_TYPE_RULE));
+        Exchange exchange = createExchange(createServiceRequest(ServiceRequest.ServiceRequestIntent.PROPOSAL), "c");
+
+        // Verify
+        assertTrue(orderEventPreFilter.isRelevant(exchange));
+    }
+
+    @Test
+    public void shouldKeepEveryEventWhenDisabled() {
+        // Setup
+        orderEventPreFilter.setEnabled(false);
+
+        // Verify
+        assertTrue(orderEventPreFilter.isRelevant(createExchange(createMedicationRequest(), "x")));
+        assertTrue(orderEventPreFilter.getDropCounts().isEmpty());
+    }
+
+    private static MedicationRequest createMedicationRequest() {
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setId("bd45ba4b-2e0f-4a8a-9b58-9a4e1e0a3f53");
+        return medicationRequest;
+    }
+
+    private static ServiceRequest createServiceRequest(ServiceRequest.ServiceRequestIntent intent) {
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setId("4ed050e1-c1be-4b4c-b407-c48d2db49b87");
+        serviceRequest.setIntent(intent);
+        return serviceRequest;
+    }
+
+    private static Exchange createExchange(Object body, String eventType) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, eventType);
+        exchange.getMessage().setBody(body);
+        return exchange;
+    }
+}
@@ -8,6 +8,7 @@
 package com.ozonehis.eip.odoo.openmrs.processors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -17,6 +18,8 @@ import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
 import com.ozonehis.eip.odoo.openmrs.Constants;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import com.ozonehis.eip.odoo.openmrs.precreation.VisitDraftPreparer;
+import java.util.ArrayList;
 import java.util.Date;
 import org.apache.camel.Exchange;
 import org.hl7.fhir.r4.model.Encounter;
@@ -32,6 +35,9 @@ class EncounterProcessorTest extends BaseProcessorTest {
     @Mock
     private SaleOrderHandler saleOrderHandler;
 
+    @Mock
+    private VisitDraftPreparer visitDraftPreparer;
+
     @InjectMocks
     private EncounterProcessor encounterProcessor;
 
@@ -120,4 +126,71 @@ class EncounterProcessorTest extends BaseProcessorTest {
         assertEquals(exchange.getProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER), true);
         verify(saleOrderHandler, times(0)).getDraftSaleOrderIfExistsByVisitId(ENCOUNTER_ID);
     }
+
+    @Test
+    void shouldCancelUnusedDraftSaleOrderWhenVisitIsClosed() {
+        // Arrange
+        Encounter encounter = new Encounter();
+        Period period = new Period();
+        period.setEnd(new Date());
+        encounter.setPeriod(period);
+        encounter.setId(ENCOUNTER_ID);
+
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderId(123);
+        saleOrder.setOrderState("draft");
+        saleOrder.setOrderLine(new ArrayList<>());
+
+        Exchange exchange = createExchange(encounter, "u");
+
+        // Mock behavior
+        when(saleOrderHandler.getDraftSaleOrderIfExistsByVisitId(ENCOUNTER_ID)).thenReturn(saleOrder);
+        when(visitDraftPreparer.isUnused(saleOrder)).thenReturn(true);
+
+        // Act
+        encounterProcessor.process(exchange);
+
+        // Assert
+        assertEquals("cancel", saleOrder.getOrderState());
+        assertEquals(saleOrder, exchange.getMessage().getBody());
+        assertEquals(false, exchange.getProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER));
+    }
+
+    @Test
+    void shouldPrepareDraftSaleOrderWhenEncounterOfOpenVisitIsReceived() {
+        // Arrange
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference(ENCOUNTER_REFERENCE_ID));
+        encounter.setId(ENCOUNTER_ID);
+
+        Exchange exchange = createExchange(encounter, "c");
+
+        // Mock behavior
+        when(visitDraftPreparer.isEnabled()).thenReturn(true);
+
+        // Act
+        encounterProcessor.process(exchange);
+
+        // Assert
+        assertEquals(true, exchange.getProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER));
+        verify(visitDraftPreparer, times(1)).prepare(encounter);
+        verify(saleOrderHandler, never()).getDraftSaleOrderIfExistsByVisitId(ENCOUNTER_ID);
+    }
+
+    @Test
+    void shouldNotPrepareDraftSaleOrderWhenPrecreationIsDisabled() {
+        // Arrange
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference(ENCOUNTER_REFERENCE_ID));
+        encounter.setId(ENCOUNTER_ID);
+
+        Exchange exchange = createExchange(encounter, "c");
+
+        // Act
+        encounterProcessor.process(exchange);
+
+        // Assert
+        assertEquals(true, exchange.getProperty(Constants.EXCHANGE_PROPERTY_SKIP_ENCOUNTER));
+        verify(visitDraftPreparer, never()).prepare(encounter);
+    }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.processors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IUntypedQuery;
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
+import com.ozonehis.eip.odoo.openmrs.fetch.FhirFetchBatcher;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.camel.CamelExecutionException;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+class FhirFetchProcessorTest {
+
+    private static final String SERVICE_REQUEST_ID = "service-request-id-1";
+
+    @Mock
+    private IGenericClient openmrsFhirClient;
+
+    @Mock
+    private FhirFetchBatcher fhirFetchBatcher;
+
+    @Mock
+    private FhirResourceCache fhirResourceCache;
+
+    @Mock
+    private IUntypedQuery iUntypedQuery;
+
+    @Mock
+    private IQuery iQuery;
+
+    @InjectMocks
+    private FhirFetchProcessor fhirFetchProcessor;
+
+    private static AutoCloseable mocksCloser;
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        when(openmrsFhirClient.search()).thenReturn(iUntypedQuery);
+        when(iUntypedQuery.forResource("ServiceRequest")).thenReturn(iQuery);
+        when(iQuery.where(any(ICriterion.class))).thenReturn(iQuery);
+        when(iQuery.include(any(Include.class))).thenReturn(iQuery);
+        when(iQuery.returnBundle(Bundle.class)).thenReturn(iQuery);
+    }
+
+    @Test
+    void shouldSetBodyToBundleOfResourceAndItsIncludes() {
+        // Setup
+        Bundle bundle = new Bundle();
+        Exchange exchange = createExchange("ServiceRequest:encounter, ServiceRequest:patient");
+
+        // Mock behavior
+        when(iQuery.execute()).thenReturn(bundle);
+
+        // Act
+        fhirFetchProcessor.process(exchange);
+
+        // Verify
+        assertEquals(bundle, exchange.getMessage().getBody());
+        verify(iQuery).include(argThat(include -> "ServiceRequest:encounter".equals(include.getValue())));
+        verify(iQuery).include(argThat(include -> "ServiceRequest:patient".equals(include.getValue())));
+    }
+
+    @Test
+    void shouldNotAddIncludesGivenNoIncludeHeader() {
+        // Setup
+        Bundle bundle = new Bundle();
+        Exchange exchange = createExchange(null);
+
+        // Mock behavior
+        when(iQuery.execute()).thenReturn(bundle);
+
+        // Act
+        fhirFetchProcessor.process(exchange);
+
+        // Verify
+        assertEquals(bundle, exchange.getMessage().getBody());
+        verify(iQuery, never()).include(any(Include.class));
+    }
+
+    @Test
+    void shouldFetchThroughBatcherGivenBatchingIsEnabled() throws Exception {
+        // Setup
+        Bundle bundle = new Bundle();
+        Exchange exchange = createExchange("ServiceRequest:patient");
+
+        // Mock behavior
+        when(fhirFetchBatcher.isEnabled()).thenReturn(true);
+        when(fhirFetchBatcher.fetch("ServiceRequest", SERVICE_REQUEST_ID, "ServiceRequest:patient"))
+                .thenReturn(bundle);
+
+        // Act
+        fhirFetchProcessor.process(exchange);
+
+        // Verify
+        assertEquals(bundle, exchange.getMessage().getBody());
+        verify(openmrsFhirClient, never()).search();
+    }
+
+    @Test
+    void shouldTakeTheFetchStartedBeforeTheDispatch() throws Exception {
+        // Setup
+        Bundle bundle = new Bundle();
+        Exchange exchange = createExchange("ServiceRequest:patient");
+
+        // Mock behavior
+        when(fhirFetchBatcher.isEnabled()).thenReturn(true);
+        when(fhirFetchBatcher.start("ServiceRequest", SERVICE_REQUEST_ID, "ServiceRequest:patient"))
+                .thenReturn(CompletableFuture.completedFuture(bundle));
+
+        // Act
+        fhirFetchProcessor.start(exchange);
+        Exchange attempt = exchange.copy();
+        fhirFetchProcessor.process(attempt);
+
+        // Verify
+        assertEquals(bundle, attempt.getMessage().getBody());
+        verify(fhirFetchBatcher, never()).fetch(any(), any(), any());
+        verify(openmrsFhirClient, never()).search();
+    }
+
+    @Test
+    void shouldFetchAgainGivenTheStartedFetchWasTakenOrFailed() throws Exception {
+        // Setup
+        Bundle bundle = new Bundle();
+        Exchange exchange = createExchange("ServiceRequest:patient");
+
+        // Mock behavior
+        when(fhirFetchBatcher.isEnabled()).thenReturn(true);
+        when(fhirFetchBatcher.start("ServiceRequest", SERVICE_REQUEST_ID, "ServiceRequest:patient"))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Connection refused")));
+        when(fhirFetchBatcher.fetch("ServiceRequest", SERVICE_REQUEST_ID, "ServiceRequest:patient"))
+                .thenReturn(bundle);
+
+        // Act
+        fhirFetchProcessor.start(exchange);
+        fhirFetchProcessor.process(exchange.copy());
+        Exchange retry = exchange.copy();
+        fhirFetchProcessor.process(retry);
+
+        // Verify
+        assertEquals(bundle, retry.getMessage().getBody());
+        verify(fhirFetchBatcher, times(2)).fetch("ServiceRequest", SERVICE_REQUEST_ID, "ServiceRequest:patient");
+    }
+
+    @Test
+    void shouldLeaveCachedIncludesOutOfTheFetchAndAddThemToTheBundle() {
+        // Setup
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setId(SERVICE_REQUEST_ID);
+        Patient patient = new Patient();
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(serviceRequest);
+        Exchange exchange = createExchange("ServiceRequest:encounter,ServiceRequest:patient");
+        exchange.getMessage().setBody(serviceRequest);
+
+        // Mock behavior
+        when(fhirResourceCache.isEnabled()).thenReturn(true);
+        when(fhirResourceCache.getIncluded(serviceRequest, "ServiceRequest:patient"))
+                .thenReturn(CompletableFuture.completedFuture(patient));
+        when(iQuery.execute()).thenReturn(bundle);
+
+        // Act
+        fhirFetchProcessor.process(exchange);
+
+        // Verify
+        List<Resource> resources = exchange.getMessage().getBody(Bundle.class).getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .toList();
+        assertEquals(List.of(serviceRequest, patient), resources);
+        verify(iQuery).include(argThat(include -> "ServiceRequest:encounter".equals(include.getValue())));
+        verify(iQuery, never()).include(argThat(include -> "ServiceRequest:patient".equals(include.getValue())));
+        verify(fhirResourceCache).putAll(bundle);
+    }
+
+    @Test
+    void shouldFetchWhileTheCachedIncludesAreRevalidated() {
+        // Setup
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setId(SERVICE_REQUEST_ID);
+        Patient patient = new Patient();
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(serviceRequest);
+        CompletableFuture<Resource> revalidation = new CompletableFuture<>();
+        Exchange exchange = createExchange("ServiceRequest:patient");
+        exchange.getMessage().setBody(serviceRequest);
+
+        // Mock behavior
+        when(fhirResourceCache.isEnabled()).thenReturn(true);
+        when(fhirResourceCache.getIncluded(serviceRequest, "ServiceRequest:patient"))
+                .thenReturn(revalidation);
+        when(iQuery.execute()).thenAnswer(invocation -> {
+            assertFalse(revalidation.isDone());
+            revalidation.complete(patient);
+            return bundle;
+        });
+
+        // Act
+        fhirFetchProcessor.process(exchange);
+
+        // Verify
+        List<Resource> resources = exchange.getMessage().getBody(Bundle.class).getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .toList();
+        assertEquals(List.of(serviceRequest, patient), resources);
+    }
+
+    @Test
+    void shouldThrowCamelExecutionExceptionGivenFetchFails() {
+        // Setup
+        Exchange exchange = createExchange("ServiceRequest:patient");
+
+        // Mock behavior
+        when(iQuery.execute()).thenThrow(new RuntimeException("Connection refused"));
+
+        // Verify
+        assertThrows(CamelExecutionException.class, () -> fhirFetchProcessor.process(exchange));
+    }
+
+    private Exchange createExchange(String includes) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, "ServiceRequest");
+        exchange.getMessage().setHeader(Constants.HEADER_FHIR_RESOURCE_ID, SERVICE_REQUEST_ID);
+        exchange.getMessage().setHeader(Constants.HEADER_FHIR_INCLUDE, includes);
+        return exchange;
+    }
+}
@@ -9,6 +9,7 @@ package com.ozonehis.eip.odoo.openmrs.processors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -16,8 +17,11 @@ import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
 
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import java.util.ArrayList;
@@ -51,6 +55,12 @@ class MedicationRequestProcessorTest extends BaseProcessorTest {
     @Mock
     private PartnerHandler partnerHandler;
 
+    @Mock
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Mock
+    private VisitOrderAggregator visitOrderAggregator;
+
     @InjectMocks
     private MedicationRequestProcessor medicationRequestProcessor;
 
@@ -59,6 +69,13 @@ class MedicationRequestProcessorTest extends BaseProcessorTest {
     @BeforeEach
     void setup() {
         mocksCloser = openMocks(this);
+        OrderEnricher orderEnricher = new OrderEnricher();
+        orderEnricher.setEnrichmentExecutor(Runnable::run);
+        orderEnricher.setTimeout(1000);
+        orderEnricher.setPartnerHandler(partnerHandler);
+        orderEnricher.setSaleOrderHandler(saleOrderHandler);
+        orderEnricher.setSaleOrderLineHandler(saleOrderLineHandler);
+        medicationRequestProcessor.setOrderEnricher(orderEnricher);
     }
 
     @AfterAll
@@ -118,6 +135,7 @@ class MedicationRequestProcessorTest extends BaseProcessorTest {
                         eq(ENCOUNTER_VISIT_ID),
                         eq(PATIENT_ID),
                         any());
+        verify(saleOrderHandler, times(1)).flush(any(), any());
     }
 
     @Test
@@ -198,7 +216,8 @@ class MedicationRequestProcessorTest extends BaseProcessorTest {
 
         // Assert
         assertEquals(exchange.getMessage().getHeader(HEADER_FHIR_EVENT_TYPE), "u");
-        verify(saleOrderHandler, times(1)).deleteSaleOrderLine(eq(medicationRequest), eq(ENCOUNTER_VISIT_ID), any());
+        verify(saleOrderHandler, times(1))
+                .deleteSaleOrderLineOfRevisedOrder(eq(medicationRequest), eq(ENCOUNTER_VISIT_ID), any());
         verify(saleOrderHandler, times(0))
                 .updateSaleOrderIfExistsWithSaleOrderLine(
                         eq(medicationRequest), any(), eq(ENCOUNTER_VISIT_ID), eq(PARTNER_ID), eq(PATIENT_ID), any());
@@ -211,4 +230,43 @@ class MedicationRequestProcessorTest extends BaseProcessorTest {
                         eq(PATIENT_ID),
                         any());
     }
+
+    @Test
+    void shouldAddSaleOrderLineToVisitBatchWhenAggregationIsEnabled() {
+        // Arrange
+        Patient patient = new Patient();
+        patient.setId(PATIENT_ID);
+        Encounter encounter = new Encounter();
+        encounter.setPartOf(new Reference(ENCOUNTER_REFERENCE_ID));
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setStatus(MedicationRequest.MedicationRequestStatus.ACTIVE);
+        Medication medication = new Medication();
+
+        Bundle bundle = new Bundle();
+        List<Bundle.BundleEntryComponent> entries = new ArrayList<>();
+        entries.add(new Bundle.BundleEntryComponent().setResource(patient));
+        entries.add(new Bundle.BundleEntryComponent().setResource(encounter));
+        entries.add(new Bundle.BundleEntryComponent().setResource(medicationRequest));
+        entries.add(new Bundle.BundleEntryComponent().setResource(medication));
+        bundle.setEntry(entries);
+
+        Exchange exchange = createExchange(bundle, "c");
+
+        Partner partner = new Partner();
+        partner.setPartnerId(PARTNER_ID);
+
+        // Mock behavior
+        when(partnerHandler.createOrUpdatePartner(any(), eq(patient))).thenReturn(partner);
+        when(visitOrderAggregator.isEnabled()).thenReturn(true);
+
+        // Act
+        medicationRequestProcessor.process(exchange);
+
+        // Assert
+        verify(visitOrderAggregator, times(1))
+                .addLine(medicationRequest, encounter, partner, ENCOUNTER_VISIT_ID, PATIENT_ID, exchange);
+        verify(saleOrderHandler, times(0)).createSaleOrderWithSaleOrderLine(any(), any(), any(), any(), any(), any());
+        verify(saleOrderHandler, times(0))
+                .updateSaleOrderIfExistsWithSaleOrderLine(any(), any(), any(), anyInt(), any(), any());
+    }
 }
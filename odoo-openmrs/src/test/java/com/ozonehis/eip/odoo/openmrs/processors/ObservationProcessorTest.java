@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.processors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.cache.PatientWeightCache;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+class ObservationProcessorTest extends BaseProcessorTest {
+
+    private static final String PATIENT_ID = "patient-id-987";
+
+    @Mock
+    private PatientWeightCache patientWeightCache;
+
+    @Mock
+    private SaleOrderHandler saleOrderHandler;
+
+    @InjectMocks
+    private ObservationProcessor observationProcessor;
+
+    private static AutoCloseable mocksCloser;
+
+    @BeforeEach
+    void setup() {
+        mocksCloser = openMocks(this);
+    }
+
+    @AfterAll
+    static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @Test
+    void shouldPushNewWeightToDraftSaleOrders() {
+        // Arrange
+        Observation observation = new Observation();
+        Exchange exchange = createExchange(observation, "c");
+
+        // Mock behavior
+        when(patientWeightCache.isWeightObservation(observation)).thenReturn(true);
+        when(patientWeightCache.update(observation)).thenReturn(true);
+        when(patientWeightCache.getPatientID(observation)).thenReturn(PATIENT_ID);
+        when(patientWeightCache.getWeight(PATIENT_ID)).thenReturn("70 kg");
+
+        // Act
+        observationProcessor.process(exchange);
+
+        // Assert
+        verify(saleOrderHandler, times(1)).updateDraftSaleOrdersWithPatientWeight(eq(PATIENT_ID), eq("70 kg"), any());
+    }
+
+    @Test
+    void shouldNotUpdateDraftSaleOrdersWhenWeightIsUnchanged() {
+        // Arrange
+        Observation observation = new Observation();
+        Exchange exchange = createExchange(observation, "u");
+
+        // Mock behavior
+        when(patientWeightCache.isWeightObservation(observation)).thenReturn(true);
+        when(patientWeightCache.update(observation)).thenReturn(false);
+
+        // Act
+        observationProcessor.process(exchange);
+
+        // Assert
+        verify(saleOrderHandler, never()).updateDraftSaleOrdersWithPatientWeight(anyString(), anyString(), any());
+    }
+
+    @Test
+    void shouldInvalidateWeightWhenObservationIsDeleted() {
+        // Arrange
+        Observation observation = new Observation();
+        Exchange exchange = createExchange(observation, "d");
+
+        // Mock behavior
+        when(patientWeightCache.isWeightObservation(observation)).thenReturn(true);
+
+        // Act
+        observationProcessor.process(exchange);
+
+        // Assert
+        verify(patientWeightCache, times(1)).invalidate(observation);
+        verify(patientWeightCache, never()).update(observation);
+    }
+}
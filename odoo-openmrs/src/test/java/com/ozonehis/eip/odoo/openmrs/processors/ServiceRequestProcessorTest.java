@@ -16,8 +16,11 @@ import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.openMocks;
 import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
 
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderAggregator;
+import com.ozonehis.eip.odoo.openmrs.enrichment.OrderEnricher;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.PartnerHandler;
 import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
 import com.ozonehis.eip.odoo.openmrs.model.Partner;
 import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
 import java.util.ArrayList;
@@ -49,6 +52,12 @@ class ServiceRequestProcessorTest extends BaseProcessorTest {
     @Mock
     private PartnerHandler partnerHandler;
 
+    @Mock
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Mock
+    private VisitOrderAggregator visitOrderAggregator;
+
     @InjectMocks
     private ServiceRequestProcessor serviceRequestProcessor;
 
@@ -57,6 +66,13 @@ class ServiceRequestProcessorTest extends BaseProcessorTest {
     @BeforeEach
     void setup() {
         mocksCloser = openMocks(this);
+        OrderEnricher orderEnricher = new OrderEnricher();
+        orderEnricher.setEnrichmentExecutor(Runnable::run);
+        orderEnricher.setTimeout(1000);
+        orderEnricher.setPartnerHandler(partnerHandler);
+        orderEnricher.setSaleOrderHandler(saleOrderHandler);
+        orderEnricher.setSaleOrderLineHandler(saleOrderLineHandler);
+        serviceRequestProcessor.setOrderEnricher(orderEnricher);
     }
 
     @AfterAll
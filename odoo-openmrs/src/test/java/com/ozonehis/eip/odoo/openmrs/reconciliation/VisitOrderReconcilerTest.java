@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.reconciliation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.aggregation.VisitOrderBatch;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.ProductHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.odoo.SaleOrderLineHandler;
+import com.ozonehis.eip.odoo.openmrs.handlers.openmrs.EncounterHandler;
+import com.ozonehis.eip.odoo.openmrs.model.Partner;
+import com.ozonehis.eip.odoo.openmrs.model.Product;
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrderLine;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+class VisitOrderReconcilerTest {
+
+    private static final String VISIT_ID = "e5ca6578-fb37-4900-a054-c68db82a551c";
+
+    @Mock
+    private EncounterHandler encounterHandler;
+
+    @Mock
+    private ProductHandler productHandler;
+
+    @Mock
+    private SaleOrderLineHandler saleOrderLineHandler;
+
+    @Mock
+    private SaleOrderHandler saleOrderHandler;
+
+    @Mock
+    private ProducerTemplate producerTemplate;
+
+    @InjectMocks
+    private VisitOrderReconciler visitOrderReconciler;
+
+    private AutoCloseable mocksCloser;
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @Test
+    public void shouldWriteTheSaleOrderLinesOfTheActiveOrdersOfTheVisit() {
+        // Setup
+        MedicationRequest activeMedication = getMedicationRequest(MedicationRequest.MedicationRequestStatus.ACTIVE);
+        MedicationRequest stoppedMedication = getMedicationRequest(MedicationRequest.MedicationRequestStatus.STOPPED);
+        ServiceRequest activeTest = getServiceRequest(ServiceRequest.ServiceRequestStatus.ACTIVE);
+        MedicationRequest unknownMedication = getMedicationRequest(MedicationRequest.MedicationRequestStatus.ACTIVE);
+        SaleOrderLine medicationLine = new SaleOrderLine();
+        SaleOrderLine testLine = new SaleOrderLine();
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID);
+
+        // Mock behavior
+        when(encounterHandler.getOrdersByVisitID(VISIT_ID))
+                .thenReturn(List.of(activeMedication, stoppedMedication, activeTest, unknownMedication));
+        when(productHandler.getProduct(activeMedication)).thenReturn(getProduct(7));
+        when(productHandler.getProduct(stoppedMedication)).thenReturn(getProduct(8));
+        when(productHandler.getProduct(activeTest)).thenReturn(getProduct(9));
+        when(saleOrderLineHandler.buildSaleOrderLine(eq(activeMedication), eq(getProduct(7))))
+                .thenReturn(medicationLine);
+        when(saleOrderLineHandler.buildSaleOrderLine(eq(activeTest), eq(getProduct(9))))
+                .thenReturn(testLine);
+
+        // Act
+        visitOrderReconciler.reconcile(batch, producerTemplate);
+
+        // Verify
+        ArgumentCaptor<Map<Integer, SaleOrderLine>> activeLinesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(saleOrderHandler)
+                .writeVisitOrderState(
+                        eq(batch), activeLinesCaptor.capture(), eq(Set.of(7, 8, 9)), eq(producerTemplate));
+        assertEquals(Map.of(7, medicationLine, 9, testLine), activeLinesCaptor.getValue());
+    }
+
+    @Test
+    public void shouldApplyTheCollectedSupplyLineChangesWithTheStateOfTheOrders() {
+        // Setup
+        SaleOrderLine supplyLine = new SaleOrderLine();
+        supplyLine.setSaleOrderLineProductId(11);
+        VisitOrderBatch batch = new VisitOrderBatch(VISIT_ID);
+        batch.addLine(supplyLine, new Encounter(), new Partner(), "patient-id-987");
+        batch.removeLine(12, new Encounter(), new Partner(), "patient-id-987", true);
+
+        // Mock behavior
+        when(encounterHandler.getOrdersByVisitID(VISIT_ID)).thenReturn(List.of());
+
+        // Act
+        visitOrderReconciler.reconcile(batch, producerTemplate);
+
+        // Verify
+        verify(saleOrderHandler).writeVisitOrderState(batch, Map.of(11, supplyLine), Set.of(11, 12), producerTemplate);
+    }
+
+    @Test
+    public void shouldReturnWhetherOrderIsActive() {
+        // Setup
+        ServiceRequest proposedTest = getServiceRequest(ServiceRequest.ServiceRequestStatus.ACTIVE);
+        proposedTest.setIntent(ServiceRequest.ServiceRequestIntent.PROPOSAL);
+
+        // Verify
+        assertTrue(isActive(MedicationRequest.MedicationRequestStatus.ACTIVE));
+        assertTrue(isActive(MedicationRequest.MedicationRequestStatus.COMPLETED));
+        assertFalse(isActive(MedicationRequest.MedicationRequestStatus.CANCELLED));
+        assertFalse(isActive(MedicationRequest.MedicationRequestStatus.STOPPED));
+        assertTrue(VisitOrderReconciler.isActive(getServiceRequest(ServiceRequest.ServiceRequestStatus.ACTIVE)));
+        assertFalse(VisitOrderReconciler.isActive(getServiceRequest(ServiceRequest.ServiceRequestStatus.REVOKED)));
+        assertFalse(VisitOrderReconciler.isActive(proposedTest));
+    }
+
+    private boolean isActive(MedicationRequest.MedicationRequestStatus status) {
+        return VisitOrderReconciler.isActive(getMedicationRequest(status));
+    }
+
+    private MedicationRequest getMedicationRequest(MedicationRequest.MedicationRequestStatus status) {
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setStatus(status);
+        return medicationRequest;
+    }
+
+    private ServiceRequest getServiceRequest(ServiceRequest.ServiceRequestStatus status) {
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setStatus(status);
+        serviceRequest.setIntent(ServiceRequest.ServiceRequestIntent.ORDER);
+        return serviceRequest;
+    }
+
+    private Product getProduct(int productResId) {
+        Product product = new Product();
+        product.setProductResId(productResId);
+        return product;
+    }
+}
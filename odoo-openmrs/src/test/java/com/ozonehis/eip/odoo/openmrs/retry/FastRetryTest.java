@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.eip.EIPException;
+
+class FastRetryTest {
+
+    private FastRetry fastRetry;
+
+    @BeforeEach
+    public void setup() {
+        fastRetry = new FastRetry();
+        fastRetry.setEnabled(true);
+        fastRetry.setMaxAttempts(4);
+        fastRetry.setInitialDelay(1);
+        fastRetry.setMultiplier(2);
+        fastRetry.setBudget(10000);
+    }
+
+    @Test
+    public void shouldRetryEventWithExponentialBackoff() {
+        // Verify
+        assertEquals(1, fastRetry.getRetryDelay("event-1", transientError(), 1, 0));
+        assertEquals(2, fastRetry.getRetryDelay("event-1", transientError(), 2, 1));
+        assertEquals(4, fastRetry.getRetryDelay("event-1", transientError(), 3, 3));
+        assertEquals(3, fastRetry.getRetriedCount());
+    }
+
+    @Test
+    public void shouldStopRetryingOnceAttemptsAreExhausted() {
+        // Verify
+        assertEquals(-1, fastRetry.getRetryDelay("event-1", transientError(), 4, 7));
+        assertEquals(1, fastRetry.getExhaustedCount());
+        assertEquals(0, fastRetry.getRetriedCount());
+    }
+
+    @Test
+    public void shouldStopRetryingOnceNextAttemptWouldExceedBudget() {
+        // Setup
+        fastRetry.setInitialDelay(50);
+        fastRetry.setBudget(100);
+
+        // Verify
+        assertEquals(50, fastRetry.getRetryDelay("event-1", transientError(), 1, 0));
+        assertEquals(-1, fastRetry.getRetryDelay("event-1", transientError(), 2, 50));
+        assertEquals(1, fastRetry.getExhaustedCount());
+    }
+
+    @Test
+    public void shouldNotRetryEventThatFailedWithPermanentError() {
+        // Verify
+        assertEquals(-1, fastRetry.getRetryDelay("event-1", new EIPException("Product not found"), 1, 0));
+        assertEquals(0, fastRetry.getRetriedCount());
+        assertEquals(0, fastRetry.getExhaustedCount());
+    }
+
+    @Test
+    public void shouldNotRetryEventWhenDisabled() {
+        // Setup
+        fastRetry.setEnabled(false);
+
+        // Verify
+        assertEquals(-1, fastRetry.getRetryDelay("event-1", transientError(), 1, 0));
+        assertEquals(0, fastRetry.getRetriedCount());
+    }
+
+    @Test
+    public void shouldRecognizeTransientErrors() {
+        // Verify
+        assertTrue(FastRetry.isTransient(transientError()));
+        assertTrue(FastRetry.isTransient(
+                new RuntimeException("Error", new XmlRpcHttpTransportException(503, "Service Unavailable"))));
+        assertTrue(FastRetry.isTransient(new RuntimeException(
+                "Error", new XmlRpcException(1, "could not serialize access due to concurrent update"))));
+        assertFalse(FastRetry.isTransient(
+                new RuntimeException("Error", new XmlRpcException(1, "ValidationError: Missing required field"))));
+    }
+
+    private static RuntimeException transientError() {
+        return new RuntimeException("Error occurred while writing to odoo server error", new ConnectException());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultComponent;
+import org.apache.camel.support.ProcessorEndpoint;
+
+/**
+ * Compares the throughput and the number of endpoints created when the order routes fetch their resource through a
+ * {@code toD} with the resource id in the endpoint uri as they used to with the static fetch step reading the id from a
+ * header, it is not run by the build. The OpenMRS server is replaced by a stub so that only the routing is measured.
+ * Optionally pass the number of events which defaults to 200 thousand.
+ */
+public class FhirFetchBenchmark {
+
+    private static final String DYNAMIC_URI = "stub-fhir://?id=${header." + Constants.HEADER_FHIR_RESOURCE_ID
+            + "}&resource=${exchangeProperty." + Constants.FHIR_RESOURCE_TYPE + "}&include=${header."
+            + Constants.HEADER_FHIR_INCLUDE + "}";
+
+    private static final String INCLUDES = "ServiceRequest:encounter,ServiceRequest:patient";
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        run("toD per resource id", events, new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:fetch").toD(DYNAMIC_URI);
+            }
+        });
+        run("static fetch step", events, new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:fetch").process(FhirFetchBenchmark::fetch);
+            }
+        });
+    }
+
+    private static void run(String name, int events, RouteBuilder routeBuilder) throws Exception {
+        try (CamelContext context = new DefaultCamelContext()) {
+            context.addComponent("stub-fhir", new StubFhirComponent());
+            context.addRoutes(routeBuilder);
+            context.start();
+            int endpointsBefore = context.getEndpointRegistry().size();
+            try (ProducerTemplate producerTemplate = context.createProducerTemplate()) {
+                long start = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                    String id = UUID.randomUUID().toString();
+                    producerTemplate.send("direct:fetch", exchange -> {
+                        exchange.setProperty(Constants.FHIR_RESOURCE_TYPE, "ServiceRequest");
+                        exchange.getMessage().setHeader(Constants.HEADER_FHIR_RESOURCE_ID, id);
+                        exchange.getMessage().setHeader(Constants.HEADER_FHIR_INCLUDE, INCLUDES);
+                    });
+                }
+                long nanos = System.nanoTime() - start;
+                System.out.printf(
+                        "%s: %d events, %.0f events/s, %d endpoints created, heap used %d MB%n",
+                        name,
+                        events,
+                        events / (nanos / 1_000_000_000.0),
+                        context.getEndpointRegistry().size() - endpointsBefore,
+                        usedMemory() / (1024 * 1024));
+            }
+        }
+    }
+
+    private static void fetch(Exchange exchange) {
+        String id = exchange.getMessage().getHeader(Constants.HEADER_FHIR_RESOURCE_ID, String.class);
+        exchange.getMessage().setBody(id);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class StubFhirComponent extends DefaultComponent {
+
+        @Override
+        protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) {
+            Object id = parameters.get("id");
+            // The stub accepts any option like the FHIR component does with its search parameters
+            parameters.clear();
+            return new ProcessorEndpoint(
+                    uri, this, exchange -> exchange.getMessage().setBody(id));
+        }
+    }
+}
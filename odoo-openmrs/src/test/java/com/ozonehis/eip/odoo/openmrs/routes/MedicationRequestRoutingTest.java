@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IUntypedQuery;
+import com.ozonehis.eip.odoo.openmrs.cache.FhirResourceCache;
+import com.ozonehis.eip.odoo.openmrs.fetch.FhirFetchBatcher;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.prefilter.OrderEventPreFilter;
+import com.ozonehis.eip.odoo.openmrs.processors.FhirFetchProcessor;
+import com.ozonehis.eip.odoo.openmrs.processors.MedicationRequestProcessor;
+import com.ozonehis.eip.odoo.openmrs.retry.FastRetry;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import java.util.concurrent.CountDownLatch;
+import org.apache.camel.Exchange;
+import org.apache.camel.RoutesBuilder;
+import org.apache.camel.test.spring.junit5.CamelSpringTestSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.openmrs.eip.fhir.Constants;
+import org.springframework.context.support.AbstractApplicationContext;
+import org.springframework.context.support.StaticApplicationContext;
+
+public class MedicationRequestRoutingTest extends CamelSpringTestSupport {
+
+    private static final String MEDICATION_REQUEST_ROUTE = "direct:fhir-medicationrequest";
+
+    private final IGenericClient openmrsFhirClient = Mockito.mock(IGenericClient.class);
+
+    private final IUntypedQuery iUntypedQuery = Mockito.mock(IUntypedQuery.class);
+
+    private final IQuery iQuery = Mockito.mock(IQuery.class);
+
+    private final MedicationRequestProcessor medicationRequestProcessor =
+            Mockito.mock(MedicationRequestProcessor.class);
+
+    private final FhirFetchBatcher fhirFetchBatcher = new FhirFetchBatcher();
+
+    private final PartitionedLanes partitionedLanes = new PartitionedLanes();
+
+    @Override
+    protected RoutesBuilder createRouteBuilder() {
+        // Lanes which do not wait for the events, so that the orders are sent while the first one is fetched
+        partitionedLanes.setLaneCount(2);
+        partitionedLanes.setLaneCapacity(100);
+        partitionedLanes.setOverflow("block");
+        partitionedLanes.setWaitForCompletion(false);
+        partitionedLanes.setCamelContext(context);
+        partitionedLanes.setRetryQueue(new RetryQueue());
+        partitionedLanes.setFastRetry(new FastRetry());
+        partitionedLanes.init();
+
+        fhirFetchBatcher.setEnabled(true);
+        fhirFetchBatcher.setThreads(2);
+        fhirFetchBatcher.setMaxSize(50);
+        fhirFetchBatcher.setOpenmrsFhirClient(openmrsFhirClient);
+        fhirFetchBatcher.init();
+
+        FhirFetchProcessor fhirFetchProcessor = new FhirFetchProcessor();
+        fhirFetchProcessor.setOpenmrsFhirClient(openmrsFhirClient);
+        fhirFetchProcessor.setFhirFetchBatcher(fhirFetchBatcher);
+        fhirFetchProcessor.setFhirResourceCache(Mockito.mock(FhirResourceCache.class));
+
+        OrderEventPreFilter orderEventPreFilter = new OrderEventPreFilter();
+        orderEventPreFilter.setEnabled(false);
+
+        AppliedVersionFilter appliedVersionFilter = new AppliedVersionFilter();
+        appliedVersionFilter.setEnabled(false);
+
+        MedicationRequestRouting medicationRequestRouting = new MedicationRequestRouting();
+        medicationRequestRouting.setMedicationRequestProcessor(medicationRequestProcessor);
+        medicationRequestRouting.setFhirFetchProcessor(fhirFetchProcessor);
+        medicationRequestRouting.setPartitionedLanes(partitionedLanes);
+        medicationRequestRouting.setOrderEventPreFilter(orderEventPreFilter);
+        medicationRequestRouting.setAppliedVersionFilter(appliedVersionFilter);
+        return medicationRequestRouting;
+    }
+
+    @Override
+    protected AbstractApplicationContext createApplicationContext() {
+        return new StaticApplicationContext();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        fhirFetchBatcher.shutdown();
+        partitionedLanes.shutdown();
+    }
+
+    @Test
+    public void shouldFetchTheOrdersOfAPatientQueuedOnItsLaneInOneSearch() throws Exception {
+        // Setup
+        MedicationRequest medicationRequest1 = medicationRequest("order-1", "patient-1");
+        MedicationRequest medicationRequest2 = medicationRequest("order-2", "patient-1");
+        MedicationRequest medicationRequest3 = medicationRequest("order-3", "patient-1");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(medicationRequest1);
+        bundle.addEntry().setResource(medicationRequest2);
+        bundle.addEntry().setResource(medicationRequest3);
+        CountDownLatch firstSearch = new CountDownLatch(1);
+
+        // Mock behavior
+        when(openmrsFhirClient.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+        when(openmrsFhirClient.search()).thenReturn(iUntypedQuery);
+        when(iUntypedQuery.forResource("MedicationRequest")).thenReturn(iQuery);
+        when(iQuery.where(any(ICriterion.class))).thenReturn(iQuery);
+        when(iQuery.include(any(Include.class))).thenReturn(iQuery);
+        when(iQuery.count(anyInt())).thenReturn(iQuery);
+        when(iQuery.returnBundle(Bundle.class)).thenReturn(iQuery);
+        when(iQuery.execute()).thenAnswer(invocation -> {
+            firstSearch.await();
+            return bundle;
+        });
+
+        // Act
+        send(medicationRequest1);
+        send(medicationRequest2);
+        send(medicationRequest3);
+        firstSearch.countDown();
+
+        // Verify
+        verify(medicationRequestProcessor, timeout(2000).times(3)).process(any(Exchange.class));
+        verify(openmrsFhirClient, times(2)).search();
+        verify(iQuery).count(1);
+        verify(iQuery).count(2);
+        assertEquals(3, fhirFetchBatcher.getFetchCount());
+        assertEquals(2, fhirFetchBatcher.getSearchCount());
+    }
+
+    private void send(MedicationRequest medicationRequest) {
+        template.send(MEDICATION_REQUEST_ROUTE, exchange -> {
+            exchange.getMessage().setHeader(Constants.HEADER_FHIR_EVENT_TYPE, "c");
+            exchange.getMessage().setBody(medicationRequest);
+        });
+    }
+
+    private static MedicationRequest medicationRequest(String id, String patientId) {
+        MedicationRequest medicationRequest = new MedicationRequest();
+        medicationRequest.setId(id);
+        medicationRequest.setSubject(new Reference("Patient/" + patientId));
+        return medicationRequest;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.routes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.openmrs.eip.fhir.Constants.HEADER_FHIR_EVENT_TYPE;
+
+import com.ozonehis.eip.odoo.openmrs.Constants;
+import com.ozonehis.eip.odoo.openmrs.debounce.PatientUpdateDebouncer;
+import com.ozonehis.eip.odoo.openmrs.idempotency.AppliedVersionFilter;
+import com.ozonehis.eip.odoo.openmrs.partition.PartitionedLanes;
+import com.ozonehis.eip.odoo.openmrs.processors.PatientProcessor;
+import com.ozonehis.eip.odoo.openmrs.retry.FastRetry;
+import com.ozonehis.eip.odoo.openmrs.retry.RetryQueue;
+import com.ozonehis.eip.odoo.openmrs.shedding.LoadShedder;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.camel.Exchange;
+import org.apache.camel.RoutesBuilder;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.test.spring.junit5.CamelSpringTestSupport;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.context.support.AbstractApplicationContext;
+import org.springframework.context.support.StaticApplicationContext;
+
+public class PatientRoutingTest extends CamelSpringTestSupport {
+
+    private static final String PATIENT_ROUTE = "direct:fhir-patient";
+
+    private final PatientProcessor patientProcessor = Mockito.mock(PatientProcessor.class);
+
+    private final LoadShedder loadShedder = Mockito.mock(LoadShedder.class);
+
+    private final AtomicInteger shedCount = new AtomicInteger();
+
+    private final PartitionedLanes partitionedLanes = new PartitionedLanes();
+
+    @Override
+    protected RoutesBuilder createRouteBuilder() {
+        partitionedLanes.setLaneCount(1);
+        partitionedLanes.setLaneCapacity(10);
+        partitionedLanes.setOverflow("block");
+        partitionedLanes.setWaitForCompletion(true);
+        partitionedLanes.setCamelContext(context);
+        partitionedLanes.setRetryQueue(new RetryQueue());
+        partitionedLanes.setFastRetry(new FastRetry());
+        partitionedLanes.init();
+
+        PatientUpdateDebouncer patientUpdateDebouncer = new PatientUpdateDebouncer();
+        patientUpdateDebouncer.setEnabled(false);
+        patientUpdateDebouncer.init();
+
+        AppliedVersionFilter appliedVersionFilter = new AppliedVersionFilter();
+        appliedVersionFilter.setEnabled(false);
+
+        when(loadShedder.shed(LoadShedder.PATIENT_EVENTS)).thenReturn(exchange -> shedCount.incrementAndGet());
+
+        PatientRouting patientRouting = new PatientRouting();
+        patientRouting.setPatientProcessor(patientProcessor);
+        patientRouting.setPartitionedLanes(partitionedLanes);
+        patientRouting.setAppliedVersionFilter(appliedVersionFilter);
+        patientRouting.setLoadShedder(loadShedder);
+        patientRouting.setPatientUpdateDebouncer(patientUpdateDebouncer);
+        patientRouting.setPatientSyncEnabled(false);
+        return patientRouting;
+    }
+
+    @Override
+    protected AbstractApplicationContext createApplicationContext() {
+        return new StaticApplicationContext();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        partitionedLanes.shutdown();
+    }
+
+    @Test
+    public void shouldDropPatientEventBeforeItIsShedWhenPatientSyncIsDisabled() throws Exception {
+        // Act
+        template.send(PATIENT_ROUTE, exchange -> {
+            exchange.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, "u");
+            exchange.getMessage().setBody(patient());
+        });
+
+        // Verify
+        assertEquals(0, shedCount.get());
+        assertEquals(0, partitionedLanes.getDispatchedCount());
+        verify(patientProcessor, never()).process(any(Exchange.class));
+    }
+
+    @Test
+    public void shouldProcessPatientEventWhenPatientSyncIsEnabledForTheEvent() throws Exception {
+        // Setup
+        context.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() {
+                from("direct:odoo-update-partner-route").log("Updated partner");
+            }
+        });
+
+        // Act
+        template.send(PATIENT_ROUTE, exchange -> {
+            exchange.getMessage().setHeader(HEADER_FHIR_EVENT_TYPE, "u");
+            exchange.getMessage().setHeader(Constants.HEADER_ENABLE_PATIENT_SYNC, true);
+            exchange.getMessage().setBody(patient());
+        });
+
+        // Verify
+        assertEquals(1, shedCount.get());
+        assertEquals(1, partitionedLanes.getDispatchedCount());
+        verify(patientProcessor, times(1)).process(any(Exchange.class));
+    }
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.setId("patient-1");
+        return patient;
+    }
+}
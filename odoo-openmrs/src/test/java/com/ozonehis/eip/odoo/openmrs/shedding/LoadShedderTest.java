@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.shedding;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+import com.ozonehis.eip.odoo.openmrs.client.OdooLatencyMonitor;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.openmrs.eip.EIPException;
+
+class LoadShedderTest {
+
+    @Mock
+    private OdooLatencyMonitor latencyMonitor;
+
+    @InjectMocks
+    private LoadShedder loadShedder;
+
+    private static AutoCloseable mocksCloser;
+
+    @AfterAll
+    public static void close() throws Exception {
+        mocksCloser.close();
+    }
+
+    @BeforeEach
+    public void setup() {
+        mocksCloser = openMocks(this);
+        loadShedder.setEnabled(true);
+        loadShedder.setLatencyThreshold(2000);
+        loadShedder.setErrorRateThreshold(0.5);
+        loadShedder.setDeferredEvents(List.of(LoadShedder.PATIENT_EVENTS, LoadShedder.ORDER_EVENTS));
+    }
+
+    @Test
+    public void shouldDeferConfiguredEventsWhileOdooIsSlow() {
+        // Setup
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+
+        // Mock behavior
+        when(latencyMonitor.getP99Latency()).thenReturn(5000L);
+
+        // Verify
+        assertThrows(
+                EIPException.class,
+                () -> loadShedder.shed(LoadShedder.PATIENT_EVENTS).process(exchange));
+        assertEquals(1, loadShedder.getDeferredCount());
+    }
+
+    @Test
+    public void shouldDeferConfiguredEventsWhileOdooFails() throws Exception {
+        // Mock behavior
+        when(latencyMonitor.getErrorRate()).thenReturn(0.8);
+
+        // Verify
+        assertTrue(loadShedder.isDeferred(LoadShedder.PATIENT_EVENTS));
+    }
+
+    @Test
+    public void shouldNeverDeferOrderEventsNorEventsThatAreNotConfigured() throws Exception {
+        // Mock behavior
+        when(latencyMonitor.getP99Latency()).thenReturn(5000L);
+
+        // Verify
+        assertFalse(loadShedder.isDeferred(LoadShedder.ORDER_EVENTS));
+        assertFalse(loadShedder.isDeferred(LoadShedder.ENCOUNTER_EVENTS));
+        assertEquals(0, loadShedder.getDeferredCount());
+    }
+
+    @Test
+    public void shouldDeferEventWithoutWaitingForOdooToRecover() {
+        // Mock behavior
+        when(latencyMonitor.getP99Latency()).thenReturn(5000L, 100L);
+
+        // Verify
+        assertTrue(loadShedder.isDeferred(LoadShedder.PATIENT_EVENTS));
+        assertEquals(1, loadShedder.getDeferredCount());
+        assertFalse(loadShedder.isDeferred(LoadShedder.PATIENT_EVENTS));
+    }
+
+    @Test
+    public void shouldNotDeferEventsWhenDisabled() {
+        // Setup
+        loadShedder.setEnabled(false);
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+
+        // Mock behavior
+        when(latencyMonitor.getP99Latency()).thenReturn(5000L);
+
+        // Verify
+        assertDoesNotThrow(() -> loadShedder.shed(LoadShedder.PATIENT_EVENTS).process(exchange));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2021, Ozone HIS <info@ozone-his.com>
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.ozonehis.eip.odoo.openmrs.unitofwork;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.ozonehis.eip.odoo.openmrs.model.SaleOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+class OdooUnitOfWorkTest {
+
+    private static final String VISIT_ID = "e5ca6578-fb37-4900-a054-c68db82a551c";
+
+    @Test
+    public void shouldReturnTheUnitOfWorkOfTheExchange() {
+        // Setup
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+
+        // Verify
+        assertSame(OdooUnitOfWork.of(exchange), OdooUnitOfWork.of(exchange));
+    }
+
+    @Test
+    public void shouldCollapseTheChangesOfASaleOrderIntoOneWrite() {
+        // Setup
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+        SaleOrder saleOrder = getSaleOrder(List.of(5, 6));
+        Map<String, Object> lineValues = Map.of("product_id", 7);
+
+        // Act
+        unitOfWork.updateSaleOrder(saleOrder).setPartnerWeight("70 kg");
+        unitOfWork.createSaleOrderLine(getSaleOrder(List.of(5, 6)), lineValues);
+        unitOfWork.deleteSaleOrderLine(saleOrder, 5);
+        unitOfWork.deleteSaleOrderLine(saleOrder, 5);
+        unitOfWork.cancelSaleOrderWhenEmpty(saleOrder);
+        List<SaleOrder> changedSaleOrders = unitOfWork.drain();
+
+        // Verify
+        assertEquals(1, changedSaleOrders.size());
+        assertSame(saleOrder, changedSaleOrders.get(0));
+        assertEquals("70 kg", saleOrder.getPartnerWeight());
+        assertEquals(List.of(asList(0, 0, lineValues), asList(2, 5, 0)), saleOrder.getOrderLine());
+        assertEquals("draft", saleOrder.getOrderState());
+        assertEquals(12, saleOrder.getOrderPartnerId());
+        assertTrue(unitOfWork.drain().isEmpty());
+    }
+
+    @Test
+    public void shouldCancelSaleOrderWhenItsLastLineIsDeleted() {
+        // Setup
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+        SaleOrder saleOrder = getSaleOrder(List.of(5));
+
+        // Act
+        unitOfWork.deleteSaleOrderLine(saleOrder, 5);
+        unitOfWork.cancelSaleOrderWhenEmpty(unitOfWork.getSaleOrder(VISIT_ID));
+        List<SaleOrder> changedSaleOrders = unitOfWork.drain();
+
+        // Verify
+        assertEquals(1, changedSaleOrders.size());
+        assertEquals("cancel", changedSaleOrders.get(0).getOrderState());
+        assertEquals(List.of(asList(2, 5, 0)), changedSaleOrders.get(0).getOrderLine());
+    }
+
+    @Test
+    public void shouldNotWriteSaleOrderWithoutChanges() {
+        // Setup
+        OdooUnitOfWork unitOfWork = new OdooUnitOfWork();
+
+        // Act
+        unitOfWork.cancelSaleOrderWhenEmpty(getSaleOrder(List.of(5)));
+
+        // Verify
+        assertTrue(unitOfWork.drain().isEmpty());
+        assertNull(unitOfWork.getSaleOrder(VISIT_ID));
+    }
+
+    private SaleOrder getSaleOrder(List<Object> orderLine) {
+        SaleOrder saleOrder = new SaleOrder();
+        saleOrder.setOrderId(1);
+        saleOrder.setOrderClientOrderRef(VISIT_ID);
+        saleOrder.setOrderState("draft");
+        saleOrder.setOrderPartnerId(List.of(12, "John Doe"));
+        saleOrder.setOrderLine(new ArrayList<>(orderLine));
+        return saleOrder;
+    }
+}